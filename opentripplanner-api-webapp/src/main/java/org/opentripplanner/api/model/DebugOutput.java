@@ -0,0 +1,97 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.api.model;
+
+import java.util.HashMap;
+
+import org.opentripplanner.routing.algorithm.SearchStats;
+
+/**
+ * Counters describing the searches run for a trip plan, returned when showDebug is requested.
+ */
+public class DebugOutput {
+
+    /**
+     * The number of A* searches run, including retries and searches for additional itineraries.
+     */
+    public int searches = 0;
+
+    /**
+     * The number of those searches that were aborted because they ran out of time.
+     */
+    public int timeouts = 0;
+
+    /**
+     * Why the last search stopped (TARGET_REACHED, QUEUE_EXHAUSTED, TERMINATION_STRATEGY or
+     * TIMEOUT).
+     */
+    public String termination = null;
+
+    /**
+     * States produced by traversing edges.
+     */
+    public long statesCreated = 0;
+
+    /**
+     * States added to the priority queue.
+     */
+    public long statesEnqueued = 0;
+
+    /**
+     * States discarded because a better state was already known.
+     */
+    public long statesDominated = 0;
+
+    /**
+     * States discarded by the heuristic or by weight, time or other limits.
+     */
+    public long statesPruned = 0;
+
+    /**
+     * The largest priority queue size reached.
+     */
+    public int queuePeakSize = 0;
+
+    /**
+     * Time spent preparing the A* heuristic, in milliseconds.
+     */
+    public double heuristicSetupTime = 0;
+
+    /**
+     * Time spent searching, in milliseconds.
+     */
+    public double searchTime = 0;
+
+    /**
+     * States created, by edge type.
+     */
+    public HashMap<String, Long> edgesTraversedByType = null;
+
+    public DebugOutput() {}
+
+    public DebugOutput(SearchStats stats) {
+        searches = stats.getSearches();
+        timeouts = stats.getTimeouts();
+        if (stats.getTermination() != null)
+            termination = stats.getTermination().toString();
+        statesCreated = stats.getStatesCreated();
+        statesEnqueued = stats.getStatesEnqueued();
+        statesDominated = stats.getStatesDominated();
+        statesPruned = stats.getStatesPruned();
+        queuePeakSize = stats.getQueuePeakSize();
+        heuristicSetupTime = stats.getHeuristicSetupNanos() / 1000000.0;
+        searchTime = stats.getSearchNanos() / 1000000.0;
+        edgesTraversedByType = new HashMap<String, Long>(stats.getEdgesTraversedByType());
+    }
+}
@@ -0,0 +1,160 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.api.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opentripplanner.api.ws.PlannerOverloadedException;
+import org.opentripplanner.api.ws.PlanningExecutor;
+import org.opentripplanner.api.ws.PlanningPool;
+import org.opentripplanner.api.ws.RequestInf;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+import com.sun.jersey.spi.spring.container.servlet.SpringServlet;
+
+/**
+ * Serves the /plan resource without holding a container thread for the length of the search.
+ * Each request is put in asynchronous mode (Servlet 3.0) and handed to the {@link PlanningPool} of
+ * its router; the pool's worker runs the usual Jersey dispatch and completes the response. The
+ * container thread goes straight back to accepting connections, so slow searches and slow clients
+ * no longer use up the container's thread pool.
+ * 
+ * Requests that the pool cannot accept get a 503 with a Retry-After header. If the container
+ * reports an I/O error on the connection, the worker is interrupted, which stops its search.
+ * 
+ * Mapped to /ws/async/* in web.xml; only /plan is served.
+ */
+public class AsyncPlannerServlet extends SpringServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncPlannerServlet.class
+            .getCanonicalName());
+
+    private static final String PLAN_PATH = "/plan";
+
+    private PlanningExecutor planningExecutor;
+
+    @Autowired(required = false)
+    public void setPlanningExecutor(PlanningExecutor planningExecutor) {
+        this.planningExecutor = planningExecutor;
+    }
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        ServletContext servletContext = config.getServletContext();
+        WebApplicationContext webApplicationContext = WebApplicationContextUtils.getWebApplicationContext(servletContext);
+        AutowireCapableBeanFactory autowireCapableBeanFactory = webApplicationContext.getAutowireCapableBeanFactory();
+        autowireCapableBeanFactory.autowireBean(this);
+    }
+
+    @Override
+    public void service(final HttpServletRequest request, final HttpServletResponse response)
+            throws ServletException, IOException {
+
+        if (!PLAN_PATH.equals(request.getPathInfo())) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (planningExecutor == null || !request.isAsyncSupported()) {
+            super.service(request, response);
+            return;
+        }
+
+        final AsyncContext async = request.startAsync();
+        // searches have their own timeouts; a container timeout would race with the worker
+        async.setTimeout(0);
+
+        final AtomicReference<Future<?>> task = new AtomicReference<Future<?>>();
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onError(AsyncEvent event) {
+                // the client has most likely gone away: stop the search
+                Future<?> future = task.get();
+                if (future != null)
+                    future.cancel(true);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+        });
+
+        try {
+            PlanningPool pool = planningExecutor.getPool(request.getParameter(RequestInf.ROUTER_ID));
+            task.set(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        AsyncPlannerServlet.super.service(request, response);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.SEVERE, "exception planning trip: ", e);
+                        sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    } finally {
+                        async.complete();
+                    }
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    sendOverloaded(response);
+                    async.complete();
+                }
+            }));
+        } catch (PlannerOverloadedException e) {
+            sendOverloaded(response);
+            async.complete();
+        }
+    }
+
+    private static void sendOverloaded(HttpServletResponse response) {
+        response.setHeader("Retry-After", "1");
+        sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    private static void sendError(HttpServletResponse response, int status) {
+        try {
+            if (!response.isCommitted())
+                response.sendError(status);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "could not send error " + status, e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.api.ws;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.opentripplanner.api.model.error.PlannerError;
+
+/**
+ * A table of path weights and walk distances between places, as returned by
+ * {@link DistanceTables}. Row i is for the i-th fromPlace and column j for the j-th toPlace;
+ * pairs without a path have a weight and walk distance of -1.
+ */
+@XmlRootElement
+public class DistanceTableResponse {
+
+    /** The labels of the vertices the fromPlaces were matched to. */
+    @XmlElementWrapper
+    @XmlElement(name = "vertex")
+    public List<String> fromVertices = new ArrayList<String>();
+
+    /** The labels of the vertices the toPlaces were matched to. */
+    @XmlElementWrapper
+    @XmlElement(name = "vertex")
+    public List<String> toVertices = new ArrayList<String>();
+
+    @XmlElementWrapper
+    @XmlElement(name = "row")
+    public List<Row> rows = new ArrayList<Row>();
+
+    /** The time spent computing the table, in milliseconds. */
+    public long computeTime;
+
+    @XmlElement(required = false)
+    public PlannerError error;
+
+    public static class Row {
+        @XmlElement(name = "weight")
+        public List<Double> weights = new ArrayList<Double>();
+
+        @XmlElement(name = "walkDistance")
+        public List<Double> walkDistances = new ArrayList<Double>();
+    }
+}
@@ -0,0 +1,331 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.api.ws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.opentripplanner.api.model.error.PlannerError;
+import org.opentripplanner.routing.algorithm.CancellationToken;
+import org.opentripplanner.routing.contraction.ContractionHierarchy;
+import org.opentripplanner.routing.contraction.ContractionHierarchySet;
+import org.opentripplanner.routing.contraction.ContractionSearchGraph;
+import org.opentripplanner.routing.contraction.DistanceTable;
+import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.services.GraphService;
+import org.opentripplanner.routing.services.SearchCancellationService;
+import org.opentripplanner.routing.services.StreetVertexIndexService;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.sun.jersey.api.spring.Autowire;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+
+// NOTE - /ws/distanceTable is the full path -- see web.xml
+
+/**
+ * Batch street distance tables between many places, computed with the many-to-many search of the
+ * contraction hierarchy for the requested modes. The hierarchy must be fully contracted (no
+ * core), which is the case for street-only modes. With a planning executor, tables are computed on
+ * the default router's planning pool, under the same admission control and request timeout as
+ * /plan.
+ */
+@Path("/distanceTable")
+@XmlRootElement
+@Autowire
+public class DistanceTables {
+
+    private static final Logger LOGGER = Logger.getLogger(DistanceTables.class.getCanonicalName());
+
+    private static final String DOUBLE_PATTERN = "-{0,1}\\d+(\\.\\d+){0,1}";
+
+    private static final Pattern LAT_LON_PATTERN = Pattern.compile("^\\s*(" + DOUBLE_PATTERN
+            + ")(\\s*,\\s*|\\s+)(" + DOUBLE_PATTERN + ")\\s*$");
+
+    /* places are matched to hierarchy vertices within this many degrees, searching outward */
+    private static final double INITIAL_SEARCH_RADIUS = 0.002;
+
+    private static final double MAX_SEARCH_RADIUS = 0.05;
+
+    /** By default, requests for larger tables are refused. */
+    public static final int MAX_CELLS = 400000;
+
+    private int maxCells = MAX_CELLS;
+
+    private long requestTimeout = 60000;
+
+    private GraphService graphService;
+
+    private StreetVertexIndexService indexService;
+
+    private PlanningExecutor planningExecutor;
+
+    private SearchCancellationService searchCancellationService;
+
+    @Autowired
+    public void setGraphService(GraphService graphService) {
+        this.graphService = graphService;
+    }
+
+    @Autowired
+    public void setIndexService(StreetVertexIndexService indexService) {
+        this.indexService = indexService;
+    }
+
+    /**
+     * Optional; if set, tables are computed one at a time on its pool for the default router,
+     * requests are turned away when it is overloaded and the request timeout is enforced.
+     * Without it, tables are computed on the request thread.
+     */
+    @Autowired(required = false)
+    public void setPlanningExecutor(PlanningExecutor planningExecutor) {
+        this.planningExecutor = planningExecutor;
+    }
+
+    /**
+     * Optional; if set, the searches for a table are registered here while it is computed so that
+     * they stop when the webapp shuts down.
+     */
+    @Autowired(required = false)
+    public void setSearchCancellationService(SearchCancellationService searchCancellationService) {
+        this.searchCancellationService = searchCancellationService;
+    }
+
+    /**
+     * The number of cells (sources times targets) of the largest table computed; defaults to
+     * {@link #MAX_CELLS}.
+     */
+    public void setMaxCells(int maxCells) {
+        this.maxCells = maxCells;
+    }
+
+    /**
+     * Milliseconds after which the computation of a table is abandoned and the request answered
+     * with {@link Message#REQUEST_TIMEOUT}. Zero or negative means no deadline. Defaults to one
+     * minute; only enforced with a planning executor.
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Compute a distance table. Places are given the same way as for /plan, either as
+     * latitude,longitude pairs or vertex labels; coordinates are matched to the closest vertex
+     * of the hierarchy.
+     * 
+     * @param fromPlaces
+     *            the places of the rows of the table
+     * @param toPlaces
+     *            the places of the columns of the table
+     * @param modes
+     *            the modes used to select a hierarchy, for instance WALK or BICYCLE
+     * @param optimize
+     *            the optimization used to select a hierarchy
+     * @param maxWeight
+     *            paths heavier than this are reported as missing
+     */
+    @GET
+    @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML, MediaType.TEXT_XML })
+    public DistanceTableResponse getDistanceTable(
+            @QueryParam(RequestInf.FROM) List<String> fromPlaces,
+            @QueryParam(RequestInf.TO) List<String> toPlaces,
+            @DefaultValue("WALK") @QueryParam(RequestInf.MODE) TraverseModeSet modes,
+            @DefaultValue("QUICK") @QueryParam(RequestInf.OPTIMIZE) OptimizeType optimize,
+            @QueryParam("maxWeight") Double maxWeight) {
+        return computeDistanceTable(fromPlaces, toPlaces, modes, optimize, maxWeight);
+    }
+
+    /** The same as the GET request, for tables with too many places to fit in a URL. */
+    @POST
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML, MediaType.TEXT_XML })
+    public DistanceTableResponse postDistanceTable(
+            @FormParam(RequestInf.FROM) List<String> fromPlaces,
+            @FormParam(RequestInf.TO) List<String> toPlaces,
+            @DefaultValue("WALK") @FormParam(RequestInf.MODE) TraverseModeSet modes,
+            @DefaultValue("QUICK") @FormParam(RequestInf.OPTIMIZE) OptimizeType optimize,
+            @FormParam("maxWeight") Double maxWeight) {
+        return computeDistanceTable(fromPlaces, toPlaces, modes, optimize, maxWeight);
+    }
+
+    private DistanceTableResponse computeDistanceTable(List<String> fromPlaces,
+            List<String> toPlaces, TraverseModeSet modes, OptimizeType optimize, Double maxWeight) {
+        DistanceTableResponse response = new DistanceTableResponse();
+        if (fromPlaces == null || toPlaces == null || fromPlaces.isEmpty() || toPlaces.isEmpty()
+                || (long) fromPlaces.size() * toPlaces.size() > maxCells) {
+            response.error = new PlannerError(Message.BOGUS_PARAMETER);
+            return response;
+        }
+
+        ContractionHierarchySet hierarchies = graphService.getContractionHierarchySet();
+        ContractionHierarchy hierarchy = hierarchies == null ? null : hierarchies
+                .getHierarchy(new TraverseOptions(modes, optimize));
+        ContractionSearchGraph search = hierarchy == null ? null : hierarchy.getSearchGraph();
+        if (search == null) {
+            response.error = new PlannerError(Message.BOGUS_PARAMETER);
+            return response;
+        }
+
+        List<String> missing = new ArrayList<String>();
+        List<Vertex> sources = getVertices(fromPlaces, hierarchies, search, RequestInf.FROM,
+                missing);
+        List<Vertex> targets = getVertices(toPlaces, hierarchies, search, RequestInf.TO, missing);
+        if (!missing.isEmpty()) {
+            response.error = new PlannerError(missing);
+            return response;
+        }
+
+        long start = System.currentTimeMillis();
+        DistanceTable table = null;
+        final CancellationToken token = new CancellationToken();
+        ScheduledFuture<?> deadline = null;
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        try {
+            if (searchCancellationService != null)
+                searchCancellationService.register(token);
+            if (requestTimeout > 0 && planningExecutor != null) {
+                deadline = planningExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timedOut.set(true);
+                        token.cancel();
+                    }
+                }, requestTimeout);
+            }
+            /*
+             * one thread per table: the planning pool bounds how many tables are computed at
+             * once, so a table must not start threads of its own
+             */
+            final ContractionHierarchy ch = hierarchy;
+            final List<Vertex> s = sources;
+            final List<Vertex> t = targets;
+            final double max = maxWeight == null ? Double.MAX_VALUE : maxWeight;
+            Callable<DistanceTable> task = new Callable<DistanceTable>() {
+                @Override
+                public DistanceTable call() {
+                    return ch.getDistanceTable(s, t, max, 1, token);
+                }
+            };
+            if (planningExecutor != null) {
+                table = planningExecutor.execute("", task);
+            } else {
+                table = task.call();
+            }
+        } catch (PlannerOverloadedException e) {
+            response.error = new PlannerError(Message.SERVER_OVERLOADED);
+            return response;
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "exception computing distance table: ", e);
+            response.error = new PlannerError(Message.SYSTEM_ERROR);
+            return response;
+        } finally {
+            if (deadline != null)
+                deadline.cancel(false);
+            token.cancel();
+            if (searchCancellationService != null)
+                searchCancellationService.unregister(token);
+        }
+        response.computeTime = System.currentTimeMillis() - start;
+        if (table == null) {
+            /* the token was cancelled: the deadline passed or the webapp is shutting down */
+            response.error = new PlannerError(timedOut.get() ? Message.REQUEST_TIMEOUT
+                    : Message.SYSTEM_ERROR);
+            return response;
+        }
+
+        for (Vertex v : sources) {
+            response.fromVertices.add(v.getLabel());
+        }
+        for (Vertex v : targets) {
+            response.toVertices.add(v.getLabel());
+        }
+        for (int i = 0; i < table.getSourceCount(); i++) {
+            DistanceTableResponse.Row row = new DistanceTableResponse.Row();
+            for (int j = 0; j < table.getTargetCount(); j++) {
+                boolean path = table.hasPath(i, j);
+                row.weights.add(path ? table.getWeight(i, j) : -1);
+                row.walkDistances.add(path ? table.getWalkDistance(i, j) : -1);
+            }
+            response.rows.add(row);
+        }
+        return response;
+    }
+
+    private List<Vertex> getVertices(List<String> places, ContractionHierarchySet hierarchies,
+            ContractionSearchGraph search, String name, List<String> missing) {
+        List<Vertex> vertices = new ArrayList<Vertex>(places.size());
+        for (int i = 0; i < places.size(); i++) {
+            Vertex v = getVertex(places.get(i), hierarchies, search);
+            if (v == null) {
+                missing.add(name + "." + i);
+            }
+            vertices.add(v);
+        }
+        return vertices;
+    }
+
+    private Vertex getVertex(String place, ContractionHierarchySet hierarchies,
+            ContractionSearchGraph search) {
+        Matcher matcher = LAT_LON_PATTERN.matcher(place);
+        if (!matcher.matches()) {
+            Vertex v = hierarchies.getVertex(place);
+            return v != null && search.containsVertex(v) ? v : null;
+        }
+        double lat = Double.parseDouble(matcher.group(1));
+        double lon = Double.parseDouble(matcher.group(4));
+        Coordinate c = new Coordinate(lon, lat);
+        for (double radius = INITIAL_SEARCH_RADIUS; radius <= MAX_SEARCH_RADIUS; radius *= 2) {
+            Envelope envelope = new Envelope(c);
+            envelope.expandBy(radius);
+            Vertex closest = null;
+            double closestDistance = Double.POSITIVE_INFINITY;
+            for (Vertex v : indexService.getVerticesForEnvelope(envelope)) {
+                if (!search.containsVertex(v)) {
+                    continue;
+                }
+                double distance = v.distance(c);
+                if (distance < closestDistance) {
+                    closest = v;
+                    closestDistance = distance;
+                }
+            }
+            if (closest != null) {
+                return closest;
+            }
+        }
+        return null;
+    }
+}
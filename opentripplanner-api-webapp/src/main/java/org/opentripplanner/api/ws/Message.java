@@ -36,6 +36,7 @@ public enum Message {
     GEOCODE_FROM_TO_NOT_FOUND(460),
     TOO_CLOSE(409),
     LOCATION_NOT_ACCESSIBLE(470),
+    SERVER_OVERLOADED(503),
 
     GEOCODE_FROM_AMBIGUOUS(340),
     GEOCODE_TO_AMBIGUOUS(350),
@@ -31,6 +31,8 @@ import org.opentripplanner.api.model.WalkStep;
 import org.opentripplanner.common.geometry.DirectionUtils;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
 import org.opentripplanner.common.model.NamedPlace;
+import org.opentripplanner.routing.algorithm.CancellationToken;
+import org.opentripplanner.routing.algorithm.SearchStats;
 import org.opentripplanner.routing.core.DirectEdge;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.EdgeNarrative;
@@ -75,6 +77,10 @@ public class PlanGenerator {
 
     private GeometryFactory geometryFactory = new GeometryFactory();
 
+    private SearchStats searchStats = new SearchStats();
+
+    private CancellationToken cancellationToken = new CancellationToken();
+
     public PlanGenerator(Request request, PathServiceFactory pathServiceFactory) {
         this.request = request;
         pathService = pathServiceFactory.getPathService(request.getRouterId());
@@ -89,6 +95,8 @@ public class PlanGenerator {
     public TripPlan generate() {
 
         TraverseOptions options = getOptions(request);
+        options.searchStats = searchStats;
+        options.cancellationToken = cancellationToken;
 
         checkLocationsAccessible(request, options);
 
@@ -140,6 +148,20 @@ public class PlanGenerator {
         return plan;
     }
 
+    /**
+     * @return the counters of all searches run by {@link #generate()} so far, including failed ones
+     */
+    public SearchStats getSearchStats() {
+        return searchStats;
+    }
+
+    /**
+     * @return the token that stops {@link #generate()} when cancelled from another thread
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
     /**
      * Generates a TripPlan from a set of paths
      */
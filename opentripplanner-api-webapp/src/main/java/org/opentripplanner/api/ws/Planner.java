@@ -13,6 +13,9 @@
 package org.opentripplanner.api.ws;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,14 +28,18 @@ import javax.ws.rs.core.MediaType;
 import javax.xml.bind.annotation.XmlRootElement;
 
 import org.codehaus.jettison.json.JSONException;
+import org.opentripplanner.api.model.DebugOutput;
 import org.opentripplanner.api.model.TripPlan;
 import org.opentripplanner.api.model.error.PlannerError;
+import org.opentripplanner.routing.algorithm.CancellationToken;
 import org.opentripplanner.routing.core.OptimizeType;
 import org.opentripplanner.routing.core.TraverseModeSet;
 import org.opentripplanner.routing.error.PathNotFoundException;
 import org.opentripplanner.routing.error.TransitTimesException;
 import org.opentripplanner.routing.error.VertexNotFoundException;
 import org.opentripplanner.routing.services.PathServiceFactory;
+import org.opentripplanner.routing.services.SearchCancellationService;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Required;
 
 import com.sun.jersey.api.spring.Autowire;
@@ -51,11 +58,44 @@ public class Planner {
 
     private PathServiceFactory pathServiceFactory;
 
+    private long requestTimeout = 60000;
+
+    private SearchCancellationService searchCancellationService;
+
+    private PlanningExecutor planningExecutor;
+
     @Required
     public void setPathServiceFactory(PathServiceFactory pathServiceFactory) {
         this.pathServiceFactory = pathServiceFactory;
     }
 
+    /**
+     * Optional; if set, every request's searches are registered here for the duration of the
+     * request so that they stop when the webapp shuts down.
+     */
+    @Autowired(required = false)
+    public void setSearchCancellationService(SearchCancellationService searchCancellationService) {
+        this.searchCancellationService = searchCancellationService;
+    }
+
+    /**
+     * Optional; if set, plans are computed on its bounded per-router pools rather than on the
+     * request thread, requests are turned away when a router is overloaded and the request
+     * timeout is enforced.
+     */
+    public void setPlanningExecutor(PlanningExecutor planningExecutor) {
+        this.planningExecutor = planningExecutor;
+    }
+
+    /**
+     * Milliseconds after which a request is abandoned, whether or not the client is still waiting:
+     * its searches are cancelled and it is answered with {@link Message#REQUEST_TIMEOUT}. Zero or
+     * negative means no deadline. Defaults to one minute; only enforced with a planning executor.
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
     /**
      * This is the primary entry point for the web service and is used for requesting trip plans.
      * All parameters are passed in the query string.
@@ -122,6 +162,10 @@ public class Planner {
      * 
      * @param unpreferredRoutes
      *            The list of unpreferred routes.
+     *
+     * @param showDebug
+     *            Whether to include search counters (states created, queue size, timings...) in
+     *            the response, for diagnosing slow requests.
      * 
      * @return Returns either an XML or a JSON document, depending on the HTTP Accept header of the
      *         client making the request.
@@ -150,6 +194,7 @@ public class Planner {
             @DefaultValue("240") @QueryParam(RequestInf.MIN_TRANSFER_TIME) Integer minTransferTime,
             @DefaultValue("3") @QueryParam(RequestInf.NUMBER_ITINERARIES) Integer numItineraries,
             @DefaultValue("false") @QueryParam(RequestInf.SHOW_INTERMEDIATE_STOPS) Boolean showIntermediateStops,
+            @DefaultValue("false") @QueryParam(RequestInf.SHOW_DEBUG) Boolean showDebug,
             @DefaultValue("") @QueryParam(RequestInf.PREFERRED_ROUTES) String preferredRoutes,
             @DefaultValue("") @QueryParam(RequestInf.UNPREFERRED_ROUTES) String unpreferredRoutes,
             @DefaultValue("") @QueryParam(RequestInf.BANNED_ROUTES) String bannedRoutes,
@@ -213,6 +258,9 @@ public class Planner {
         if (showIntermediateStops != null && showIntermediateStops) {
             request.setShowIntermediateStops(true);
         }
+        if (showDebug != null && showDebug) {
+            request.setShowDebug(true);
+        }
         if (intermediatePlaces != null && intermediatePlaces.size() > 0
                 && !intermediatePlaces.get(0).equals("")) {
             request.setIntermediatePlaces(intermediatePlaces);
@@ -251,9 +299,37 @@ public class Planner {
         }
         /* use request to generate trip */
         Response response = new Response(request);
+        PlanGenerator generator = null;
+        CancellationToken cancellationToken = null;
+        ScheduledFuture<?> deadline = null;
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
         try {
-            PlanGenerator generator = new PlanGenerator(request, pathServiceFactory);
-            TripPlan plan = generator.generate();
+            generator = new PlanGenerator(request, pathServiceFactory);
+            cancellationToken = generator.getCancellationToken();
+            if (searchCancellationService != null)
+                searchCancellationService.register(cancellationToken);
+            if (requestTimeout > 0 && planningExecutor != null) {
+                final CancellationToken token = cancellationToken;
+                deadline = planningExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timedOut.set(true);
+                        token.cancel();
+                    }
+                }, requestTimeout);
+            }
+            TripPlan plan;
+            if (planningExecutor != null) {
+                final PlanGenerator task = generator;
+                plan = planningExecutor.execute(request.getRouterId(), new Callable<TripPlan>() {
+                    @Override
+                    public TripPlan call() {
+                        return task.generate();
+                    }
+                });
+            } else {
+                plan = generator.generate();
+            }
             response.setPlan(plan);
         } catch (VertexNotFoundException e) {
             PlannerError error = new PlannerError(Message.OUTSIDE_BOUNDS);
@@ -265,6 +341,9 @@ public class Planner {
         } catch (LocationNotAccessible e) {
             PlannerError error = new PlannerError(Message.LOCATION_NOT_ACCESSIBLE);
             response.setError(error);
+        } catch (PlannerOverloadedException e) {
+            PlannerError error = new PlannerError(Message.SERVER_OVERLOADED);
+            response.setError(error);
         } catch (TransitTimesException e) {
             // TODO: improve this to distinguish between days/places with no service
             // and dates outside those covered by the feed
@@ -274,6 +353,25 @@ public class Planner {
             LOGGER.log(Level.SEVERE, "exception planning trip: ", e);
             PlannerError error = new PlannerError(Message.SYSTEM_ERROR);
             response.setError(error);
+        } finally {
+            /*
+             * stop anything still running on behalf of this request once it is answered, or once
+             * waiting for it has failed (the request thread was interrupted, for instance)
+             */
+            if (deadline != null)
+                deadline.cancel(false);
+            if (cancellationToken != null) {
+                cancellationToken.cancel();
+                if (searchCancellationService != null)
+                    searchCancellationService.unregister(cancellationToken);
+            }
+        }
+        if (timedOut.get() && response.getPlan() == null) {
+            /* cancelled searches find nothing, so this is what went wrong */
+            response.setError(new PlannerError(Message.REQUEST_TIMEOUT));
+        }
+        if (request.getShowDebug() && generator != null) {
+            response.setDebug(new DebugOutput(generator.getSearchStats()));
         }
         return response;
     }
@@ -0,0 +1,156 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.api.ws;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runs planning requests on a separate bounded {@link PlanningPool} for each router, so that a
+ * traffic spike is answered with quick {@link Message#SERVER_OVERLOADED} errors instead of every
+ * request slowing down together and the heap filling up with shortest path trees. Each pool is
+ * published over JMX as <code>org.opentripplanner:type=PlanningPool,router=...</code>. It also
+ * enforces request deadlines, on a single timer thread that is stopped with the pools.
+ */
+public class PlanningExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(PlanningExecutor.class
+            .getCanonicalName());
+
+    private int threadsPerRouter = Runtime.getRuntime().availableProcessors();
+
+    private int queueSize = 50;
+
+    private long maxQueueWait = 5000;
+
+    private final Map<String, PlanningPool> pools = new HashMap<String, PlanningPool>();
+
+    private final Map<String, ObjectName> objectNames = new HashMap<String, ObjectName>();
+
+    /* cancels the searches of requests that run past their deadline */
+    private final ScheduledExecutorService deadlines = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "planner-deadlines");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private boolean shutdown = false;
+
+    /** The number of requests planned at the same time for each router. */
+    public void setThreadsPerRouter(int threadsPerRouter) {
+        this.threadsPerRouter = threadsPerRouter;
+    }
+
+    /**
+     * The number of requests that may wait for a worker before new ones are rejected; zero
+     * rejects every request that finds all the workers busy.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Requests that have waited this many milliseconds without being started are dropped. Zero
+     * or negative means wait forever.
+     */
+    public void setMaxQueueWait(long maxQueueWait) {
+        this.maxQueueWait = maxQueueWait;
+    }
+
+    /**
+     * Run a task on the pool of the given router and wait for its result.
+     * 
+     * @throws PlannerOverloadedException if that pool cannot take the task in time
+     */
+    public <T> T execute(String routerId, Callable<T> task) {
+        return getPool(routerId).execute(task);
+    }
+
+    /**
+     * Run a task after the given number of milliseconds, unless the returned future is cancelled
+     * first. During shutdown the task runs right away.
+     */
+    public synchronized ScheduledFuture<?> schedule(Runnable task, long delay) {
+        if (shutdown) {
+            task.run();
+            return null;
+        }
+        return deadlines.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized PlanningPool getPool(String routerId) {
+        if (routerId == null)
+            routerId = "";
+        if (shutdown)
+            throw new PlannerOverloadedException();
+        PlanningPool pool = pools.get(routerId);
+        if (pool == null) {
+            pool = new PlanningPool(routerId, threadsPerRouter, queueSize, maxQueueWait);
+            pools.put(routerId, pool);
+            register(routerId, pool);
+        }
+        return pool;
+    }
+
+    private void register(String routerId, PlanningPool pool) {
+        try {
+            ObjectName name = new ObjectName("org.opentripplanner:type=PlanningPool,router="
+                    + ObjectName.quote(routerId.equals("") ? "default" : routerId));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(pool, name);
+            objectNames.put(routerId, name);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "could not register planning pool for router " + routerId
+                    + " with JMX", e);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        shutdown = true;
+        deadlines.shutdownNow();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Map.Entry<String, PlanningPool> entry : pools.entrySet()) {
+            entry.getValue().shutdown();
+            ObjectName name = objectNames.get(entry.getKey());
+            if (name == null)
+                continue;
+            try {
+                server.unregisterMBean(name);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "could not unregister " + name, e);
+            }
+        }
+        pools.clear();
+        objectNames.clear();
+    }
+}
@@ -0,0 +1,278 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.api.ws;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded worker pool and queue for the planning requests of one router. Requests that find
+ * the queue full are rejected immediately; requests that are still queued after the maximum
+ * queue wait are removed from the queue and rejected, since by then the client has likely given
+ * up.
+ */
+public class PlanningPool implements PlanningPoolMBean {
+
+    /* the pool whose worker is running the current thread, if any */
+    private static final ThreadLocal<PlanningPool> currentPool = new ThreadLocal<PlanningPool>();
+
+    private final String routerId;
+
+    private final ThreadPoolExecutor executor;
+
+    private final long maxQueueWait;
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong shed = new AtomicLong();
+
+    private final AtomicLong started = new AtomicLong();
+
+    private final AtomicLong totalQueueWait = new AtomicLong();
+
+    private final AtomicLong maxQueueWaitSeen = new AtomicLong();
+
+    /**
+     * @param queueSize the number of requests that may wait for a worker; zero means none, so a
+     *        request is rejected unless a worker is free
+     * @param maxQueueWait milliseconds a request may wait for a worker; zero or negative means
+     *        forever
+     */
+    public PlanningPool(final String routerId, int threads, int queueSize, long maxQueueWait) {
+        if (queueSize < 0)
+            throw new IllegalArgumentException("the planning queue size must not be negative: "
+                    + queueSize);
+        this.routerId = routerId;
+        this.maxQueueWait = maxQueueWait;
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                String name = "planner-" + (routerId.equals("") ? "default" : routerId) + "-"
+                        + count.incrementAndGet();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        currentPool.set(PlanningPool.this);
+                        r.run();
+                    }
+                }, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        /* an ArrayBlockingQueue needs room for one task; a SynchronousQueue only hands to idle workers */
+        BlockingQueue<Runnable> queue;
+        if (queueSize == 0)
+            queue = new SynchronousQueue<Runnable>();
+        else
+            queue = new ArrayBlockingQueue<Runnable>(queueSize);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue,
+                threadFactory);
+    }
+
+    /**
+     * Run a task on this pool and wait for its result. Runtime exceptions thrown by the task are
+     * rethrown as they are. When called from one of this pool's own workers, the task runs
+     * immediately on the calling thread.
+     * 
+     * @throws PlannerOverloadedException if the task was rejected or shed
+     */
+    public <T> T execute(final Callable<T> task) {
+        if (currentPool.get() == this) {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw rethrow(e);
+            }
+        }
+        final long enqueued = System.currentTimeMillis();
+        FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                recordQueueWait(System.currentTimeMillis() - enqueued);
+                try {
+                    return task.call();
+                } finally {
+                    completed.incrementAndGet();
+                }
+            }
+        });
+        submitted.incrementAndGet();
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new PlannerOverloadedException();
+        }
+        try {
+            if (maxQueueWait > 0) {
+                try {
+                    return future.get(maxQueueWait, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // still queued: drop it. Otherwise it is running, so let it finish.
+                    if (executor.remove(future)) {
+                        shed.incrementAndGet();
+                        throw new PlannerOverloadedException();
+                    }
+                }
+            }
+            return future.get();
+        } catch (InterruptedException e) {
+            // the request thread is going away; interrupting the worker stops the search
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for a trip plan", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Queue a task on this pool without waiting for it, for callers that complete their response
+     * asynchronously. If the task waits longer than the maximum queue wait, <code>onShed</code>
+     * runs instead of it, on the worker thread.
+     * 
+     * @return a future that can be cancelled (with interruption) to stop the task
+     * @throws PlannerOverloadedException if the queue is full
+     */
+    public Future<?> submit(final Runnable task, final Runnable onShed) {
+        final long enqueued = System.currentTimeMillis();
+        FutureTask<Object> future = new FutureTask<Object>(new Runnable() {
+            @Override
+            public void run() {
+                long wait = System.currentTimeMillis() - enqueued;
+                recordQueueWait(wait);
+                if (maxQueueWait > 0 && wait > maxQueueWait) {
+                    shed.incrementAndGet();
+                    onShed.run();
+                    return;
+                }
+                try {
+                    task.run();
+                } finally {
+                    completed.incrementAndGet();
+                }
+            }
+        }, null);
+        submitted.incrementAndGet();
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new PlannerOverloadedException();
+        }
+        return future;
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException)
+            return (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        return new RuntimeException(t);
+    }
+
+    private void recordQueueWait(long wait) {
+        started.incrementAndGet();
+        totalQueueWait.addAndGet(wait);
+        long max = maxQueueWaitSeen.get();
+        while (wait > max && !maxQueueWaitSeen.compareAndSet(max, wait))
+            max = maxQueueWaitSeen.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String getRouterId() {
+        return routerId;
+    }
+
+    @Override
+    public int getPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public long getShed() {
+        return shed.get();
+    }
+
+    @Override
+    public double getMeanQueueWaitMillis() {
+        long n = started.get();
+        return n == 0 ? 0 : (double) totalQueueWait.get() / n;
+    }
+
+    @Override
+    public long getMaxQueueWaitMillis() {
+        return maxQueueWaitSeen.get();
+    }
+
+    @Override
+    public void resetStatistics() {
+        submitted.set(0);
+        completed.set(0);
+        rejected.set(0);
+        shed.set(0);
+        started.set(0);
+        totalQueueWait.set(0);
+        maxQueueWaitSeen.set(0);
+    }
+}
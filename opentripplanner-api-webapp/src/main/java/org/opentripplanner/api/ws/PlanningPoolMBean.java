@@ -0,0 +1,47 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.api.ws;
+
+/**
+ * JMX view of the {@link PlanningPool} of one router.
+ */
+public interface PlanningPoolMBean {
+
+    public String getRouterId();
+
+    public int getPoolSize();
+
+    /** @return the number of requests being planned right now */
+    public int getActiveCount();
+
+    /** @return the number of requests waiting for a worker */
+    public int getQueueDepth();
+
+    public long getSubmitted();
+
+    public long getCompleted();
+
+    /** @return the number of requests refused because the queue was full */
+    public long getRejected();
+
+    /** @return the number of requests dropped after waiting too long in the queue */
+    public long getShed();
+
+    public double getMeanQueueWaitMillis();
+
+    public long getMaxQueueWaitMillis();
+
+    public void resetStatistics();
+}
@@ -96,6 +96,11 @@ public class Request implements RequestInf {
      * Whether the planner should return intermediate stops lists for transit legs.
      */
     private boolean showIntermediateStops = false;
+
+    /**
+     * Whether the response should include search counters for diagnosing slow requests.
+     */
+    private boolean showDebug = false;
     
     /**
      * List of preffered routes. 
@@ -419,6 +424,15 @@ public class Request implements RequestInf {
         return showIntermediateStops;
     }
 
+    public void setShowDebug(boolean showDebug) {
+        this.showDebug = showDebug;
+        paramPush(SHOW_DEBUG, showDebug);
+    }
+
+    public boolean getShowDebug() {
+        return showDebug;
+    }
+
     public void setMinTransferTime(Integer minTransferTime) {
         this.minTransferTime = minTransferTime;
     }
@@ -33,6 +33,7 @@ public interface RequestInf {
 	public static String MODE = "mode";
 	public static String NUMBER_ITINERARIES = "numItineraries";
 	public static String SHOW_INTERMEDIATE_STOPS = "showIntermediateStops";
+	public static String SHOW_DEBUG = "showDebug";
 
 	public static String PREFERRED_ROUTES = "preferredRoutes";
 	public static String UNPREFERRED_ROUTES = "unpreferredRoutes";
@@ -18,6 +18,7 @@ import java.util.HashMap;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.opentripplanner.api.model.DebugOutput;
 import org.opentripplanner.api.model.TripPlan;
 import org.opentripplanner.api.model.error.PlannerError;
 
@@ -30,6 +31,7 @@ public class Response {
     private HashMap<String, String> requestParameters;
     private TripPlan plan;
     private PlannerError error = null;
+    private DebugOutput debug = null;
 
     public Response() {
     }
@@ -79,4 +81,16 @@ public class Response {
     public void setError(PlannerError error) {
         this.error = error;
     }
+
+    /**
+     * Search counters for this request, present only when showDebug was requested.
+     */
+    @XmlElement(required=false)
+    public DebugOutput getDebug() {
+        return debug;
+    }
+
+    public void setDebug(DebugOutput debug) {
+        this.debug = debug;
+    }
 }
\ No newline at end of file
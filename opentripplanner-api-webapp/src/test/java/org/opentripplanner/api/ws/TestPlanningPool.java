@@ -0,0 +1,196 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.api.ws;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class TestPlanningPool extends TestCase {
+
+    public void testOverload() throws Exception {
+        final PlanningPool pool = new PlanningPool("test", 1, 1, 0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> blocker = new Callable<String>() {
+            public String call() throws Exception {
+                started.countDown();
+                release.await();
+                return "done";
+            }
+        };
+        /* one request occupies the worker, one waits in the queue */
+        Thread running = new Thread() {
+            public void run() {
+                pool.execute(blocker);
+            }
+        };
+        running.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Thread queued = new Thread() {
+            public void run() {
+                pool.execute(blocker);
+            }
+        };
+        queued.start();
+        while (pool.getQueueDepth() == 0)
+            Thread.sleep(1);
+
+        try {
+            pool.execute(blocker);
+            fail("a full queue should reject requests");
+        } catch (PlannerOverloadedException e) {
+        }
+        assertEquals(1, pool.getRejected());
+
+        release.countDown();
+        running.join();
+        queued.join();
+        assertEquals(3, pool.getSubmitted());
+        assertEquals(2, pool.getCompleted());
+        pool.shutdown();
+    }
+
+    public void testNoQueue() throws Exception {
+        final PlanningPool pool = new PlanningPool("test", 1, 0, 0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> blocker = new Callable<String>() {
+            public String call() throws Exception {
+                started.countDown();
+                release.await();
+                return "done";
+            }
+        };
+        Thread running = new Thread() {
+            public void run() {
+                pool.execute(blocker);
+            }
+        };
+        running.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        /* with no queue, a request finding the only worker busy is rejected */
+        try {
+            pool.execute(blocker);
+            fail("a busy pool without a queue should reject requests");
+        } catch (PlannerOverloadedException e) {
+        }
+        assertEquals(1, pool.getRejected());
+        assertEquals(0, pool.getQueueDepth());
+
+        release.countDown();
+        running.join();
+        pool.shutdown();
+
+        try {
+            new PlanningPool("test", 1, -1, 0);
+            fail("a negative queue size should be refused");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testShedding() throws Exception {
+        final PlanningPool pool = new PlanningPool("test", 1, 10, 50);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread running = new Thread() {
+            public void run() {
+                pool.execute(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        started.countDown();
+                        release.await();
+                        return null;
+                    }
+                });
+            }
+        };
+        running.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        try {
+            pool.execute(new Callable<Object>() {
+                public Object call() {
+                    return null;
+                }
+            });
+            fail("a request waiting past maxQueueWait should be shed");
+        } catch (PlannerOverloadedException e) {
+        }
+        assertEquals(1, pool.getShed());
+        assertEquals(0, pool.getQueueDepth());
+        release.countDown();
+        running.join();
+        pool.shutdown();
+    }
+
+    public void testSubmit() throws Exception {
+        final PlanningPool pool = new PlanningPool("test", 1, 1, 0);
+        final AtomicReference<String> result = new AtomicReference<String>();
+        Future<?> future = pool.submit(new Runnable() {
+            public void run() {
+                /* a nested execute runs on the worker itself instead of deadlocking */
+                result.set(pool.execute(new Callable<String>() {
+                    public String call() {
+                        return Thread.currentThread().getName();
+                    }
+                }));
+            }
+        }, null);
+        future.get(5, TimeUnit.SECONDS);
+        assertEquals("planner-test-1", result.get());
+        assertEquals(1, pool.getCompleted());
+        pool.shutdown();
+    }
+
+    public void testExceptionsPassThrough() {
+        PlanningPool pool = new PlanningPool("test", 1, 1, 0);
+        try {
+            pool.execute(new Callable<Object>() {
+                public Object call() {
+                    throw new LocationNotAccessible();
+                }
+            });
+            fail();
+        } catch (LocationNotAccessible e) {
+        }
+        pool.shutdown();
+    }
+
+    public void testDeadlines() throws Exception {
+        PlanningExecutor executor = new PlanningExecutor();
+        final CountDownLatch fired = new CountDownLatch(1);
+        Runnable deadline = new Runnable() {
+            public void run() {
+                fired.countDown();
+            }
+        };
+        executor.schedule(deadline, 10);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+
+        /* the timer thread is stopped with the pools; later deadlines have already passed */
+        executor.shutdown();
+        final CountDownLatch immediate = new CountDownLatch(1);
+        assertNull(executor.schedule(new Runnable() {
+            public void run() {
+                immediate.countDown();
+            }
+        }, 60000));
+        assertEquals(0, immediate.getCount());
+    }
+}
@@ -0,0 +1,202 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A SHA-1 digest of the inputs and configuration of a graph builder. Values are added in order,
+ * each one terminated so that ("ab", "c") and ("a", "bc") give different digests. Files are added
+ * by content, and directories by the names and content of the files below them, so moving or
+ * touching an input does not change the digest. Objects are added by their serialized form,
+ * which only stays the same from one run to the next if they contain no collections ordered by
+ * identity hash codes; subclasses can replace such collections in {@link #replaceObject}. Code is added by the jar files or class directories it was loaded from.
+ */
+public class Fingerprint {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private MessageDigest digest;
+
+    private String value;
+
+    public Fingerprint() {
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Fingerprint add(String value) {
+        try {
+            digest.update(String.valueOf(value).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update((byte) 0);
+        return this;
+    }
+
+    public Fingerprint add(Object value) {
+        return add(String.valueOf(value));
+    }
+
+    public Fingerprint addFile(File file) {
+        if (file.isDirectory()) {
+            add("directory");
+            String[] names = file.list();
+            Arrays.sort(names);
+            for (String name : names) {
+                add(name);
+                addFile(new File(file, name));
+            }
+            return this;
+        }
+        add("file");
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                addStream(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("error reading " + file, e);
+        }
+        return this;
+    }
+
+    /**
+     * Add the compiled code of some classes: each jar file or class directory they were loaded
+     * from once, or the class file itself for a class that was not loaded from a local file.
+     */
+    public Fingerprint addCode(Collection<Class<?>> types) {
+        Set<File> locations = new TreeSet<File>();
+        Map<String, Class<?>> others = new TreeMap<String, Class<?>>();
+        for (Class<?> type : types) {
+            File location = getLocation(type);
+            if (location != null)
+                locations.add(location);
+            else
+                others.put(type.getName(), type);
+        }
+        for (File location : locations)
+            addFile(location);
+        for (Map.Entry<String, Class<?>> other : others.entrySet()) {
+            add(other.getKey());
+            String resource = "/" + other.getKey().replace('.', '/') + ".class";
+            InputStream in = other.getValue().getResourceAsStream(resource);
+            if (in == null)
+                continue;
+            try {
+                try {
+                    addStream(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("error reading " + resource, e);
+            }
+        }
+        return this;
+    }
+
+    public Fingerprint addObject(Serializable object) {
+        OutputStream discard = new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new DigestOutputStream(discard, digest)) {
+                {
+                    enableReplaceObject(true);
+                }
+
+                @Override
+                protected Object replaceObject(Object object) {
+                    return Fingerprint.this.replaceObject(object);
+                }
+            };
+            out.writeObject(object);
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("error serializing " + object.getClass().getName(), e);
+        }
+        digest.update((byte) 0);
+        return this;
+    }
+
+    /** @return what to serialize in place of each object written by addObject */
+    protected Object replaceObject(Object object) {
+        return object;
+    }
+
+    private void addStream(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+            digest.update(buffer, 0, n);
+        digest.update((byte) 0);
+    }
+
+    /** @return the jar file or class directory a class was loaded from, if it is a local file */
+    private static File getLocation(Class<?> type) {
+        CodeSource source = type.getProtectionDomain().getCodeSource();
+        if (source == null)
+            return null;
+        URL url = source.getLocation();
+        if (url == null || !"file".equals(url.getProtocol()))
+            return null;
+        try {
+            File location = new File(url.toURI());
+            return location.exists() ? location : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /** @return the digest in hexadecimal; nothing can be added once it has been taken */
+    public String toString() {
+        if (value == null) {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest())
+                sb.append(String.format("%02x", b & 0xff));
+            value = sb.toString();
+            digest = null;
+        }
+        return value;
+    }
+}
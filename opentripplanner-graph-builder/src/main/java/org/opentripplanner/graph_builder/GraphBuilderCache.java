@@ -0,0 +1,447 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+import org.opentripplanner.graph_builder.services.CacheableGraphBuilder;
+import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.graph_builder.services.GraphBuilderWithDependencies;
+import org.opentripplanner.routing.contraction.ContractionHierarchySet;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the expensive intermediate results of a graph build in a directory, keyed by digests of
+ * what they were built from, so that a build whose inputs only partly changed reuses the rest:
+ * <ul>
+ * <li>the streets: the graph built by the {@link CacheableGraphBuilder}s that do not depend on
+ * any other builder (typically OpenStreetMap and elevation), keyed by their fingerprints;</li>
+ * <li>the contraction hierarchies, keyed by the contraction settings and either the fingerprints
+ * of all the builders, when every builder that ran after the streets has one, or else the content
+ * of the finished graph.</li>
+ * </ul>
+ * Both keys also cover the code that built and serialized the artifacts, so that a new build of
+ * OTP does not reuse the artifacts of an old one. Only the latest artifact of each kind is kept. The stages that were reused are logged and
+ * listed by {@link #getReusedStages()}.
+ */
+public class GraphBuilderCache {
+
+    private static Logger _log = LoggerFactory.getLogger(GraphBuilderCache.class);
+
+    private static final String STREETS = "streets-";
+
+    private static final String HIERARCHIES = "hierarchies-";
+
+    private static final String SUFFIX = ".obj";
+
+    private static final String HIERARCHIES_STAGE = "ContractionHierarchySet";
+
+    /* the classes whose code every artifact depends on, beyond that of the builders */
+    private static final List<Class<?>> CODE = Arrays.<Class<?>> asList(GraphBuilderCache.class,
+            Graph.class, ContractionHierarchySet.class);
+
+    private File _directory;
+
+    private Set<String> _provided = new HashSet<String>();
+
+    /* the key of the streets built or read by buildStreets, if any */
+    private String _streetsKey;
+
+    private List<String> _reusedStages = new ArrayList<String>();
+
+    public GraphBuilderCache(File directory) {
+        _directory = directory;
+    }
+
+    /**
+     * Add the output of the cacheable builders to the graph, reading it from the cache if their
+     * inputs are unchanged and building and storing it otherwise.
+     *
+     * A builder is cacheable if it has a fingerprint, all its prerequisites are provided by other
+     * cacheable builders and it does not conflict with any builder listed before it that is not
+     * cacheable, so that running it first gives the same graph.
+     *
+     * @return the builders that are left to run, in their original order
+     */
+    public List<GraphBuilder> buildStreets(List<GraphBuilder> graphBuilders, Graph graph,
+            int threads) {
+        List<GraphBuilder> cached = new ArrayList<GraphBuilder>();
+        List<GraphBuilder> remaining = new ArrayList<GraphBuilder>();
+        Set<String> provided = new HashSet<String>();
+        Fingerprint key = new Fingerprint();
+        for (GraphBuilder builder : graphBuilders) {
+            String fingerprint = null;
+            if (builder instanceof CacheableGraphBuilder
+                    && provided.containsAll(((CacheableGraphBuilder) builder).getPrerequisites())
+                    && !conflictsWithAny(builder, remaining)) {
+                fingerprint = ((CacheableGraphBuilder) builder).getFingerprint();
+            }
+            if (fingerprint == null) {
+                remaining.add(builder);
+                continue;
+            }
+            cached.add(builder);
+            provided.addAll(((CacheableGraphBuilder) builder).provides());
+            key.add(fingerprint);
+        }
+        if (cached.isEmpty())
+            return graphBuilders;
+        List<Class<?>> code = new ArrayList<Class<?>>(CODE);
+        for (GraphBuilder builder : cached)
+            code.add(builder.getClass());
+        key.addCode(code);
+
+        List<String> names = getNames(cached);
+        File file = new File(_directory, STREETS + key + SUFFIX);
+        Graph streets = null;
+        if (file.exists()) {
+            long start = System.currentTimeMillis();
+            streets = (Graph) read(file);
+            if (streets != null) {
+                _log.info("reused " + names + " from " + file + ", read in "
+                        + (System.currentTimeMillis() - start) + " ms");
+                _reusedStages.addAll(names);
+            }
+        }
+        if (streets == null) {
+            _log.info("no cached graph for " + names + ", building it");
+            streets = new Graph(graph);
+            new GraphBuilderScheduler(cached, threads).run(streets);
+            write(streets, file);
+            deleteOthers(STREETS, file);
+        }
+        for (GraphVertex gv : streets.getVertices())
+            graph.addGraphVertex(gv);
+        _provided = provided;
+        _streetsKey = key.toString();
+        return remaining;
+    }
+
+    /** @return the names of what the builders whose output came from buildStreets provide */
+    public Set<String> getProvided() {
+        return _provided;
+    }
+
+    /**
+     * @param builders
+     *            the builders run on the graph after {@link #buildStreets}
+     * @return a digest of the settings of the contraction hierarchies to build on the graph and of
+     *         what the graph was built from: if the streets came from {@link #buildStreets} and
+     *         all the other builders have fingerprints, the key of the streets and those
+     *         fingerprints; otherwise the graph's vertices, edges, services and transfers. The
+     *         cached hierarchies are stored with the whole graph, so the services count even though
+     *         the hierarchies do not use them. Null if the graph holds something that cannot be
+     *         digested the same way from one run to the next, in which case the hierarchies are
+     *         not cached.
+     */
+    public String getHierarchiesKey(Graph graph, List<GraphBuilder> builders,
+            List<TraverseOptions> modes, double contractionFactor, boolean parallelContraction) {
+        GraphFingerprint key = new GraphFingerprint(graph);
+        List<String> fingerprints = getFingerprints(builders);
+        try {
+            if (_streetsKey != null && fingerprints != null) {
+                List<Class<?>> code = new ArrayList<Class<?>>(CODE);
+                for (GraphBuilder builder : builders)
+                    code.add(builder.getClass());
+                key.addCode(code).add(_streetsKey);
+                for (String fingerprint : fingerprints)
+                    key.add(fingerprint);
+                key.addObject(graph.getBundle());
+            } else {
+                key.addCode(CODE).addObject(getContent(graph));
+            }
+            if (modes != null)
+                key.addObject(new ArrayList<TraverseOptions>(modes));
+        } catch (UnstableNameException e) {
+            _log.warn("not caching contraction hierarchies: " + e.getMessage());
+            return null;
+        }
+        return key.add(contractionFactor).add(parallelContraction).toString();
+    }
+
+    /* the fingerprints of the builders, or null if one of them has none */
+    private static List<String> getFingerprints(List<GraphBuilder> builders) {
+        List<String> fingerprints = new ArrayList<String>();
+        for (GraphBuilder builder : builders) {
+            if (!(builder instanceof CacheableGraphBuilder))
+                return null;
+            String fingerprint = ((CacheableGraphBuilder) builder).getFingerprint();
+            if (fingerprint == null)
+                return null;
+            fingerprints.add(builder.getClass().getName());
+            fingerprints.add(fingerprint);
+        }
+        return fingerprints;
+    }
+
+    private static ArrayList<Object> getContent(Graph graph) {
+        ArrayList<Object> content = new ArrayList<Object>();
+        /* the graph's own maps are ordered by hash codes that change from one run to the next */
+        ArrayList<GraphVertex> vertices = new ArrayList<GraphVertex>(graph.getVertices());
+        Collections.sort(vertices, new Comparator<GraphVertex>() {
+            public int compare(GraphVertex a, GraphVertex b) {
+                return a.vertex.getLabel().compareTo(b.vertex.getLabel());
+            }
+        });
+        content.add(vertices);
+        /* the services are added in a fixed order, and so is what is in them */
+        List<Class<?>> serviceTypes = new ArrayList<Class<?>>(graph.getServiceTypes());
+        Collections.sort(serviceTypes, new Comparator<Class<?>>() {
+            public int compare(Class<?> a, Class<?> b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        for (Class<?> serviceType : serviceTypes) {
+            content.add(serviceType.getName());
+            content.add(graph.getService(serviceType));
+        }
+        content.add(graph.getTransferTable());
+        content.add(graph.getBundle());
+        return content;
+    }
+
+    /**
+     * Copy the serialized hierarchies stored under a key to the graph path.
+     *
+     * @return false if there are none
+     */
+    public boolean restoreHierarchies(String key, File graphPath) {
+        File file = new File(_directory, HIERARCHIES + key + SUFFIX);
+        if (!file.exists())
+            return false;
+        long start = System.currentTimeMillis();
+        try {
+            copy(file, graphPath);
+        } catch (IOException e) {
+            _log.warn("could not copy cached contraction hierarchies from " + file, e);
+            return false;
+        }
+        _log.info("reused contraction hierarchies from " + file + ", copied in "
+                + (System.currentTimeMillis() - start) + " ms");
+        _reusedStages.add(HIERARCHIES_STAGE);
+        return true;
+    }
+
+    /** Store the serialized hierarchies at the graph path under a key. */
+    public void saveHierarchies(String key, File graphPath) {
+        File file = new File(_directory, HIERARCHIES + key + SUFFIX);
+        File temporary = new File(_directory, file.getName() + ".tmp");
+        try {
+            _directory.mkdirs();
+            copy(graphPath, temporary);
+            if (!temporary.renameTo(file))
+                throw new IOException("could not rename " + temporary + " to " + file);
+        } catch (IOException e) {
+            _log.warn("could not cache contraction hierarchies in " + file, e);
+            temporary.delete();
+            return;
+        }
+        deleteOthers(HIERARCHIES, file);
+    }
+
+    /** @return the names of the stages whose output came from the cache, in build order */
+    public List<String> getReusedStages() {
+        return _reusedStages;
+    }
+
+    private static boolean conflictsWithAny(GraphBuilder builder, Collection<GraphBuilder> others) {
+        GraphBuilderWithDependencies declaring = (GraphBuilderWithDependencies) builder;
+        for (GraphBuilder other : others) {
+            if (!(other instanceof GraphBuilderWithDependencies))
+                return true;
+            GraphBuilderWithDependencies declared = (GraphBuilderWithDependencies) other;
+            if (!Collections.disjoint(declaring.provides(), declared.provides())
+                    || !Collections.disjoint(declaring.provides(), declared.getPrerequisites())
+                    || !Collections.disjoint(declaring.getPrerequisites(), declared.provides()))
+                return true;
+        }
+        return false;
+    }
+
+    private static List<String> getNames(List<GraphBuilder> builders) {
+        List<String> names = new ArrayList<String>();
+        for (GraphBuilder builder : builders)
+            names.add(builder.getClass().getSimpleName());
+        return names;
+    }
+
+    private Object read(File file) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                return in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            _log.warn("could not read cached graph " + file + ", rebuilding it", e);
+            return null;
+        }
+    }
+
+    private void write(Serializable object, File file) {
+        File temporary = new File(_directory, file.getName() + ".tmp");
+        long start = System.currentTimeMillis();
+        try {
+            _directory.mkdirs();
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporary)));
+            try {
+                out.writeObject(object);
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file))
+                throw new IOException("could not rename " + temporary + " to " + file);
+        } catch (IOException e) {
+            _log.warn("could not cache graph in " + file, e);
+            temporary.delete();
+            return;
+        }
+        _log.info("cached graph in " + file + " in " + (System.currentTimeMillis() - start)
+                + " ms");
+    }
+
+    private void deleteOthers(String prefix, File keep) {
+        File[] files = _directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.getName().startsWith(prefix) && !file.equals(keep))
+                file.delete();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        if (to.getParentFile() != null)
+            to.getParentFile().mkdirs();
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+                    out.write(buffer, 0, n);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Serializes collections that are ordered by hash codes, which differ from one run to the
+     * next (vertex hash codes are the order they were created or read in), as lists sorted by
+     * key, and the graph itself, which is digested by its vertices, as a placeholder. Keys are
+     * sorted by label, name or value; a key with none of those, whose only name would be its
+     * identity hash code, makes the digest fail with an {@link UnstableNameException}.
+     */
+    private static class GraphFingerprint extends Fingerprint {
+
+        private static final Comparator<Object> BY_NAME = new Comparator<Object>() {
+            public int compare(Object a, Object b) {
+                return getName(a).compareTo(getName(b));
+            }
+        };
+
+        private Graph graph;
+
+        GraphFingerprint(Graph graph) {
+            this.graph = graph;
+        }
+
+        @Override
+        protected Object replaceObject(Object object) {
+            if (object == graph)
+                return "graph";
+            if (object instanceof Map && !(object instanceof SortedMap)
+                    && !(object instanceof LinkedHashMap)) {
+                Map<?, ?> map = (Map<?, ?>) object;
+                List<Object> keys = new ArrayList<Object>(map.keySet());
+                Collections.sort(keys, BY_NAME);
+                ArrayList<Object> entries = new ArrayList<Object>();
+                for (Object key : keys) {
+                    entries.add(key);
+                    entries.add(map.get(key));
+                }
+                return entries;
+            }
+            if (object instanceof Set && !(object instanceof SortedSet)
+                    && !(object instanceof LinkedHashSet)) {
+                ArrayList<Object> elements = new ArrayList<Object>((Set<?>) object);
+                Collections.sort(elements, BY_NAME);
+                return elements;
+            }
+            return object;
+        }
+
+        private static String getName(Object object) {
+            if (object == null)
+                return "";
+            if (object instanceof Vertex)
+                return ((Vertex) object).getLabel();
+            if (object instanceof Class)
+                return ((Class<?>) object).getName();
+            if (object instanceof Enum)
+                return ((Enum<?>) object).name();
+            try {
+                if (object.getClass().getMethod("toString").getDeclaringClass() == Object.class)
+                    throw new UnstableNameException(object.getClass());
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+            return object.toString();
+        }
+    }
+
+    /** Thrown when a collection to digest holds objects that can only be told apart by identity. */
+    private static class UnstableNameException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnstableNameException(Class<?> type) {
+            super("no stable name to sort " + type.getName() + " by");
+        }
+    }
+}
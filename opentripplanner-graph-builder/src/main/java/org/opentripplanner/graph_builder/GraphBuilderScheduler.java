@@ -0,0 +1,285 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.graph_builder.services.GraphBuilderWithDependencies;
+import org.opentripplanner.routing.core.Graph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a list of graph builders, overlapping the ones that do not depend on each other.
+ *
+ * Every {@link GraphBuilderWithDependencies} is prepared on the pool as soon as the run starts.
+ * A builder's buildGraph waits for every earlier builder it conflicts with, so the graph comes
+ * out the same as if the builders had run one after another in list order:
+ * <ul>
+ * <li>builders that change the graph structure, and plain {@link GraphBuilder}s, wait for all
+ * earlier builders and hold back all later ones;</li>
+ * <li>other builders wait only for earlier builders that provide something they provide or
+ * require, or that require something they provide.</li>
+ * </ul>
+ * The wall time and peak heap use of each stage are logged.
+ */
+public class GraphBuilderScheduler {
+
+    private static Logger _log = LoggerFactory.getLogger(GraphBuilderScheduler.class);
+
+    private static final long MEMORY_SAMPLE_MILLIS = 100;
+
+    private List<GraphBuilder> _graphBuilders;
+
+    private int _threads;
+
+    private Set<String> _provided = new HashSet<String>();
+
+    private List<Stage> _running = Collections.synchronizedList(new ArrayList<Stage>());
+
+    public GraphBuilderScheduler(List<GraphBuilder> graphBuilders, int threads) {
+        _graphBuilders = graphBuilders;
+        _threads = threads;
+    }
+
+    /**
+     * Names of what is already in the graph before the first builder runs, such as the "streets"
+     * loaded from a {@link GraphBuilderCache}.
+     */
+    public void setProvided(Collection<String> provided) {
+        _provided = new HashSet<String>(provided);
+    }
+
+    public void run(Graph graph) {
+        List<Stage> stages = makeStages();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, _threads));
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sampleMemory();
+            }
+        }, 0, MEMORY_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        CompletionService<StageTask> completion = new ExecutorCompletionService<StageTask>(executor);
+        try {
+            int pending = 0;
+            for (Stage stage : stages) {
+                if (stage.prepared)
+                    continue;
+                start(stage);
+                completion.submit(new StageTask(stage, graph, true));
+                pending++;
+            }
+            int finished = 0;
+            pending += submitReady(stages, completion, graph);
+            while (finished < stages.size()) {
+                if (pending == 0)
+                    throw new IllegalStateException("graph builders are waiting on each other");
+                StageTask task = completion.take().get();
+                pending--;
+                finish(task);
+                if (task.prepare) {
+                    task.stage.prepared = true;
+                } else {
+                    task.stage.built = true;
+                    finished++;
+                }
+                pending += submitReady(stages, completion, graph);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while building graph");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("error building graph", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            sampler.shutdownNow();
+        }
+    }
+
+    private List<Stage> makeStages() {
+        List<Stage> stages = new ArrayList<Stage>();
+        Set<String> provided = new HashSet<String>(_provided);
+        boolean undeclaredBefore = false;
+        for (GraphBuilder builder : _graphBuilders) {
+            Stage stage = new Stage(builder);
+            if (stage.declared) {
+                if (!undeclaredBefore) {
+                    for (String prerequisite : stage.prerequisites) {
+                        if (!provided.contains(prerequisite)) {
+                            throw new IllegalStateException("graph builder " + stage.name
+                                    + " requires " + prerequisite
+                                    + ", which no earlier graph builder provides");
+                        }
+                    }
+                }
+                provided.addAll(stage.provides);
+            } else {
+                undeclaredBefore = true;
+            }
+            for (Stage earlier : stages) {
+                if (stage.exclusive || earlier.exclusive || stage.conflictsWith(earlier))
+                    stage.waitFor.add(earlier);
+            }
+            stages.add(stage);
+        }
+        return stages;
+    }
+
+    private int submitReady(List<Stage> stages, CompletionService<StageTask> completion,
+            Graph graph) {
+        int submitted = 0;
+        for (Stage stage : stages) {
+            if (stage.buildStarted || !stage.prepared)
+                continue;
+            boolean ready = true;
+            for (Stage earlier : stage.waitFor) {
+                if (!earlier.built) {
+                    ready = false;
+                    break;
+                }
+            }
+            if (ready) {
+                stage.buildStarted = true;
+                start(stage);
+                completion.submit(new StageTask(stage, graph, false));
+                submitted++;
+            }
+        }
+        return submitted;
+    }
+
+    private void start(Stage stage) {
+        stage.startNanos = System.nanoTime();
+        stage.peakHeap = usedHeap();
+        _running.add(stage);
+    }
+
+    private void finish(StageTask task) {
+        Stage stage = task.stage;
+        _running.remove(stage);
+        sampleMemory(stage);
+        double seconds = (System.nanoTime() - stage.startNanos) / 1e9;
+        _log.info(String.format("%s %s in %.1f s, peak heap %d MB", stage.name,
+                task.prepare ? "prepared" : "built graph", seconds, stage.peakHeap >> 20));
+    }
+
+    private void sampleMemory() {
+        synchronized (_running) {
+            for (Stage stage : _running)
+                sampleMemory(stage);
+        }
+    }
+
+    private void sampleMemory(Stage stage) {
+        long used = usedHeap();
+        synchronized (stage) {
+            if (used > stage.peakHeap)
+                stage.peakHeap = used;
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class Stage {
+
+        final GraphBuilder builder;
+
+        final String name;
+
+        final boolean declared;
+
+        final boolean exclusive;
+
+        final Set<String> provides = new HashSet<String>();
+
+        final Set<String> prerequisites = new HashSet<String>();
+
+        final List<Stage> waitFor = new ArrayList<Stage>();
+
+        volatile boolean prepared;
+
+        boolean buildStarted;
+
+        boolean built;
+
+        long startNanos;
+
+        long peakHeap;
+
+        Stage(GraphBuilder builder) {
+            this.builder = builder;
+            this.name = builder.getClass().getSimpleName();
+            if (builder instanceof GraphBuilderWithDependencies) {
+                GraphBuilderWithDependencies declaring = (GraphBuilderWithDependencies) builder;
+                declared = true;
+                exclusive = declaring.changesGraphStructure();
+                provides.addAll(declaring.provides());
+                prerequisites.addAll(declaring.getPrerequisites());
+            } else {
+                declared = false;
+                exclusive = true;
+                prepared = true;
+            }
+        }
+
+        boolean conflictsWith(Stage other) {
+            return !Collections.disjoint(provides, other.provides)
+                    || !Collections.disjoint(provides, other.prerequisites)
+                    || !Collections.disjoint(prerequisites, other.provides);
+        }
+    }
+
+    private static class StageTask implements Callable<StageTask> {
+
+        final Stage stage;
+
+        final Graph graph;
+
+        final boolean prepare;
+
+        StageTask(Stage stage, Graph graph, boolean prepare) {
+            this.stage = stage;
+            this.graph = graph;
+            this.prepare = prepare;
+        }
+
+        public StageTask call() {
+            if (prepare)
+                ((GraphBuilderWithDependencies) stage.builder).prepare();
+            else
+                stage.builder.buildGraph(graph);
+            return this;
+        }
+    }
+}
@@ -44,6 +44,12 @@ public class GraphBuilderTask implements Runnable {
 
     private double _contractionFactor = 1.0;
 
+    private boolean _parallelContraction = false;
+
+    private int _threads = Runtime.getRuntime().availableProcessors();
+
+    private File _cacheDirectory;
+
     @Autowired
     public void setGraphService(GraphService graphService) {
         _graphService = graphService;
@@ -77,6 +83,26 @@ public class GraphBuilderTask implements Runnable {
         _contractionFactor = contractionFactor;
     }
 
+    public void setParallelContraction(boolean parallelContraction) {
+        _parallelContraction = parallelContraction;
+    }
+
+    /**
+     * The number of graph builders that may run at once; see {@link GraphBuilderScheduler}.
+     */
+    public void setThreads(int threads) {
+        _threads = threads;
+    }
+
+    /**
+     * A directory where the street graph and the contraction hierarchies are kept between builds,
+     * so that a build whose street inputs or whose whole graph did not change reuses them; see
+     * {@link GraphBuilderCache}. Nothing is cached if this is not set.
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        _cacheDirectory = cacheDirectory;
+    }
+
     public void run() {
         
         Graph graph = _graphService.getGraph();
@@ -93,16 +119,42 @@ public class GraphBuilderTask implements Runnable {
             return;
         }
         
-        for (GraphBuilder load : _graphBuilders)
-            load.buildGraph(graph);
-        
-        ContractionHierarchySet chs = new ContractionHierarchySet(graph, _modeList, _contractionFactor);
-        chs.build();
-        try {
-            GraphSerializationLibrary.writeGraph(chs, graphPath);
-        } catch (Exception ex) {
-            throw new IllegalStateException(ex);
+        GraphBuilderCache cache = null;
+        List<GraphBuilder> graphBuilders = _graphBuilders;
+        if (_cacheDirectory != null) {
+            cache = new GraphBuilderCache(_cacheDirectory);
+            graphBuilders = cache.buildStreets(_graphBuilders, graph, _threads);
+        }
+
+        GraphBuilderScheduler scheduler = new GraphBuilderScheduler(graphBuilders, _threads);
+        if (cache != null)
+            scheduler.setProvided(cache.getProvided());
+        scheduler.run(graph);
+
+        String hierarchiesKey = null;
+        if (cache != null) {
+            hierarchiesKey = cache.getHierarchiesKey(graph, graphBuilders, _modeList,
+                    _contractionFactor, _parallelContraction);
+        }
+        if (hierarchiesKey == null || !cache.restoreHierarchies(hierarchiesKey, graphPath)) {
+            long start = System.currentTimeMillis();
+            ContractionHierarchySet chs = new ContractionHierarchySet(graph, _modeList, _contractionFactor);
+            chs.setParallelContraction(_parallelContraction);
+            chs.build();
+            _log.info("built contraction hierarchies in " + (System.currentTimeMillis() - start) + " ms");
+
+            start = System.currentTimeMillis();
+            try {
+                GraphSerializationLibrary.writeGraph(chs, graphPath);
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+            _log.info("wrote graph in " + (System.currentTimeMillis() - start) + " ms");
+            if (hierarchiesKey != null)
+                cache.saveHierarchies(hierarchiesKey, graphPath);
         }
+        if (cache != null)
+            _log.info("stages reused from the cache: " + cache.getReusedStages());
         
         _graphService.refreshGraph();
     }
@@ -16,11 +16,20 @@ package org.opentripplanner.graph_builder.impl;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.onebusaway.csv_entities.EntityHandler;
 import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
@@ -39,6 +48,7 @@ import org.opentripplanner.graph_builder.model.GtfsBundle;
 import org.opentripplanner.graph_builder.model.GtfsBundles;
 import org.opentripplanner.graph_builder.services.EntityReplacementStrategy;
 import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.graph_builder.services.GraphBuilderWithDependencies;
 import org.opentripplanner.graph_builder.services.GraphBuilderWithGtfsDao;
 import org.opentripplanner.gtfs.GtfsContext;
 import org.opentripplanner.gtfs.GtfsLibrary;
@@ -59,13 +69,26 @@ import org.slf4j.LoggerFactory;
  * separate feeds may have cross-feed references (ex. StopTime => Stop) as facilitated by the use of
  * an {@link EntityReplacementStrategy}.
  * 
+ * Agencies are read serially so that each reader sees the agencies of the feeds before it. The
+ * remaining entity classes are still read class by class, but all feeds read the current class at
+ * the same time, each on its own thread. Each feed hands the entities it has parsed to the calling
+ * thread in chunks through a bounded queue, and the calling thread saves them to the DAO one feed
+ * after the other in bundle order, so the DAO is filled in exactly the same order as a serial
+ * read. The bound keeps a large feed (stop_times.txt in particular) from piling up in memory while
+ * it waits for the feeds before it to be saved.
+ * 
  * @author bdferris
  * 
  */
-public class GtfsGraphBuilderImpl implements GraphBuilder {
+public class GtfsGraphBuilderImpl implements GraphBuilderWithDependencies {
 
     private static final Logger _log = LoggerFactory.getLogger(GtfsGraphBuilderImpl.class);
 
+    static final int CHUNK_SIZE = 10000;
+
+    /* marks the end of a feed's chunks for the current entity class */
+    private static final List<Object> END_OF_CHUNKS = new ArrayList<Object>(0);
+
     private GtfsBundles _gtfsBundles;
 
     private GtfsMutableRelationalDao _dao = new GtfsRelationalDaoImpl();
@@ -74,6 +97,13 @@ public class GtfsGraphBuilderImpl implements GraphBuilder {
 
 	private List<GraphBuilderWithGtfsDao> gtfsGraphBuilders;
 
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private int maxBufferedEntities = 20 * CHUNK_SIZE;
+
+    /* set by prepare() once the feeds are in the DAO */
+    private CalendarServiceData _calendarData;
+
     public void setGtfsBundles(GtfsBundles gtfsBundles) {
         _gtfsBundles = gtfsBundles;
         /* check for dups */
@@ -95,17 +125,55 @@ public class GtfsGraphBuilderImpl implements GraphBuilder {
         _entityReplacementStrategy = strategy;
     }
 
+    /**
+     * The number of feeds read at the same time, and of threads preparing trip patterns; defaults
+     * to one per CPU. The DAO and the graph are always filled by a single thread in a fixed order,
+     * so the result does not depend on this setting.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * The number of parsed entities each feed may hold while it waits for the feeds before it to
+     * be saved to the DAO. A feed that reaches this limit stops reading until its turn comes.
+     */
+    public void setMaxBufferedEntities(int maxBufferedEntities) {
+        this.maxBufferedEntities = maxBufferedEntities;
+    }
+
+    public List<String> provides() {
+        return Arrays.asList("transit");
+    }
+
+    public List<String> getPrerequisites() {
+        return Collections.emptyList();
+    }
+
+    public boolean changesGraphStructure() {
+        return true;
+    }
+
+    /** Read the feeds into the DAO and compute the service calendar. */
     @Override
-    public void buildGraph(Graph graph) {
-            try {
-                readGtfs();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+    public void prepare() {
+        try {
+            readGtfs();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        CalendarServiceDataFactoryImpl factory = new CalendarServiceDataFactoryImpl();
+        factory.setGtfsDao(_dao);
+        _calendarData = factory.createData();
+    }
 
-            CalendarServiceDataFactoryImpl factory = new CalendarServiceDataFactoryImpl();
-            factory.setGtfsDao(_dao);
-            CalendarServiceData data = factory.createData();
+    @Override
+    public void buildGraph(Graph graph) {
+            if (_calendarData == null)
+                prepare();
+            CalendarServiceData data = _calendarData;
+            _calendarData = null;
 
             CalendarServiceImpl service = new CalendarServiceImpl();
             service.setData(data);
@@ -121,6 +189,9 @@ public class GtfsGraphBuilderImpl implements GraphBuilder {
             }
 
             GTFSPatternHopFactory hf = new GTFSPatternHopFactory(context);
+            // only the in-memory DAO is known to allow concurrent reads
+            if (_dao instanceof GtfsRelationalDaoImpl)
+                hf.setThreads(threads);
             hf.run(graph);
 
             // We need to save the calendar service data so we can use it later
@@ -147,13 +218,12 @@ public class GtfsGraphBuilderImpl implements GraphBuilder {
 
     private void readGtfs() throws IOException {
 
-        StoreImpl store = new StoreImpl();
         List<GtfsReader> readers = new ArrayList<GtfsReader>();
-
-        EntityHandler counter = new EntityCounter();
+        List<StoreImpl> stores = new ArrayList<StoreImpl>();
 
         for (GtfsBundle gtfsBundle : _gtfsBundles.getBundles()) {
 
+            StoreImpl store = new StoreImpl();
             GtfsReader reader = new GtfsReader();
             reader.setInputSource(gtfsBundle.getCsvInputSource());
             reader.setEntityStore(store);
@@ -166,12 +236,13 @@ public class GtfsGraphBuilderImpl implements GraphBuilder {
                 reader.addAgencyIdMapping(entry.getKey(), entry.getValue());
 
             if (_log.isDebugEnabled())
-                reader.addEntityHandler(counter);
+                reader.addEntityHandler(new EntityCounter());
 
             if(gtfsBundle.getDefaultBikesAllowed())
                 reader.addEntityHandler(new EntityBikeability(true));
 
             readers.add(reader);
+            stores.add(store);
         }
 
         // No feeds?
@@ -180,36 +251,103 @@ public class GtfsGraphBuilderImpl implements GraphBuilder {
             return;
         }
 
-        store.open();
+        _dao.open();
 
         List<Agency> agencies = new ArrayList<Agency>(readers.size());
         List<Class<?>> entityClasses = readers.get(0).getEntityClasses();
 
-        for (Class<?> entityClass : entityClasses) {
-            _log.info("reading entities: " + entityClass.getName());
-
-            for (GtfsReader reader : readers) {
+        ExecutorService executor = null;
+        if (readers.size() > 1 && threads > 1)
+            executor = Executors.newFixedThreadPool(Math.min(threads, readers.size()));
+        try {
+            for (Class<?> entityClass : entityClasses) {
+                _log.info("reading entities: " + entityClass.getName());
 
                 // Agencies are the first entity class to be read.
                 // Accumulate the agencies from all GTFS feeds to allow cross-feed 
-                // references in later entity classes.
-                
-                // Set each reader's agency list to a copy of the list
-                // containing all agencies seen up to this point
-                if (entityClass.equals(Agency.class))
-                    reader.setAgencies(agencies);
+                // references in later entity classes. This needs the feeds in turn.
+                if (executor == null || entityClass.equals(Agency.class)) {
+                    for (GtfsReader reader : readers) {
+
+                        // Set each reader's agency list to a copy of the list
+                        // containing all agencies seen up to this point
+                        if (entityClass.equals(Agency.class))
+                            reader.setAgencies(agencies);
 
-                reader.readEntities(entityClass);
+                        reader.readEntities(entityClass);
 
-                // Update the list of all agencies seen to include those just read 
-                if (entityClass.equals(Agency.class))
-                    agencies = reader.getAgencies();
+                        // Update the list of all agencies seen to include those just read 
+                        if (entityClass.equals(Agency.class))
+                            agencies = reader.getAgencies();
 
-                store.flush();
+                        _dao.flush();
+                    }
+                } else {
+                    readConcurrently(executor, entityClass, readers, stores);
+                }
             }
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
         }
 
-        store.close();
+        _dao.close();
+    }
+
+    /**
+     * Read one entity class from all feeds at once, saving the entities to the DAO feed by feed in
+     * bundle order as they arrive.
+     */
+    private void readConcurrently(ExecutorService executor, final Class<?> entityClass,
+            List<GtfsReader> readers, List<StoreImpl> stores) throws IOException {
+
+        int capacity = Math.max(1, maxBufferedEntities / CHUNK_SIZE);
+        List<Future<Object>> reads = new ArrayList<Future<Object>>();
+        for (int i = 0; i < readers.size(); i++) {
+            final GtfsReader reader = readers.get(i);
+            final StoreImpl store = stores.get(i);
+            store.startChunks(capacity);
+            reads.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws IOException {
+                    try {
+                        reader.readEntities(entityClass);
+                    } finally {
+                        store.endChunks();
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        for (int i = 0; i < readers.size(); i++) {
+            StoreImpl store = stores.get(i);
+            List<Object> chunk;
+            while ((chunk = store.takeChunk()) != END_OF_CHUNKS) {
+                synchronized (_dao) {
+                    for (Object entity : chunk)
+                        _dao.saveEntity(entity);
+                }
+            }
+            waitForRead(reads.get(i));
+            store.stopChunks();
+            _dao.flush();
+        }
+    }
+
+    private static void waitForRead(Future<Object> read) throws IOException {
+        try {
+            read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while reading GTFS");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("error reading GTFS", e.getCause());
+        }
     }
 
     public void setGtfsGraphBuilders(List<GraphBuilderWithGtfsDao> gtfsGraphBuilders) {
@@ -220,8 +358,57 @@ public class GtfsGraphBuilderImpl implements GraphBuilder {
 		return gtfsGraphBuilders;
 	}
 
+    /**
+     * The entity store of a single feed. Normally entities go straight to the DAO; while the feed
+     * is being read on a worker thread (between startChunks and stopChunks) they are collected into
+     * chunks for the calling thread to save instead. Entities read in that mode may only refer to
+     * entity classes that have already been read completely, which holds for the GTFS references.
+     */
 	private class StoreImpl implements GenericMutableDao {
 
+        private BlockingQueue<List<Object>> _chunks;
+
+        private List<Object> _chunk;
+
+        /* entities this feed has looked up in the DAO, so that workers rarely need its lock */
+        private Map<Class<?>, Map<Serializable, Object>> _resolved = new HashMap<Class<?>, Map<Serializable, Object>>();
+
+        public void startChunks(int capacity) {
+            _chunks = new ArrayBlockingQueue<List<Object>>(capacity);
+            _chunk = new ArrayList<Object>(CHUNK_SIZE);
+        }
+
+        /** Called by the reading thread once the current entity class has been read. */
+        public void endChunks() {
+            if (!_chunk.isEmpty())
+                putChunk(_chunk);
+            _chunk = null;
+            putChunk(END_OF_CHUNKS);
+        }
+
+        public List<Object> takeChunk() {
+            try {
+                return _chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while reading GTFS");
+            }
+        }
+
+        public void stopChunks() {
+            _chunks = null;
+            _resolved.clear();
+        }
+
+        private void putChunk(List<Object> chunk) {
+            try {
+                _chunks.put(chunk);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while reading GTFS");
+            }
+        }
+
         @Override
         public void open() {
             _dao.open();
@@ -232,7 +419,23 @@ public class GtfsGraphBuilderImpl implements GraphBuilder {
             Serializable replacement = _entityReplacementStrategy.getReplacementEntityId(type, id);
             if (replacement != null)
                 id = replacement;
-            return _dao.getEntityForId(type, id);
+            if (_chunks == null)
+                return _dao.getEntityForId(type, id);
+
+            Map<Serializable, Object> resolved = _resolved.get(type);
+            if (resolved == null) {
+                resolved = new HashMap<Serializable, Object>();
+                _resolved.put(type, resolved);
+            }
+            Object entity = resolved.get(id);
+            if (entity == null) {
+                synchronized (_dao) {
+                    entity = _dao.getEntityForId(type, id);
+                }
+                if (entity != null)
+                    resolved.put(id, entity);
+            }
+            return type.cast(entity);
         }
 
         @Override
@@ -247,12 +450,21 @@ public class GtfsGraphBuilderImpl implements GraphBuilder {
                     return;
             }
 
-            _dao.saveEntity(entity);
+            if (_chunks == null) {
+                _dao.saveEntity(entity);
+                return;
+            }
+            _chunk.add(entity);
+            if (_chunk.size() == CHUNK_SIZE) {
+                putChunk(_chunk);
+                _chunk = new ArrayList<Object>(CHUNK_SIZE);
+            }
         }
 
         @Override
         public void flush() {
-            _dao.flush();
+            if (_chunks == null)
+                _dao.flush();
         }
 
         @Override
@@ -13,7 +13,10 @@
 
 package org.opentripplanner.graph_builder.impl;
 
-import org.opentripplanner.graph_builder.services.GraphBuilder;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opentripplanner.graph_builder.services.GraphBuilderWithDependencies;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.Graph;
 import org.opentripplanner.routing.core.GraphVertex;
@@ -24,7 +27,24 @@ import org.opentripplanner.routing.edgetype.TripPattern;
 /**
  * Replace BasicTripPatterns with ArrayTripPatterns.
  */
-public class OptimizeTransitGraphBuilderImpl implements GraphBuilder {
+public class OptimizeTransitGraphBuilderImpl implements GraphBuilderWithDependencies {
+
+    public List<String> provides() {
+        return Arrays.asList("transit");
+    }
+
+    public List<String> getPrerequisites() {
+        return Arrays.asList("transit");
+    }
+
+    /* the patterns are replaced on the existing edges */
+    public boolean changesGraphStructure() {
+        return false;
+    }
+
+    @Override
+    public void prepare() {
+    }
 
     @Override
     public void buildGraph(Graph graph) {
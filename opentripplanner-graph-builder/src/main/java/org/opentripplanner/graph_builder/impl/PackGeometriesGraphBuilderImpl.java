@@ -0,0 +1,65 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl;
+
+import org.opentripplanner.common.geometry.PackedGeometryStore;
+import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.edgetype.PackableGeometryEdge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Move the geometries of street edges and transit hops into a single {@link PackedGeometryStore},
+ * so that the built graph no longer holds a JTS geometry per edge. Geometries are only needed to
+ * snap locations to streets and to draw itineraries, and are decoded again when asked for.
+ * Should be called after all the builders that read or change edge geometries.
+ */
+public class PackGeometriesGraphBuilderImpl implements GraphBuilder {
+
+    private static final Logger _log = LoggerFactory.getLogger(PackGeometriesGraphBuilderImpl.class);
+
+    private int cacheSize = 0;
+
+    /**
+     * Keep up to this many decoded geometries in an LRU cache when routing; 0 (the default)
+     * decodes them every time.
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    @Override
+    public void buildGraph(Graph graph) {
+        PackedGeometryStore store = new PackedGeometryStore();
+        int packed = 0, kept = 0;
+        for (GraphVertex gv : graph.getVertices()) {
+            for (Edge e : gv.getOutgoing()) {
+                if (e instanceof PackableGeometryEdge) {
+                    if (((PackableGeometryEdge) e).packGeometry(store))
+                        packed++;
+                    else
+                        kept++;
+                }
+            }
+        }
+        store.trimToSize();
+        store.setCacheSize(cacheSize);
+        _log.info("packed " + packed + " edge geometries into " + store.size() * 4L + " bytes ("
+                + kept + " kept as is)");
+    }
+}
@@ -13,7 +13,11 @@
 
 package org.opentripplanner.graph_builder.impl;
 
+import java.util.Arrays;
+import java.util.List;
+
 import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.graph_builder.services.GraphBuilderWithDependencies;
 import org.opentripplanner.routing.core.Graph;
 import org.opentripplanner.routing.edgetype.loader.NetworkLinker;
 
@@ -21,11 +25,39 @@ import org.opentripplanner.routing.edgetype.loader.NetworkLinker;
  * {@link GraphBuilder} plugin that links up the stops of a transit network to a street network.
  * Should be called after both the transit network and street network are loaded.
  */
-public class TransitToStreetNetworkGraphBuilderImpl implements GraphBuilder {
+public class TransitToStreetNetworkGraphBuilderImpl implements GraphBuilderWithDependencies {
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The number of threads finding the streets near the stops and splitting them; defaults to one
+     * per CPU. The graph is always changed by a single thread in stop order, so the result does not
+     * depend on this setting.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public List<String> provides() {
+        return Arrays.asList("linking");
+    }
+
+    public List<String> getPrerequisites() {
+        return Arrays.asList("streets", "transit");
+    }
+
+    public boolean changesGraphStructure() {
+        return true;
+    }
+
+    @Override
+    public void prepare() {
+    }
 
     @Override
     public void buildGraph(Graph graph) {
         NetworkLinker linker = new NetworkLinker(graph);
+        linker.setThreads(threads);
         linker.createLinkage();
     }
 
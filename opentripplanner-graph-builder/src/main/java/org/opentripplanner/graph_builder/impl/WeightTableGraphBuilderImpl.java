@@ -13,7 +13,10 @@
 
 package org.opentripplanner.graph_builder.impl;
 
-import org.opentripplanner.graph_builder.services.GraphBuilder;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opentripplanner.graph_builder.services.GraphBuilderWithDependencies;
 import org.opentripplanner.routing.algorithm.strategies.WeightTable;
 import org.opentripplanner.routing.core.Graph;
 
@@ -23,9 +26,26 @@ import org.opentripplanner.routing.core.Graph;
  * This builder should be run after all transit and street data,
  * as well as transit-street links are in place.
  */
-public class WeightTableGraphBuilderImpl implements GraphBuilder {
+public class WeightTableGraphBuilderImpl implements GraphBuilderWithDependencies {
 	private Double maxWalkSpeed = null;
         private Double maxWalkDistance = null;
+	private Double resolution = null;
+
+	public List<String> provides() {
+		return Arrays.asList("weightTable");
+	}
+
+	public List<String> getPrerequisites() {
+		return Arrays.asList("streets", "transit", "linking");
+	}
+
+	public boolean changesGraphStructure() {
+		return false;
+	}
+
+	@Override
+	public void prepare() {
+	}
 
 	@Override
 	public void buildGraph(Graph graph) {
@@ -36,6 +56,9 @@ public class WeightTableGraphBuilderImpl implements GraphBuilder {
 		if (maxWalkDistance != null) {
 		    wt.setMaxWalkDistance(maxWalkDistance);
 		}
+		if (resolution != null) {
+			wt.setResolution(resolution);
+		}
 		wt.buildTable();
 		graph.putService(WeightTable.class, wt);
 	}
@@ -61,6 +84,15 @@ public class WeightTableGraphBuilderImpl implements GraphBuilder {
                 this.maxWalkDistance = maxWalkDistance;
         }
 
+	/**
+	 * The granularity of the stored weights (1 by default). The table stores each
+	 * weight in two bytes, so the largest weight it can represent is 65534 times this.
+	 * @param resolution
+	 */
+	public void setResolution(double resolution) {
+		this.resolution = resolution;
+	}
+
         public double getMaxWalkSpeed() {
 		return maxWalkSpeed;
 	}
@@ -0,0 +1,152 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.ned;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.geometry.Envelope2D;
+
+/**
+ * A north-up elevation raster decoded once into a memory-mapped grid of floats and sampled with
+ * bilinear interpolation between cell centers. Sampling only reads the grid, so it may be done
+ * from any number of threads at once, and it does not go through the GeoTools evaluate machinery.
+ */
+public class ElevationGrid {
+
+    private final double west;
+
+    private final double north;
+
+    private final double cellWidth;
+
+    private final double cellHeight;
+
+    private final int width;
+
+    private final int height;
+
+    private final FloatBuffer values;
+
+    ElevationGrid(double west, double north, double cellWidth, double cellHeight, int width,
+            int height, FloatBuffer values) {
+        this.west = west;
+        this.north = north;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.width = width;
+        this.height = height;
+        this.values = values;
+    }
+
+    /**
+     * Decode the first band of a coverage into a grid mapped from a temporary file in the given
+     * directory (the default temporary directory if null). The image is copied tile by tile, so
+     * it is never held in memory as a whole.
+     */
+    public static ElevationGrid fromCoverage(GridCoverage2D coverage, File directory)
+            throws IOException {
+        RenderedImage image = coverage.getRenderedImage();
+        Envelope2D envelope = coverage.getEnvelope2D();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long size = 4L * width * height;
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("elevation raster too large to map: " + width + "x" + height);
+
+        File file = File.createTempFile("elevation", ".grid", directory);
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FloatBuffer values;
+        try {
+            values = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size).asFloatBuffer();
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+
+        Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), width, height);
+        float[] row = new float[0];
+        for (int ty = image.getMinTileY(); ty < image.getMinTileY() + image.getNumYTiles(); ty++) {
+            for (int tx = image.getMinTileX(); tx < image.getMinTileX() + image.getNumXTiles(); tx++) {
+                Raster tile = image.getTile(tx, ty);
+                Rectangle area = tile.getBounds().intersection(bounds);
+                if (area.isEmpty())
+                    continue;
+                if (row.length < area.width)
+                    row = new float[area.width];
+                for (int y = area.y; y < area.y + area.height; y++) {
+                    tile.getSamples(area.x, y, area.width, 1, 0, row);
+                    values.position((y - bounds.y) * width + (area.x - bounds.x));
+                    values.put(row, 0, area.width);
+                }
+            }
+        }
+        values.rewind();
+
+        return new ElevationGrid(envelope.getMinX(), envelope.getMaxY(), envelope.getWidth()
+                / width, envelope.getHeight() / height, width, height, values);
+    }
+
+    public boolean contains(double x, double y) {
+        return x >= west && x <= west + width * cellWidth && y <= north
+                && y >= north - height * cellHeight;
+    }
+
+    /**
+     * @param x the longitude
+     * @param y the latitude
+     * @return the elevation interpolated from the four nearest cell centers, or NaN if the point
+     *         is outside this grid. Within half a cell of the edge the nearest cells are used.
+     */
+    public double getElevation(double x, double y) {
+        if (!contains(x, y))
+            return Double.NaN;
+
+        double col = clamp((x - west) / cellWidth - 0.5, width - 1);
+        double row = clamp((north - y) / cellHeight - 0.5, height - 1);
+        int col0 = (int) col;
+        int row0 = (int) row;
+        int col1 = Math.min(col0 + 1, width - 1);
+        int row1 = Math.min(row0 + 1, height - 1);
+        double fx = col - col0;
+        double fy = row - row0;
+
+        double top = values.get(row0 * width + col0) * (1 - fx) + values.get(row0 * width + col1)
+                * fx;
+        double bottom = values.get(row1 * width + col0) * (1 - fx)
+                + values.get(row1 * width + col1) * fx;
+        return top * (1 - fy) + bottom * fy;
+    }
+
+    private static double clamp(double value, int max) {
+        return value < 0 ? 0 : (value > max ? max : value);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
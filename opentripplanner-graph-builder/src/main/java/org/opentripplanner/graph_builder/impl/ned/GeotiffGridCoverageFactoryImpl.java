@@ -45,6 +45,10 @@ public class GeotiffGridCoverageFactoryImpl implements NEDGridCoverageFactory {
         this.path = path;
     }
 
+    public File getPath() {
+        return path;
+    }
+
     @Override
     public GridCoverage2D getGridCoverage() {
         GeoTiffFormat format = new GeoTiffFormat();
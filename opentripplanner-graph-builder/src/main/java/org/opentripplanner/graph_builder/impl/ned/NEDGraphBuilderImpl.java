@@ -13,8 +13,18 @@
 
 package org.opentripplanner.graph_builder.impl.ned;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.media.jai.InterpolationBilinear;
 
@@ -23,6 +33,8 @@ import org.geotools.coverage.grid.Interpolator2D;
 import org.geotools.geometry.DirectPosition2D;
 import org.opengis.coverage.Coverage;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+import org.opentripplanner.graph_builder.Fingerprint;
+import org.opentripplanner.graph_builder.services.CacheableGraphBuilder;
 import org.opentripplanner.graph_builder.services.GraphBuilder;
 import org.opentripplanner.graph_builder.services.ned.NEDGridCoverageFactory;
 import org.opentripplanner.routing.core.Edge;
@@ -30,6 +42,8 @@ import org.opentripplanner.routing.core.Graph;
 import org.opentripplanner.routing.core.GraphVertex;
 import org.opentripplanner.routing.edgetype.EdgeWithElevation;
 import org.opentripplanner.routing.impl.DistanceLibrary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
@@ -42,15 +56,35 @@ import com.vividsolutions.jts.geom.Geometry;
  * measured from the start, and the y-coord representing the sampled elevation at that point (both
  * in meters).
  * 
+ * Where the coverage is made of grid coverages (directly or through a {@link UnifiedGridCoverage}),
+ * each one is decoded once into an {@link ElevationGrid} and the profiles are sampled from those
+ * on several threads. Other coverages are sampled through GeoTools, one point at a time. The
+ * profiles are assigned to the edges by a single thread in graph order either way.
+ * 
  * @author demory
  * 
  */
-public class NEDGraphBuilderImpl implements GraphBuilder {
+public class NEDGraphBuilderImpl implements CacheableGraphBuilder {
+
+    private static final Logger _log = LoggerFactory.getLogger(NEDGraphBuilderImpl.class);
+
+    static final int EDGE_BATCH_SIZE = 1000;
 
     private NEDGridCoverageFactory gridCoverageFactory;
 
     private Coverage coverage;
 
+    /* the decoded grids, searched in order; null when sampling through the coverage */
+    private List<ElevationGrid> grids;
+
+    private File gridDirectory;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private boolean compareWithCoverage = false;
+
+    private AtomicLong pointsNotFound = new AtomicLong();
+
     /**
      * The distance between samples in meters. Defaults to 10m, the approximate resolution of 1/3
      * arc-second NED data.
@@ -65,6 +99,62 @@ public class NEDGraphBuilderImpl implements GraphBuilder {
         distanceBetweenSamplesM = distance;
     }
 
+    /**
+     * The directory holding the memory-mapped elevation grids while the graph is built; defaults
+     * to the system temporary directory. The grids take four bytes per raster cell.
+     */
+    public void setGridDirectory(File gridDirectory) {
+        this.gridDirectory = gridDirectory;
+    }
+
+    /** The number of threads sampling elevation grids; defaults to one per CPU. */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * If true, every profile sampled from the elevation grids is sampled again through the GeoTools
+     * coverage, and the time taken and the differences between the two are logged.
+     */
+    public void setCompareWithCoverage(boolean compareWithCoverage) {
+        this.compareWithCoverage = compareWithCoverage;
+    }
+
+    /* elevation changes the length of streets, so builders reading streets must wait for it */
+    public List<String> provides() {
+        return Arrays.asList("elevation", "streets");
+    }
+
+    public List<String> getPrerequisites() {
+        return Arrays.asList("streets");
+    }
+
+    public boolean changesGraphStructure() {
+        return false;
+    }
+
+    /**
+     * @return a digest of the GeoTIFF file and the sampling distance, or null if the coverage does
+     *         not come from a single GeoTIFF file
+     */
+    public String getFingerprint() {
+        if (!(gridCoverageFactory instanceof GeotiffGridCoverageFactoryImpl))
+            return null;
+        File path = ((GeotiffGridCoverageFactoryImpl) gridCoverageFactory).getPath();
+        if (path == null)
+            return null;
+        return new Fingerprint().add(getClass().getName()).addFile(path)
+                .add(distanceBetweenSamplesM).toString();
+    }
+
+    /**
+     * Nothing to do: the coverage factory may need the finished street graph to know which
+     * region to fetch.
+     */
+    @Override
+    public void prepare() {
+    }
+
     @Override
     public void buildGraph(Graph graph) {
 
@@ -76,39 +166,172 @@ public class NEDGraphBuilderImpl implements GraphBuilder {
         coverage = (gridCov instanceof GridCoverage2D) ? 
                 Interpolator2D.create((GridCoverage2D) gridCov, new InterpolationBilinear()) :
                 gridCov;
+        grids = decodeGrids(gridCov);
+        pointsNotFound.set(0);
 
+        /*
+         * Several edges may share a profile (turn edges store it on their street vertex), so the
+         * profiles are computed once per geometry and the edges are assigned in graph order,
+         * skipping those that already have one, as if they were processed one by one.
+         */
+        List<EdgeWithElevation> edges = new ArrayList<EdgeWithElevation>();
+        List<Geometry> geometries = new ArrayList<Geometry>();
+        IdentityHashMap<Geometry, Integer> geometryIndex = new IdentityHashMap<Geometry, Integer>();
+        List<Integer> edgeGeometries = new ArrayList<Integer>();
         for (GraphVertex gv : graph.getVertices()) {
             for (Edge ee : gv.getOutgoing()) {
                 if (ee instanceof EdgeWithElevation) {
-                    processEdge((EdgeWithElevation) ee);
+                    EdgeWithElevation edge = (EdgeWithElevation) ee;
+                    if (edge.getElevationProfile() != null)
+                        continue; /* already set up */
+                    Geometry g = edge.getGeometry();
+                    Integer index = geometryIndex.get(g);
+                    if (index == null) {
+                        index = geometries.size();
+                        geometryIndex.put(g, index);
+                        geometries.add(g);
+                    }
+                    edges.add(edge);
+                    edgeGeometries.add(index);
                 }
             }
         }
 
+        long start = System.currentTimeMillis();
+        List<PackedCoordinateSequence> profiles = getElevationProfiles(geometries);
+        long elapsed = System.currentTimeMillis() - start;
+        _log.info("sampled " + profiles.size() + " elevation profiles in " + elapsed + " ms"
+                + (grids == null ? " from the coverage" : " from " + grids.size()
+                        + " elevation grids"));
+        if (pointsNotFound.get() > 0)
+            _log.warn(pointsNotFound.get() + " elevation samples were outside the coverage");
+
+        for (int i = 0; i < edges.size(); i++) {
+            EdgeWithElevation edge = edges.get(i);
+            if (edge.getElevationProfile() == null)
+                edge.setElevationProfile(profiles.get(edgeGeometries.get(i)));
+        }
+
+        if (compareWithCoverage && grids != null)
+            compareWithCoverage(geometries, profiles, elapsed);
+        grids = null;
     }
 
     /**
-     * Processes a single {@link Street} edge, creating and assigning the elevation profile.
-     * 
-     * @param ee the street edge
+     * @return a grid for each grid coverage making up the given coverage, or null if it is not
+     *         made of grid coverages or they could not be decoded
+     */
+    private List<ElevationGrid> decodeGrids(Coverage coverage) {
+        List<Coverage> regions;
+        if (coverage instanceof UnifiedGridCoverage)
+            regions = ((UnifiedGridCoverage) coverage).getRegions();
+        else
+            regions = Arrays.asList(coverage);
+
+        List<ElevationGrid> grids = new ArrayList<ElevationGrid>(regions.size());
+        try {
+            for (Coverage region : regions) {
+                if (!(region instanceof GridCoverage2D))
+                    return null;
+                grids.add(ElevationGrid.fromCoverage((GridCoverage2D) region, gridDirectory));
+            }
+        } catch (IOException e) {
+            _log.warn("could not decode elevation grids, sampling the coverage instead", e);
+            return null;
+        }
+        return grids;
+    }
+
+    private List<PackedCoordinateSequence> getElevationProfiles(List<Geometry> geometries) {
+        List<PackedCoordinateSequence> profiles = new ArrayList<PackedCoordinateSequence>(
+                geometries.size());
+        // GeoTools coverages are not safe for concurrent evaluation
+        if (grids == null || threads <= 1) {
+            for (Geometry g : geometries)
+                profiles.add(getElevationProfile(g, grids));
+            return profiles;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<PackedCoordinateSequence>>> batches = new ArrayList<Future<List<PackedCoordinateSequence>>>();
+            for (int i = 0; i < geometries.size(); i += EDGE_BATCH_SIZE) {
+                final List<Geometry> batch = geometries.subList(i,
+                        Math.min(i + EDGE_BATCH_SIZE, geometries.size()));
+                batches.add(executor.submit(new Callable<List<PackedCoordinateSequence>>() {
+                    @Override
+                    public List<PackedCoordinateSequence> call() {
+                        List<PackedCoordinateSequence> profiles = new ArrayList<PackedCoordinateSequence>(
+                                batch.size());
+                        for (Geometry g : batch)
+                            profiles.add(getElevationProfile(g, grids));
+                        return profiles;
+                    }
+                }));
+            }
+            for (Future<List<PackedCoordinateSequence>> batch : batches)
+                profiles.addAll(batch.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while sampling elevation");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("error sampling elevation", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return profiles;
+    }
+
+    /**
+     * Samples every profile again through the coverage, and logs how long that took and how far
+     * its samples are from the grid samples.
      */
-    private void processEdge(EdgeWithElevation ee) {
-        if (ee.getElevationProfile() != null) {
-            return; /* already set up */
+    private void compareWithCoverage(List<Geometry> geometries,
+            List<PackedCoordinateSequence> profiles, long gridMillis) {
+        long start = System.currentTimeMillis();
+        double maxDifference = 0;
+        double totalDifference = 0;
+        long samples = 0;
+        for (int i = 0; i < geometries.size(); i++) {
+            PackedCoordinateSequence expected = getElevationProfile(geometries.get(i), null);
+            PackedCoordinateSequence actual = profiles.get(i);
+            for (int j = 0; j < expected.size(); j++) {
+                double difference = Math.abs(expected.getOrdinate(j, 1) - actual.getOrdinate(j, 1));
+                maxDifference = Math.max(maxDifference, difference);
+                totalDifference += difference;
+                samples++;
+            }
         }
-        Geometry g = ee.getGeometry();
+        long elapsed = System.currentTimeMillis() - start;
+        _log.info("elevation grids: " + gridMillis + " ms, coverage: " + elapsed + " ms; "
+                + samples + " samples differ by " + (samples == 0 ? 0 : totalDifference / samples)
+                + " m on average and " + maxDifference + " m at most");
+    }
+
+    /**
+     * Creates the elevation profile of a single {@link Street} edge geometry.
+     * 
+     * @param g the geometry of the street edge
+     * @param grids the grids to sample, or null to sample the coverage
+     */
+    private PackedCoordinateSequence getElevationProfile(Geometry g, List<ElevationGrid> grids) {
         Coordinate[] coords = g.getCoordinates();
         
-        List<Coordinate> coordList = new LinkedList<Coordinate>();
-
         // calculate the total edge length in meters
         double edgeLenM = 0;
         for (int i = 0; i < coords.length-1; i++) {
             edgeLenM += DistanceLibrary.distance(coords[i].y, coords[i].x, coords[i+1].y, coords[i+1].x);
         }
+
+        // (x, elevation) pairs: the two ends and at most one sample per distanceBetweenSamplesM
+        double[] samples = new double[2 * ((int) (edgeLenM / distanceBetweenSamplesM) + 2)];
+        int n = 0;
         
         // initial sample (x = 0)
-        coordList.add(new Coordinate(0, getElevation(coords[0])));
+        samples[n++] = 0;
+        samples[n++] = getElevation(coords[0], grids);
 
         // loop for edge-internal samples
         for (double x = distanceBetweenSamplesM; x < edgeLenM; x += distanceBetweenSamplesM) {
@@ -118,19 +341,16 @@ public class NEDGraphBuilderImpl implements GraphBuilder {
             }
             
             Coordinate internal = getPointAlongEdge(coords, edgeLenM, x/edgeLenM);
-            coordList.add(new Coordinate(x, getElevation(internal)));    
+            samples[n++] = x;
+            samples[n++] = getElevation(internal, grids);
         }
 
         // final sample (x = edge length)
-        coordList.add(new Coordinate(edgeLenM, getElevation(coords[coords.length-1])));            
+        samples[n++] = edgeLenM;
+        samples[n++] = getElevation(coords[coords.length-1], grids);
 
         // construct the PCS
-        Coordinate coordArr[] = new Coordinate[coordList.size()];
-        PackedCoordinateSequence elevPCS = new PackedCoordinateSequence.Double(coordList
-                .toArray(coordArr));
-        
-        ee.setElevationProfile(elevPCS);
-            
+        return new PackedCoordinateSequence.Double(Arrays.copyOf(samples, n), 2);
     }
 
     /**
@@ -182,10 +402,11 @@ public class NEDGraphBuilderImpl implements GraphBuilder {
      * Method for retrieving the elevation at a given Coordinate.
      * 
      * @param c the coordinate (NAD83)
+     * @param grids the grids to sample, or null to sample the coverage
      * @return elevation in meters
      */
-    private double getElevation(Coordinate c) {
-        return getElevation(c.x, c.y);
+    private double getElevation(Coordinate c, List<ElevationGrid> grids) {
+        return getElevation(c.x, c.y, grids);
     }
     
     /**
@@ -193,9 +414,19 @@ public class NEDGraphBuilderImpl implements GraphBuilder {
      * 
      * @param x the query longitude (NAD83)
      * @param y the query latitude (NAD83)
+     * @param grids the grids to sample, or null to sample the coverage
      * @return elevation in meters
      */
-    private double getElevation(double x, double y) {
+    private double getElevation(double x, double y, List<ElevationGrid> grids) {
+        if (grids != null) {
+            for (ElevationGrid grid : grids) {
+                double elevation = grid.getElevation(x, y);
+                if (!Double.isNaN(elevation))
+                    return elevation;
+            }
+            pointsNotFound.incrementAndGet();
+            return 0;
+        }
         double values[] = new double[1];
         try {
             coverage.evaluate(new DirectPosition2D(x, y), values);
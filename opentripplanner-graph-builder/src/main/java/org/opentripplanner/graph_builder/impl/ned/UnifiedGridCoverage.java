@@ -14,6 +14,8 @@
 package org.opentripplanner.graph_builder.impl.ned;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.geotools.coverage.AbstractCoverage;
 import org.geotools.coverage.grid.GridCoverage2D;
@@ -84,4 +86,9 @@ public class UnifiedGridCoverage extends AbstractCoverage {
         regions.add(regionCoverage);
     }
 
+    /** The stitched coverages, in the order they are searched. */
+    public List<Coverage> getRegions() {
+        return Collections.unmodifiableList(regions);
+    }
+
 }
@@ -0,0 +1,585 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
+import org.opentripplanner.graph_builder.model.osm.OSMRelation;
+import org.opentripplanner.graph_builder.model.osm.OSMRelationMember;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+import org.opentripplanner.graph_builder.model.osm.OSMWithTags;
+import org.opentripplanner.graph_builder.services.osm.OpenStreetMapContentHandler;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+/**
+ * Reads the OpenStreetMap PBF format (http://wiki.openstreetmap.org/wiki/PBF_Format).
+ * 
+ * The file is a sequence of independently compressed blobs of a few thousand entities each.
+ * Reading the file is sequential, but decompressing and decoding the blobs is done on a pool of
+ * worker threads. Decoded blocks are handed to the content handler on the calling thread, in file
+ * order, so handlers see exactly the same sequence of calls as with the XML parsers and need not
+ * be thread-safe.
+ * 
+ * The messages are decoded directly from the protocol buffer wire format rather than through
+ * classes generated by protoc, which would have to be checked in (see the updater module).
+ */
+public class BinaryOpenStreetMapParser {
+
+    private static final Set<String> SUPPORTED_FEATURES = new HashSet<String>(Arrays.asList(
+            "OsmSchema-V0.6", "DenseNodes"));
+
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    private static final String[] MEMBER_TYPES = { "node", "way", "relation" };
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** The number of threads used to decode blocks. */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Reads ways and relations, then calls {@link OpenStreetMapContentHandler#secondPhase()}, then
+     * reads nodes, as {@link StreamedOpenStreetMapParser} does.
+     */
+    public void parseMap(File path, OpenStreetMapContentHandler map) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(path));
+        try {
+            parseMap(in, map, false);
+        } finally {
+            in.close();
+        }
+
+        map.secondPhase();
+
+        in = new BufferedInputStream(new FileInputStream(path));
+        try {
+            parseMap(in, map, true);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param onlyNodes if true, only nodes are passed to the handler; otherwise only ways and
+     *        relations are.
+     */
+    public void parseMap(InputStream in, final OpenStreetMapContentHandler map,
+            final boolean onlyNodes)
+            throws IOException {
+
+        DataInputStream data = new DataInputStream(in);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        /* blocks being decoded, oldest first; bounded so that memory use stays flat */
+        LinkedList<Future<List<OSMWithTags>>> pending = new LinkedList<Future<List<OSMWithTags>>>();
+        try {
+            while (true) {
+                int headerSize;
+                try {
+                    headerSize = data.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (headerSize < 0 || headerSize > MAX_HEADER_SIZE)
+                    throw new IOException("invalid blob header size " + headerSize);
+                byte[] header = new byte[headerSize];
+                data.readFully(header);
+
+                String type = null;
+                int blobSize = -1;
+                CodedInputStream headerIn = CodedInputStream.newInstance(header);
+                int tag;
+                while ((tag = headerIn.readTag()) != 0) {
+                    switch (WireFormat.getTagFieldNumber(tag)) {
+                    case 1:
+                        type = headerIn.readString();
+                        break;
+                    case 3:
+                        blobSize = headerIn.readInt32();
+                        break;
+                    default:
+                        headerIn.skipField(tag);
+                    }
+                }
+                if (blobSize < 0 || blobSize > MAX_BLOB_SIZE)
+                    throw new IOException("invalid blob size " + blobSize);
+                final byte[] blob = new byte[blobSize];
+                data.readFully(blob);
+
+                if ("OSMHeader".equals(type)) {
+                    checkHeader(decompress(blob));
+                } else if ("OSMData".equals(type)) {
+                    pending.add(executor.submit(new Callable<List<OSMWithTags>>() {
+                        @Override
+                        public List<OSMWithTags> call() throws IOException {
+                            return decodePrimitiveBlock(decompress(blob), onlyNodes, map);
+                        }
+                    }));
+                    if (pending.size() > threads * 2)
+                        deliver(pending.removeFirst(), map);
+                }
+                // other blob types are to be skipped, per the format specification
+            }
+            while (!pending.isEmpty())
+                deliver(pending.removeFirst(), map);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void deliver(Future<List<OSMWithTags>> block, OpenStreetMapContentHandler map)
+            throws IOException {
+        List<OSMWithTags> entities;
+        try {
+            entities = block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while decoding OSM data");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IllegalStateException("error decoding OSM data", e.getCause());
+        }
+        for (OSMWithTags entity : entities) {
+            if (entity instanceof OSMNode)
+                map.addNode((OSMNode) entity);
+            else if (entity instanceof OSMWay)
+                map.addWay((OSMWay) entity);
+            else
+                map.addRelation((OSMRelation) entity);
+        }
+    }
+
+    private static void checkHeader(byte[] block) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(block);
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == 4) {
+                String feature = in.readString();
+                if (!SUPPORTED_FEATURES.contains(feature))
+                    throw new IOException("unsupported OSM PBF feature " + feature);
+            } else {
+                in.skipField(tag);
+            }
+        }
+    }
+
+    static byte[] decompress(byte[] blob) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(blob);
+        byte[] raw = null;
+        byte[] zlib = null;
+        int rawSize = -1;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+            case 1:
+                raw = in.readRawBytes(in.readRawVarint32());
+                break;
+            case 2:
+                rawSize = in.readInt32();
+                break;
+            case 3:
+                zlib = in.readRawBytes(in.readRawVarint32());
+                break;
+            case 4:
+            case 5:
+                throw new IOException("unsupported OSM PBF compression; only zlib is supported");
+            default:
+                in.skipField(tag);
+            }
+        }
+        if (raw != null)
+            return raw;
+        if (zlib == null || rawSize < 0 || rawSize > MAX_BLOB_SIZE)
+            throw new IOException("invalid OSM PBF blob");
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(zlib);
+            byte[] out = new byte[rawSize];
+            int n = inflater.inflate(out);
+            if (n != rawSize || !inflater.finished())
+                throw new IOException("OSM PBF blob is shorter than its declared size");
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt zlib data in OSM PBF blob: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static List<OSMWithTags> decodePrimitiveBlock(byte[] block, boolean onlyNodes,
+            OpenStreetMapContentHandler map) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(block);
+        String[] strings = new String[0];
+        int granularity = 100;
+        long latOffset = 0;
+        long lonOffset = 0;
+        /* groups come before the granularity and offsets, so only note where they are */
+        List<int[]> groups = new ArrayList<int[]>();
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+            case 1:
+                strings = readStringTable(in);
+                break;
+            case 2:
+                int length = in.readRawVarint32();
+                groups.add(new int[] { in.getTotalBytesRead(), length });
+                in.skipRawBytes(length);
+                break;
+            case 17:
+                granularity = in.readInt32();
+                break;
+            case 19:
+                latOffset = in.readInt64();
+                break;
+            case 20:
+                lonOffset = in.readInt64();
+                break;
+            default:
+                in.skipField(tag);
+            }
+        }
+
+        BlockDecoder decoder = new BlockDecoder(strings, granularity, latOffset, lonOffset, map);
+        List<OSMWithTags> entities = new ArrayList<OSMWithTags>();
+        for (int[] group : groups) {
+            CodedInputStream groupIn = CodedInputStream.newInstance(block, group[0], group[1]);
+            while ((tag = groupIn.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(tag);
+                boolean wanted = onlyNodes ? (field == 1 || field == 2) : (field == 3 || field == 4);
+                if (!wanted) {
+                    groupIn.skipField(tag);
+                    continue;
+                }
+                int limit = groupIn.pushLimit(groupIn.readRawVarint32());
+                if (field == 1)
+                    decoder.decodeNode(groupIn, entities);
+                else if (field == 2)
+                    decoder.decodeDenseNodes(groupIn, entities);
+                else if (field == 3)
+                    entities.add(decoder.decodeWay(groupIn));
+                else
+                    entities.add(decoder.decodeRelation(groupIn));
+                groupIn.popLimit(limit);
+            }
+        }
+        return entities;
+    }
+
+    private static String[] readStringTable(CodedInputStream in) throws IOException {
+        int limit = in.pushLimit(in.readRawVarint32());
+        List<String> strings = new ArrayList<String>();
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == 1)
+                strings.add(in.readString());
+            else
+                in.skipField(tag);
+        }
+        in.popLimit(limit);
+        return strings.toArray(new String[strings.size()]);
+    }
+
+    /**
+     * Decodes the entities of one primitive block, which share a string table and coordinate
+     * encoding. Each decode method reads one message, up to the stream's current limit.
+     */
+    private static class BlockDecoder {
+
+        private final String[] strings;
+
+        private final int granularity;
+
+        private final long latOffset;
+
+        private final long lonOffset;
+
+        private final OpenStreetMapContentHandler map;
+
+        private final LongList keys = new LongList();
+
+        private final LongList values = new LongList();
+
+        private final LongList ids = new LongList();
+
+        private final LongList lats = new LongList();
+
+        private final LongList lons = new LongList();
+
+        private final LongList keysVals = new LongList();
+
+        private final LongList types = new LongList();
+
+        BlockDecoder(String[] strings, int granularity, long latOffset, long lonOffset,
+                OpenStreetMapContentHandler map) {
+            this.strings = strings;
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+            this.map = map;
+        }
+
+        void decodeNode(CodedInputStream in, List<OSMWithTags> entities) throws IOException {
+            OSMNode node = new OSMNode();
+            keys.clear();
+            values.clear();
+            long lat = 0, lon = 0;
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                case 1:
+                    node.setId(in.readSInt64());
+                    break;
+                case 2:
+                    readPacked(in, tag, keys, false);
+                    break;
+                case 3:
+                    readPacked(in, tag, values, false);
+                    break;
+                case 8:
+                    lat = in.readSInt64();
+                    break;
+                case 9:
+                    lon = in.readSInt64();
+                    break;
+                default:
+                    in.skipField(tag);
+                }
+            }
+            if (!map.isNodeNeeded(node.getId()))
+                return;
+            node.setLat(toDegrees(latOffset, lat));
+            node.setLon(toDegrees(lonOffset, lon));
+            addTags(node, keys, values);
+            entities.add(node);
+        }
+
+        void decodeDenseNodes(CodedInputStream in, List<OSMWithTags> entities) throws IOException {
+            ids.clear();
+            lats.clear();
+            lons.clear();
+            keysVals.clear();
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                case 1:
+                    readPacked(in, tag, ids, true);
+                    break;
+                case 8:
+                    readPacked(in, tag, lats, true);
+                    break;
+                case 9:
+                    readPacked(in, tag, lons, true);
+                    break;
+                case 10:
+                    readPacked(in, tag, keysVals, false);
+                    break;
+                default:
+                    in.skipField(tag);
+                }
+            }
+            if (lats.size != ids.size || lons.size != ids.size)
+                throw new IOException("dense nodes have mismatched id and coordinate counts");
+            long id = 0, lat = 0, lon = 0;
+            int kv = 0;
+            for (int i = 0; i < ids.size; i++) {
+                id += ids.values[i];
+                lat += lats.values[i];
+                lon += lons.values[i];
+                OSMNode node = null;
+                if (map.isNodeNeeded(id)) {
+                    node = new OSMNode();
+                    node.setId(id);
+                    node.setLat(toDegrees(latOffset, lat));
+                    node.setLon(toDegrees(lonOffset, lon));
+                }
+                // keys_vals holds key, value, key, value... for each node, followed by a 0
+                while (kv < keysVals.size && keysVals.values[kv] != 0) {
+                    if (node != null)
+                        addTag(node, strings[(int) keysVals.values[kv]],
+                                strings[(int) keysVals.values[kv + 1]]);
+                    kv += 2;
+                }
+                kv++;
+                if (node != null)
+                    entities.add(node);
+            }
+        }
+
+        OSMWay decodeWay(CodedInputStream in) throws IOException {
+            OSMWay way = new OSMWay();
+            keys.clear();
+            values.clear();
+            ids.clear();
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                case 1:
+                    way.setId(in.readInt64());
+                    break;
+                case 2:
+                    readPacked(in, tag, keys, false);
+                    break;
+                case 3:
+                    readPacked(in, tag, values, false);
+                    break;
+                case 8:
+                    readPacked(in, tag, ids, true);
+                    break;
+                default:
+                    in.skipField(tag);
+                }
+            }
+            addTags(way, keys, values);
+            long ref = 0;
+            for (int i = 0; i < ids.size; i++) {
+                ref += ids.values[i];
+                way.addNodeRef(ref);
+            }
+            return way;
+        }
+
+        OSMRelation decodeRelation(CodedInputStream in) throws IOException {
+            OSMRelation relation = new OSMRelation();
+            keys.clear();
+            values.clear();
+            keysVals.clear();
+            ids.clear();
+            types.clear();
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                case 1:
+                    relation.setId(in.readInt64());
+                    break;
+                case 2:
+                    readPacked(in, tag, keys, false);
+                    break;
+                case 3:
+                    readPacked(in, tag, values, false);
+                    break;
+                case 8:
+                    readPacked(in, tag, keysVals, false);
+                    break;
+                case 9:
+                    readPacked(in, tag, ids, true);
+                    break;
+                case 10:
+                    readPacked(in, tag, types, false);
+                    break;
+                default:
+                    in.skipField(tag);
+                }
+            }
+            if (keysVals.size != ids.size || types.size != ids.size)
+                throw new IOException("relation " + relation.getId()
+                        + " has mismatched member counts");
+            addTags(relation, keys, values);
+            long ref = 0;
+            for (int i = 0; i < ids.size; i++) {
+                ref += ids.values[i];
+                OSMRelationMember member = new OSMRelationMember();
+                member.setRef(ref);
+                member.setRole(strings[(int) keysVals.values[i]]);
+                member.setType(MEMBER_TYPES[(int) types.values[i]]);
+                relation.addMember(member);
+            }
+            return relation;
+        }
+
+        private double toDegrees(long offset, long value) {
+            return (offset + (long) granularity * value) * 1e-9;
+        }
+
+        private void addTags(OSMWithTags entity, LongList keys, LongList values)
+                throws IOException {
+            if (keys.size != values.size)
+                throw new IOException(entity + " has mismatched tag keys and values");
+            for (int i = 0; i < keys.size; i++)
+                addTag(entity, strings[(int) keys.values[i]], strings[(int) values.values[i]]);
+        }
+
+        /* interned like in the XML parsers, since these repeat across millions of entities */
+        private void addTag(OSMWithTags entity, String key, String value) {
+            key = key.intern();
+            if (key.equals("name") || key.equals("ref") || key.equals("highway"))
+                value = value.intern();
+            entity.addTag(key, value);
+        }
+    }
+
+    /**
+     * Reads a repeated integer field, which may be packed (the usual case) or not.
+     * 
+     * @param zigzag whether the field is a signed (sint) type
+     */
+    private static void readPacked(CodedInputStream in, int tag, LongList list, boolean zigzag)
+            throws IOException {
+        if ((tag & 7) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+            int limit = in.pushLimit(in.readRawVarint32());
+            while (in.getBytesUntilLimit() > 0)
+                list.add(zigzag ? CodedInputStream.decodeZigZag64(in.readRawVarint64()) : in
+                        .readRawVarint64());
+            in.popLimit(limit);
+        } else {
+            list.add(zigzag ? CodedInputStream.decodeZigZag64(in.readRawVarint64()) : in
+                    .readRawVarint64());
+        }
+    }
+
+    /** A growable array of longs, reused between entities to avoid boxing. */
+    private static class LongList {
+
+        long[] values = new long[64];
+
+        int size = 0;
+
+        void add(long value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
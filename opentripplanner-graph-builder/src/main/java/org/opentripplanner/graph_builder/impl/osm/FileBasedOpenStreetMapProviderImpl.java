@@ -30,19 +30,26 @@ public class FileBasedOpenStreetMapProviderImpl implements OpenStreetMapProvider
         _path = path;
     }
 
+    public File getPath() {
+        return _path;
+    }
+
     @Override
     public void readOSM(OpenStreetMapContentHandler handler) {
+        OpenStreetMapProgressHandler progress = new OpenStreetMapProgressHandler(handler, _path
+                .getName());
         try {
             OpenStreetMapParser parser = new OpenStreetMapParser();
             if (_path.getName().endsWith(".gz")) {
                 InputStream in = new GZIPInputStream(new FileInputStream(_path));
-                parser.parseMap(in, handler);
+                parser.parseMap(in, progress);
             } else if (_path.getName().endsWith(".bz2")) {
                 BZip2CompressorInputStream in = new BZip2CompressorInputStream(new FileInputStream(_path));
-                parser.parseMap(in, handler);
+                parser.parseMap(in, progress);
             } else {
-                parser.parseMap(_path, handler);
+                parser.parseMap(_path, progress);
             }
+            progress.finish();
         } catch (Exception ex) {
             throw new IllegalStateException("error loading OSM from path " + _path, ex);
         }
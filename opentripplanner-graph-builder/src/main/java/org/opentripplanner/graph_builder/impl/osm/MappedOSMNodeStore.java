@@ -0,0 +1,147 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * An {@link OSMNodeStore} for inputs too large to index on the heap. Nodes are appended as
+ * fixed-size records (id, lat, lon) to a memory-mapped temporary file and found by binary search,
+ * so the heap cost is independent of the number of nodes.
+ * 
+ * This relies on nodes arriving in ascending id order, as they do in planet dumps and extracts
+ * produced by osmosis. Nodes that arrive out of order are kept in a small
+ * {@link PackedOSMNodeStore} instead.
+ */
+public class MappedOSMNodeStore implements OSMNodeStore {
+
+    private static Logger _log = LoggerFactory.getLogger(MappedOSMNodeStore.class);
+
+    private static final int RECORD_SIZE = 16;
+
+    private static final int RECORDS_PER_CHUNK = 1 << 22;
+
+    private static final long CHUNK_SIZE = (long) RECORDS_PER_CHUNK * RECORD_SIZE;
+
+    private File _file;
+
+    private RandomAccessFile _raf;
+
+    private List<MappedByteBuffer> _chunks = new ArrayList<MappedByteBuffer>();
+
+    private long _count = 0;
+
+    private long _lastId = Long.MIN_VALUE;
+
+    private PackedOSMNodeStore _unsorted = new PackedOSMNodeStore();
+
+    public MappedOSMNodeStore(File directory) {
+        try {
+            _file = File.createTempFile("osm-nodes", ".bin", directory);
+            _file.deleteOnExit();
+            _raf = new RandomAccessFile(_file, "rw");
+        } catch (IOException ex) {
+            throw new IllegalStateException("error creating node store in " + directory, ex);
+        }
+    }
+
+    @Override
+    public void put(long id, double lat, double lon) {
+        if (id <= _lastId) {
+            _unsorted.put(id, lat, lon);
+            return;
+        }
+        int chunk = (int) (_count / RECORDS_PER_CHUNK);
+        if (chunk == _chunks.size())
+            _chunks.add(map(chunk));
+        MappedByteBuffer buffer = _chunks.get(chunk);
+        int offset = (int) (_count % RECORDS_PER_CHUNK) * RECORD_SIZE;
+        buffer.putLong(offset, id);
+        buffer.putInt(offset + 8, PackedOSMNodeStore.toFixed(lat));
+        buffer.putInt(offset + 12, PackedOSMNodeStore.toFixed(lon));
+        _lastId = id;
+        _count++;
+    }
+
+    @Override
+    public boolean contains(long id) {
+        return find(id) >= 0 || _unsorted.contains(id);
+    }
+
+    @Override
+    public Coordinate getCoordinate(long id) {
+        long index = find(id);
+        if (index < 0)
+            return _unsorted.getCoordinate(id);
+        MappedByteBuffer buffer = _chunks.get((int) (index / RECORDS_PER_CHUNK));
+        int offset = (int) (index % RECORDS_PER_CHUNK) * RECORD_SIZE;
+        return new Coordinate(PackedOSMNodeStore.toDegrees(buffer.getInt(offset + 12)),
+                PackedOSMNodeStore.toDegrees(buffer.getInt(offset + 8)));
+    }
+
+    @Override
+    public int size() {
+        return (int) _count + _unsorted.size();
+    }
+
+    @Override
+    public void close() {
+        _chunks.clear();
+        _unsorted.close();
+        try {
+            _raf.close();
+        } catch (IOException ex) {
+            _log.warn("error closing node store " + _file, ex);
+        }
+        if (!_file.delete())
+            _log.warn("could not delete node store " + _file);
+    }
+
+    private long find(long id) {
+        long low = 0, high = _count - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long midId = _chunks.get((int) (mid / RECORDS_PER_CHUNK)).getLong(
+                    (int) (mid % RECORDS_PER_CHUNK) * RECORD_SIZE);
+            if (midId < id)
+                low = mid + 1;
+            else if (midId > id)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private MappedByteBuffer map(int chunk) {
+        try {
+            return _raf.getChannel().map(FileChannel.MapMode.READ_WRITE, chunk * CHUNK_SIZE,
+                    CHUNK_SIZE);
+        } catch (IOException ex) {
+            throw new IllegalStateException("error mapping node store " + _file, ex);
+        }
+    }
+}
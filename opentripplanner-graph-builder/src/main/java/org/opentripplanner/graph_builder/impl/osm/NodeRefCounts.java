@@ -0,0 +1,129 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.util.Arrays;
+
+/**
+ * Counts how many times each OSM node is referenced by the ways kept for the graph. Nodes that
+ * are referenced at all need their coordinates loaded; nodes referenced more than once are
+ * intersections.
+ * 
+ * Counts saturate at 3 and are packed two bits per node beside an open-addressing table of
+ * primitive ids, replacing the several {@code HashSet<Long>}s this used to take.
+ */
+public class NodeRefCounts {
+
+    private static final long EMPTY = PackedOSMNodeStore.EMPTY;
+
+    private static final double MAX_LOAD = 0.6;
+
+    private long[] keys;
+
+    /* two bits per slot, 32 slots per long */
+    private long[] counts;
+
+    private int size;
+
+    private int shift;
+
+    private int mask;
+
+    public NodeRefCounts() {
+        allocate(1024);
+    }
+
+    public void increment(long id) {
+        if (id == EMPTY)
+            throw new IllegalArgumentException("unsupported node id " + id);
+        if (size + 1 > keys.length * MAX_LOAD)
+            rehash(keys.length << 1);
+        int slot = insert(id);
+        int count = getCount(slot);
+        if (count < 3)
+            setCount(slot, count + 1);
+    }
+
+    /** @return the number of references to this node, or 3 if there are three or more */
+    public int get(long id) {
+        int slot = PackedOSMNodeStore.hash(id, shift);
+        while (true) {
+            long key = keys[slot];
+            if (key == id)
+                return getCount(slot);
+            if (key == EMPTY)
+                return 0;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public boolean isReferenced(long id) {
+        return get(id) > 0;
+    }
+
+    public boolean isIntersection(long id) {
+        return get(id) > 1;
+    }
+
+    /** The number of distinct nodes referenced. */
+    public int size() {
+        return size;
+    }
+
+    private int getCount(int slot) {
+        return (int) (counts[slot >>> 5] >>> ((slot & 31) << 1)) & 3;
+    }
+
+    private void setCount(int slot, int count) {
+        int bit = (slot & 31) << 1;
+        counts[slot >>> 5] = (counts[slot >>> 5] & ~(3L << bit)) | ((long) count << bit);
+    }
+
+    private int insert(long id) {
+        int slot = PackedOSMNodeStore.hash(id, shift);
+        while (true) {
+            long key = keys[slot];
+            if (key == id)
+                return slot;
+            if (key == EMPTY) {
+                keys[slot] = id;
+                size++;
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        counts = new long[(capacity + 31) >>> 5];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY)
+                continue;
+            int count = (int) (oldCounts[i >>> 5] >>> ((i & 31) << 1)) & 3;
+            setCount(insert(oldKeys[i]), count);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Stores the coordinates of OSM nodes by id while a street graph is built. Tags and other node
+ * data are not kept; the graph builder only needs positions.
+ * 
+ * Coordinates are stored as fixed-point integers in units of 1e-7 degrees, the precision of the
+ * OSM database itself.
+ * 
+ * Nodes are added from a single thread. Once all nodes are added, lookups may be made from
+ * several threads at once.
+ */
+public interface OSMNodeStore {
+
+    /**
+     * Adds a node. The store does not check for duplicates; callers should check
+     * {@link #contains(long)} first.
+     */
+    public void put(long id, double lat, double lon);
+
+    public boolean contains(long id);
+
+    /**
+     * @return the node's position (x = lon, y = lat), or null if the node is not in the store
+     */
+    public Coordinate getCoordinate(long id);
+
+    public int size();
+
+    /** Releases any resources held by the store. It must not be used afterwards. */
+    public void close();
+}
@@ -13,18 +13,27 @@
 
 package org.opentripplanner.graph_builder.impl.osm;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opentripplanner.common.model.P2;
 import org.opentripplanner.graph_builder.model.osm.*;
-import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.graph_builder.Fingerprint;
+import org.opentripplanner.graph_builder.services.CacheableGraphBuilder;
 import org.opentripplanner.graph_builder.services.StreetUtils;
 import org.opentripplanner.graph_builder.services.TurnRestriction;
 import org.opentripplanner.graph_builder.services.TurnRestrictionType;
@@ -53,10 +62,13 @@ import com.vividsolutions.jts.geom.LineString;
  * Builds a street graph from OpenStreetMap data.
  * 
  */
-public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
+public class OpenStreetMapGraphBuilderImpl implements CacheableGraphBuilder {
 
     private static Logger _log = LoggerFactory.getLogger(OpenStreetMapGraphBuilderImpl.class);
 
+    /* the number of ways evaluated together as one parallel task */
+    private static final int WAY_BATCH_SIZE = 1000;
+
     private List<OpenStreetMapProvider> _providers = new ArrayList<OpenStreetMapProvider>();
 
     private Map<Object, Object> _uniques = new HashMap<Object, Object>();
@@ -65,6 +77,15 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
 
     private CustomNamer customNamer;
 
+    private File nodeStoreDirectory;
+
+    /* the data read by prepare(), until buildGraph uses it */
+    private OSMNodeStore nodeStore;
+
+    private Handler handler;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
     /**
      * The source for OSM map data
      */
@@ -88,15 +109,141 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
         wayPropertySet = source.getWayPropertySet();
     }
 
+    /**
+     * If set, node coordinates are kept in a memory-mapped file in this directory rather than on
+     * the heap. Use this for inputs whose nodes do not fit in the heap even in packed form.
+     */
+    public void setNodeStoreDirectory(File nodeStoreDirectory) {
+        this.nodeStoreDirectory = nodeStoreDirectory;
+    }
+
+    /**
+     * The number of threads used to evaluate ways and build their geometry; defaults to one per
+     * CPU. The graph itself is always built by a single thread, so the result does not depend on
+     * this setting.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public List<String> provides() {
+        return Arrays.asList("streets");
+    }
+
+    public List<String> getPrerequisites() {
+        return Collections.emptyList();
+    }
+
+    public boolean changesGraphStructure() {
+        return true;
+    }
+
+    /**
+     * @return a digest of the OSM files and the way property rules, or null if the data does not
+     *         come from files only or a custom namer (whose configuration is unknown) is set
+     */
+    public String getFingerprint() {
+        if (customNamer != null)
+            return null;
+        Fingerprint fingerprint = new Fingerprint().add(getClass().getName());
+        for (OpenStreetMapProvider provider : _providers) {
+            File file = getFile(provider);
+            if (file == null)
+                return null;
+            fingerprint.add(provider.getClass().getName()).addFile(file);
+        }
+        addRules(fingerprint, wayPropertySet);
+        return fingerprint.toString();
+    }
+
+    /** Add every rule of the way properties, in the order they are matched in. */
+    private static void addRules(Fingerprint fingerprint, WayPropertySet rules) {
+        addProperties(fingerprint, rules.defaultProperties);
+        for (WayPropertyPicker picker : rules.getWayProperties()) {
+            addSpecifier(fingerprint.add("properties"), picker.getSpecifier());
+            addProperties(fingerprint, picker.getProperties());
+            fingerprint.add(picker.isSafetyMixin());
+        }
+        for (CreativeNamerPicker picker : rules.getCreativeNamers()) {
+            addSpecifier(fingerprint.add("namer"), picker.getSpecifier());
+            fingerprint.add(picker.getNamer().getCreativeNamePattern());
+        }
+        for (SlopeOverridePicker picker : rules.getSlopeOverrides()) {
+            addSpecifier(fingerprint.add("slope"), picker.getSpecifier());
+            fingerprint.add(picker.getOverride());
+        }
+        for (NotePicker picker : rules.getNotes()) {
+            addSpecifier(fingerprint.add("note"), picker.getSpecifier());
+            fingerprint.add(picker.getNoteProperties().getNotePattern());
+        }
+    }
+
+    private static void addSpecifier(Fingerprint fingerprint, OSMSpecifier specifier) {
+        fingerprint.add(specifier.kvpairs.size());
+        for (P2<String> pair : specifier.kvpairs)
+            fingerprint.add(pair.getFirst()).add(pair.getSecond());
+    }
+
+    private static void addProperties(Fingerprint fingerprint, WayProperties properties) {
+        fingerprint.add(properties.getPermission()).add(properties.getSafetyFeatures());
+    }
+
+    /**
+     * Read the OSM data if it comes from files only. Other providers may depend on the graph (a
+     * {@link RegionBasedOpenStreetMapProviderImpl} may fetch the regions around the transit
+     * stops), so they are read by buildGraph.
+     */
     @Override
-    public void buildGraph(Graph graph) {
-        Handler handler = new Handler();
+    public void prepare() {
         for (OpenStreetMapProvider provider : _providers) {
-            _log.debug("gathering osm from provider: " + provider);
-            provider.readOSM(handler);
+            if (getFile(provider) == null)
+                return;
+        }
+        read();
+    }
+
+    /** @return the file a provider reads, or null if it does not read a local file */
+    private static File getFile(OpenStreetMapProvider provider) {
+        if (provider instanceof FileBasedOpenStreetMapProviderImpl)
+            return ((FileBasedOpenStreetMapProviderImpl) provider).getPath();
+        if (provider instanceof BinaryFileBasedOpenStreetMapProviderImpl)
+            return ((BinaryFileBasedOpenStreetMapProviderImpl) provider).getPath();
+        if (provider instanceof StreamedFileBasedOpenStreetMapProviderImpl)
+            return ((StreamedFileBasedOpenStreetMapProviderImpl) provider).getPath();
+        return null;
+    }
+
+    private void read() {
+        OSMNodeStore store = nodeStoreDirectory == null ? new PackedOSMNodeStore()
+                : new MappedOSMNodeStore(nodeStoreDirectory);
+        boolean read = false;
+        try {
+            Handler handler = new Handler(store);
+            for (OpenStreetMapProvider provider : _providers) {
+                _log.debug("gathering osm from provider: " + provider);
+                provider.readOSM(handler);
+            }
+            nodeStore = store;
+            this.handler = handler;
+            read = true;
+        } finally {
+            if (!read)
+                store.close();
+        }
+    }
+
+    @Override
+    public void buildGraph(Graph graph) {
+        if (handler == null)
+            read();
+        try {
+            _log.debug("building osm street graph");
+            handler.buildGraph(graph);
+        } finally {
+            nodeStore.close();
+            nodeStore = null;
+            handler = null;
         }
-        _log.debug("building osm street graph");
-        handler.buildGraph(graph);
     }
 
     @SuppressWarnings("unchecked")
@@ -117,204 +264,118 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
         return wayPropertySet;
     }
 
-    private class Handler implements OpenStreetMapContentHandler {
-
-        private Map<Long, OSMNode> _nodes = new HashMap<Long, OSMNode>();
+    /** Everything about a way that can be worked out before its edges are added to the graph. */
+    private static class WayEdges {
+        OSMWay way;
 
-        private Map<Long, OSMWay> _ways = new HashMap<Long, OSMWay>();
+        WayProperties wayData;
 
-        private Map<Long, OSMRelation> _relations = new HashMap<Long, OSMRelation>();
+        Set<Alert> note;
 
-        private Set<Long> _nodesWithNeighbors = new HashSet<Long>();
+        boolean slopeOverride;
 
-        private Map<Long, List<TurnRestrictionTag>> turnRestrictionsByFromWay = new HashMap<Long, List<TurnRestrictionTag>>();
+        StreetTraversalPermission permissionsFront;
 
-        private Map<Long, List<TurnRestrictionTag>> turnRestrictionsByToWay = new HashMap<Long, List<TurnRestrictionTag>>();
+        StreetTraversalPermission permissionsBack;
 
-        private Map<TurnRestrictionTag, TurnRestriction> turnRestrictionsByTag = new HashMap<TurnRestrictionTag, TurnRestriction>();
+        boolean noThruTraffic;
 
-        /** The bike safety factor of the safest street */
-        private double bestBikeSafety = 1;
+        boolean roundabout;
 
-        public void buildGraph(Graph graph) {
-            // handle turn restrictions and road names in relations
-            processRelations();
+        List<Segment> segments = new ArrayList<Segment>();
+    }
 
-            // Remove all simple islands
-            _nodes.keySet().retainAll(_nodesWithNeighbors);
+    /** The part of a way between two intersections, which becomes a pair of edges. */
+    private static class Segment {
+        /* position of the start node in the way, used in edge ids */
+        int index;
 
-            long wayIndex = 0;
+        long startNode;
 
-            // figure out which nodes that are actually intersections
-            Set<Long> possibleIntersectionNodes = new HashSet<Long>();
-            Set<Long> intersectionNodes = new HashSet<Long>();
-            for (OSMWay way : _ways.values()) {
-                List<Long> nodes = way.getNodeRefs();
-                for (long node : nodes) {
-                    if (possibleIntersectionNodes.contains(node)) {
-                        intersectionNodes.add(node);
-                    } else {
-                        possibleIntersectionNodes.add(node);
-                    }
-                }
-            }
-            GeometryFactory geometryFactory = new GeometryFactory();
+        long endNode;
 
-            /* build an ordinary graph, which we will convert to an edge-based graph */
-            ArrayList<Vertex> endpoints = new ArrayList<Vertex>();
+        Coordinate startCoordinate;
 
-            for (OSMWay way : _ways.values()) {
+        Coordinate endCoordinate;
 
-                if (wayIndex % 10000 == 0)
-                    _log.debug("ways=" + wayIndex + "/" + _ways.size());
-                wayIndex++;
+        LineString geometry;
 
-                WayProperties wayData = wayPropertySet.getDataForWay(way);
+        LineString backGeometry;
 
-                if (!way.hasTag("name")) {
-                    String creativeName = wayPropertySet.getCreativeNameForWay(way);
-                    if (creativeName != null) {
-                        way.addTag("otp:gen_name", creativeName);
-                    }
-                }
-                Set<Alert> note = wayPropertySet.getNoteForWay(way);
-
-                StreetTraversalPermission permissions = getPermissionsForEntity(way,
-                        wayData.getPermission());
-                if (permissions == StreetTraversalPermission.NONE)
-                    continue;
-
-                List<Long> nodes = way.getNodeRefs();
-
-                Vertex startEndpoint = null, endEndpoint = null;
+        double length;
+    }
 
-                ArrayList<Coordinate> segmentCoordinates = new ArrayList<Coordinate>();
+    private class Handler implements OpenStreetMapContentHandler {
 
-                /*
-                 * Traverse through all the nodes of this edge. For nodes which are not shared with
-                 * any other edge, do not create endpoints -- just accumulate them for geometry. For
-                 * nodes which are shared, create endpoints and StreetVertex instances.
-                 */
+        private OSMNodeStore _nodes;
 
-                Long startNode = null;
-                OSMNode osmStartNode = null;
-                for (int i = 0; i < nodes.size() - 1; i++) {
-                    Long endNode = nodes.get(i + 1);
-                    if (osmStartNode == null) {
-                        startNode = nodes.get(i);
-                        osmStartNode = _nodes.get(startNode);
-                    }
-                    OSMNode osmEndNode = _nodes.get(endNode);
+        private Map<Long, OSMWay> _ways = new HashMap<Long, OSMWay>();
 
-                    if (osmStartNode == null || osmEndNode == null)
-                        continue;
+        /* ways added since the last call to secondPhase() */
+        private List<OSMWay> _newWays = new ArrayList<OSMWay>();
 
-                    LineString geometry;
+        private Map<Long, OSMRelation> _relations = new HashMap<Long, OSMRelation>();
 
-                    /*
-                     * skip vertices that are not intersections, except that we use them for
-                     * geometry
-                     */
-                    if (segmentCoordinates.size() == 0) {
-                        segmentCoordinates.add(getCoordinate(osmStartNode));
-                    }
+        /* references to each node from the ways kept, to find the nodes we need and intersections */
+        private NodeRefCounts _nodeRefs = new NodeRefCounts();
 
-                    if (intersectionNodes.contains(endNode) || i == nodes.size() - 2) {
-                        segmentCoordinates.add(getCoordinate(osmEndNode));
-                        geometry = geometryFactory.createLineString(segmentCoordinates
-                                .toArray(new Coordinate[0]));
-                        segmentCoordinates.clear();
-                    } else {
-                        segmentCoordinates.add(getCoordinate(osmEndNode));
-                        continue;
-                    }
+        /*
+         * references from kept ways of a single node, which count towards intersections but do not
+         * make a node needed, since such a way has no segments
+         */
+        private NodeRefCounts _loneNodeRefs = new NodeRefCounts();
 
-                    /* generate endpoints */
-                    if (startEndpoint == null) {
-                        // first iteration on this way
-                        String label = "osm node " + osmStartNode.getId();
-
-                        startEndpoint = graph.getVertex(label);
-                        if (startEndpoint == null) {
-                            Coordinate coordinate = getCoordinate(osmStartNode);
-                            startEndpoint = new EndpointVertex(label, coordinate.x, coordinate.y,
-                                    label);
-                            graph.addVertex(startEndpoint);
-                            endpoints.add(startEndpoint);
-                        }
-                    } else {
-                        startEndpoint = endEndpoint;
-                    }
+        private Map<Long, List<TurnRestrictionTag>> turnRestrictionsByFromWay = new HashMap<Long, List<TurnRestrictionTag>>();
 
-                    String label = "osm node " + osmEndNode.getId();
-                    endEndpoint = graph.getVertex(label);
-                    if (endEndpoint == null) {
-                        Coordinate coordinate = getCoordinate(osmEndNode);
-                        endEndpoint = new EndpointVertex(label, coordinate.x, coordinate.y, label);
-                        graph.addVertex(endEndpoint);
-                        endpoints.add(endEndpoint);
-                    }
+        private Map<Long, List<TurnRestrictionTag>> turnRestrictionsByToWay = new HashMap<Long, List<TurnRestrictionTag>>();
 
-                    P2<PlainStreetEdge> streets = getEdgesForStreet(startEndpoint, endEndpoint,
-                            way, i, permissions, geometry);
+        private Map<TurnRestrictionTag, TurnRestriction> turnRestrictionsByTag = new HashMap<TurnRestrictionTag, TurnRestriction>();
 
-                    PlainStreetEdge street = streets.getFirst();
+        /** The bike safety factor of the safest street */
+        private double bestBikeSafety = 1;
 
-                    if (street != null) {
-                        graph.addEdge(street);
-                        double safety = wayData.getSafetyFeatures().getFirst();
-                        street.setBicycleSafetyEffectiveLength(street.getLength() * safety);
-                        if (safety < bestBikeSafety) {
-                            bestBikeSafety = safety;
-                        }
-                        if (note != null) {
-                            street.setNote(note);
-                        }
-                    }
+        Handler(OSMNodeStore nodes) {
+            _nodes = nodes;
+        }
 
-                    PlainStreetEdge backStreet = streets.getSecond();
-                    if (backStreet != null) {
-                        graph.addEdge(backStreet);
-                        double safety = wayData.getSafetyFeatures().getSecond();
-                        if (safety < bestBikeSafety) {
-                            bestBikeSafety = safety;
-                        }
-                        backStreet.setBicycleSafetyEffectiveLength(backStreet.getLength() * safety);
-                        if (note != null) {
-                            backStreet.setNote(note);
-                        }
-                    }
+        public void buildGraph(Graph graph) {
+            // handle turn restrictions and road names in relations
+            processRelations();
 
-                    /* Check if there are turn restrictions starting on this segment */
-                    List<TurnRestrictionTag> restrictionTags = turnRestrictionsByFromWay.get(way
-                            .getId());
-                    if (restrictionTags != null) {
-                        for (TurnRestrictionTag tag : restrictionTags) {
-                            if (tag.via == startNode) {
-                                TurnRestriction restriction = turnRestrictionsByTag.get(tag);
-                                restriction.from = backStreet;
-                            } else if (tag.via == endNode) {
-                                TurnRestriction restriction = turnRestrictionsByTag.get(tag);
-                                restriction.from = street;
-                            }
-                        }
-                    }
+            /* build an ordinary graph, which we will convert to an edge-based graph */
+            ArrayList<Vertex> endpoints = new ArrayList<Vertex>();
 
-                    restrictionTags = turnRestrictionsByToWay.get(way.getId());
-                    if (restrictionTags != null) {
-                        for (TurnRestrictionTag tag : restrictionTags) {
-                            if (tag.via == startNode) {
-                                TurnRestriction restriction = turnRestrictionsByTag.get(tag);
-                                restriction.to = street;
-                            } else if (tag.via == endNode) {
-                                TurnRestriction restriction = turnRestrictionsByTag.get(tag);
-                                restriction.to = backStreet;
-                            }
+            /*
+             * Evaluating the ways (tag matching, names, geometry) is independent for each way, so
+             * it is done in parallel in batches. The results are added to the graph serially and
+             * in way order, so that vertices are created in the same order on every run.
+             */
+            final List<OSMWay> ways = new ArrayList<OSMWay>(_ways.values());
+            final AtomicInteger evaluated = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<List<WayEdges>>> batches = new ArrayList<Future<List<WayEdges>>>();
+                for (int i = 0; i < ways.size(); i += WAY_BATCH_SIZE) {
+                    final List<OSMWay> batch = ways.subList(i,
+                            Math.min(i + WAY_BATCH_SIZE, ways.size()));
+                    batches.add(executor.submit(new Callable<List<WayEdges>>() {
+                        @Override
+                        public List<WayEdges> call() {
+                            List<WayEdges> result = evaluateWays(batch);
+                            int wayIndex = evaluated.addAndGet(batch.size());
+                            if (wayIndex / 10000 > (wayIndex - batch.size()) / 10000)
+                                _log.debug("ways=" + wayIndex + "/" + ways.size());
+                            return result;
                         }
+                    }));
+                }
+                for (Future<List<WayEdges>> batch : batches) {
+                    for (WayEdges wayEdges : getBatch(batch)) {
+                        addWayEdges(graph, wayEdges, endpoints);
                     }
-                    startNode = endNode;
-                    osmStartNode = _nodes.get(startNode);
                 }
+            } finally {
+                executor.shutdownNow();
             }
 
             /* unify turn restrictions */
@@ -367,18 +428,25 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
             }
         }
 
-        private Coordinate getCoordinate(OSMNode osmNode) {
-            return new Coordinate(osmNode.getLon(), osmNode.getLat());
+        /* whether kept ways, including ways of a single node, reference a node more than once */
+        private boolean isIntersection(long id) {
+            return _nodeRefs.isIntersection(id)
+                    || (_loneNodeRefs.size() > 0 && _nodeRefs.get(id) + _loneNodeRefs.get(id) > 1);
+        }
+
+        public boolean isNodeNeeded(long id) {
+            // only reads the reference counts, which are not changed during the node stage
+            return _nodeRefs.isReferenced(id);
         }
 
         public void addNode(OSMNode node) {
-            if (!_nodesWithNeighbors.contains(node.getId()))
+            if (!_nodeRefs.isReferenced(node.getId()))
                 return;
 
-            if (_nodes.containsKey(node.getId()))
+            if (_nodes.contains(node.getId()))
                 return;
 
-            _nodes.put(node.getId(), node);
+            _nodes.put(node.getId(), node.getLat(), node.getLon());
 
             if (_nodes.size() % 10000 == 0)
                 _log.debug("nodes=" + _nodes.size());
@@ -389,6 +457,7 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
                 return;
 
             _ways.put(way.getId(), way);
+            _newWays.add(way);
 
             if (_ways.size() % 1000 == 0)
                 _log.debug("ways=" + _ways.size());
@@ -413,23 +482,27 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
         }
 
         public void secondPhase() {
-            int count = _ways.values().size();
-            for (Iterator<OSMWay> it = _ways.values().iterator(); it.hasNext();) {
-                OSMWay way = it.next();
-                if (!(way.hasTag("highway") || way.isTag("railway", "platform"))) {
-                    it.remove();
-                } else if (way.isTag("highway", "conveyer") || way.isTag("highway", "proposed")) {
-                    it.remove();
+            /*
+             * Only look at the ways read since the last call, so that reference counts are not
+             * doubled when there are several providers.
+             */
+            int count = _newWays.size(), purged = 0;
+            for (OSMWay way : _newWays) {
+                if (!(way.hasTag("highway") || way.isTag("railway", "platform"))
+                        || way.isTag("highway", "conveyer") || way.isTag("highway", "proposed")) {
+                    _ways.remove(way.getId());
+                    purged++;
                 } else {
-                    // Since the way is kept, update nodes-with-neighbots
+                    // Since the way is kept, count its references to find the nodes we need
                     List<Long> nodes = way.getNodeRefs();
-                    if (nodes.size() > 1) {
-                        _nodesWithNeighbors.addAll(nodes);
-                    }
+                    NodeRefCounts refs = nodes.size() > 1 ? _nodeRefs : _loneNodeRefs;
+                    for (long node : nodes)
+                        refs.increment(node);
                 }
             }
+            _newWays.clear();
 
-            _log.trace("purged " + (count - _ways.values().size()) + " ways out of " + count);
+            _log.trace("purged " + purged + " ways out of " + count);
         }
 
         /**
@@ -571,31 +644,212 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
             return routes + ", " + name;
         }
 
+        private List<WayEdges> getBatch(Future<List<WayEdges>> batch) {
+            try {
+                return batch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while building street edges");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new IllegalStateException("error building street edges", e.getCause());
+            }
+        }
+
         /**
-         * Handle oneway streets, cycleways, and whatnot. See
-         * http://wiki.openstreetmap.org/wiki/Bicycle for various scenarios, along with
-         * http://wiki.openstreetmap.org/wiki/OSM_tags_for_routing#Oneway.
-         * 
-         * @param end
-         * @param start
+         * Does the work for a batch of ways that does not touch the graph. Called from several
+         * threads at once, so it must only read shared state; each way is only ever seen by one
+         * thread, so the ways themselves may be modified.
          */
-        private P2<PlainStreetEdge> getEdgesForStreet(Vertex start, Vertex end, OSMWay way,
-                long startNode, StreetTraversalPermission permissions, LineString geometry) {
-            // get geometry length in meters, irritatingly.
-            Coordinate[] coordinates = geometry.getCoordinates();
-            double d = 0;
-            for (int i = 1; i < coordinates.length; ++i) {
-                d += DistanceLibrary.distance(coordinates[i - 1], coordinates[i]);
+        private List<WayEdges> evaluateWays(List<OSMWay> ways) {
+            GeometryFactory geometryFactory = new GeometryFactory();
+            List<WayEdges> result = new ArrayList<WayEdges>(ways.size());
+            for (OSMWay way : ways) {
+                WayProperties wayData = wayPropertySet.getDataForWay(way);
+
+                if (!way.hasTag("name")) {
+                    String creativeName = wayPropertySet.getCreativeNameForWay(way);
+                    if (creativeName != null) {
+                        way.addTag("otp:gen_name", creativeName);
+                    }
+                }
+
+                StreetTraversalPermission permissions = getPermissionsForEntity(way,
+                        wayData.getPermission());
+                if (permissions == StreetTraversalPermission.NONE)
+                    continue;
+
+                WayEdges wayEdges = new WayEdges();
+                wayEdges.way = way;
+                wayEdges.wayData = wayData;
+                wayEdges.note = wayPropertySet.getNoteForWay(way);
+                wayEdges.slopeOverride = wayPropertySet.getSlopeOverride(way);
+                setStreetPermissions(wayEdges, permissions);
+
+                List<Long> nodes = way.getNodeRefs();
+
+                ArrayList<Coordinate> segmentCoordinates = new ArrayList<Coordinate>();
+
+                /*
+                 * Traverse through all the nodes of this edge. For nodes which are not shared with
+                 * any other edge, do not create endpoints -- just accumulate them for geometry. For
+                 * nodes which are shared, create endpoints and StreetVertex instances.
+                 */
+
+                long startNode = 0;
+                Coordinate startCoordinate = null;
+                for (int i = 0; i < nodes.size() - 1; i++) {
+                    long endNode = nodes.get(i + 1);
+                    if (startCoordinate == null) {
+                        startNode = nodes.get(i);
+                        startCoordinate = _nodes.getCoordinate(startNode);
+                    }
+                    Coordinate endCoordinate = _nodes.getCoordinate(endNode);
+
+                    if (startCoordinate == null || endCoordinate == null)
+                        continue;
+
+                    /*
+                     * skip vertices that are not intersections, except that we use them for
+                     * geometry
+                     */
+                    if (segmentCoordinates.size() == 0) {
+                        segmentCoordinates.add(startCoordinate);
+                    }
+                    segmentCoordinates.add(endCoordinate);
+                    if (!isIntersection(endNode) && i != nodes.size() - 2)
+                        continue;
+
+                    Segment segment = new Segment();
+                    segment.index = i;
+                    segment.startNode = startNode;
+                    segment.endNode = endNode;
+                    segment.startCoordinate = startCoordinate;
+                    segment.endCoordinate = endCoordinate;
+                    segment.geometry = geometryFactory.createLineString(segmentCoordinates
+                            .toArray(new Coordinate[0]));
+                    segment.backGeometry = (LineString) segment.geometry.reverse();
+                    // get geometry length in meters, irritatingly.
+                    for (int j = 1; j < segmentCoordinates.size(); ++j) {
+                        segment.length += DistanceLibrary.distance(segmentCoordinates.get(j - 1),
+                                segmentCoordinates.get(j));
+                    }
+                    segmentCoordinates.clear();
+                    wayEdges.segments.add(segment);
+
+                    startNode = endNode;
+                    startCoordinate = endCoordinate;
+                }
+                result.add(wayEdges);
             }
+            return result;
+        }
 
-            LineString backGeometry = (LineString) geometry.reverse();
+        /** Adds the vertices and edges for one evaluated way to the graph. */
+        private void addWayEdges(Graph graph, WayEdges wayEdges, List<Vertex> endpoints) {
+            OSMWay way = wayEdges.way;
+            WayProperties wayData = wayEdges.wayData;
+            Set<Alert> note = wayEdges.note;
 
-            Map<String, String> tags = way.getTags();
+            Vertex startEndpoint = null, endEndpoint = null;
+            for (Segment segment : wayEdges.segments) {
+                long startNode = segment.startNode;
+                long endNode = segment.endNode;
 
-            if (permissions == StreetTraversalPermission.NONE)
-                return new P2<PlainStreetEdge>(null, null);
+                /* generate endpoints */
+                if (startEndpoint == null) {
+                    // first iteration on this way
+                    String label = "osm node " + startNode;
 
-            PlainStreetEdge street = null, backStreet = null;
+                    startEndpoint = graph.getVertex(label);
+                    if (startEndpoint == null) {
+                        startEndpoint = new EndpointVertex(label, segment.startCoordinate.x,
+                                segment.startCoordinate.y, label);
+                        graph.addVertex(startEndpoint);
+                        endpoints.add(startEndpoint);
+                    }
+                } else {
+                    startEndpoint = endEndpoint;
+                }
+
+                String label = "osm node " + endNode;
+                endEndpoint = graph.getVertex(label);
+                if (endEndpoint == null) {
+                    endEndpoint = new EndpointVertex(label, segment.endCoordinate.x,
+                            segment.endCoordinate.y, label);
+                    graph.addVertex(endEndpoint);
+                    endpoints.add(endEndpoint);
+                }
+
+                P2<PlainStreetEdge> streets = getEdgesForStreet(startEndpoint, endEndpoint,
+                        wayEdges, segment);
+
+                PlainStreetEdge street = streets.getFirst();
+
+                if (street != null) {
+                    graph.addEdge(street);
+                    double safety = wayData.getSafetyFeatures().getFirst();
+                    street.setBicycleSafetyEffectiveLength(street.getLength() * safety);
+                    if (safety < bestBikeSafety) {
+                        bestBikeSafety = safety;
+                    }
+                    if (note != null) {
+                        street.setNote(note);
+                    }
+                }
+
+                PlainStreetEdge backStreet = streets.getSecond();
+                if (backStreet != null) {
+                    graph.addEdge(backStreet);
+                    double safety = wayData.getSafetyFeatures().getSecond();
+                    if (safety < bestBikeSafety) {
+                        bestBikeSafety = safety;
+                    }
+                    backStreet.setBicycleSafetyEffectiveLength(backStreet.getLength() * safety);
+                    if (note != null) {
+                        backStreet.setNote(note);
+                    }
+                }
+
+                /* Check if there are turn restrictions starting on this segment */
+                List<TurnRestrictionTag> restrictionTags = turnRestrictionsByFromWay.get(way
+                        .getId());
+                if (restrictionTags != null) {
+                    for (TurnRestrictionTag tag : restrictionTags) {
+                        if (tag.via == startNode) {
+                            TurnRestriction restriction = turnRestrictionsByTag.get(tag);
+                            restriction.from = backStreet;
+                        } else if (tag.via == endNode) {
+                            TurnRestriction restriction = turnRestrictionsByTag.get(tag);
+                            restriction.from = street;
+                        }
+                    }
+                }
+
+                restrictionTags = turnRestrictionsByToWay.get(way.getId());
+                if (restrictionTags != null) {
+                    for (TurnRestrictionTag tag : restrictionTags) {
+                        if (tag.via == startNode) {
+                            TurnRestriction restriction = turnRestrictionsByTag.get(tag);
+                            restriction.to = street;
+                        } else if (tag.via == endNode) {
+                            TurnRestriction restriction = turnRestrictionsByTag.get(tag);
+                            restriction.to = backStreet;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Handle oneway streets, cycleways, and whatnot. See
+         * http://wiki.openstreetmap.org/wiki/Bicycle for various scenarios, along with
+         * http://wiki.openstreetmap.org/wiki/OSM_tags_for_routing#Oneway.
+         */
+        private void setStreetPermissions(WayEdges wayEdges, StreetTraversalPermission permissions) {
+            OSMWay way = wayEdges.way;
+            Map<String, String> tags = way.getTags();
 
             /*
              * pedestrian rules: everything is two-way (assuming pedestrians are allowed at all)
@@ -680,19 +934,29 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
                     || "delivery".equals(access) || "forestry".equals(access)
                     || "agricultural".equals(access);
 
-            if (permissionsFront != StreetTraversalPermission.NONE) {
-                street = getEdgeForStreet(start, end, way, startNode, d, permissionsFront,
-                        geometry, false);
-                street.setNoThruTraffic(noThruTraffic);
+            wayEdges.permissionsFront = permissionsFront;
+            wayEdges.permissionsBack = permissionsBack;
+            wayEdges.noThruTraffic = noThruTraffic;
+            wayEdges.roundabout = "roundabout".equals(tags.get("junction"));
+        }
+
+        private P2<PlainStreetEdge> getEdgesForStreet(Vertex start, Vertex end,
+                WayEdges wayEdges, Segment segment) {
+            PlainStreetEdge street = null, backStreet = null;
+
+            if (wayEdges.permissionsFront != StreetTraversalPermission.NONE) {
+                street = getEdgeForStreet(start, end, wayEdges, segment.index, segment.length,
+                        wayEdges.permissionsFront, segment.geometry, false);
+                street.setNoThruTraffic(wayEdges.noThruTraffic);
             }
-            if (permissionsBack != StreetTraversalPermission.NONE) {
-                backStreet = getEdgeForStreet(end, start, way, startNode, d, permissionsBack,
-                        backGeometry, true);
-                backStreet.setNoThruTraffic(noThruTraffic);
+            if (wayEdges.permissionsBack != StreetTraversalPermission.NONE) {
+                backStreet = getEdgeForStreet(end, start, wayEdges, segment.index, segment.length,
+                        wayEdges.permissionsBack, segment.backGeometry, true);
+                backStreet.setNoThruTraffic(wayEdges.noThruTraffic);
             }
 
             /* mark edges that are on roundabouts */
-            if ("roundabout".equals(tags.get("junction"))) {
+            if (wayEdges.roundabout) {
                 if (street != null)
                     street.setRoundabout(true);
                 if (backStreet != null)
@@ -702,9 +966,10 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
             return new P2<PlainStreetEdge>(street, backStreet);
         }
 
-        private PlainStreetEdge getEdgeForStreet(Vertex start, Vertex end, OSMWay way,
+        private PlainStreetEdge getEdgeForStreet(Vertex start, Vertex end, WayEdges wayEdges,
                 long startNode, double length, StreetTraversalPermission permissions,
                 LineString geometry, boolean back) {
+            OSMWay way = wayEdges.way;
 
             String id = "way " + way.getId() + " from " + startNode;
             id = unique(id);
@@ -739,7 +1004,7 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
                 street.setWheelchairAccessible(false);
             }
 
-            street.setSlopeOverride(wayPropertySet.getSlopeOverride(way));
+            street.setSlopeOverride(wayEdges.slopeOverride);
 
             if (customNamer != null) {
                 customNamer.nameWithEdge(way, street);
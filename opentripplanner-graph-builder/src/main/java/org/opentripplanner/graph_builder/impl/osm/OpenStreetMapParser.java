@@ -68,9 +68,14 @@ public class OpenStreetMapParser {
             }
             Element element = (Element) node;
             if (nodesOnly && element.getTagName().equals("node")) {
+                long id = Long.parseLong(element.getAttribute("id"));
+                if (!map.isNodeNeeded(id)) {
+                    node = node.getNextSibling();
+                    continue;
+                }
                 OSMNode osmNode = new OSMNode();
                 
-                osmNode.setId(Long.parseLong(element.getAttribute("id")));
+                osmNode.setId(id);
                 osmNode.setLat(Double.parseDouble(element.getAttribute("lat")));
                 osmNode.setLon(Double.parseDouble(element.getAttribute("lon")));
                 
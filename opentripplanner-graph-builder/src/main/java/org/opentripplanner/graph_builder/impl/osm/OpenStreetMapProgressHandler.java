@@ -0,0 +1,110 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
+import org.opentripplanner.graph_builder.model.osm.OSMRelation;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+import org.opentripplanner.graph_builder.services.osm.OpenStreetMapContentHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wraps a content handler to report progress and throughput for the two passes over an OSM
+ * input: ways and relations up to {@link #secondPhase()}, then nodes up to {@link #finish()}.
+ */
+public class OpenStreetMapProgressHandler implements OpenStreetMapContentHandler {
+
+    private static Logger _log = LoggerFactory.getLogger(OpenStreetMapProgressHandler.class);
+
+    private static final long WAY_INTERVAL = 100000;
+
+    private static final long NODE_INTERVAL = 1000000;
+
+    private final OpenStreetMapContentHandler _handler;
+
+    private final String _source;
+
+    private long _passStart = System.currentTimeMillis();
+
+    private long _ways = 0;
+
+    private long _relations = 0;
+
+    /* counted by isNodeNeeded(), which parsers may call from several threads */
+    private final AtomicLong _nodesRead = new AtomicLong();
+
+    private long _nodesKept = 0;
+
+    public OpenStreetMapProgressHandler(OpenStreetMapContentHandler handler, String source) {
+        _handler = handler;
+        _source = source;
+        _log.info("osm pass 1 (ways and relations) of " + _source);
+    }
+
+    @Override
+    public void addWay(OSMWay way) {
+        if (++_ways % WAY_INTERVAL == 0)
+            _log.debug("ways=" + _ways + " (" + rate(_ways) + "/s)");
+        _handler.addWay(way);
+    }
+
+    @Override
+    public void addRelation(OSMRelation relation) {
+        _relations++;
+        _handler.addRelation(relation);
+    }
+
+    @Override
+    public void secondPhase() {
+        _log.info("osm pass 1 of " + _source + " done: " + _ways + " ways, " + _relations
+                + " relations in " + elapsed() + " s (" + rate(_ways + _relations) + "/s)");
+        _handler.secondPhase();
+        _passStart = System.currentTimeMillis();
+        _log.info("osm pass 2 (nodes) of " + _source);
+    }
+
+    @Override
+    public boolean isNodeNeeded(long id) {
+        long read = _nodesRead.incrementAndGet();
+        if (read % NODE_INTERVAL == 0)
+            _log.debug("nodes=" + read + " (" + rate(read) + "/s)");
+        return _handler.isNodeNeeded(id);
+    }
+
+    @Override
+    public void addNode(OSMNode node) {
+        _nodesKept++;
+        _handler.addNode(node);
+    }
+
+    /** Reports the end of the second pass. */
+    public void finish() {
+        long read = _nodesRead.get();
+        _log.info("osm pass 2 of " + _source + " done: " + read + " nodes read, " + _nodesKept
+                + " kept in " + elapsed() + " s (" + rate(read) + "/s)");
+    }
+
+    private String elapsed() {
+        return String.format("%.1f", (System.currentTimeMillis() - _passStart) / 1000.0);
+    }
+
+    private long rate(long count) {
+        long millis = Math.max(1, System.currentTimeMillis() - _passStart);
+        return count * 1000 / millis;
+    }
+}
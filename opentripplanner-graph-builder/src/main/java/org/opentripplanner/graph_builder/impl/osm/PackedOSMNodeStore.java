@@ -0,0 +1,153 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * An {@link OSMNodeStore} backed by an open-addressing hash table over primitive arrays: 16 bytes
+ * per slot, rather than the boxed key, map entry and {@code OSMNode} (with its tag map) of a
+ * {@code HashMap<Long, OSMNode>}.
+ */
+public class PackedOSMNodeStore implements OSMNodeStore {
+
+    static final long EMPTY = Long.MIN_VALUE;
+
+    private static final double MAX_LOAD = 0.6;
+
+    private long[] keys;
+
+    private int[] lats;
+
+    private int[] lons;
+
+    private int size;
+
+    private int shift;
+
+    private int mask;
+
+    public PackedOSMNodeStore() {
+        this(1024);
+    }
+
+    public PackedOSMNodeStore(int expectedSize) {
+        int capacity = 16;
+        while (capacity * MAX_LOAD < expectedSize)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    @Override
+    public void put(long id, double lat, double lon) {
+        if (id == EMPTY)
+            throw new IllegalArgumentException("unsupported node id " + id);
+        if (size + 1 > keys.length * MAX_LOAD)
+            rehash(keys.length << 1);
+        int slot = insert(id);
+        lats[slot] = toFixed(lat);
+        lons[slot] = toFixed(lon);
+    }
+
+    @Override
+    public boolean contains(long id) {
+        return find(id) >= 0;
+    }
+
+    @Override
+    public Coordinate getCoordinate(long id) {
+        int slot = find(id);
+        if (slot < 0)
+            return null;
+        return new Coordinate(toDegrees(lons[slot]), toDegrees(lats[slot]));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        keys = null;
+        lats = null;
+        lons = null;
+    }
+
+    static int toFixed(double degrees) {
+        return (int) Math.round(degrees * 1e7);
+    }
+
+    static double toDegrees(int fixed) {
+        return fixed / 1e7;
+    }
+
+    static int hash(long id, int shift) {
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    private int find(long id) {
+        int slot = hash(id, shift);
+        while (true) {
+            long key = keys[slot];
+            if (key == id)
+                return slot;
+            if (key == EMPTY)
+                return -1;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /** @return the slot holding id, which is added if not already present */
+    private int insert(long id) {
+        int slot = hash(id, shift);
+        while (true) {
+            long key = keys[slot];
+            if (key == id)
+                return slot;
+            if (key == EMPTY) {
+                keys[slot] = id;
+                size++;
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        lats = new int[capacity];
+        lons = new int[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldLats = lats, oldLons = lons;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY)
+                continue;
+            int slot = insert(oldKeys[i]);
+            lats[slot] = oldLats[i];
+            lons[slot] = oldLons[i];
+        }
+    }
+}
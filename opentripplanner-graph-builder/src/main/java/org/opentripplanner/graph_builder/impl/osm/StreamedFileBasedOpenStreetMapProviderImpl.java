@@ -35,26 +35,29 @@ public class StreamedFileBasedOpenStreetMapProviderImpl implements OpenStreetMap
      */
     @Override
     public void readOSM(OpenStreetMapContentHandler handler) {
+        OpenStreetMapProgressHandler progress = new OpenStreetMapProgressHandler(handler, _path
+                .getName());
         try {
             if (_path.getName().endsWith(".gz")) {
                 InputStream in = new GZIPInputStream(new FileInputStream(_path));
-                StreamedOpenStreetMapParser.parseMap(in, handler, false);
+                StreamedOpenStreetMapParser.parseMap(in, progress, false);
 
-                handler.secondPhase();
+                progress.secondPhase();
 
                 in = new GZIPInputStream(new FileInputStream(_path));
-                StreamedOpenStreetMapParser.parseMap(in, handler, true);
+                StreamedOpenStreetMapParser.parseMap(in, progress, true);
             } else if (_path.getName().endsWith(".bz2")) {
                 InputStream in = new BZip2CompressorInputStream(new FileInputStream(_path));
-                StreamedOpenStreetMapParser.parseMap(in, handler, false);
+                StreamedOpenStreetMapParser.parseMap(in, progress, false);
 
-                handler.secondPhase();
+                progress.secondPhase();
 
                 in = new BZip2CompressorInputStream(new FileInputStream(_path));
-                StreamedOpenStreetMapParser.parseMap(in, handler, true);
+                StreamedOpenStreetMapParser.parseMap(in, progress, true);
             } else {
-                StreamedOpenStreetMapParser.parseMap(_path, handler);
+                StreamedOpenStreetMapParser.parseMap(_path, progress);
             }
+            progress.finish();
         } catch (Exception ex) {
             throw new IllegalStateException("error loading OSM from path " + _path, ex);
         }
@@ -63,6 +66,10 @@ public class StreamedFileBasedOpenStreetMapProviderImpl implements OpenStreetMap
     public void setPath(File path) {
         _path = path;
     }
+
+    public File getPath() {
+        return _path;
+    }
     
     public String toString() {
         return "StreamedFileBasedOpenStreetMapProviderImpl(" + _path + ")";
@@ -78,8 +78,11 @@ public class StreamedOpenStreetMapParser {
             if (xmlEvent.isStartElement()) {
                 StartElement element = xmlEvent.asStartElement();
                 if (onlyNodes && element.getName().equals(qNode)) {
+                    long id = Long.parseLong(element.getAttributeByName(qId).getValue());
+                    if (!map.isNodeNeeded(id))
+                        continue;
                     osmNode = new OSMNode();
-                    osmNode.setId(Long.parseLong(element.getAttributeByName(qId).getValue()));
+                    osmNode.setId(id);
                     osmNode.setLat(Double.parseDouble(element.getAttributeByName(qLat).getValue()));
                     osmNode.setLon(Double.parseDouble(element.getAttributeByName(qLon).getValue()));
                     
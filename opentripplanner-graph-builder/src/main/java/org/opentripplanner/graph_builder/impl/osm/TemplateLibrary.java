@@ -6,7 +6,7 @@ import java.util.regex.Pattern;
 import org.opentripplanner.graph_builder.model.osm.OSMWithTags;
 
 public class TemplateLibrary {
-    private static final Matcher matcher = Pattern.compile("\\{(.*?)\\}").matcher("");
+    private static final Pattern keyPattern = Pattern.compile("\\{(.*?)\\}");
 
     public static String generate(String pattern, OSMWithTags way) {
 
@@ -15,7 +15,8 @@ public class TemplateLibrary {
         }
         StringBuffer gen_name = new StringBuffer();
 
-        matcher.reset(pattern);
+        /* ways are named from several threads, so each call needs its own matcher */
+        Matcher matcher = keyPattern.matcher(pattern);
         int lastEnd = 0;
         while (matcher.find()) {
             // add the stuff before the match
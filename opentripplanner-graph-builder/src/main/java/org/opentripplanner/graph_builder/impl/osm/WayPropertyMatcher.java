@@ -0,0 +1,248 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opentripplanner.common.model.P2;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+import org.opentripplanner.graph_builder.model.osm.OSMWithTags;
+
+/**
+ * A compiled form of a {@link WayPropertySet}, which saves scoring every specifier against every
+ * way.
+ * 
+ * Only a few tags of a way can affect which specifiers match it: those whose key is used by some
+ * specifier (or is such a key with :left or :right appended). For those, only the values that
+ * some specifier names matter; any other value scores the same as any other non-null value. So
+ * each way is reduced to a small map of the tags that matter, and results are cached by that
+ * map. Most ways share a handful of tag combinations, so most lookups are cache hits.
+ * 
+ * On a miss, only the specifiers that can score above zero are scored, found through an index by
+ * tag key and value. They are scored by {@link WayPropertySet} in their original order, so the
+ * results are exactly those of scoring every specifier.
+ * 
+ * Instances are immutable apart from the cache and may be used from several threads.
+ */
+public class WayPropertyMatcher {
+
+    /* stop caching beyond this many tag combinations, in case some specifier key has very many values */
+    private static final int MAX_CACHED_TAG_SETS = 100000;
+
+    /* the projected value for a tag whose value no specifier names */
+    private static final String ANY_VALUE = "*";
+
+    /** What a {@link WayPropertySet} yields for one combination of tags. */
+    static class Match {
+        WayProperties properties;
+
+        CreativeNamer creativeNamer;
+
+        List<NoteProperties> notes;
+
+        boolean slopeOverride;
+    }
+
+    private final WayPropertySet set;
+
+    /* what the set looked like when this was compiled, to detect changes */
+    private final List<?>[] lists;
+
+    private final int[] sizes;
+
+    private final WayProperties defaultProperties;
+
+    private final Map<String, Set<String>> valuesByKey = new HashMap<String, Set<String>>();
+
+    private final SpecifierIndex propertiesIndex;
+
+    private final SpecifierIndex creativeNamersIndex;
+
+    private final SpecifierIndex notesIndex;
+
+    private final SpecifierIndex slopeOverridesIndex;
+
+    private final ConcurrentHashMap<Map<String, String>, Match> cache = new ConcurrentHashMap<Map<String, String>, Match>();
+
+    public WayPropertyMatcher(WayPropertySet set) {
+        this.set = set;
+        lists = new List<?>[] { set.getWayProperties(), set.getCreativeNamers(), set.getNotes(),
+                set.getSlopeOverrides() };
+        sizes = new int[lists.length];
+        for (int i = 0; i < lists.length; i++)
+            sizes[i] = lists[i].size();
+        defaultProperties = set.defaultProperties;
+
+        List<OSMSpecifier> specifiers = new ArrayList<OSMSpecifier>();
+        for (WayPropertyPicker picker : set.getWayProperties())
+            specifiers.add(picker.getSpecifier());
+        propertiesIndex = new SpecifierIndex(specifiers);
+
+        specifiers.clear();
+        for (CreativeNamerPicker picker : set.getCreativeNamers())
+            specifiers.add(picker.getSpecifier());
+        creativeNamersIndex = new SpecifierIndex(specifiers);
+
+        specifiers.clear();
+        for (NotePicker picker : set.getNotes())
+            specifiers.add(picker.getSpecifier());
+        notesIndex = new SpecifierIndex(specifiers);
+
+        specifiers.clear();
+        for (SlopeOverridePicker picker : set.getSlopeOverrides())
+            specifiers.add(picker.getSpecifier());
+        slopeOverridesIndex = new SpecifierIndex(specifiers);
+    }
+
+    /**
+     * @return false if pickers have been added to or replaced in the set since this was compiled
+     */
+    public boolean isCurrent() {
+        List<?>[] current = { set.getWayProperties(), set.getCreativeNamers(), set.getNotes(),
+                set.getSlopeOverrides() };
+        for (int i = 0; i < lists.length; i++) {
+            if (current[i] != lists[i] || current[i].size() != sizes[i])
+                return false;
+        }
+        return set.defaultProperties == defaultProperties;
+    }
+
+    Match getMatch(OSMWay way) {
+        Map<String, String> tags = project(way);
+        Match match = cache.get(tags);
+        if (match == null) {
+            match = new Match();
+            match.properties = set.computeDataForWay(way,
+                    select(set.getWayProperties(), propertiesIndex.candidates(tags)));
+            match.creativeNamer = set.computeCreativeNamer(way,
+                    select(set.getCreativeNamers(), creativeNamersIndex.candidates(tags)));
+            match.notes = set.computeNotes(way, select(set.getNotes(), notesIndex.candidates(tags)));
+            match.slopeOverride = set.computeSlopeOverride(way,
+                    select(set.getSlopeOverrides(), slopeOverridesIndex.candidates(tags)));
+            if (cache.size() < MAX_CACHED_TAG_SETS)
+                cache.put(tags, match);
+        }
+        return match;
+    }
+
+    /** The number of distinct tag combinations seen so far. */
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    /** Reduces a way's tags to those that can affect the result. */
+    private Map<String, String> project(OSMWithTags way) {
+        Map<String, String> tags = way.getTags();
+        Map<String, String> projected = new HashMap<String, String>();
+        if (tags == null)
+            return projected;
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            Set<String> values = valuesByKey.get(tag.getKey());
+            if (values == null || tag.getValue() == null)
+                continue;
+            projected.put(tag.getKey(), values.contains(tag.getValue()) ? tag.getValue()
+                    : ANY_VALUE);
+        }
+        return projected;
+    }
+
+    private static <T> List<T> select(List<T> pickers, BitSet candidates) {
+        List<T> selected = new ArrayList<T>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1))
+            selected.add(pickers.get(i));
+        return selected;
+    }
+
+    /**
+     * Maps tag keys and values to the specifiers that can give a way with that tag a non-zero
+     * score, following the rules in {@link OSMSpecifier}: a wildcard matches any value, and a
+     * value like cobblestone:flattened also matches cobblestone. A specifier key also matches
+     * the same key with :left or :right appended.
+     */
+    private class SpecifierIndex {
+
+        /* specifiers without any tags, whose all-tags-match bonus applies to every way */
+        private final BitSet always = new BitSet();
+
+        private final Map<String, BitSet> wildcards = new HashMap<String, BitSet>();
+
+        private final Map<String, Map<String, BitSet>> values = new HashMap<String, Map<String, BitSet>>();
+
+        SpecifierIndex(List<OSMSpecifier> specifiers) {
+            for (int i = 0; i < specifiers.size(); i++) {
+                List<P2<String>> pairs = specifiers.get(i).kvpairs;
+                if (pairs.isEmpty())
+                    always.set(i);
+                for (P2<String> pair : pairs) {
+                    String key = pair.getFirst().toLowerCase();
+                    String value = pair.getSecond().toLowerCase();
+                    for (String tagKey : new String[] { key, key + ":left", key + ":right" }) {
+                        if (!valuesByKey.containsKey(tagKey))
+                            valuesByKey.put(tagKey, new HashSet<String>());
+                        if (value.equals("*")) {
+                            get(wildcards, tagKey).set(i);
+                            continue;
+                        }
+                        addValue(tagKey, value, i);
+                        if (value.contains(":"))
+                            addValue(tagKey, value.split(":", 2)[0], i);
+                    }
+                }
+            }
+        }
+
+        private void addValue(String key, String value, int specifier) {
+            valuesByKey.get(key).add(value);
+            Map<String, BitSet> byValue = values.get(key);
+            if (byValue == null) {
+                byValue = new HashMap<String, BitSet>();
+                values.put(key, byValue);
+            }
+            get(byValue, value).set(specifier);
+        }
+
+        private BitSet get(Map<String, BitSet> map, String key) {
+            BitSet bits = map.get(key);
+            if (bits == null) {
+                bits = new BitSet();
+                map.put(key, bits);
+            }
+            return bits;
+        }
+
+        BitSet candidates(Map<String, String> tags) {
+            BitSet candidates = (BitSet) always.clone();
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                BitSet bits = wildcards.get(tag.getKey());
+                if (bits != null)
+                    candidates.or(bits);
+                Map<String, BitSet> byValue = values.get(tag.getKey());
+                if (byValue != null) {
+                    bits = byValue.get(tag.getValue());
+                    if (bits != null)
+                        candidates.or(bits);
+                }
+            }
+            return candidates;
+        }
+    }
+}
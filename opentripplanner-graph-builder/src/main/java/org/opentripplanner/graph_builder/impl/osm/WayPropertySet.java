@@ -40,6 +40,9 @@ public class WayPropertySet {
 
 	public WayProperties defaultProperties;
 
+	/* the pickers above, compiled; replaced when they change */
+	private volatile WayPropertyMatcher matcher;
+
 	public WayPropertySet() {
 		/* sensible defaults */
 		defaultProperties = new WayProperties();
@@ -51,14 +54,36 @@ public class WayPropertySet {
 		notes = new ArrayList<NotePicker>();
 	}
 
+	/**
+	 * Returns the matcher for the current pickers, compiling it if pickers have been added or
+	 * replaced. Pickers and their specifiers should not be modified in place once the set is in
+	 * use.
+	 */
+	private WayPropertyMatcher getMatcher() {
+		WayPropertyMatcher current = matcher;
+		if (current == null || !current.isCurrent()) {
+			current = new WayPropertyMatcher(this);
+			matcher = current;
+		}
+		return current;
+	}
+
 	public WayProperties getDataForWay(OSMWay way) {
+		return getMatcher().getMatch(way).properties.clone();
+	}
+
+	/**
+	 * Scores the given pickers against a way. Pickers not listed must score zero for this way,
+	 * so {@link WayPropertyMatcher} can pass just the candidates it finds in its index.
+	 */
+	WayProperties computeDataForWay(OSMWay way, List<WayPropertyPicker> pickers) {
 		WayProperties leftResult = defaultProperties;
 		WayProperties rightResult = defaultProperties;
 		int bestLeftScore = 0;
 		int bestRightScore = 0;
 		List<WayProperties> leftMixins = new ArrayList<WayProperties>();
 		List<WayProperties> rightMixins = new ArrayList<WayProperties>();
-		for (WayPropertyPicker picker : getWayProperties()) {
+		for (WayPropertyPicker picker : pickers) {
 			OSMSpecifier specifier = picker.getSpecifier();
 			WayProperties wayProperties = picker.getProperties();
 			P2<Integer> score = specifier.matchScores(way);
@@ -136,9 +161,17 @@ public class WayPropertySet {
 	}
 
 	public String getCreativeNameForWay(OSMWay way) {
+		CreativeNamer namer = getMatcher().getMatch(way).creativeNamer;
+		if (namer == null) {
+			return null;
+		}
+		return namer.generateCreativeName(way);
+	}
+
+	CreativeNamer computeCreativeNamer(OSMWay way, List<CreativeNamerPicker> pickers) {
 		CreativeNamer bestNamer = null;
 		int bestScore = 0;
-		for (CreativeNamerPicker picker : creativeNamers) {
+		for (CreativeNamerPicker picker : pickers) {
 			OSMSpecifier specifier = picker.getSpecifier();
 			CreativeNamer namer = picker.getNamer();
 			int score = specifier.matchScore(way);
@@ -147,21 +180,14 @@ public class WayPropertySet {
 				bestScore = score;
 			}
 		}
-		if (bestNamer == null) {
-			return null;
-		}
-		return bestNamer.generateCreativeName(way);
+		return bestNamer;
 	}
 
 	public Set<Alert> getNoteForWay(OSMWay way) {
 		HashSet<Alert> out = new HashSet<Alert>();
-		for (NotePicker picker : notes) {
-			OSMSpecifier specifier = picker.getSpecifier();
-			NoteProperties noteProperties = picker.getNoteProperties();
-			if (specifier.matchScore(way) > 0) {
-				out.add(Alert.createSimpleAlerts(noteProperties.generateNote(
-						way).intern()));
-			}
+		for (NoteProperties noteProperties : getMatcher().getMatch(way).notes) {
+			out.add(Alert.createSimpleAlerts(noteProperties.generateNote(
+					way).intern()));
 		}
 		if (out.size() == 0) {
 			return null;
@@ -169,10 +195,25 @@ public class WayPropertySet {
 		return out;
 	}
 
+	List<NoteProperties> computeNotes(OSMWay way, List<NotePicker> pickers) {
+		List<NoteProperties> out = new ArrayList<NoteProperties>();
+		for (NotePicker picker : pickers) {
+			OSMSpecifier specifier = picker.getSpecifier();
+			if (specifier.matchScore(way) > 0) {
+				out.add(picker.getNoteProperties());
+			}
+		}
+		return out;
+	}
+
 	public boolean getSlopeOverride(OSMWay way) {
+		return getMatcher().getMatch(way).slopeOverride;
+	}
+
+	boolean computeSlopeOverride(OSMWay way, List<SlopeOverridePicker> pickers) {
 		boolean result = false;
 		int bestScore = 0;
-		for (SlopeOverridePicker picker : slopeOverrides) {
+		for (SlopeOverridePicker picker : pickers) {
 			OSMSpecifier specifier = picker.getSpecifier();
 			int score = specifier.matchScore(way);
 			if (score > bestScore) {
@@ -212,6 +253,10 @@ public class WayPropertySet {
 		return creativeNamers;
 	}
 
+	public List<NotePicker> getNotes() {
+		return notes;
+	}
+
 	public void addNote(OSMSpecifier osmSpecifier, NoteProperties properties) {
 		notes.add(new NotePicker(osmSpecifier, properties));
 	}
@@ -14,15 +14,24 @@
 package org.opentripplanner.graph_builder.impl.reach;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opentripplanner.common.IterableLibrary;
 import org.opentripplanner.customize.ClassCustomizer;
 import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.graph_builder.services.GraphBuilderWithDependencies;
 import org.opentripplanner.routing.algorithm.GenericDijkstra;
 import org.opentripplanner.routing.core.DirectEdge;
 import org.opentripplanner.routing.core.Edge;
@@ -50,7 +59,7 @@ import org.slf4j.LoggerFactory;
  * {@link GraphBuilder} plugin that computes the reach of every street node
  * 
  */
-public class ReachComputerGraphBuilderImpl implements GraphBuilder {
+public class ReachComputerGraphBuilderImpl implements GraphBuilderWithDependencies {
 
     private double initialStreetEpsilon = 1200;
 
@@ -60,6 +69,8 @@ public class ReachComputerGraphBuilderImpl implements GraphBuilder {
 
     private int edgeTreesVertexLimit = 200;
 
+    private int threads = Runtime.getRuntime().availableProcessors();
+
     private static Logger log = LoggerFactory.getLogger(ReachComputerGraphBuilderImpl.class);
 
     double epsilon;
@@ -83,6 +94,28 @@ public class ReachComputerGraphBuilderImpl implements GraphBuilder {
         this.streetEpsilonMultiplier = multiplier;
     }
 
+    /** The number of threads growing partial trees, by default the number of processors */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public List<String> provides() {
+        return Arrays.asList("reach");
+    }
+
+    public List<String> getPrerequisites() {
+        return Arrays.asList("streets");
+    }
+
+    /* street edges are replaced by edges with reach */
+    public boolean changesGraphStructure() {
+        return true;
+    }
+
+    @Override
+    public void prepare() {
+    }
+
     @Override
     public void buildGraph(Graph graph) {
         TraverseOptions options = new TraverseOptions(TraverseMode.WALK);
@@ -330,86 +363,38 @@ public class ReachComputerGraphBuilderImpl implements GraphBuilder {
     }
 
     Graph partialTreesPhase(final Graph graph, Collection<Vertex> streetVertices,
-            final TraverseOptions options, boolean transitStops) {
+            final TraverseOptions options, final boolean transitStops) {
         log.info("Partial trees phase at epsilon = " + epsilon);
 
-        GenericDijkstra dijkstra = new GenericDijkstra(graph, options);
-        if (!transitStops) {
-            dijkstra.setSearchTerminationStrategy(new PartialTreesPhaseTerminationCondition());
+        /*
+         * The searches from different vertices are independent, so they are dealt out to the
+         * threads round robin, each thread collecting its own reach estimates
+         */
+        List<Vertex> vertices = new ArrayList<Vertex>(streetVertices);
+        int nThreads = Math.max(1, Math.min(threads, vertices.size()));
+        AtomicInteger progress = new AtomicInteger();
+        List<Callable<HashMap<Edge, Double>>> tasks = new ArrayList<Callable<HashMap<Edge, Double>>>();
+        for (int t = 0; t < nThreads; t++) {
+            tasks.add(new PartialTreesTask(graph, vertices, t, nThreads, options, transitStops,
+                    progress));
         }
-        dijkstra.setShortestPathTreeFactory(new ShortestPathTreeFactory() {
-            @Override
-            public ShortestPathTree create() {
-                ReachMiniSPT spt = new ReachMiniSPT(epsilon);
-                return spt;
-            }
-        });
-
-        dijkstra.setPriorityQueueFactory(new OTPPriorityQueueFactory() {
-            @SuppressWarnings("unchecked")
-            public OTPPriorityQueue<State> create(int maxSize) {
-                int size = (int) epsilon;
-                int graphSize = graph.getVertices().size();
-                if (graphSize < size) {
-                    size = graphSize;
-                }
-                OTPPriorityQueue<State> pq = new BinHeap<State>(size);
-                return pq;
-            }
-        });
-
         HashMap<Edge, Double> reachEstimateForEdge = new HashMap<Edge, Double>();
-        int i = 0;
-        long dijkstraTime = 0;
-        long heightTime = 0;
-        for (final Vertex v : streetVertices) {
-            i += 1;
-            final ReachState initialState = new ReachState(v, options);
-            long startTime = System.currentTimeMillis();
-
-            ReachMiniSPT spt = (ReachMiniSPT) dijkstra.getShortestPathTree(initialState);
-            spt.computeChildren();
-
-            long endTime = System.currentTimeMillis();
-            dijkstraTime += endTime - startTime;
-
-            if (i % 100 == 0) {
-                log.info("partial trees: " + i + " / " + streetVertices.size() + " dij time "
-                        + (dijkstraTime / 1000.0) + " height time " + (heightTime / 1000.0));
-                dijkstraTime = 0;
-                heightTime = 0;
-            }
-
-            /*
-             * find all reaches less than epsilon
-             */
-
-            for (ReachState state : spt.getInnerCircle()) {
-                for (ReachState child : state.getChildren()) {
-
-                    Edge edge = child.getBackEdge();
-                    if (edge == null) {
-                        continue;
-                    }
-
-                    Double edgeInPenalty = inPenalty.get(v);
-                    if (edgeInPenalty == null) {
-                        edgeInPenalty = 0.0;
-                    }
-
-                    double depth = child.getWeight() + edgeInPenalty;
-                    startTime = System.currentTimeMillis();
-                    double height = spt.getHeight(child, outPenalty) + child.getWeightDelta();
-                    endTime = System.currentTimeMillis();
-                    heightTime += endTime - startTime;
-                    double reach = depth;
-                    if (reach > height) {
-                        reach = height;
-                    }
-
-                    MapUtils.addToMaxMap(reachEstimateForEdge, edge, reach);
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            for (Future<HashMap<Edge, Double>> future : executor.invokeAll(tasks)) {
+                for (Map.Entry<Edge, Double> entry : future.get().entrySet()) {
+                    MapUtils.addToMaxMap(reachEstimateForEdge, entry.getKey(), entry.getValue());
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while computing reach");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("error computing reach", e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
 
         // eliminate edges which have reach less than epsilon
@@ -438,6 +423,106 @@ public class ReachComputerGraphBuilderImpl implements GraphBuilder {
         return newGraph;
     }
 
+    /**
+     * Grows the partial shortest path trees from every nThreads-th vertex, starting at the
+     * offset, and returns the largest reach estimate seen for each edge. The penalty maps are
+     * only read while the tasks run.
+     */
+    private class PartialTreesTask implements Callable<HashMap<Edge, Double>> {
+
+        private final Graph graph;
+
+        private final List<Vertex> vertices;
+
+        private final int offset, stride;
+
+        private final TraverseOptions options;
+
+        private final boolean transitStops;
+
+        private final AtomicInteger progress;
+
+        PartialTreesTask(Graph graph, List<Vertex> vertices, int offset, int stride,
+                TraverseOptions options, boolean transitStops, AtomicInteger progress) {
+            this.graph = graph;
+            this.vertices = vertices;
+            this.offset = offset;
+            this.stride = stride;
+            this.options = options;
+            this.transitStops = transitStops;
+            this.progress = progress;
+        }
+
+        public HashMap<Edge, Double> call() {
+            GenericDijkstra dijkstra = new GenericDijkstra(graph, options);
+            if (!transitStops) {
+                dijkstra.setSearchTerminationStrategy(new PartialTreesPhaseTerminationCondition());
+            }
+            dijkstra.setShortestPathTreeFactory(new ShortestPathTreeFactory() {
+                @Override
+                public ShortestPathTree create() {
+                    ReachMiniSPT spt = new ReachMiniSPT(epsilon);
+                    return spt;
+                }
+            });
+
+            dijkstra.setPriorityQueueFactory(new OTPPriorityQueueFactory() {
+                @SuppressWarnings("unchecked")
+                public OTPPriorityQueue<State> create(int maxSize) {
+                    int size = (int) epsilon;
+                    int graphSize = graph.getVertices().size();
+                    if (graphSize < size) {
+                        size = graphSize;
+                    }
+                    OTPPriorityQueue<State> pq = new BinHeap<State>(size);
+                    return pq;
+                }
+            });
+
+            HashMap<Edge, Double> reachEstimateForEdge = new HashMap<Edge, Double>();
+            for (int i = offset; i < vertices.size(); i += stride) {
+                Vertex v = vertices.get(i);
+                final ReachState initialState = new ReachState(v, options);
+
+                ReachMiniSPT spt = (ReachMiniSPT) dijkstra.getShortestPathTree(initialState);
+                spt.computeChildren();
+
+                int done = progress.incrementAndGet();
+                if (done % 100 == 0) {
+                    log.info("partial trees: " + done + " / " + vertices.size());
+                }
+
+                /*
+                 * find all reaches less than epsilon
+                 */
+
+                Double edgeInPenalty = inPenalty.get(v);
+                if (edgeInPenalty == null) {
+                    edgeInPenalty = 0.0;
+                }
+                for (ReachState state : spt.getInnerCircle()) {
+                    for (ReachState child : state.getChildren()) {
+
+                        Edge edge = child.getBackEdge();
+                        if (edge == null) {
+                            continue;
+                        }
+
+                        double depth = child.getWeight() + edgeInPenalty;
+                        double height = spt.getHeight(child, outPenalty) + child.getWeightDelta();
+                        double reach = depth;
+                        if (reach > height) {
+                            reach = height;
+                        }
+
+                        MapUtils.addToMaxMap(reachEstimateForEdge, edge, reach);
+                    }
+                }
+            }
+            return reachEstimateForEdge;
+        }
+    }
+
     private int processEdge(Graph newGraph, EdgeWithReach edge,
             HashMap<Edge, Double> reachEstimateForEdge, boolean transitStops) {
         Double reach = reachEstimateForEdge.get(edge);
@@ -73,4 +73,8 @@ public class OSMMap implements OpenStreetMapContentHandler {
 
   public void secondPhase() {
   }
+
+  public boolean isNodeNeeded(long id) {
+    return true;
+  }
 }
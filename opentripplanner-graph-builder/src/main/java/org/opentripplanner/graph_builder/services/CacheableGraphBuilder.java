@@ -0,0 +1,30 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.services;
+
+/**
+ * A graph builder whose output depends only on its prerequisites and on inputs it can describe,
+ * so that {@link org.opentripplanner.graph_builder.GraphBuilderTask} can keep the graph it builds
+ * in a cache and reuse it while those inputs are unchanged. Its output must be held in vertices
+ * and edges; services put on the graph are not cached.
+ */
+public interface CacheableGraphBuilder extends GraphBuilderWithDependencies {
+
+    /**
+     * @return a digest of the content of the builder's input files and of its configuration (see
+     *         {@link org.opentripplanner.graph_builder.Fingerprint}), or null if its output cannot
+     *         be reused, for instance because its input is downloaded
+     */
+    public String getFingerprint();
+}
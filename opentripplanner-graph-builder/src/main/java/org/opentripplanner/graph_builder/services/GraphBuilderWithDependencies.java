@@ -0,0 +1,49 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.services;
+
+import java.util.List;
+
+/**
+ * A graph builder that declares what it needs from and adds to the graph, so that
+ * {@link org.opentripplanner.graph_builder.GraphBuilderTask} can run it alongside other builders.
+ * Builders that only implement {@link GraphBuilder} are run alone, after every builder listed
+ * before them.
+ *
+ * Inputs and outputs are free-form names such as "streets" or "transit"; two builders conflict
+ * when one provides something the other provides or requires. Non-conflicting builders that do
+ * not change the graph structure may run at the same time, so their buildGraph must only touch
+ * the parts of the graph they declare (and thread-safe graph state such as the service map).
+ */
+public interface GraphBuilderWithDependencies extends GraphBuilder {
+
+    /** @return the names of what this builder adds to the graph */
+    public List<String> provides();
+
+    /** @return the names of what must be in the graph before this builder runs */
+    public List<String> getPrerequisites();
+
+    /**
+     * @return true if buildGraph adds or removes vertices or edges, in which case it never runs
+     *         at the same time as another buildGraph
+     */
+    public boolean changesGraphStructure();
+
+    /**
+     * Do the work that does not need the graph, such as reading input files. This may be called
+     * from another thread while earlier builders are still building the graph; if it has not been
+     * called, buildGraph calls it itself.
+     */
+    public void prepare();
+}
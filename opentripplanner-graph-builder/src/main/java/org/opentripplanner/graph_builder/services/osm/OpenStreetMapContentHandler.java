@@ -32,6 +32,15 @@ public interface OpenStreetMapContentHandler {
    */
   public void secondPhase();
 
+  /**
+   * Called during the second stage before a node is built, so that parsers can skip the nodes
+   * the handler has no use for. It may be called from several threads at once, while no ways or
+   * relations are being added.
+   * 
+   * @return true if {@link #addNode(OSMNode)} should be called for this node
+   */
+  public boolean isNodeNeeded(long id);
+
   /**
    * Stores a node.
    */
@@ -0,0 +1,278 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.graph_builder.services.CacheableGraphBuilder;
+import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.graph_builder.services.GraphBuilderWithDependencies;
+import org.opentripplanner.routing.algorithm.strategies.WeightTable;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.TransitStop;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.TransferEdge;
+
+public class TestGraphBuilderCache extends TestCase {
+
+    private static final List<GraphBuilder> NONE = Collections.emptyList();
+
+    private File directory;
+
+    public void setUp() throws IOException {
+        directory = File.createTempFile("graph-builder-cache", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    public void tearDown() {
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    public void testStreetsReused() {
+        StreetBuilder streets = new StreetBuilder("osm-1");
+        TransitBuilder transit = new TransitBuilder();
+        List<GraphBuilder> builders = Arrays.<GraphBuilder> asList(transit, streets);
+
+        GraphBuilderCache cache = new GraphBuilderCache(directory);
+        Graph graph = new Graph();
+        assertEquals(Arrays.<GraphBuilder> asList(transit), cache.buildStreets(builders, graph, 2));
+        assertEquals(1, streets.built);
+        assertEquals(Collections.singleton("streets"), cache.getProvided());
+        assertTrue(cache.getReusedStages().isEmpty());
+        assertNotNull(graph.getVertex("a"));
+
+        cache = new GraphBuilderCache(directory);
+        graph = new Graph();
+        assertEquals(Arrays.<GraphBuilder> asList(transit), cache.buildStreets(builders, graph, 2));
+        assertEquals(1, streets.built);
+        assertEquals(Arrays.asList("StreetBuilder"), cache.getReusedStages());
+        assertNotNull(graph.getVertex("a"));
+        assertNotNull(graph.getVertex("b"));
+        assertEquals(1, graph.getDegreeOut(graph.getVertex("a")));
+    }
+
+    public void testChangedInputRebuilds() {
+        StreetBuilder streets = new StreetBuilder("osm-1");
+        new GraphBuilderCache(directory).buildStreets(
+                Arrays.<GraphBuilder> asList(streets), new Graph(), 2);
+        streets.fingerprint = "osm-2";
+        new GraphBuilderCache(directory).buildStreets(
+                Arrays.<GraphBuilder> asList(streets), new Graph(), 2);
+        assertEquals(2, streets.built);
+        /* only the latest streets are kept */
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    public void testNoFingerprintNotCached() {
+        StreetBuilder streets = new StreetBuilder(null);
+        List<GraphBuilder> builders = Arrays.<GraphBuilder> asList(streets);
+        assertSame(builders, new GraphBuilderCache(directory).buildStreets(builders, new Graph(), 2));
+        assertEquals(0, streets.built);
+    }
+
+    public void testConflictingBuilderBeforeNotCached() {
+        StreetBuilder streets = new StreetBuilder("osm-1");
+        GraphBuilder plain = new GraphBuilder() {
+            public void buildGraph(Graph graph) {
+            }
+        };
+        List<GraphBuilder> builders = Arrays.<GraphBuilder> asList(plain, streets);
+        assertSame(builders, new GraphBuilderCache(directory).buildStreets(builders, new Graph(), 2));
+        assertEquals(0, streets.built);
+    }
+
+    public void testHierarchiesReused() throws IOException {
+        Graph graph = new Graph();
+        new StreetBuilder("osm-1").buildGraph(graph);
+        GraphBuilderCache cache = new GraphBuilderCache(directory);
+        String key = cache.getHierarchiesKey(graph, NONE, null, 1.0, false);
+        assertEquals(key, cache.getHierarchiesKey(graph, NONE, null, 1.0, false));
+        assertFalse(key.equals(cache.getHierarchiesKey(graph, NONE, null, 0.5, false)));
+
+        File graphPath = new File(directory, "Graph.obj");
+        assertFalse(cache.restoreHierarchies(key, graphPath));
+        FileOutputStream out = new FileOutputStream(graphPath);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        cache.saveHierarchies(key, graphPath);
+        graphPath.delete();
+
+        assertTrue(cache.restoreHierarchies(key, graphPath));
+        assertEquals(3, graphPath.length());
+        assertEquals(Arrays.asList("ContractionHierarchySet"), cache.getReusedStages());
+    }
+
+    public void testHierarchiesKeyWithWeightTable() {
+        GraphBuilderCache cache = new GraphBuilderCache(directory);
+        /* the same graph built twice has stops with different hash codes */
+        String key = cache.getHierarchiesKey(makeTransitGraph(true), NONE, null, 1.0, false);
+        assertEquals(key, cache.getHierarchiesKey(makeTransitGraph(true), NONE, null, 1.0, false));
+        assertFalse(key.equals(cache.getHierarchiesKey(makeTransitGraph(false), NONE, null, 1.0, false)));
+    }
+
+    public void testHierarchiesKeyFromFingerprints() {
+        StreetBuilder streets = new StreetBuilder("osm-1");
+        StreetBuilder transit = new StreetBuilder("gtfs-1") {
+            public List<String> getPrerequisites() {
+                return Arrays.asList("streets");
+            }
+
+            public List<String> provides() {
+                return Arrays.asList("transit");
+            }
+        };
+        List<GraphBuilder> builders = Arrays.<GraphBuilder> asList(streets);
+        List<GraphBuilder> after = Arrays.<GraphBuilder> asList(transit);
+
+        GraphBuilderCache cache = new GraphBuilderCache(directory);
+        Graph graph = new Graph();
+        cache.buildStreets(builders, graph, 2);
+        String key = cache.getHierarchiesKey(graph, after, null, 1.0, false);
+        assertNotNull(key);
+
+        /* the graph is not digested when every builder has a fingerprint */
+        graph.addVertex("c", 2, 0);
+        assertEquals(key, cache.getHierarchiesKey(graph, after, null, 1.0, false));
+
+        transit.fingerprint = "gtfs-2";
+        assertFalse(key.equals(cache.getHierarchiesKey(graph, after, null, 1.0, false)));
+        transit.fingerprint = "gtfs-1";
+
+        /* the same streets read back from the cache give the same key */
+        cache = new GraphBuilderCache(directory);
+        graph = new Graph();
+        cache.buildStreets(builders, graph, 2);
+        assertEquals(key, cache.getHierarchiesKey(graph, after, null, 1.0, false));
+
+        streets.fingerprint = "osm-2";
+        cache = new GraphBuilderCache(directory);
+        cache.buildStreets(builders, new Graph(), 2);
+        assertFalse(key.equals(cache.getHierarchiesKey(graph, after, null, 1.0, false)));
+    }
+
+    public void testHierarchiesKeyWithoutStableName() {
+        Graph graph = new Graph();
+        new StreetBuilder("osm-1").buildGraph(graph);
+        OpaqueService service = new OpaqueService();
+        service.opaque.add(new Opaque());
+        service.opaque.add(new Opaque());
+        graph.putService(OpaqueService.class, service);
+        assertNull(new GraphBuilderCache(directory).getHierarchiesKey(graph, NONE, null, 1.0,
+                false));
+    }
+
+    private Graph makeTransitGraph(boolean weightTable) {
+        Graph graph = new Graph();
+        TransitStop[] stops = new TransitStop[20];
+        for (int i = 0; i < stops.length; ++i) {
+            stops[i] = new TransitStop("stop " + i, 0.001 * i, 0, "stop " + i, null, null);
+            graph.addVertex(stops[i]);
+        }
+        for (int i = 0; i < stops.length - 1; ++i) {
+            graph.addEdge(new TransferEdge(stops[i], stops[i + 1], 100, 100));
+            graph.addEdge(new TransferEdge(stops[i + 1], stops[i], 100, 100));
+        }
+        if (weightTable) {
+            WeightTable wt = new WeightTable(graph);
+            wt.setThreads(1);
+            wt.buildTable();
+            graph.putService(WeightTable.class, wt);
+        }
+        return graph;
+    }
+
+    private static class StreetBuilder implements CacheableGraphBuilder {
+
+        String fingerprint;
+
+        int built;
+
+        StreetBuilder(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        public void buildGraph(Graph graph) {
+            built++;
+            Vertex a = graph.addVertex("a", 0, 0);
+            Vertex b = graph.addVertex("b", 1, 0);
+            graph.addEdge(new FreeEdge(a, b));
+        }
+
+        public List<String> provides() {
+            return Arrays.asList("streets");
+        }
+
+        public List<String> getPrerequisites() {
+            return Collections.emptyList();
+        }
+
+        public boolean changesGraphStructure() {
+            return true;
+        }
+
+        public void prepare() {
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+    }
+
+    /* can only be told apart by identity */
+    private static class Opaque implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class OpaqueService implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        HashSet<Opaque> opaque = new HashSet<Opaque>();
+    }
+
+    private static class TransitBuilder implements GraphBuilderWithDependencies {
+
+        public void buildGraph(Graph graph) {
+        }
+
+        public List<String> provides() {
+            return Arrays.asList("transit");
+        }
+
+        public List<String> getPrerequisites() {
+            return Collections.emptyList();
+        }
+
+        public boolean changesGraphStructure() {
+            return true;
+        }
+
+        public void prepare() {
+        }
+    }
+}
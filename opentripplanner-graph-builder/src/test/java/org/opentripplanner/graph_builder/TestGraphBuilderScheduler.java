@@ -0,0 +1,182 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.graph_builder.services.GraphBuilderWithDependencies;
+import org.opentripplanner.routing.core.Graph;
+
+public class TestGraphBuilderScheduler extends TestCase {
+
+    private List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+    public void testPlainBuildersRunInOrder() {
+        List<GraphBuilder> builders = new ArrayList<GraphBuilder>();
+        for (int i = 0; i < 5; i++)
+            builders.add(new PlainBuilder("b" + i));
+        new GraphBuilderScheduler(builders, 4).run(new Graph());
+        assertEquals(Arrays.asList("b0", "b1", "b2", "b3", "b4"), log);
+    }
+
+    public void testIndependentBuildersOverlap() {
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch second = new CountDownLatch(1);
+        List<GraphBuilder> builders = new ArrayList<GraphBuilder>();
+        builders.add(new DeclaredBuilder("streets", true, "streets"));
+        builders.add(new DeclaredBuilder("a", false, "a", "streets") {
+            public void buildGraph(Graph graph) {
+                first.countDown();
+                await(second);
+                super.buildGraph(graph);
+            }
+        });
+        builders.add(new DeclaredBuilder("b", false, "b", "streets") {
+            public void buildGraph(Graph graph) {
+                second.countDown();
+                await(first);
+                super.buildGraph(graph);
+            }
+        });
+        builders.add(new PlainBuilder("last"));
+        new GraphBuilderScheduler(builders, 2).run(new Graph());
+        assertEquals("streets", log.get(0));
+        assertEquals("last", log.get(3));
+    }
+
+    public void testConflictingBuildersWait() {
+        List<GraphBuilder> builders = new ArrayList<GraphBuilder>();
+        builders.add(new DeclaredBuilder("slow", false, "x") {
+            public void buildGraph(Graph graph) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.buildGraph(graph);
+            }
+        });
+        builders.add(new DeclaredBuilder("reader", false, "y", "x"));
+        new GraphBuilderScheduler(builders, 2).run(new Graph());
+        assertEquals(Arrays.asList("slow", "reader"), log);
+    }
+
+    public void testPrepareRunsEarly() {
+        final CountDownLatch prepared = new CountDownLatch(1);
+        List<GraphBuilder> builders = new ArrayList<GraphBuilder>();
+        builders.add(new PlainBuilder("first") {
+            public void buildGraph(Graph graph) {
+                /* the next builder reads its input while this one builds */
+                await(prepared);
+                super.buildGraph(graph);
+            }
+        });
+        builders.add(new DeclaredBuilder("second", true, "second") {
+            public void prepare() {
+                log.add("second prepared");
+                prepared.countDown();
+            }
+        });
+        new GraphBuilderScheduler(builders, 2).run(new Graph());
+        assertEquals(Arrays.asList("second prepared", "first", "second"), log);
+    }
+
+    public void testMissingPrerequisite() {
+        List<GraphBuilder> builders = new ArrayList<GraphBuilder>();
+        builders.add(new DeclaredBuilder("transit", true, "transit"));
+        builders.add(new DeclaredBuilder("linker", true, "linking", "streets", "transit"));
+        try {
+            new GraphBuilderScheduler(builders, 2).run(new Graph());
+            fail("missing prerequisite not detected");
+        } catch (IllegalStateException e) {
+            assertTrue(log.isEmpty());
+        }
+    }
+
+    public void testFailurePropagates() {
+        List<GraphBuilder> builders = new ArrayList<GraphBuilder>();
+        builders.add(new PlainBuilder("broken") {
+            public void buildGraph(Graph graph) {
+                throw new UnsupportedOperationException();
+            }
+        });
+        builders.add(new PlainBuilder("after"));
+        try {
+            new GraphBuilderScheduler(builders, 2).run(new Graph());
+            fail("builder failure not propagated");
+        } catch (UnsupportedOperationException e) {
+            assertTrue(log.isEmpty());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue("builders did not overlap", latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private class PlainBuilder implements GraphBuilder {
+
+        final String name;
+
+        PlainBuilder(String name) {
+            this.name = name;
+        }
+
+        public void buildGraph(Graph graph) {
+            log.add(name);
+        }
+    }
+
+    private class DeclaredBuilder extends PlainBuilder implements GraphBuilderWithDependencies {
+
+        final boolean structural;
+
+        final String provides;
+
+        final List<String> prerequisites;
+
+        DeclaredBuilder(String name, boolean structural, String provides, String... prerequisites) {
+            super(name);
+            this.structural = structural;
+            this.provides = provides;
+            this.prerequisites = Arrays.asList(prerequisites);
+        }
+
+        public List<String> provides() {
+            return Arrays.asList(provides);
+        }
+
+        public List<String> getPrerequisites() {
+            return prerequisites;
+        }
+
+        public boolean changesGraphStructure() {
+            return structural;
+        }
+
+        public void prepare() {
+        }
+    }
+}
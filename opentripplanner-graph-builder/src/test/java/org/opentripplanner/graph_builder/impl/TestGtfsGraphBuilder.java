@@ -0,0 +1,78 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.opentripplanner.graph_builder.model.GtfsBundle;
+import org.opentripplanner.graph_builder.model.GtfsBundles;
+import org.opentripplanner.routing.core.Graph;
+
+public class TestGtfsGraphBuilder extends TestCase {
+
+    public void testConcurrentReadMatchesSerialRead() {
+        GtfsRelationalDaoImpl serial = read(1, 1000000);
+        /* a single chunk per feed makes the later feed wait for the earlier one */
+        GtfsRelationalDaoImpl concurrent = read(4, 0);
+
+        assertEquals(2, concurrent.getAllAgencies().size());
+        assertEquals(describe(serial), describe(concurrent));
+        assertEquals(serial.getAllTrips().size(), concurrent.getAllTrips().size());
+        assertEquals(serial.getAllStops().size(), concurrent.getAllStops().size());
+
+        for (Trip trip : concurrent.getAllTrips()) {
+            Agency agency = trip.getRoute().getAgency();
+            assertSame(agency, concurrent.getAgencyForId(agency.getId()));
+        }
+    }
+
+    private GtfsRelationalDaoImpl read(int threads, int maxBufferedEntities) {
+        GtfsBundle agency = new GtfsBundle();
+        agency.setPath(new File("../opentripplanner-routing/src/test/resources/testagency.zip"));
+        GtfsBundle caltrain = new GtfsBundle();
+        caltrain.setPath(new File("../opentripplanner-routing/src/test/resources/caltrain_gtfs.zip"));
+        GtfsBundles bundles = new GtfsBundles();
+        bundles.setBundles(Arrays.asList(agency, caltrain));
+
+        GtfsRelationalDaoImpl dao = new GtfsRelationalDaoImpl();
+        GtfsGraphBuilderImpl builder = new GtfsGraphBuilderImpl();
+        builder.setGtfsBundles(bundles);
+        builder.setDao(dao);
+        builder.setThreads(threads);
+        builder.setMaxBufferedEntities(maxBufferedEntities);
+        builder.buildGraph(new Graph());
+        return dao;
+    }
+
+    /* stop times are keyed by an id the DAO assigns in the order they are saved */
+    private List<String> describe(GtfsRelationalDaoImpl dao) {
+        List<String> stopTimes = new ArrayList<String>();
+        for (StopTime stopTime : dao.getAllStopTimes()) {
+            stopTimes.add(stopTime.getId() + " " + stopTime.getTrip().getId() + " "
+                    + stopTime.getStop().getId() + " " + stopTime.getStopSequence() + " "
+                    + stopTime.getArrivalTime());
+        }
+        return stopTimes;
+    }
+}
@@ -0,0 +1,53 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.ned;
+
+import java.nio.FloatBuffer;
+
+import junit.framework.TestCase;
+
+public class TestElevationGrid extends TestCase {
+
+    /* 3x2 cells of 0.1 degrees starting at (10, 50), row 0 is the northern one */
+    private ElevationGrid grid = new ElevationGrid(10, 50, 0.1, 0.1, 3, 2,
+            FloatBuffer.wrap(new float[] { 100, 110, 130, 200, 210, 230 }));
+
+    public void testCellCenters() {
+        assertEquals(100, grid.getElevation(10.05, 49.95), 1e-6);
+        assertEquals(130, grid.getElevation(10.25, 49.95), 1e-6);
+        assertEquals(210, grid.getElevation(10.15, 49.85), 1e-6);
+    }
+
+    public void testBilinear() {
+        assertEquals(105, grid.getElevation(10.10, 49.95), 1e-6);
+        assertEquals(150, grid.getElevation(10.05, 49.90), 1e-6);
+        assertEquals(155, grid.getElevation(10.10, 49.90), 1e-6);
+        assertEquals(195, grid.getElevation(10.20, 49.875), 1e-6);
+    }
+
+    public void testEdges() {
+        /* within half a cell of the edge the nearest cells are used */
+        assertEquals(100, grid.getElevation(10.0, 50.0), 1e-6);
+        assertEquals(230, grid.getElevation(10.3, 49.8), 1e-6);
+        assertEquals(150, grid.getElevation(10.0, 49.9), 1e-6);
+    }
+
+    public void testOutside() {
+        assertTrue(Double.isNaN(grid.getElevation(9.99, 49.9)));
+        assertTrue(Double.isNaN(grid.getElevation(10.1, 50.01)));
+        assertTrue(Double.isNaN(grid.getElevation(10.31, 49.9)));
+        assertTrue(Double.isNaN(grid.getElevation(10.1, 49.79)));
+    }
+}
@@ -0,0 +1,366 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
+import org.opentripplanner.graph_builder.model.osm.OSMRelation;
+import org.opentripplanner.graph_builder.model.osm.OSMRelationMember;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+import org.opentripplanner.graph_builder.model.osm.OSMWithTags;
+import org.opentripplanner.graph_builder.services.osm.OpenStreetMapContentHandler;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Converts the XML test extract to PBF with a minimal writer and checks that the binary parser
+ * reads back exactly what the XML parser read, in the same order.
+ */
+public class BinaryOpenStreetMapParserTest {
+
+    /* small blocks, so that the file has many of them to decode in parallel */
+    private static final int BLOCK_SIZE = 500;
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Recorder xml = new Recorder();
+        InputStream in = new GZIPInputStream(getClass().getResourceAsStream("map.osm.gz"));
+        StreamedOpenStreetMapParser.parseMap(in, xml, false);
+        in = new GZIPInputStream(getClass().getResourceAsStream("map.osm.gz"));
+        StreamedOpenStreetMapParser.parseMap(in, xml, true);
+        assertEquals(7197, xml.nodes.size());
+        assertEquals(1511, xml.ways.size());
+        assertEquals(31, xml.relations.size());
+
+        byte[] pbf = writePbf(xml);
+
+        BinaryOpenStreetMapParser parser = new BinaryOpenStreetMapParser();
+        parser.setThreads(4);
+        Recorder binary = new Recorder();
+        parser.parseMap(new ByteArrayInputStream(pbf), binary, false);
+        assertEquals(0, binary.nodes.size());
+        parser.parseMap(new ByteArrayInputStream(pbf), binary, true);
+
+        assertEquals(xml.nodes.size(), binary.nodes.size());
+        for (int i = 0; i < xml.nodes.size(); i++) {
+            OSMNode expected = xml.nodes.get(i), actual = binary.nodes.get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getLat(), actual.getLat(), 1e-9);
+            assertEquals(expected.getLon(), actual.getLon(), 1e-9);
+            assertEquals(expected.getTags(), actual.getTags());
+        }
+        assertEquals(xml.ways.size(), binary.ways.size());
+        for (int i = 0; i < xml.ways.size(); i++) {
+            OSMWay expected = xml.ways.get(i), actual = binary.ways.get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getNodeRefs(), actual.getNodeRefs());
+            assertEquals(expected.getTags(), actual.getTags());
+        }
+        assertEquals(xml.relations.size(), binary.relations.size());
+        for (int i = 0; i < xml.relations.size(); i++) {
+            OSMRelation expected = xml.relations.get(i), actual = binary.relations.get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getTags(), actual.getTags());
+            assertEquals(expected.getMembers().size(), actual.getMembers().size());
+            for (int j = 0; j < expected.getMembers().size(); j++) {
+                OSMRelationMember e = expected.getMembers().get(j);
+                OSMRelationMember a = actual.getMembers().get(j);
+                assertEquals(e.getType(), a.getType());
+                assertEquals(e.getRef(), a.getRef());
+                assertEquals(e.getRole(), a.getRole());
+            }
+        }
+
+        // nodes not asked for are never built
+        Recorder filtered = new Recorder();
+        filtered.neededNodes = new HashSet<Long>();
+        for (OSMNode node : xml.nodes) {
+            if (node.getId() % 3 == 0)
+                filtered.neededNodes.add(node.getId());
+        }
+        parser.parseMap(new ByteArrayInputStream(pbf), filtered, true);
+        assertEquals(filtered.neededNodes.size(), filtered.nodes.size());
+        for (OSMNode node : filtered.nodes)
+            assertEquals(0, node.getId() % 3);
+    }
+
+    private static class Recorder implements OpenStreetMapContentHandler {
+
+        List<OSMNode> nodes = new ArrayList<OSMNode>();
+
+        List<OSMWay> ways = new ArrayList<OSMWay>();
+
+        List<OSMRelation> relations = new ArrayList<OSMRelation>();
+
+        Set<Long> neededNodes = null;
+
+        public void secondPhase() {
+        }
+
+        public boolean isNodeNeeded(long id) {
+            return neededNodes == null || neededNodes.contains(id);
+        }
+
+        public void addNode(OSMNode node) {
+            nodes.add(node);
+        }
+
+        public void addWay(OSMWay way) {
+            ways.add(way);
+        }
+
+        public void addRelation(OSMRelation relation) {
+            relations.add(relation);
+        }
+    }
+
+    /* A minimal PBF writer: dense nodes, zlib-compressed data blocks, no metadata. */
+
+    private static byte[] writePbf(Recorder data) throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(file);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        CodedOutputStream headerOut = CodedOutputStream.newInstance(header);
+        headerOut.writeString(4, "OsmSchema-V0.6");
+        headerOut.writeString(4, "DenseNodes");
+        headerOut.flush();
+        writeBlob(out, "OSMHeader", header.toByteArray(), false);
+
+        for (int i = 0; i < data.nodes.size(); i += BLOCK_SIZE)
+            writeBlob(out, "OSMData", nodeBlock(data.nodes.subList(i,
+                    Math.min(i + BLOCK_SIZE, data.nodes.size()))), true);
+        for (int i = 0; i < data.ways.size(); i += BLOCK_SIZE)
+            writeBlob(out, "OSMData", wayBlock(data.ways.subList(i,
+                    Math.min(i + BLOCK_SIZE, data.ways.size()))), true);
+        writeBlob(out, "OSMData", relationBlock(data.relations), false);
+        out.flush();
+        return file.toByteArray();
+    }
+
+    private static void writeBlob(DataOutputStream out, String type, byte[] block, boolean zlib)
+            throws IOException {
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        CodedOutputStream blobOut = CodedOutputStream.newInstance(blob);
+        if (zlib) {
+            Deflater deflater = new Deflater();
+            deflater.setInput(block);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished())
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            deflater.end();
+            blobOut.writeInt32(2, block.length);
+            blobOut.writeBytes(3, ByteString.copyFrom(compressed.toByteArray()));
+        } else {
+            blobOut.writeBytes(1, ByteString.copyFrom(block));
+        }
+        blobOut.flush();
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        CodedOutputStream headerOut = CodedOutputStream.newInstance(header);
+        headerOut.writeString(1, type);
+        headerOut.writeInt32(3, blob.size());
+        headerOut.flush();
+
+        out.writeInt(header.size());
+        header.writeTo(out);
+        blob.writeTo(out);
+    }
+
+    private static class StringTable {
+        Map<String, Integer> indices = new HashMap<String, Integer>();
+
+        List<String> strings = new ArrayList<String>();
+
+        StringTable() {
+            get(""); // index 0 is reserved as a delimiter
+        }
+
+        int get(String s) {
+            Integer index = indices.get(s);
+            if (index == null) {
+                index = strings.size();
+                strings.add(s);
+                indices.put(s, index);
+            }
+            return index;
+        }
+    }
+
+    private static byte[] nodeBlock(List<OSMNode> nodes) throws IOException {
+        StringTable strings = new StringTable();
+        Packed ids = new Packed(), lats = new Packed(), lons = new Packed(), keysVals = new Packed();
+        long lastId = 0, lastLat = 0, lastLon = 0;
+        for (OSMNode node : nodes) {
+            long lat = Math.round(node.getLat() * 1e7), lon = Math.round(node.getLon() * 1e7);
+            ids.sint(node.getId() - lastId);
+            lats.sint(lat - lastLat);
+            lons.sint(lon - lastLon);
+            lastId = node.getId();
+            lastLat = lat;
+            lastLon = lon;
+            for (Map.Entry<String, String> tag : tags(node)) {
+                keysVals.uint(strings.get(tag.getKey()));
+                keysVals.uint(strings.get(tag.getValue()));
+            }
+            keysVals.uint(0);
+        }
+        ByteArrayOutputStream dense = new ByteArrayOutputStream();
+        CodedOutputStream denseOut = CodedOutputStream.newInstance(dense);
+        ids.write(denseOut, 1);
+        lats.write(denseOut, 8);
+        lons.write(denseOut, 9);
+        keysVals.write(denseOut, 10);
+        denseOut.flush();
+        return primitiveBlock(strings, 2, dense.toByteArray());
+    }
+
+    private static byte[] wayBlock(List<OSMWay> ways) throws IOException {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream group = new ByteArrayOutputStream();
+        CodedOutputStream groupOut = CodedOutputStream.newInstance(group);
+        for (OSMWay way : ways) {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            CodedOutputStream out = CodedOutputStream.newInstance(message);
+            out.writeInt64(1, way.getId());
+            writeTags(out, strings, way);
+            Packed refs = new Packed();
+            long last = 0;
+            for (long ref : way.getNodeRefs()) {
+                refs.sint(ref - last);
+                last = ref;
+            }
+            refs.write(out, 8);
+            out.flush();
+            groupOut.writeBytes(3, ByteString.copyFrom(message.toByteArray()));
+        }
+        groupOut.flush();
+        return primitiveBlock(strings, -1, group.toByteArray());
+    }
+
+    private static byte[] relationBlock(List<OSMRelation> relations) throws IOException {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream group = new ByteArrayOutputStream();
+        CodedOutputStream groupOut = CodedOutputStream.newInstance(group);
+        for (OSMRelation relation : relations) {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            CodedOutputStream out = CodedOutputStream.newInstance(message);
+            out.writeInt64(1, relation.getId());
+            writeTags(out, strings, relation);
+            Packed roles = new Packed(), ids = new Packed(), types = new Packed();
+            long last = 0;
+            for (OSMRelationMember member : relation.getMembers()) {
+                roles.uint(strings.get(member.getRole()));
+                ids.sint(member.getRef() - last);
+                last = member.getRef();
+                types.uint(member.getType().equals("node") ? 0
+                        : member.getType().equals("way") ? 1 : 2);
+            }
+            roles.write(out, 8);
+            ids.write(out, 9);
+            types.write(out, 10);
+            out.flush();
+            groupOut.writeBytes(4, ByteString.copyFrom(message.toByteArray()));
+        }
+        groupOut.flush();
+        return primitiveBlock(strings, -1, group.toByteArray());
+    }
+
+    private static void writeTags(CodedOutputStream out, StringTable strings, OSMWithTags entity)
+            throws IOException {
+        Packed keys = new Packed(), values = new Packed();
+        for (Map.Entry<String, String> tag : tags(entity)) {
+            keys.uint(strings.get(tag.getKey()));
+            values.uint(strings.get(tag.getValue()));
+        }
+        keys.write(out, 2);
+        values.write(out, 3);
+    }
+
+    private static Iterable<Map.Entry<String, String>> tags(OSMWithTags entity) {
+        if (entity.getTags() == null)
+            return new ArrayList<Map.Entry<String, String>>();
+        return entity.getTags().entrySet();
+    }
+
+    /**
+     * @param field the PrimitiveGroup field of a single dense node message, or -1 if content is
+     *        already a sequence of group fields
+     */
+    private static byte[] primitiveBlock(StringTable strings, int field, byte[] content)
+            throws IOException {
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        CodedOutputStream tableOut = CodedOutputStream.newInstance(table);
+        for (String s : strings.strings)
+            tableOut.writeBytes(1, ByteString.copyFromUtf8(s));
+        tableOut.flush();
+
+        byte[] group = content;
+        if (field != -1) {
+            ByteArrayOutputStream wrapped = new ByteArrayOutputStream();
+            CodedOutputStream wrappedOut = CodedOutputStream.newInstance(wrapped);
+            wrappedOut.writeBytes(field, ByteString.copyFrom(content));
+            wrappedOut.flush();
+            group = wrapped.toByteArray();
+        }
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(block);
+        out.writeBytes(1, ByteString.copyFrom(table.toByteArray()));
+        out.writeBytes(2, ByteString.copyFrom(group));
+        out.writeInt32(17, 100); // granularity, written after the groups as osmosis does
+        out.flush();
+        return block.toByteArray();
+    }
+
+    private static class Packed {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+
+        void sint(long value) throws IOException {
+            out.writeSInt64NoTag(value);
+        }
+
+        void uint(long value) throws IOException {
+            out.writeRawVarint64(value);
+        }
+
+        void write(CodedOutputStream target, int field) throws IOException {
+            out.flush();
+            if (bytes.size() > 0)
+                target.writeBytes(field, ByteString.copyFrom(bytes.toByteArray()));
+        }
+    }
+}
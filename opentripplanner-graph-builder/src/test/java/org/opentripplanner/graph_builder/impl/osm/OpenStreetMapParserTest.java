@@ -19,8 +19,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 
 import java.io.InputStream;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.GZIPInputStream;
 
 import org.junit.Test;
@@ -83,4 +85,27 @@ public class OpenStreetMapParserTest {
         assertEquals("Potlatch 0.9a", tags.get("created_by"));
         assertEquals("secondary", tags.get("highway"));
     }
+
+    @Test
+    public void testOnlyNeededNodesAreBuilt() throws Exception {
+        final Set<Long> referenced = new HashSet<Long>();
+        OSMMap map = new OSMMap() {
+            public void secondPhase() {
+                for (OSMWay way : getWays().values())
+                    referenced.addAll(way.getNodeRefs());
+            }
+
+            public boolean isNodeNeeded(long id) {
+                return referenced.contains(id);
+            }
+        };
+        InputStream in = new GZIPInputStream(getClass().getResourceAsStream("map.osm.gz"));
+        StreamedOpenStreetMapParser.parseMap(in, map, false);
+        map.secondPhase();
+        in = new GZIPInputStream(getClass().getResourceAsStream("map.osm.gz"));
+        StreamedOpenStreetMapParser.parseMap(in, map, true);
+
+        assertTrue(map.getNodes().size() < 7197);
+        assertTrue(referenced.containsAll(map.getNodes().keySet()));
+    }
 }
@@ -0,0 +1,83 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class TestOSMNodeStore extends TestCase {
+
+    public void testPackedStore() {
+        PackedOSMNodeStore store = new PackedOSMNodeStore(4);
+        checkStore(store);
+    }
+
+    public void testMappedStore() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"));
+        MappedOSMNodeStore store = new MappedOSMNodeStore(directory);
+        checkStore(store);
+    }
+
+    private void checkStore(OSMNodeStore store) {
+        // ascending ids, then some out of order (and negative ids, as in JOSM-edited files)
+        for (long id = 1; id <= 5000; id++)
+            store.put(id * 7, 45 + id * 1e-7, -122.1234567 - id * 1e-7);
+        store.put(3, 1.5, 2.5);
+        store.put(-42, -33.8688197, 151.2092955);
+        assertEquals(5002, store.size());
+
+        assertTrue(store.contains(7));
+        assertTrue(store.contains(35000));
+        assertTrue(store.contains(3));
+        assertTrue(store.contains(-42));
+        assertFalse(store.contains(8));
+        assertFalse(store.contains(0));
+        assertNull(store.getCoordinate(8));
+
+        Coordinate c = store.getCoordinate(7 * 1234);
+        assertEquals(45.0001234, c.y, 0);
+        assertEquals(-122.1235801, c.x, 0);
+        c = store.getCoordinate(-42);
+        assertEquals(-33.8688197, c.y, 0);
+        assertEquals(151.2092955, c.x, 0);
+        c = store.getCoordinate(3);
+        assertEquals(1.5, c.y);
+        assertEquals(2.5, c.x);
+        store.close();
+    }
+
+    public void testRefCounts() {
+        NodeRefCounts refs = new NodeRefCounts();
+        for (long id = 0; id < 10000; id++) {
+            for (int i = 0; i < id % 5; i++)
+                refs.increment(id);
+        }
+        assertEquals(8000, refs.size());
+        assertEquals(0, refs.get(10));
+        assertFalse(refs.isReferenced(10));
+        assertEquals(1, refs.get(11));
+        assertTrue(refs.isReferenced(11));
+        assertFalse(refs.isIntersection(11));
+        assertEquals(2, refs.get(12));
+        assertTrue(refs.isIntersection(12));
+        assertEquals(3, refs.get(13));
+        // counts saturate
+        assertEquals(3, refs.get(14));
+        assertEquals(0, refs.get(-1));
+    }
+}
@@ -14,14 +14,22 @@
 package org.opentripplanner.graph_builder.impl.osm;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
 
 import junit.framework.TestCase;
 
 import org.junit.Test;
 import org.opentripplanner.common.model.P2;
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
 import org.opentripplanner.graph_builder.model.osm.OSMWay;
+import org.opentripplanner.graph_builder.services.osm.OpenStreetMapContentHandler;
+import org.opentripplanner.graph_builder.services.osm.OpenStreetMapProvider;
 import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.GenericVertex;
 import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
 import org.opentripplanner.routing.core.Vertex;
 import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
 import org.opentripplanner.routing.edgetype.TurnEdge;
@@ -122,6 +130,102 @@ public class TestOpenStreetMapGraphBuilder extends TestCase {
         assertTrue("There is no edge from v4back to v3back", v4BackEdgeExists);
     }
 
+    public void testMappedNodeStore() throws Exception {
+        File file = new File(getClass().getResource("map.osm.gz").getFile());
+
+        Graph heapGraph = new Graph();
+        OpenStreetMapGraphBuilderImpl loader = new OpenStreetMapGraphBuilderImpl();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        provider.setPath(file);
+        loader.setProvider(provider);
+        loader.buildGraph(heapGraph);
+
+        Graph mappedGraph = new Graph();
+        loader = new OpenStreetMapGraphBuilderImpl();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        loader.setNodeStoreDirectory(new File(System.getProperty("java.io.tmpdir")));
+        loader.setProvider(provider);
+        loader.buildGraph(mappedGraph);
+
+        assertEquals(heapGraph.getVertices().size(), mappedGraph.getVertices().size());
+        for (GraphVertex gv : heapGraph.getVertices()) {
+            Vertex v = mappedGraph.getVertex(gv.vertex.getLabel());
+            assertNotNull(v);
+            assertEquals(gv.vertex.getCoordinate(), v.getCoordinate());
+            assertEquals(heapGraph.getOutgoing(gv.vertex).size(), mappedGraph.getOutgoing(v).size());
+        }
+    }
+
+    public void testParallelBuildIsDeterministic() throws Exception {
+        File file = new File(getClass().getResource("map.osm.gz").getFile());
+        List<String> serial = buildVertexLabelsInIndexOrder(file, 1);
+        List<String> parallel = buildVertexLabelsInIndexOrder(file, 4);
+        assertFalse(serial.isEmpty());
+        assertEquals(serial, parallel);
+    }
+
+    private List<String> buildVertexLabelsInIndexOrder(File file, int threads) {
+        Graph graph = new Graph();
+        OpenStreetMapGraphBuilderImpl loader = new OpenStreetMapGraphBuilderImpl();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        loader.setThreads(threads);
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        provider.setPath(file);
+        loader.setProvider(provider);
+        loader.buildGraph(graph);
+
+        TreeMap<Integer, String> labels = new TreeMap<Integer, String>();
+        for (GraphVertex gv : graph.getVertices()) {
+            String edges = "";
+            for (Edge e : graph.getOutgoing(gv.vertex))
+                edges += " " + e;
+            labels.put(((GenericVertex) gv.vertex).getIndex(), gv.vertex.getLabel() + edges);
+        }
+        return new ArrayList<String>(labels.values());
+    }
+
+    /**
+     * A way of a single node makes that node an intersection of the ways through it, as it always
+     * has, though the node is not needed for the way itself.
+     */
+    public void testSingleNodeWayMakesIntersection() {
+        Graph graph = new Graph();
+        OpenStreetMapGraphBuilderImpl loader = new OpenStreetMapGraphBuilderImpl();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        loader.setProvider(new OpenStreetMapProvider() {
+            public void readOSM(OpenStreetMapContentHandler handler) {
+                OSMWay street = new OSMWay();
+                street.setId(1);
+                street.addTag("highway", "residential");
+                for (long node = 1; node <= 3; node++)
+                    street.addNodeRef(node);
+                handler.addWay(street);
+
+                OSMWay lone = new OSMWay();
+                lone.setId(2);
+                lone.addTag("highway", "residential");
+                lone.addNodeRef(2);
+                handler.addWay(lone);
+
+                handler.secondPhase();
+                for (long id = 1; id <= 3; id++) {
+                    assertTrue(handler.isNodeNeeded(id));
+                    OSMNode node = new OSMNode();
+                    node.setId(id);
+                    node.setLat(52.0);
+                    node.setLon(21.0 + id * 0.001);
+                    handler.addNode(node);
+                }
+            }
+        });
+        loader.buildGraph(graph);
+
+        // split at node 2
+        assertNotNull(graph.getVertex("way 1 from 0"));
+        assertNotNull(graph.getVertex("way 1 from 1"));
+    }
+
     public void testWayDataSet() {
         OSMWay way = new OSMWay();
         way.addTag("highway", "footway");
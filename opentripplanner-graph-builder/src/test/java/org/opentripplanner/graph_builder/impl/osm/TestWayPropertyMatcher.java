@@ -0,0 +1,89 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.graph_builder.model.osm.OSMMap;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+
+public class TestWayPropertyMatcher extends TestCase {
+
+    /**
+     * The compiled matcher must give exactly what scoring every picker gives, for every way in
+     * the sample extract and some made-up ways exercising left/right and prefix matches.
+     */
+    public void testSameResultsAsFullScan() throws Exception {
+        WayPropertySet set = new DefaultWayPropertySetSource().getWayPropertySet();
+
+        OSMMap map = new OSMMap();
+        InputStream in = new GZIPInputStream(getClass().getResourceAsStream("map.osm.gz"));
+        StreamedOpenStreetMapParser.parseMap(in, map, false);
+        List<OSMWay> ways = new ArrayList<OSMWay>();
+        for (OSMWay way : map.getWays().values()) {
+            if (way.getTags() != null)
+                ways.add(way);
+        }
+        ways.add(way("highway=residential", "cycleway:right=track", "cycleway=lane"));
+        ways.add(way("highway=residential", "cycleway:left=opposite_lane"));
+        ways.add(way("highway=tertiary", "surface=cobblestone:flattened"));
+        ways.add(way("highway=tertiary", "surface=cobblestone"));
+        ways.add(way("highway=footway", "footway=sidewalk", "note=Watch for cars"));
+        ways.add(way("highway=track", "rlis:bicycle=caution_area", "ref=OR 99"));
+        ways.add(way("highway=Residential"));
+        ways.add(way("building=yes"));
+
+        for (OSMWay way : ways) {
+            assertEquals(set.computeDataForWay(way, set.getWayProperties()),
+                    set.getDataForWay(way));
+            CreativeNamer namer = set.computeCreativeNamer(way, set.getCreativeNamers());
+            assertEquals(namer == null ? null : namer.generateCreativeName(way),
+                    set.getCreativeNameForWay(way));
+            assertEquals(set.computeNotes(way, set.getNotes()).size(),
+                    set.getNoteForWay(way) == null ? 0 : set.getNoteForWay(way).size());
+            assertEquals(set.computeSlopeOverride(way, set.getSlopeOverrides()),
+                    set.getSlopeOverride(way));
+        }
+    }
+
+    public void testCacheIsPerTagCombination() {
+        WayPropertySet set = new DefaultWayPropertySetSource().getWayPropertySet();
+        WayPropertyMatcher matcher = new WayPropertyMatcher(set);
+        matcher.getMatch(way("highway=residential", "name=Main Street"));
+        matcher.getMatch(way("highway=residential", "name=Elm Street"));
+        matcher.getMatch(way("highway=residential", "name=Oak Street", "ref=12"));
+        matcher.getMatch(way("highway=residential", "name=Oak Street", "ref=14"));
+        // names do not matter; any ref value scores the same as any other
+        assertEquals(2, matcher.getCacheSize());
+
+        assertTrue(matcher.isCurrent());
+        set.addCreativeNamer(new OSMSpecifier("highway=residential"), new CreativeNamer("road"));
+        assertFalse(matcher.isCurrent());
+    }
+
+    private static OSMWay way(String... tags) {
+        OSMWay way = new OSMWay();
+        for (String tag : tags) {
+            String[] kv = tag.split("=", 2);
+            way.addTag(kv[0], kv[1]);
+        }
+        return way;
+    }
+}
@@ -14,18 +14,23 @@
 package org.opentripplanner.graph_builder.impl.reach;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
 import org.junit.Test;
 import org.opentripplanner.common.IterableLibrary;
+import org.opentripplanner.routing.algorithm.GenericAStar;
+import org.opentripplanner.routing.algorithm.SearchStats;
 import org.opentripplanner.routing.contraction.ContractionHierarchySet;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.GenericVertex;
 import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.Vertex;
@@ -34,6 +39,8 @@ import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
 import org.opentripplanner.routing.impl.DistanceLibrary;
 import org.opentripplanner.routing.impl.GraphSerializationLibrary;
 import org.opentripplanner.routing.reach.EdgeWithReach;
+import org.opentripplanner.routing.reach.ReachAStarFactory;
+import org.opentripplanner.routing.spt.GraphPath;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
@@ -69,6 +76,100 @@ public class ReachTest extends TestCase {
         GraphSerializationLibrary.writeGraph(hierarchy, new File("/tmp/ReachTestGraph.obj"));
     }
     
+    /**
+     * Reach pruning in A* must find paths exactly as heavy as plain A*, while expanding fewer
+     * states.
+     */
+    @Test
+    public void testReachPruning() throws Exception {
+        final int N = 12;
+        graph = new Graph();
+        List<Vertex> vertices = new ArrayList<Vertex>();
+        for (int y = 0; y < N; ++y) {
+            for (int x = 0; x < N; ++x) {
+                vertices.add(vertex(x + "_" + y, -122.38 + x * 0.001, 47.66 + y * 0.001));
+            }
+        }
+        for (int y = 0; y < N; ++y) {
+            for (int x = 0; x < N; ++x) {
+                /* every fourth row and column is a straight street, the others jog a little */
+                double jog = (x % 4 == 0 || y % 4 == 0) ? 0 : 0.0001;
+                if (x + 1 < N)
+                    reachEdges(graph.getVertex(x + "_" + y), graph.getVertex((x + 1) + "_" + y), jog);
+                if (y + 1 < N)
+                    reachEdges(graph.getVertex(x + "_" + y), graph.getVertex(x + "_" + (y + 1)), jog);
+            }
+        }
+
+        TraverseOptions options = new TraverseOptions(TraverseMode.WALK);
+        options.walkReluctance = 1;
+        options.speed = 1;
+        ReachComputerGraphBuilderImpl computer = new ReachComputerGraphBuilderImpl();
+        computer.setThreads(3);
+        computer.epsilon = 100000;
+        computer.partialTreesPhase(graph, vertices, options, false);
+
+        int finiteReaches = 0;
+        for (Vertex v : vertices) {
+            for (EdgeWithReach e : IterableLibrary.filter(graph.getOutgoing(v), EdgeWithReach.class)) {
+                if (e.getReach() < Double.MAX_VALUE)
+                    finiteReaches++;
+            }
+        }
+        assertTrue(finiteReaches > 0);
+
+        GenericAStar plain = new GenericAStar();
+        GenericAStar pruned = new ReachAStarFactory().createAStarInstance();
+        SearchStats plainStats = new SearchStats();
+        SearchStats prunedStats = new SearchStats();
+        Random random = new Random(42);
+        for (int i = 0; i < 100; ++i) {
+            Vertex from = vertices.get(random.nextInt(vertices.size()));
+            Vertex to = vertices.get(random.nextInt(vertices.size()));
+            TraverseOptions plainOptions = new TraverseOptions(TraverseMode.WALK);
+            plainOptions.searchStats = plainStats;
+            TraverseOptions prunedOptions = new TraverseOptions(TraverseMode.WALK);
+            prunedOptions.searchStats = prunedStats;
+            List<GraphPath> plainPaths = plain.getShortestPathTree(graph,
+                    new State(from, plainOptions), to).getPaths(to, false);
+            List<GraphPath> prunedPaths = pruned.getShortestPathTree(graph,
+                    new State(from, prunedOptions), to).getPaths(to, false);
+            assertEquals(plainPaths.get(0).getWeight(), prunedPaths.get(0).getWeight(), 0.001);
+        }
+        assertTrue(prunedStats.getVerticesVisited() < plainStats.getVerticesVisited());
+    }
+
+    private void reachEdges(Vertex vA, Vertex vB, double jog) {
+        Coordinate c1 = vA.getCoordinate();
+        Coordinate c2 = vB.getCoordinate();
+        Coordinate mid = new Coordinate((c1.x + c2.x) / 2 + jog, (c1.y + c2.y) / 2 + jog);
+        double length = DistanceLibrary.distance(c1, mid) + DistanceLibrary.distance(mid, c2);
+        GeometryFactory gf = new GeometryFactory();
+        LineString geometry = gf.createLineString(new Coordinate[] { c1, mid, c2 });
+        graph.addEdge(new PlainStreetEdgeWithReach(vA, vB, geometry, length));
+        graph.addEdge(new PlainStreetEdgeWithReach(vB, vA, (LineString) geometry.reverse(), length));
+    }
+
+    /** What the graph builder makes of a PlainStreetEdge with its class customizer */
+    private static class PlainStreetEdgeWithReach extends PlainStreetEdge implements EdgeWithReach {
+        private static final long serialVersionUID = 1L;
+
+        private double reach = Double.MAX_VALUE;
+
+        PlainStreetEdgeWithReach(Vertex v1, Vertex v2, LineString geometry, double length) {
+            super(v1, v2, geometry, v1.getLabel() + " - " + v2.getLabel(), length,
+                    StreetTraversalPermission.ALL, false);
+        }
+
+        public double getReach() {
+            return reach;
+        }
+
+        public void setReach(double reach) {
+            this.reach = reach;
+        }
+    }
+
     void makeGraph(Graph graph) {
 
         vertex("56th_24th", 47.669457, -122.387577);
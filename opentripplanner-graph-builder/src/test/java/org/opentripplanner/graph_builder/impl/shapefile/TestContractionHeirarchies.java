@@ -36,10 +36,12 @@ import org.opentripplanner.graph_builder.model.GtfsBundle;
 import org.opentripplanner.graph_builder.model.GtfsBundles;
 import org.opentripplanner.graph_builder.services.DisjointSet;
 import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.algorithm.CancellationToken;
 import org.opentripplanner.routing.algorithm.Dijkstra;
 import org.opentripplanner.routing.algorithm.strategies.TrivialRemainingWeightHeuristic;
 import org.opentripplanner.routing.contraction.ContractionHierarchy;
 import org.opentripplanner.routing.contraction.ContractionHierarchySet;
+import org.opentripplanner.routing.contraction.DistanceTable;
 import org.opentripplanner.routing.contraction.Shortcut;
 import org.opentripplanner.routing.core.DirectEdge;
 import org.opentripplanner.routing.core.Edge;
@@ -233,13 +235,47 @@ public class TestContractionHeirarchies extends TestCase {
         // test hierarchy construction
         ContractionHierarchy hierarchy = new ContractionHierarchy(graph, new TraverseOptions(TraverseMode.WALK, OptimizeType.QUICK), 1.0);
 
-        assertTrue(hierarchy.down.getVertices().size() == graphSize);
-        assertTrue(hierarchy.up.getVertices().size() == graphSize);
+        assertTrue(hierarchy.down.countVertices() == graphSize);
+        assertTrue(hierarchy.up.countVertices() == graphSize);
         assertTrue(hierarchy.graph.getVertices().size() == 0);
 
+        ContractionHierarchy parallelHierarchy = new ContractionHierarchy(graph,
+                new TraverseOptions(TraverseMode.WALK, OptimizeType.QUICK), 1.0, true);
+
+        assertEquals(graphSize, parallelHierarchy.down.countVertices());
+        assertEquals(graphSize, parallelHierarchy.up.countVertices());
+        assertEquals(0, parallelHierarchy.graph.getVertices().size());
+
         System.out.println("Contracted");
 
 
+        /*
+         * each hierarchy must find paths as light as plain Dijkstra on the uncontracted graph, with
+         * the options it was built with; the parallel one is checked on its own, and every pair
+         * that disagrees is named rather than stopping at the first
+         */
+        options = new TraverseOptions(TraverseMode.WALK, OptimizeType.QUICK);
+        // Turn off remainging weight heuristic: Unless latitude is very low, heuristic will sometimes 
+        // lead algorithm to attempt to reduce distance incorrectly via FreeEdges 
+        options.remainingWeightHeuristic = new TrivialRemainingWeightHeuristic();
+        State[][][][] expected = new State[N][N][N][N];
+        for (int x1 = 0; x1 < N; ++x1) {
+            for (int y1 = 0; y1 < N; ++y1) {
+                // no target: search the whole graph
+                spt = new Dijkstra(graph, verticesOut[y1][x1], options, null).getShortestPathTree(
+                        null, Double.MAX_VALUE);
+                for (int x2 = 0; x2 < N; ++x2) {
+                    for (int y2 = 0; y2 < N; ++y2) {
+                        expected[x1][y1][x2][y2] = spt.getState(verticesIn[y2][x2]);
+                    }
+                }
+            }
+        }
+        assertEquals("parallel hierarchy disagrees with Dijkstra", "",
+                getWrongPairs(parallelHierarchy, verticesOut, verticesIn, expected, options));
+        assertEquals("sequential hierarchy disagrees with Dijkstra", "",
+                getWrongPairs(hierarchy, verticesOut, verticesIn, expected, options));
+
         // test query
         GraphPath path = hierarchy.getShortestPath(verticesOut[0][0], verticesIn[N - 1][N - 1], 1000000000,
                 options);
@@ -257,12 +293,64 @@ public class TestContractionHeirarchies extends TestCase {
         }
 
 
-        options = new TraverseOptions();
-        options.optimizeFor = OptimizeType.QUICK;
-        options.speed = 1;
-        // Turn off remainging weight heuristic: Unless latitude is very low, heuristic will sometimes 
-        // lead algorithm to attempt to reduce distance incorrectly via FreeEdges 
-        options.remainingWeightHeuristic = new TrivialRemainingWeightHeuristic();
+        /*
+         * many-to-many tables must agree with plain Dijkstra on the uncontracted graph, with the
+         * options the hierarchy was built with
+         */
+        List<Vertex> sources = new ArrayList<Vertex>();
+        List<Vertex> targets = new ArrayList<Vertex>();
+        for (int y = 0; y < N; ++y) {
+            for (int x = 0; x < N; ++x) {
+                sources.add(verticesOut[y][x]);
+                targets.add(verticesIn[y][x]);
+            }
+        }
+        DistanceTable table = hierarchy.getDistanceTable(sources, targets, Double.MAX_VALUE, 2);
+        assertEquals(N * N, table.getSourceCount());
+        assertEquals(N * N, table.getTargetCount());
+        options = new TraverseOptions(TraverseMode.WALK, OptimizeType.QUICK);
+        for (int i = 0; i < sources.size(); ++i) {
+            // no target: search the whole graph
+            spt = new Dijkstra(graph, sources.get(i), options, null).getShortestPathTree(null,
+                    Double.MAX_VALUE);
+            for (int j = 0; j < targets.size(); ++j) {
+                State s = spt.getState(targets.get(j));
+                if (s == null) {
+                    assertFalse(table.hasPath(i, j));
+                } else {
+                    assertEquals(s.getWeight(), table.getWeight(i, j), 0.01);
+                    assertEquals(s.getWalkDistance(), table.getWalkDistance(i, j), 0.01);
+                }
+            }
+        }
+
+        /* paths heavier than maxWeight are left out, even when both halves are lighter */
+        double maxWeight = table.getWeight(0, targets.size() - 1) / 2;
+        DistanceTable bounded = hierarchy.getDistanceTable(sources, targets, maxWeight, 2);
+        for (int i = 0; i < sources.size(); ++i) {
+            for (int j = 0; j < targets.size(); ++j) {
+                if (table.getWeight(i, j) <= maxWeight) {
+                    assertEquals(table.getWeight(i, j), bounded.getWeight(i, j), 0.01);
+                } else {
+                    assertFalse(bounded.hasPath(i, j));
+                }
+            }
+        }
+
+        /* a cancelled table is abandoned */
+        CancellationToken cancelled = new CancellationToken();
+        cancelled.cancel();
+        assertNull(hierarchy.getDistanceTable(sources, targets, Double.MAX_VALUE, 1, cancelled));
+    }
+
+    /*
+     * The pairs of grid points, both ways, between which the hierarchy finds no path, a path of
+     * another weight than the expected state, or a path that is not the shortest in edges.
+     */
+    private String getWrongPairs(ContractionHierarchy ch, Vertex[][] verticesOut,
+            Vertex[][] verticesIn, State[][][][] expected, TraverseOptions options) {
+        final int N = verticesOut.length;
+        StringBuilder wrong = new StringBuilder();
         for (int x1 = 0; x1 < N; ++x1) {
             for (int y1 = 0; y1 < N; ++y1) {
                 for (int x2 = 0; x2 < N; ++x2) {
@@ -270,23 +358,26 @@ public class TestContractionHeirarchies extends TestCase {
                         if (x1 == x2 && y1 == y2) {
                             continue;
                         }
-                        options.setArriveBy(false);
-                        path = hierarchy.getShortestPath(verticesOut[y1][x1], verticesIn[y2][x2], 1000000000,
-                                options);
-
-                        assertNotNull(path);
-                        assertEquals(Math.abs(x1 - x2) + Math.abs(y1 - y2) + 2, path.states.size());
-                        
-                        options.setArriveBy(true);
-                        path = hierarchy.getShortestPath(verticesOut[y1][x1], verticesIn[y2][x2], 1000000000,
-                                options);
-
-                        assertNotNull(path);
-                        assertEquals(Math.abs(x1 - x2) + Math.abs(y1 - y2) + 2, path.states.size());
+                        State s = expected[x1][y1][x2][y2];
+                        for (boolean arriveBy : new boolean[] { false, true }) {
+                            options.setArriveBy(arriveBy);
+                            GraphPath path = ch.getShortestPath(verticesOut[y1][x1],
+                                    verticesIn[y2][x2], 1000000000, options);
+                            if (s == null || path == null
+                                    || Math.abs(path.states.getLast().getWeight()
+                                            - s.getWeight()) > 0.01
+                                    || path.states.size() != Math.abs(x1 - x2)
+                                            + Math.abs(y1 - y2) + 2) {
+                                wrong.append(" (" + x1 + ", " + y1 + ")->(" + x2 + ", " + y2
+                                        + ")" + (arriveBy ? " arriveBy" : ""));
+                            }
+                        }
                     }
                 }
             }
         }
+        options.setArriveBy(false);
+        return wrong.toString();
     }
 
     @Test
@@ -357,11 +448,57 @@ public class TestContractionHeirarchies extends TestCase {
         }
 
         ContractionHierarchy hierarchy = new ContractionHierarchy(graph, new TraverseOptions(TraverseMode.WALK, OptimizeType.QUICK), 1.0);
+        ContractionHierarchy parallelHierarchy = new ContractionHierarchy(graph,
+                new TraverseOptions(TraverseMode.WALK, OptimizeType.QUICK), 1.0, true);
 
         TraverseOptions options = new TraverseOptions();
         options.optimizeFor = OptimizeType.QUICK;
         options.walkReluctance = 1;
         options.speed = 1;
+
+        /* both contraction orders must give paths of the same weight */
+        for (Vertex start : vertices) {
+            for (Vertex end : vertices) {
+                if (start == end) {
+                    continue;
+                }
+                GraphPath sequentialPath = hierarchy.getShortestPath(start, end, 0, options);
+                GraphPath parallelPath = parallelHierarchy.getShortestPath(start, end, 0, options);
+                assertNotNull(sequentialPath);
+                assertNotNull(parallelPath);
+                assertEquals(sequentialPath.states.getLast().getWeight(),
+                        parallelPath.states.getLast().getWeight(), 0.01);
+            }
+        }
+
+        /*
+         * the array-based search graph must agree with the search on states for the options the
+         * hierarchy was built with, and must not be used for options that weigh streets otherwise
+         */
+        assertNotNull(hierarchy.getSearchGraph());
+        TraverseOptions buildOptions = new TraverseOptions(TraverseMode.WALK, OptimizeType.QUICK);
+        for (Vertex start : vertices) {
+            for (Vertex end : vertices) {
+                if (start == end) {
+                    continue;
+                }
+                for (TraverseOptions o : new TraverseOptions[] { buildOptions, options }) {
+                    for (boolean arriveBy : new boolean[] { false, true }) {
+                        o.setArriveBy(arriveBy);
+                        GraphPath flatPath = hierarchy.getShortestPath(start, end, 0, o, true);
+                        GraphPath statePath = hierarchy.getShortestPath(start, end, 0, o, false);
+                        assertNotNull(flatPath);
+                        assertNotNull(statePath);
+                        assertEquals(statePath.states.getLast().getWeight(),
+                                flatPath.states.getLast().getWeight(), 0.01);
+                        assertEquals(statePath.states.getLast().getWalkDistance(),
+                                flatPath.states.getLast().getWalkDistance(), 0.01);
+                    }
+                    o.setArriveBy(false);
+                }
+            }
+        }
+
         GraphPath path = hierarchy.getShortestPath(vertices.get(0), vertices.get(1), 0, options);
         assertNotNull(path);
         assertTrue(path.states.size() > 1);
@@ -573,25 +710,26 @@ public class TestContractionHeirarchies extends TestCase {
         long now = System.currentTimeMillis();
         int i = 0;
         int notNull = 0;
-        Collection<GraphVertex> upVertices = hierarchy.up.getVertices();
-        ArrayList<GraphVertex> vertices = new ArrayList<GraphVertex>(upVertices);
+        Collection<Vertex> upVertices = hierarchy.up.getVertices();
+        ArrayList<Vertex> vertices = new ArrayList<Vertex>(upVertices);
         vertices.addAll(hierarchy.down.getVertices());
-        vertices.addAll(hierarchy.graph.getVertices());
+        for (GraphVertex gv : hierarchy.graph.getVertices()) {
+            vertices.add(gv.vertex);
+        }
                
         DisjointSet<Vertex> components = new DisjointSet<Vertex>();
-        for (GraphVertex gv : vertices) {
-            for (DirectEdge e: filter(gv.getOutgoing(), DirectEdge.class)) {
-                components.union(gv.vertex, e.getToVertex());
+        for (Vertex v : vertices) {
+            for (DirectEdge e: filter(getOutgoing(hierarchy, v), DirectEdge.class)) {
+                components.union(v, e.getToVertex());
             }
         }
         
-        ArrayList<GraphVertex> verticesOut = new ArrayList<GraphVertex>();
-        for (GraphVertex gv : vertices) {
-            Vertex v = gv.vertex;
+        ArrayList<Vertex> verticesOut = new ArrayList<Vertex>();
+        for (Vertex v : vertices) {
             int componentSize = components.size(components.find(v));
             if (componentSize > upVertices.size() / 2) {
-                if (gv.getDegreeOut() != 0) {
-                    verticesOut.add(gv);
+                if (getOutgoing(hierarchy, v).size() != 0) {
+                    verticesOut.add(v);
                 }
             }
         }
@@ -604,8 +742,7 @@ public class TestContractionHeirarchies extends TestCase {
         
         Random random = new Random(0);
         
-        for (GraphVertex gv1 : vertices) {
-            Vertex v1 = gv1.vertex;
+        for (Vertex v1 : vertices) {
             if (++i == 100) {
                 //only look at 100 pairs of vertices
                 break; 
@@ -614,12 +751,10 @@ public class TestContractionHeirarchies extends TestCase {
                 --i;
                 continue;
             }
-            GraphVertex gv2 = null;
             Vertex v2 = null;
-            while (v2 == null || gv2.getDegreeIn() == 0) {
+            while (v2 == null || getIncoming(hierarchy, v2).size() == 0) {
                 int j = Math.abs(random.nextInt()) % vertices.size();
-                gv2 = vertices.get(j);
-                v2 = gv2.vertex;
+                v2 = vertices.get(j);
                 if (v1.getLabel() == v2.getLabel()) {
                     continue;
                 }
@@ -646,4 +781,24 @@ public class TestContractionHeirarchies extends TestCase {
         assertTrue(notNull / (float) i > 0.95); 
     }
 
+    /** The outgoing edges of a vertex in the up graph and the core of a hierarchy. */
+    private static List<Edge> getOutgoing(ContractionHierarchy hierarchy, Vertex v) {
+        List<Edge> outgoing = new ArrayList<Edge>(hierarchy.up.getOutgoing(v));
+        GraphVertex gv = hierarchy.graph.getGraphVertex(v);
+        if (gv != null) {
+            outgoing.addAll(gv.getOutgoing());
+        }
+        return outgoing;
+    }
+
+    /** The incoming edges of a vertex in the down graph and the core of a hierarchy. */
+    private static List<Edge> getIncoming(ContractionHierarchy hierarchy, Vertex v) {
+        List<Edge> incoming = new ArrayList<Edge>(hierarchy.down.getIncoming(v));
+        GraphVertex gv = hierarchy.graph.getGraphVertex(v);
+        if (gv != null) {
+            incoming.addAll(gv.getIncoming());
+        }
+        return incoming;
+    }
+
 }
@@ -0,0 +1,87 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.integration.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A single from-to trip request, as written one-per-line in JSON by
+ * {@link GenerateBenchmarkPlanMain}.
+ */
+public class BenchmarkPlan {
+
+  public double latFrom;
+
+  public double lonFrom;
+
+  public double latTo;
+
+  public double lonTo;
+
+  public Date time;
+
+  public String getFromPlace() {
+    return latFrom + "," + lonFrom;
+  }
+
+  public String getToPlace() {
+    return latTo + "," + lonTo;
+  }
+
+  public static List<BenchmarkPlan> readPlans(File path) throws IOException,
+      JSONException, ParseException {
+    BufferedReader reader = new BufferedReader(new FileReader(path));
+    String line = null;
+    List<BenchmarkPlan> plans = new ArrayList<BenchmarkPlan>();
+
+    try {
+      while ((line = reader.readLine()) != null) {
+        if (line.length() == 0)
+          continue;
+        JSONObject obj = new JSONObject(line);
+        plans.add(getJsonObjectAsPlan(obj));
+      }
+    } finally {
+      reader.close();
+    }
+    return plans;
+  }
+
+  private static BenchmarkPlan getJsonObjectAsPlan(JSONObject obj)
+      throws JSONException, ParseException {
+
+    BenchmarkPlan plan = new BenchmarkPlan();
+
+    JSONObject from = obj.getJSONObject("from");
+    plan.latFrom = from.getDouble("lat");
+    plan.lonFrom = from.getDouble("lon");
+
+    JSONObject to = obj.getJSONObject("to");
+    plan.latTo = to.getDouble("lat");
+    plan.lonTo = to.getDouble("lon");
+
+    plan.time = DateLibrary.getIso8601StringAsDate(obj.getString("time"));
+    return plan;
+  }
+}
@@ -0,0 +1,102 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.integration.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+
+/**
+ * Plans trips by issuing GET requests against a running /ws/plan endpoint,
+ * for example
+ * <code>http://localhost:8080/opentripplanner-api-webapp/ws/plan</code>, or
+ * its asynchronous twin at <code>.../ws/async/plan</code>.
+ * The whole response body is read so that serialization cost is included in
+ * the measured latency.
+ */
+public class HttpPlanExecutor implements PlanExecutor {
+
+  private final String _planUrl;
+
+  private String _extraParameters;
+
+  private int _timeoutMillis = 60 * 1000;
+
+  public HttpPlanExecutor(String planUrl) {
+    _planUrl = planUrl;
+  }
+
+  /**
+   * @param extraParameters an already-encoded query string fragment, such as
+   *          <code>mode=WALK&optimize=QUICK</code>, appended to every request
+   */
+  public void setExtraParameters(String extraParameters) {
+    _extraParameters = extraParameters;
+  }
+
+  public void setTimeoutMillis(int timeoutMillis) {
+    _timeoutMillis = timeoutMillis;
+  }
+
+  @Override
+  public boolean plan(BenchmarkPlan plan) throws IOException {
+
+    HttpURLConnection connection = (HttpURLConnection) new URL(getUrl(plan)).openConnection();
+    connection.setConnectTimeout(_timeoutMillis);
+    connection.setReadTimeout(_timeoutMillis);
+    connection.setRequestProperty("Accept", "application/json");
+
+    int code = connection.getResponseCode();
+    if (code != HttpURLConnection.HTTP_OK)
+      throw new IOException("unexpected response code " + code + " for " + getUrl(plan));
+
+    InputStream in = connection.getInputStream();
+    try {
+      return !readFully(in).contains("\"error\"");
+    } finally {
+      in.close();
+    }
+  }
+
+  private String getUrl(BenchmarkPlan plan) throws IOException {
+    // SimpleDateFormat is not thread-safe, so don't share them between workers
+    SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd-yyyy");
+    SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+
+    StringBuilder b = new StringBuilder(_planUrl);
+    b.append(_planUrl.indexOf('?') == -1 ? '?' : '&');
+    b.append("fromPlace=").append(URLEncoder.encode(plan.getFromPlace(), "UTF-8"));
+    b.append("&toPlace=").append(URLEncoder.encode(plan.getToPlace(), "UTF-8"));
+    b.append("&date=").append(dateFormat.format(plan.time));
+    b.append("&time=").append(timeFormat.format(plan.time));
+    if (_extraParameters != null && _extraParameters.length() > 0)
+      b.append('&').append(_extraParameters);
+    return b.toString();
+  }
+
+  private static String readFully(InputStream in) throws IOException {
+    Reader reader = new InputStreamReader(in, "UTF-8");
+    StringBuilder b = new StringBuilder();
+    char[] buffer = new char[8192];
+    int n;
+    while ((n = reader.read(buffer)) != -1)
+      b.append(buffer, 0, n);
+    return b.toString();
+  }
+}
@@ -0,0 +1,105 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.integration.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe, fixed-size latency histogram with log-linear buckets: values
+ * are grouped by their power of two and each power of two is split into
+ * {@link #SUB_BUCKETS} linear sub-buckets, so any recorded value is reported
+ * within about 1.5% of its true value regardless of magnitude. Recording is a
+ * couple of atomic increments and never allocates, so worker threads can
+ * record directly without skewing the latencies they are measuring.
+ *
+ * Values are unitless longs; {@link RunLoadTestMain} records microseconds.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 6;
+
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray _counts = new AtomicLongArray(
+      (64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+
+  private final AtomicLong _count = new AtomicLong();
+
+  private final AtomicLong _sum = new AtomicLong();
+
+  private final AtomicLong _max = new AtomicLong();
+
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+    _counts.incrementAndGet(getIndex(value));
+    _count.incrementAndGet();
+    _sum.addAndGet(value);
+    long max = _max.get();
+    while (value > max && !_max.compareAndSet(max, value))
+      max = _max.get();
+  }
+
+  public long getCount() {
+    return _count.get();
+  }
+
+  public long getMax() {
+    return _max.get();
+  }
+
+  public double getMean() {
+    long count = _count.get();
+    return count == 0 ? 0 : (double) _sum.get() / count;
+  }
+
+  /**
+   * @param percentile in the range (0, 100]
+   * @return the highest value equivalent to the bucket containing the given
+   *         percentile, clamped to the largest recorded value
+   */
+  public long getValueAtPercentile(double percentile) {
+    long count = _count.get();
+    if (count == 0)
+      return 0;
+    long target = (long) Math.ceil(percentile / 100.0 * count);
+    if (target < 1)
+      target = 1;
+    long seen = 0;
+    for (int i = 0; i < _counts.length(); i++) {
+      seen += _counts.get(i);
+      if (seen >= target)
+        return Math.min(getHighestEquivalentValue(i), getMax());
+    }
+    return getMax();
+  }
+
+  static int getIndex(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long getHighestEquivalentValue(int index) {
+    int bucket = index / SUB_BUCKETS;
+    long subBucket = index % SUB_BUCKETS;
+    if (bucket == 0)
+      return subBucket;
+    return ((SUB_BUCKETS + subBucket + 1) << (bucket - 1)) - 1;
+  }
+}
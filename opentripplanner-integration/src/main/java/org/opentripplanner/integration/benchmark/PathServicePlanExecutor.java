@@ -0,0 +1,49 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.integration.benchmark;
+
+import java.util.List;
+
+import org.opentripplanner.common.model.NamedPlace;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.services.PathService;
+import org.opentripplanner.routing.spt.GraphPath;
+
+/**
+ * Plans trips against an in-process {@link PathService}, the same way
+ * {@link RunBenchmarkPlanMain} does.
+ */
+public class PathServicePlanExecutor implements PlanExecutor {
+
+  private final PathService _pathService;
+
+  private int _itineraries = 1;
+
+  public PathServicePlanExecutor(PathService pathService) {
+    _pathService = pathService;
+  }
+
+  public void setItineraries(int itineraries) {
+    _itineraries = itineraries;
+  }
+
+  @Override
+  public boolean plan(BenchmarkPlan plan) {
+    String from = plan.latFrom + " " + plan.lonFrom;
+    String to = plan.latTo + " " + plan.lonTo;
+    List<GraphPath> paths = _pathService.plan(new NamedPlace(from),
+        new NamedPlace(to), plan.time, new TraverseOptions(), _itineraries);
+    return paths != null && !paths.isEmpty();
+  }
+}
@@ -0,0 +1,28 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.integration.benchmark;
+
+/**
+ * Executes a single {@link BenchmarkPlan} against some trip planner. Called
+ * concurrently from the {@link RunLoadTestMain} worker threads, so
+ * implementations must be thread-safe.
+ */
+public interface PlanExecutor {
+
+  /**
+   * @return true if the planner found at least one itinerary
+   * @throws Exception if the request failed outright
+   */
+  public boolean plan(BenchmarkPlan plan) throws Exception;
+}
@@ -13,14 +13,7 @@
 
 package org.opentripplanner.integration.benchmark;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,8 +22,6 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.Parser;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.opentripplanner.common.model.NamedPlace;
 import org.opentripplanner.model.GraphBundle;
 import org.opentripplanner.routing.core.TraverseOptions;
@@ -90,14 +81,14 @@ public class RunBenchmarkPlanMain {
   }
 
   public void run() throws Exception {
-    GenericApplicationContext context = getApplicationContext();
+    GenericApplicationContext context = getApplicationContext(_graphPath);
     PathService service = (PathService) context.getBean("pathServiceImpl");
 
-    List<Plan> plans = readPlans();
+    List<BenchmarkPlan> plans = BenchmarkPlan.readPlans(_benchmarkPlan);
 
     long tTotal = 0;
     for (int i = 0; i < _repetitions; i++) {
-      for (Plan plan : plans) {
+      for (BenchmarkPlan plan : plans) {
 
         String from = plan.latFrom + " " + plan.lonFrom;
         String to = plan.latTo + " " + plan.lonTo;
@@ -117,27 +108,18 @@ public class RunBenchmarkPlanMain {
     System.out.println("totalTime=" + tTotal);
   }
 
-  private List<Plan> readPlans() throws FileNotFoundException, IOException,
-      JSONException, ParseException {
-    BufferedReader reader = new BufferedReader(new FileReader(_benchmarkPlan));
-    String line = null;
-    List<Plan> plans = new ArrayList<Plan>();
-
-    while ((line = reader.readLine()) != null) {
-      JSONObject obj = new JSONObject(line);
-      plans.add(getJsonObjectAsPlan(obj));
-    }
-    return plans;
-  }
-
-  private GenericApplicationContext getApplicationContext() {
+  /**
+   * Creates the routing application context for a serialized graph, shared
+   * with {@link RunLoadTestMain}.
+   */
+  static GenericApplicationContext getApplicationContext(File graphPath) {
 
     GenericApplicationContext ctx = new GenericApplicationContext();
     XmlBeanDefinitionReader xmlReader = new XmlBeanDefinitionReader(ctx);
     xmlReader.loadBeanDefinitions(new ClassPathResource(
         "org/opentripplanner/application-context.xml"));
 
-    Map<String, BeanDefinition> additionalBeans = getAdditionalBeans();
+    Map<String, BeanDefinition> additionalBeans = getAdditionalBeans(graphPath);
     for (Map.Entry<String, BeanDefinition> entry : additionalBeans.entrySet())
       ctx.registerBeanDefinition(entry.getKey(), entry.getValue());
 
@@ -146,12 +128,12 @@ public class RunBenchmarkPlanMain {
     return ctx;
   }
 
-  private Map<String, BeanDefinition> getAdditionalBeans() {
+  private static Map<String, BeanDefinition> getAdditionalBeans(File graphPath) {
 
     Map<String, BeanDefinition> additionalBeans = new HashMap<String, BeanDefinition>();
 
     BeanDefinitionBuilder bundlePath = BeanDefinitionBuilder.genericBeanDefinition(GraphBundle.class);
-    bundlePath.addPropertyValue("path", _graphPath);
+    bundlePath.addPropertyValue("path", graphPath);
     additionalBeans.put("graphBundle", bundlePath.getBeanDefinition());
 
     BeanDefinitionBuilder graph = BeanDefinitionBuilder.genericBeanDefinition(SerializedGraphFactoryBean.class);
@@ -160,29 +142,4 @@ public class RunBenchmarkPlanMain {
 
     return additionalBeans;
   }
-
-  private Plan getJsonObjectAsPlan(JSONObject obj) throws JSONException,
-      ParseException {
-
-    Plan plan = new Plan();
-
-    JSONObject from = obj.getJSONObject("from");
-    plan.latFrom = from.getDouble("lat");
-    plan.lonFrom = from.getDouble("lon");
-
-    JSONObject to = obj.getJSONObject("to");
-    plan.latTo = to.getDouble("lat");
-    plan.lonTo = to.getDouble("lon");
-
-    plan.time = DateLibrary.getIso8601StringAsDate(obj.getString("time"));
-    return plan;
-  }
-
-  private static class Plan {
-    public double latFrom;
-    public double lonFrom;
-    public double latTo;
-    public double lonTo;
-    public Date time;
-  }
 }
@@ -0,0 +1,364 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.integration.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.Parser;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.opentripplanner.routing.services.PathService;
+import org.springframework.context.support.GenericApplicationContext;
+
+/**
+ * Replays a benchmark plan file (see {@link GenerateBenchmarkPlanMain}) from
+ * several threads at once, either against an in-process {@link PathService}
+ * loaded from a serialized graph or against a running /ws/plan endpoint.
+ *
+ * Each worker cycles through the plans until the run is over. Requests that
+ * complete during the warmup period are executed but not recorded. When a
+ * target rate is given, requests are issued on a fixed schedule shared by all
+ * workers and latency is measured from the scheduled start rather than the
+ * actual start, so a stalled planner shows up in the tail latencies instead
+ * of silently lowering the offered load.
+ *
+ * Results are printed and optionally appended to a CSV file (one row per run,
+ * header written when the file is new) and written as a JSON document, so
+ * runs can be compared across builds.
+ */
+public class RunLoadTestMain {
+
+  private static final String ARG_URL = "url";
+
+  private static final String ARG_PARAMS = "params";
+
+  private static final String ARG_THREADS = "threads";
+
+  private static final String ARG_RATE = "rate";
+
+  private static final String ARG_WARMUP = "warmup";
+
+  private static final String ARG_DURATION = "duration";
+
+  private static final String ARG_LABEL = "label";
+
+  private static final String ARG_CSV = "csv";
+
+  private static final String ARG_JSON = "json";
+
+  private static final String CSV_HEADER = "label,threads,targetRate,durationSec,requests,"
+      + "noPath,errors,throughput,meanMs,p50Ms,p95Ms,p99Ms,maxMs";
+
+  public static void main(String[] args) throws Exception {
+
+    Options options = new Options();
+    options.addOption(ARG_URL, true,
+        "plan endpoint url; if absent, plan in-process against graph_path");
+    options.addOption(ARG_PARAMS, true,
+        "extra query parameters for each http request, e.g. mode=WALK");
+    options.addOption(ARG_THREADS, true, "number of concurrent clients");
+    options.addOption(ARG_RATE, true,
+        "target rate in requests/second over all clients (0 = unthrottled)");
+    options.addOption(ARG_WARMUP, true, "warmup period in seconds");
+    options.addOption(ARG_DURATION, true, "measurement period in seconds");
+    options.addOption(ARG_LABEL, true, "label for this run in the results");
+    options.addOption(ARG_CSV, true, "csv file to append results to");
+    options.addOption(ARG_JSON, true, "json file to write results to");
+
+    Parser parser = new GnuParser();
+    CommandLine cli = parser.parse(options, args);
+    args = cli.getArgs();
+
+    if (!(args.length == 1 && cli.hasOption(ARG_URL)) && args.length != 2) {
+      System.err.println("usage: [graph_path] benchmark_path");
+      System.err.println("  graph_path is required unless -url is given");
+      System.exit(-1);
+    }
+
+    RunLoadTestMain task = new RunLoadTestMain();
+    task.setBenchmarkPlan(new File(args[args.length - 1]));
+
+    if (cli.hasOption(ARG_URL)) {
+      HttpPlanExecutor executor = new HttpPlanExecutor(cli.getOptionValue(ARG_URL));
+      if (cli.hasOption(ARG_PARAMS))
+        executor.setExtraParameters(cli.getOptionValue(ARG_PARAMS));
+      task.setPlanExecutor(executor);
+    } else {
+      GenericApplicationContext context = RunBenchmarkPlanMain.getApplicationContext(new File(
+          args[0]));
+      PathService service = (PathService) context.getBean("pathServiceImpl");
+      task.setPlanExecutor(new PathServicePlanExecutor(service));
+    }
+
+    if (cli.hasOption(ARG_THREADS))
+      task.setThreads(Integer.parseInt(cli.getOptionValue(ARG_THREADS)));
+    if (cli.hasOption(ARG_RATE))
+      task.setTargetRate(Double.parseDouble(cli.getOptionValue(ARG_RATE)));
+    if (cli.hasOption(ARG_WARMUP))
+      task.setWarmupSeconds(Integer.parseInt(cli.getOptionValue(ARG_WARMUP)));
+    if (cli.hasOption(ARG_DURATION))
+      task.setDurationSeconds(Integer.parseInt(cli.getOptionValue(ARG_DURATION)));
+    if (cli.hasOption(ARG_LABEL))
+      task.setLabel(cli.getOptionValue(ARG_LABEL));
+    if (cli.hasOption(ARG_CSV))
+      task.setCsvPath(new File(cli.getOptionValue(ARG_CSV)));
+    if (cli.hasOption(ARG_JSON))
+      task.setJsonPath(new File(cli.getOptionValue(ARG_JSON)));
+
+    task.run();
+    System.exit(0);
+  }
+
+  private File _benchmarkPlan;
+
+  private PlanExecutor _planExecutor;
+
+  private int _threads = Runtime.getRuntime().availableProcessors();
+
+  private double _targetRate = 0;
+
+  private int _warmupSeconds = 10;
+
+  private int _durationSeconds = 60;
+
+  private String _label = "run";
+
+  private File _csvPath;
+
+  private File _jsonPath;
+
+  private List<BenchmarkPlan> _plans;
+
+  private final AtomicInteger _nextPlan = new AtomicInteger();
+
+  private final AtomicLong _nextScheduledStart = new AtomicLong();
+
+  private long _intervalNanos;
+
+  private long _measureStart;
+
+  private long _measureEnd;
+
+  private final LatencyHistogram _histogram = new LatencyHistogram();
+
+  private final AtomicLong _noPath = new AtomicLong();
+
+  private final AtomicLong _errors = new AtomicLong();
+
+  public void setBenchmarkPlan(File benchmarkPlan) {
+    _benchmarkPlan = benchmarkPlan;
+  }
+
+  public void setPlanExecutor(PlanExecutor planExecutor) {
+    _planExecutor = planExecutor;
+  }
+
+  public void setThreads(int threads) {
+    _threads = threads;
+  }
+
+  public void setTargetRate(double targetRate) {
+    _targetRate = targetRate;
+  }
+
+  public void setWarmupSeconds(int warmupSeconds) {
+    _warmupSeconds = warmupSeconds;
+  }
+
+  public void setDurationSeconds(int durationSeconds) {
+    _durationSeconds = durationSeconds;
+  }
+
+  public void setLabel(String label) {
+    _label = label;
+  }
+
+  public void setCsvPath(File csvPath) {
+    _csvPath = csvPath;
+  }
+
+  public void setJsonPath(File jsonPath) {
+    _jsonPath = jsonPath;
+  }
+
+  public LatencyHistogram getHistogram() {
+    return _histogram;
+  }
+
+  public void run() throws Exception {
+
+    _plans = BenchmarkPlan.readPlans(_benchmarkPlan);
+    if (_plans.isEmpty())
+      throw new IllegalStateException("no plans in " + _benchmarkPlan);
+
+    long now = System.nanoTime();
+    _intervalNanos = _targetRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / _targetRate) : 0;
+    _nextScheduledStart.set(now);
+    _measureStart = now + TimeUnit.SECONDS.toNanos(_warmupSeconds);
+    _measureEnd = _measureStart + TimeUnit.SECONDS.toNanos(_durationSeconds);
+
+    System.out.println("threads=" + _threads + " targetRate=" + _targetRate + " warmup="
+        + _warmupSeconds + "s duration=" + _durationSeconds + "s plans=" + _plans.size());
+
+    CountDownLatch done = new CountDownLatch(_threads);
+    for (int i = 0; i < _threads; i++) {
+      Thread thread = new Thread(new Worker(done), "load-test-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    done.await();
+
+    printResults();
+    if (_csvPath != null)
+      writeCsv();
+    if (_jsonPath != null)
+      writeJson();
+  }
+
+  private void runRequest() {
+    long start;
+    if (_intervalNanos > 0) {
+      start = _nextScheduledStart.getAndAdd(_intervalNanos);
+      long wait = start - System.nanoTime();
+      if (wait > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    } else {
+      start = System.nanoTime();
+    }
+
+    if (start >= _measureEnd)
+      return;
+
+    BenchmarkPlan plan = _plans.get((_nextPlan.getAndIncrement() & Integer.MAX_VALUE)
+        % _plans.size());
+    boolean found = false;
+    boolean failed = false;
+    try {
+      found = _planExecutor.plan(plan);
+    } catch (Exception ex) {
+      failed = true;
+    }
+    long end = System.nanoTime();
+
+    if (start < _measureStart)
+      return;
+
+    _histogram.record(TimeUnit.NANOSECONDS.toMicros(end - start));
+    if (failed)
+      _errors.incrementAndGet();
+    else if (!found)
+      _noPath.incrementAndGet();
+  }
+
+  private double getThroughput() {
+    return _histogram.getCount() / (double) _durationSeconds;
+  }
+
+  private static double toMillis(long micros) {
+    return micros / 1000.0;
+  }
+
+  private void printResults() {
+    System.out.println("requests=" + _histogram.getCount() + " noPath=" + _noPath.get()
+        + " errors=" + _errors.get());
+    System.out.println("throughput=" + getThroughput() + "/s");
+    System.out.println("mean=" + _histogram.getMean() / 1000.0 + "ms p50="
+        + toMillis(_histogram.getValueAtPercentile(50)) + "ms p95="
+        + toMillis(_histogram.getValueAtPercentile(95)) + "ms p99="
+        + toMillis(_histogram.getValueAtPercentile(99)) + "ms max="
+        + toMillis(_histogram.getMax()) + "ms");
+  }
+
+  private void writeCsv() throws IOException {
+    boolean writeHeader = !_csvPath.exists() || _csvPath.length() == 0;
+    PrintWriter out = new PrintWriter(new FileWriter(_csvPath, true));
+    try {
+      if (writeHeader)
+        out.println(CSV_HEADER);
+      out.println(_label + "," + _threads + "," + _targetRate + "," + _durationSeconds + ","
+          + _histogram.getCount() + "," + _noPath.get() + "," + _errors.get() + ","
+          + getThroughput() + "," + _histogram.getMean() / 1000.0 + ","
+          + toMillis(_histogram.getValueAtPercentile(50)) + ","
+          + toMillis(_histogram.getValueAtPercentile(95)) + ","
+          + toMillis(_histogram.getValueAtPercentile(99)) + ","
+          + toMillis(_histogram.getMax()));
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeJson() throws IOException, JSONException {
+    JSONObject obj = new JSONObject();
+    obj.put("label", _label);
+    obj.put("threads", _threads);
+    obj.put("targetRate", _targetRate);
+    obj.put("warmupSec", _warmupSeconds);
+    obj.put("durationSec", _durationSeconds);
+    obj.put("requests", _histogram.getCount());
+    obj.put("noPath", _noPath.get());
+    obj.put("errors", _errors.get());
+    obj.put("throughput", getThroughput());
+
+    JSONObject latency = new JSONObject();
+    latency.put("meanMs", _histogram.getMean() / 1000.0);
+    latency.put("p50Ms", toMillis(_histogram.getValueAtPercentile(50)));
+    latency.put("p95Ms", toMillis(_histogram.getValueAtPercentile(95)));
+    latency.put("p99Ms", toMillis(_histogram.getValueAtPercentile(99)));
+    latency.put("maxMs", toMillis(_histogram.getMax()));
+    obj.put("latency", latency);
+
+    PrintWriter out = new PrintWriter(_jsonPath);
+    try {
+      out.println(obj.toString(2));
+    } finally {
+      out.close();
+    }
+  }
+
+  private class Worker implements Runnable {
+
+    private final CountDownLatch _done;
+
+    public Worker(CountDownLatch done) {
+      _done = done;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (System.nanoTime() < _measureEnd && !Thread.currentThread().isInterrupted())
+          runRequest();
+      } finally {
+        _done.countDown();
+      }
+    }
+  }
+}
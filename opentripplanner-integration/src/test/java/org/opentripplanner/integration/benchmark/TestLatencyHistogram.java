@@ -0,0 +1,51 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.integration.benchmark;
+
+import junit.framework.TestCase;
+
+public class TestLatencyHistogram extends TestCase {
+
+  public void testIndexRoundTrip() {
+    long[] values = { 0, 1, 63, 64, 65, 127, 128, 1000, 123456, 987654321L, Long.MAX_VALUE };
+    for (long value : values) {
+      int index = LatencyHistogram.getIndex(value);
+      long high = LatencyHistogram.getHighestEquivalentValue(index);
+      assertTrue(value + " <= " + high, value <= high);
+      // within one sub-bucket of the true value
+      assertTrue(high - value <= Math.max(0, value / LatencyHistogram.SUB_BUCKETS));
+      if (index > 0)
+        assertTrue(LatencyHistogram.getHighestEquivalentValue(index - 1) < value);
+    }
+  }
+
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 10000; i++)
+      histogram.record(i);
+
+    assertEquals(10000, histogram.getCount());
+    assertEquals(10000, histogram.getMax());
+    assertEquals(5000.5, histogram.getMean(), 0.001);
+    assertEquals(5000, histogram.getValueAtPercentile(50), 5000 / 64);
+    assertEquals(9900, histogram.getValueAtPercentile(99), 9900 / 64);
+    assertEquals(10000, histogram.getValueAtPercentile(100));
+  }
+
+  public void testEmpty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getValueAtPercentile(99));
+    assertEquals(0.0, histogram.getMean());
+  }
+}
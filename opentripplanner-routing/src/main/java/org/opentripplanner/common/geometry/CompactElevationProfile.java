@@ -0,0 +1,183 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.common.geometry;
+
+import java.lang.ref.SoftReference;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * An immutable, compact elevation profile: a sequence of (distance along the edge, elevation)
+ * pairs in meters, as produced by the NED graph builder. Both values are rounded to the
+ * centimeter. The first pair is kept as a pair of ints, and each following one as the zigzag
+ * varint-encoded differences from the previous one, which takes about three bytes per sample
+ * instead of sixteen for {@link PackedCoordinateSequence.Double}.
+ * <p>
+ * The profile is decoded as a whole when its coordinates are read, and the decoded array is
+ * cached through the same soft reference as the other packed sequences.
+ */
+public class CompactElevationProfile extends PackedCoordinateSequence {
+
+    private static final long serialVersionUID = 1L;
+
+    static final double SCALE = 100;
+
+    private final int size;
+
+    private final int firstX;
+
+    private final int firstY;
+
+    private final byte[] deltas;
+
+    private CompactElevationProfile(int size, int firstX, int firstY, byte[] deltas) {
+        this.dimension = 2;
+        this.size = size;
+        this.firstX = firstX;
+        this.firstY = firstY;
+        this.deltas = deltas;
+    }
+
+    /**
+     * @return a compact copy of the first two ordinates of the given profile, or the profile itself
+     *         if it is already compact
+     */
+    public static CompactElevationProfile create(CoordinateSequence profile) {
+        if (profile instanceof CompactElevationProfile)
+            return (CompactElevationProfile) profile;
+        int size = profile.size();
+        if (size == 0)
+            return new CompactElevationProfile(0, 0, 0, new byte[0]);
+
+        /* each delta takes at most five bytes */
+        byte[] buffer = new byte[10 * (size - 1)];
+        int length = 0;
+        int firstX = quantize(profile.getOrdinate(0, 0));
+        int firstY = quantize(profile.getOrdinate(0, 1));
+        int lastX = firstX;
+        int lastY = firstY;
+        for (int i = 1; i < size; i++) {
+            int x = quantize(profile.getOrdinate(i, 0));
+            int y = quantize(profile.getOrdinate(i, 1));
+            length = writeVarint(buffer, length, x - lastX);
+            length = writeVarint(buffer, length, y - lastY);
+            lastX = x;
+            lastY = y;
+        }
+        byte[] deltas = new byte[length];
+        System.arraycopy(buffer, 0, deltas, 0, length);
+        return new CompactElevationProfile(size, firstX, firstY, deltas);
+    }
+
+    private static int quantize(double value) {
+        return (int) Math.round(value * SCALE);
+    }
+
+    private static int writeVarint(byte[] buffer, int offset, int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7f) != 0) {
+            buffer[offset++] = (byte) ((zigzag & 0x7f) | 0x80);
+            zigzag >>>= 7;
+        }
+        buffer[offset++] = (byte) zigzag;
+        return offset;
+    }
+
+    /** @return the profile as (x, y) pairs */
+    private double[] decode() {
+        double[] coords = new double[2 * size];
+        if (size == 0)
+            return coords;
+        int x = firstX;
+        int y = firstY;
+        coords[0] = x / SCALE;
+        coords[1] = y / SCALE;
+        int offset = 0;
+        for (int i = 1; i < size; i++) {
+            for (int ordinate = 0; ordinate < 2; ordinate++) {
+                int zigzag = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = deltas[offset++];
+                    zigzag |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                int delta = (zigzag >>> 1) ^ -(zigzag & 1);
+                if (ordinate == 0)
+                    x += delta;
+                else
+                    y += delta;
+            }
+            coords[2 * i] = x / SCALE;
+            coords[2 * i + 1] = y / SCALE;
+        }
+        return coords;
+    }
+
+    /** The number of bytes the encoded samples take, not counting the first one. */
+    public int getEncodedSize() {
+        return deltas.length;
+    }
+
+    @Override
+    public Coordinate[] toCoordinateArray() {
+        Coordinate[] coords = coordRef == null ? null : coordRef.get();
+        if (coords != null)
+            return coords;
+
+        double[] decoded = decode();
+        coords = new Coordinate[size];
+        for (int i = 0; i < size; i++)
+            coords[i] = new Coordinate(decoded[2 * i], decoded[2 * i + 1]);
+        coordRef = new SoftReference<Coordinate[]>(coords);
+        return coords;
+    }
+
+    @Override
+    public Coordinate getCoordinate(int i) {
+        return toCoordinateArray()[i];
+    }
+
+    @Override
+    protected Coordinate getCoordinateInternal(int index) {
+        return new Coordinate(toCoordinateArray()[index]);
+    }
+
+    @Override
+    public double getOrdinate(int index, int ordinate) {
+        Coordinate c = toCoordinateArray()[index];
+        return ordinate == 0 ? c.x : (ordinate == 1 ? c.y : java.lang.Double.NaN);
+    }
+
+    /** Compact profiles cannot be modified. */
+    @Override
+    public void setOrdinate(int index, int ordinate, double value) {
+        throw new UnsupportedOperationException("compact elevation profiles are immutable");
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public Envelope expandEnvelope(Envelope env) {
+        for (Coordinate c : toCoordinateArray())
+            env.expandToInclude(c.x, c.y);
+        return env;
+    }
+}
@@ -0,0 +1,242 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.common.geometry;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * An append-only store for the coordinates of many line strings, shared by all the edges of a
+ * graph so that each edge only keeps an offset and a point count instead of a JTS geometry.
+ * <p>
+ * Coordinates are kept in fixed point at 1e-7 degrees (about a centimeter, and the precision of
+ * OSM itself). The first point of each line is stored as two absolute ints and every following
+ * point as the difference from the previous one; when both differences fit in 15 and 16 bits
+ * (about 180m), which is the case for nearly all street and shape segments, the point takes a
+ * single int, and otherwise two (or three, as absolute coordinates, for jumps over about 100
+ * degrees). Lines whose coordinates do not fit (projected coordinates, NaN) are refused and should
+ * be kept as geometries by their owner.
+ * <p>
+ * Line strings are decoded when asked for; an optional LRU cache keeps the most recently decoded
+ * ones. Appending is synchronized, but reading is not: a line is only visible to threads that
+ * see the edge holding its offset through a safe publication, as is the case for a graph built
+ * and then handed to the routing threads.
+ */
+public class PackedGeometryStore implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final double SCALE = 1e7;
+
+    private static final int PAGE_BITS = 16;
+
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    private int[][] pages = new int[0][];
+
+    private int size;
+
+    private int cacheSize;
+
+    private transient Map<Integer, LineString> cache;
+
+    /* lines already added, as many edges (e.g. the hops of all the trips of a pattern) share one */
+    private transient IdentityHashMap<LineString, Integer> added = new IdentityHashMap<LineString, Integer>();
+
+    /**
+     * Append a line, or find it if this very line was already added since the last
+     * {@link #trimToSize()}.
+     * 
+     * @return the offset of the line in this store, or -1 if it cannot be represented
+     */
+    public synchronized int add(LineString line) {
+        if (added == null)
+            added = new IdentityHashMap<LineString, Integer>();
+        Integer offset = added.get(line);
+        if (offset == null) {
+            offset = add(line.getCoordinates());
+            added.put(line, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Append the coordinates of a line.
+     * 
+     * @return the offset of the line in this store, or -1 if it has no points or its coordinates
+     *         cannot be represented
+     */
+    public synchronized int add(Coordinate[] coordinates) {
+        if (coordinates.length == 0)
+            return -1;
+        int[] encoded = new int[3 * coordinates.length];
+        int length = 0;
+        long lastX = 0, lastY = 0;
+        for (int i = 0; i < coordinates.length; i++) {
+            long x = quantize(coordinates[i].x);
+            long y = quantize(coordinates[i].y);
+            if (x == Long.MIN_VALUE || y == Long.MIN_VALUE)
+                return -1;
+            if (i == 0) {
+                encoded[length++] = (int) x;
+                encoded[length++] = (int) y;
+            } else {
+                long dx = x - lastX;
+                long dy = y - lastY;
+                if (dx >= -(1 << 14) && dx < (1 << 14) && dy >= -(1 << 15) && dy < (1 << 15)) {
+                    encoded[length++] = ((int) dy << 16) | (((int) dx & 0x7fff) << 1) | 1;
+                } else if (dx != 0 && dx >= -(1 << 30) && dx < (1 << 30)
+                        && dy >= Integer.MIN_VALUE && dy <= Integer.MAX_VALUE) {
+                    encoded[length++] = (int) dx << 1;
+                    encoded[length++] = (int) dy;
+                } else {
+                    encoded[length++] = 0;
+                    encoded[length++] = (int) x;
+                    encoded[length++] = (int) y;
+                }
+            }
+            lastX = x;
+            lastY = y;
+        }
+
+        int offset = size;
+        int last = pages.length - 1;
+        if (last >= 0 && pages[last].length < PAGE_SIZE)
+            pages[last] = Arrays.copyOf(pages[last], PAGE_SIZE);
+        for (int i = 0; i < length; i++) {
+            int page = size >>> PAGE_BITS;
+            if (page == pages.length) {
+                int[][] newPages = new int[page + 1][];
+                System.arraycopy(pages, 0, newPages, 0, page);
+                newPages[page] = new int[PAGE_SIZE];
+                pages = newPages;
+            }
+            pages[page][size & PAGE_MASK] = encoded[i];
+            size++;
+        }
+        return offset;
+    }
+
+    /** @return the coordinate in fixed point, or Long.MIN_VALUE if it does not fit in an int */
+    private static long quantize(double value) {
+        double scaled = Math.rint(value * SCALE);
+        if (!(scaled >= Integer.MIN_VALUE && scaled <= Integer.MAX_VALUE))
+            return Long.MIN_VALUE;
+        return (long) scaled;
+    }
+
+    private int get(int index) {
+        return pages[index >>> PAGE_BITS][index & PAGE_MASK];
+    }
+
+    /** Decode the given number of points of the line at the given offset. */
+    public Coordinate[] getCoordinates(int offset, int points) {
+        Coordinate[] coordinates = new Coordinate[points];
+        int index = offset;
+        int x = get(index++);
+        int y = get(index++);
+        coordinates[0] = new Coordinate(x / SCALE, y / SCALE);
+        for (int i = 1; i < points; i++) {
+            int word = get(index++);
+            if ((word & 1) != 0) {
+                x += (word << 16) >> 17;
+                y += word >> 16;
+            } else if (word != 0) {
+                x += word >> 1;
+                y += get(index++);
+            } else {
+                x = get(index++);
+                y = get(index++);
+            }
+            coordinates[i] = new Coordinate(x / SCALE, y / SCALE);
+        }
+        return coordinates;
+    }
+
+    /** Decode the line at the given offset, going through the cache if there is one. */
+    public LineString getLineString(int offset, int points) {
+        if (cacheSize <= 0)
+            return geometryFactory.createLineString(getCoordinates(offset, points));
+
+        Integer key = offset;
+        synchronized (this) {
+            if (cache == null)
+                cache = makeCache(cacheSize);
+            LineString line = cache.get(key);
+            if (line != null)
+                return line;
+        }
+        LineString line = geometryFactory.createLineString(getCoordinates(offset, points));
+        synchronized (this) {
+            cache.put(key, line);
+        }
+        return line;
+    }
+
+    private static Map<Integer, LineString> makeCache(final int capacity) {
+        return new LinkedHashMap<Integer, LineString>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, LineString> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Keep up to the given number of decoded line strings around; 0 (the default) disables the
+     * cache.
+     */
+    public synchronized void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        cache = null;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /** The number of ints used by the stored lines. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Shrink the last page to what is used and forget which lines were added, typically once a
+     * graph is built.
+     */
+    public synchronized void trimToSize() {
+        added = null;
+        if (pages.length == 0)
+            return;
+        int last = pages.length - 1;
+        int used = size - (last << PAGE_BITS);
+        if (used < pages[last].length) {
+            pages[last] = Arrays.copyOf(pages[last], used);
+        }
+    }
+}
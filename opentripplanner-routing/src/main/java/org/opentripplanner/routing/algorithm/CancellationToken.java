@@ -0,0 +1,36 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.routing.algorithm;
+
+import org.opentripplanner.routing.core.TraverseOptions;
+
+/**
+ * Lets another thread stop the searches serving a request, for instance when the client has gone
+ * away or the server is shutting down. A token is attached to a request through
+ * {@link TraverseOptions#cancellationToken}; searches poll it every few hundred iterations and
+ * return as if they had timed out, without partial results.
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled = false;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -14,6 +14,7 @@
 package org.opentripplanner.routing.algorithm;
 
 import java.util.HashSet;
+import java.util.Set;
 
 import org.opentripplanner.routing.contraction.ContractionHierarchy;
 import org.opentripplanner.routing.core.Edge;
@@ -30,6 +31,7 @@ import org.opentripplanner.routing.spt.BasicShortestPathTree;
 public class Dijkstra {
 
     Vertex taboo;
+    private Set<Vertex> taboos = null;
     private BasicShortestPathTree spt;
     private BinHeap<State> queue;
     private HashSet<Vertex> targets = null; // why was this a set of String not Vertex?
@@ -151,6 +153,7 @@ public class Dijkstra {
                 
                 if (sv != null
                 	&& sv.getVertex() != taboo
+                	&& (taboos == null || ! taboos.contains(sv.getVertex()))
                 	&& spt.add(sv)
                 	&& !sv.exceedsHopLimit(hopLimit) 
                 	&& !sv.exceedsWeightLimit(weightLimit))
@@ -164,4 +167,12 @@ public class Dijkstra {
     public void setTargets(HashSet<Vertex> targets) {
         this.targets = targets;
     }
+
+    /**
+     * Do not consider any paths passing through these vertices either (only honored by the
+     * node-limited search).
+     */
+    public void setTaboos(Set<Vertex> taboos) {
+        this.taboos = taboos;
+    }
 }
@@ -19,6 +19,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.opentripplanner.routing.algorithm.SearchStats.Termination;
 import org.opentripplanner.routing.algorithm.strategies.ExtraEdgesStrategy;
 import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.SearchTerminationStrategy;
@@ -45,6 +46,9 @@ public class GenericAStar {
 
     private static final Logger LOG = LoggerFactory.getLogger(GenericAStar.class);
 
+    /* check for timeouts and cancellation once every 256 iterations */
+    private static final int INTERRUPT_CHECK_MASK = 0xFF;
+
     private boolean _verbose = false;
 
     private ShortestPathTreeFactory _shortestPathTreeFactory;
@@ -83,6 +87,8 @@ public class GenericAStar {
         }
 
         TraverseOptions options = origin.getOptions();
+        final SearchStats stats = options.searchStats;
+        final long searchBeginNanos = System.nanoTime();
 
         // from now on, target means "where this search will terminate"
         // not "the end of the trip from the user's perspective".
@@ -110,7 +116,10 @@ public class GenericAStar {
 
         final RemainingWeightHeuristic heuristic = options.remainingWeightHeuristic;
 
+        long heuristicBeginNanos = System.nanoTime();
         double initialWeight = heuristic.computeInitialWeight(origin, target);
+        if (stats != null)
+            stats.addHeuristicSetupTime(System.nanoTime() - heuristicBeginNanos);
         spt.add(origin);
 
         // Priority Queue
@@ -130,8 +139,10 @@ public class GenericAStar {
             abortTime = Math.min(abortTime, options.searchAbortTime);
         if (options.maxComputationTime > 0)
             abortTime = Math.min(abortTime, System.currentTimeMillis() + options.maxComputationTime);
+        final CancellationToken cancellationToken = options.cancellationToken;
 
         int nVisited = 0;
+        int nIterations = 0;
 
         /* the core of the A* algorithm */
         while (!pq.empty()) { // Until the priority queue is empty:
@@ -142,26 +153,49 @@ public class GenericAStar {
             }
 
             /**
-             * Terminate the search prematurely if we've hit our computation wall.
+             * Terminate the search prematurely if we've hit our computation wall or the request
+             * has been abandoned. Reading the clock on every iteration is measurable, so only
+             * check every few hundred iterations.
              */
-            if (abortTime < Long.MAX_VALUE  && System.currentTimeMillis() > abortTime) {
-                LOG.warn("Search timeout. origin={} target={}", origin, target);
-                // Returning null indicates something went wrong and search should be aborted.
-                // This is distinct from the empty list of paths which implies that a result may still
-                // be found by retrying with altered options (e.g. max walk distance)
-                return null;
+            if ((nIterations++ & INTERRUPT_CHECK_MASK) == 0) {
+                if ((cancellationToken != null && cancellationToken.isCancelled())
+                        || Thread.currentThread().isInterrupted()) {
+                    LOG.debug("Search cancelled. origin={} target={}", origin, target);
+                    if (stats != null)
+                        stats.searchFinished(Termination.CANCELLED, System.nanoTime()
+                                - searchBeginNanos);
+                    return null;
+                }
+                if (abortTime < Long.MAX_VALUE && System.currentTimeMillis() > abortTime) {
+                    LOG.warn("Search timeout. origin={} target={}", origin, target);
+                    if (stats != null)
+                        stats.searchFinished(Termination.TIMEOUT, System.nanoTime()
+                                - searchBeginNanos);
+                    // Complete (if suboptimal) paths to the target may already be in the tree.
+                    if (options.partialPathsOnTimeout && spt.getState(target) != null)
+                        return spt;
+                    // Returning null indicates something went wrong and search should be aborted.
+                    // This is distinct from the empty list of paths which implies that a result may
+                    // still be found by retrying with altered options (e.g. max walk distance)
+                    return null;
+                }
             }
 
             // get the lowest-weight state in the queue
             State u = pq.extract_min();
             // check that this state has not been dominated
             // and mark vertex as visited
-            if (!spt.visit(u))
+            if (!spt.visit(u)) {
+                if (stats != null)
+                    stats.stateDominated();
                 continue;
+            }
 
             if (traverseVisitor != null) {
                 traverseVisitor.visitVertex(u);
             }
+            if (stats != null)
+                stats.visitVertex(u);
 
             Vertex u_vertex = u.getVertex();
             // Uncomment the following statement
@@ -178,10 +212,17 @@ public class GenericAStar {
              */
             if (_searchTerminationStrategy != null) {
                 if (!_searchTerminationStrategy.shouldSearchContinue(origin.getVertex(), target, u,
-                        spt, options))
-                    break;
+                        spt, options)) {
+                    if (stats != null)
+                        stats.searchFinished(Termination.TERMINATION_STRATEGY, System.nanoTime()
+                                - searchBeginNanos);
+                    return spt;
+                }
             } else if (u_vertex == target) {
                 LOG.debug("total vertices visited {}", nVisited);
+                if (stats != null)
+                    stats.searchFinished(Termination.TARGET_REACHED, System.nanoTime()
+                            - searchBeginNanos);
                 return spt;
             }
 
@@ -199,6 +240,8 @@ public class GenericAStar {
                     if (traverseVisitor != null) {
                         traverseVisitor.visitEdge(edge, v);
                     }
+                    if (stats != null)
+                        stats.visitEdge(edge, v);
                     // TEST: uncomment to verify that all optimisticTraverse functions are actually
                     // admissible
                     // State lbs = edge.optimisticTraverse(u);
@@ -209,11 +252,16 @@ public class GenericAStar {
 
                     if (_skipTraversalResultStrategy != null
                             && _skipTraversalResultStrategy.shouldSkipTraversalResult(
-                                    origin.getVertex(), target, u, v, spt, options))
+                                    origin.getVertex(), target, u, v, spt, options)) {
+                        if (stats != null)
+                            stats.statePruned();
                         continue;
+                    }
 
                     double remaining_w = computeRemainingWeight(heuristic, v, target, options);
                     if (remaining_w < 0 || Double.isInfinite(remaining_w) ) {
+                        if (stats != null)
+                            stats.statePruned();
                         continue;
                     }
                     double estimate = v.getWeight() + remaining_w;
@@ -229,20 +277,32 @@ public class GenericAStar {
                         // too expensive to get here
                         if (_verbose)
                             System.out.println("         too expensive to reach, not enqueued. estimated weight = " + estimate);
+                        if (stats != null)
+                            stats.statePruned();
                     } else if (isWorstTimeExceeded(v, options)) {
                         // too much time to get here
                     	if (_verbose)
                             System.out.println("         too much time to reach, not enqueued. time = " + v.getTime());
+                        if (stats != null)
+                            stats.statePruned();
                     } else {
                         if (spt.add(v)) {
                             if (traverseVisitor != null)
                                 traverseVisitor.visitEnqueue(v);
                             pq.insert(v, estimate);
+                            if (stats != null) {
+                                stats.visitEnqueue(v);
+                                stats.queueSize(pq.size());
+                            }
+                        } else if (stats != null) {
+                            stats.stateDominated();
                         } 
                     }
                 }
             }
         }
+        if (stats != null)
+            stats.searchFinished(Termination.QUEUE_EXHAUSTED, System.nanoTime() - searchBeginNanos);
         return spt;
     }
 
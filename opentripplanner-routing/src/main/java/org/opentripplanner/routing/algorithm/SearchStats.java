@@ -0,0 +1,227 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.opentripplanner.routing.algorithm.strategies.SearchTerminationStrategy;
+import org.opentripplanner.routing.algorithm.strategies.SkipTraverseResultStrategy;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseOptions;
+
+/**
+ * Counters describing the work done by one or more A* searches serving a single request. An
+ * instance is attached to a request through {@link TraverseOptions#searchStats}; since the
+ * options are cloned for retries and multiple itineraries, every subsearch adds to the same
+ * counters.
+ *
+ * Counting is a few field increments per state, so this is cheap enough to leave enabled in
+ * production. Instances are not thread-safe; use one per request.
+ */
+public class SearchStats implements TraverseVisitor {
+
+    /** Why the most recent search stopped. */
+    public enum Termination {
+        /** The target vertex was dequeued. */
+        TARGET_REACHED,
+        /** The queue ran dry without reaching the target (or the whole graph was explored). */
+        QUEUE_EXHAUSTED,
+        /** A {@link SearchTerminationStrategy} ended the search. */
+        TERMINATION_STRATEGY,
+        /** maxComputationTime or searchAbortTime was exceeded. */
+        TIMEOUT,
+        /** The request's {@link CancellationToken} was cancelled or the thread was interrupted. */
+        CANCELLED
+    }
+
+    private int searches;
+
+    private int timeouts;
+
+    private long statesCreated;
+
+    private long statesEnqueued;
+
+    private long statesDominated;
+
+    private long statesPruned;
+
+    private long verticesVisited;
+
+    private int queuePeakSize;
+
+    private long heuristicSetupNanos;
+
+    private long searchNanos;
+
+    private Termination termination;
+
+    private HashMap<Class<?>, long[]> edgeTypeCounts = new HashMap<Class<?>, long[]>();
+
+    /* consecutive edges are usually of the same type, so skip the map lookup for them */
+    private Class<?> lastEdgeType;
+
+    private long[] lastEdgeTypeCount;
+
+    /** Called for every state produced by traversing an edge. */
+    @Override
+    public void visitEdge(Edge edge, State state) {
+        statesCreated++;
+        Class<?> type = edge.getClass();
+        if (type != lastEdgeType) {
+            long[] count = edgeTypeCounts.get(type);
+            if (count == null) {
+                count = new long[1];
+                edgeTypeCounts.put(type, count);
+            }
+            lastEdgeType = type;
+            lastEdgeTypeCount = count;
+        }
+        lastEdgeTypeCount[0]++;
+    }
+
+    @Override
+    public void visitVertex(State state) {
+        verticesVisited++;
+    }
+
+    @Override
+    public void visitEnqueue(State state) {
+        statesEnqueued++;
+    }
+
+    /** A state was rejected because the shortest path tree already held a better one. */
+    public void stateDominated() {
+        statesDominated++;
+    }
+
+    /**
+     * A state was dropped before reaching the shortest path tree: by the heuristic, the weight or
+     * time limits, or a {@link SkipTraverseResultStrategy}.
+     */
+    public void statePruned() {
+        statesPruned++;
+    }
+
+    public void queueSize(int size) {
+        if (size > queuePeakSize)
+            queuePeakSize = size;
+    }
+
+    public void addHeuristicSetupTime(long nanos) {
+        heuristicSetupNanos += nanos;
+    }
+
+    public void searchFinished(Termination termination, long nanos) {
+        searches++;
+        searchNanos += nanos;
+        this.termination = termination;
+        if (termination == Termination.TIMEOUT)
+            timeouts++;
+    }
+
+    /** Add all counters from another instance into this one. */
+    public void add(SearchStats other) {
+        searches += other.searches;
+        timeouts += other.timeouts;
+        statesCreated += other.statesCreated;
+        statesEnqueued += other.statesEnqueued;
+        statesDominated += other.statesDominated;
+        statesPruned += other.statesPruned;
+        verticesVisited += other.verticesVisited;
+        queuePeakSize = Math.max(queuePeakSize, other.queuePeakSize);
+        heuristicSetupNanos += other.heuristicSetupNanos;
+        searchNanos += other.searchNanos;
+        if (other.termination != null)
+            termination = other.termination;
+        for (Map.Entry<Class<?>, long[]> entry : other.edgeTypeCounts.entrySet()) {
+            long[] count = edgeTypeCounts.get(entry.getKey());
+            if (count == null) {
+                count = new long[1];
+                edgeTypeCounts.put(entry.getKey(), count);
+            }
+            count[0] += entry.getValue()[0];
+        }
+    }
+
+    /** The number of A* searches run, including retries and additional itineraries. */
+    public int getSearches() {
+        return searches;
+    }
+
+    public int getTimeouts() {
+        return timeouts;
+    }
+
+    public long getStatesCreated() {
+        return statesCreated;
+    }
+
+    public long getStatesEnqueued() {
+        return statesEnqueued;
+    }
+
+    public long getStatesDominated() {
+        return statesDominated;
+    }
+
+    public long getStatesPruned() {
+        return statesPruned;
+    }
+
+    public long getVerticesVisited() {
+        return verticesVisited;
+    }
+
+    /** The largest priority queue size seen in any of the searches. */
+    public int getQueuePeakSize() {
+        return queuePeakSize;
+    }
+
+    public long getHeuristicSetupNanos() {
+        return heuristicSetupNanos;
+    }
+
+    /** Total wall time spent in the A* searches themselves. */
+    public long getSearchNanos() {
+        return searchNanos;
+    }
+
+    /** @return why the most recent search stopped, or null if none has finished */
+    public Termination getTermination() {
+        return termination;
+    }
+
+    /** @return the number of states created per edge class (simple name), sorted by name */
+    public Map<String, Long> getEdgesTraversedByType() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<Class<?>, long[]> entry : edgeTypeCounts.entrySet()) {
+            String name = entry.getKey().getSimpleName();
+            Long previous = counts.get(name);
+            counts.put(name, entry.getValue()[0] + (previous == null ? 0 : previous));
+        }
+        return counts;
+    }
+
+    public String toString() {
+        return "SearchStats(searches=" + searches + " created=" + statesCreated + " enqueued="
+                + statesEnqueued + " dominated=" + statesDominated + " pruned=" + statesPruned
+                + " visited=" + verticesVisited + " queuePeak=" + queuePeakSize + " heuristicMs="
+                + heuristicSetupNanos / 1000000 + " searchMs=" + searchNanos / 1000000
+                + " termination=" + termination + ")";
+    }
+}
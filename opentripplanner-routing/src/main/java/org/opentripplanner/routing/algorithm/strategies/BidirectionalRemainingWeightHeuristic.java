@@ -13,7 +13,6 @@
 
 package org.opentripplanner.routing.algorithm.strategies;
 
-import java.util.Arrays;
 import org.opentripplanner.routing.core.DirectEdge;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.GenericVertex;
@@ -22,6 +21,7 @@ import org.opentripplanner.routing.core.GraphVertex;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.core.VertexWeights;
 import org.opentripplanner.routing.location.StreetLocation;
 import org.opentripplanner.routing.pqueue.BinHeap;
 import org.opentripplanner.routing.services.RemainingWeightHeuristicFactory;
@@ -43,7 +43,10 @@ public class BidirectionalRemainingWeightHeuristic implements
 
     Vertex target;
 
-    double[] weights;
+    /* the weights and queue are reused for every target this heuristic is asked about */
+    VertexWeights weights = new VertexWeights(0);
+
+    BinHeap<Vertex> q = new BinHeap<Vertex>();
 
     int nVertices = 0;
 
@@ -75,8 +78,8 @@ public class BidirectionalRemainingWeightHeuristic implements
         if (s.getWeight() < 10 * 60)
             return 0;
         int index = ((GenericVertex) s.getVertex()).getIndex();
-        if (index < weights.length) {
-            double h = weights[index];
+        if (index < weights.size()) {
+            double h = weights.getWeight(index);
             // System.out.printf("h=%f at %s\n", h, s.getVertex());
             // return infinite heuristic values 
             // so transit boarding is not even attempted useless patterns
@@ -91,9 +94,8 @@ public class BidirectionalRemainingWeightHeuristic implements
         if (target != this.target) {
             this.target = target;
             this.nVertices = GenericVertex.getMaxIndex();
-            weights = new double[nVertices];
-            Arrays.fill(weights, Double.POSITIVE_INFINITY);
-            BinHeap<Vertex> q = new BinHeap<Vertex>();
+            weights.clear(nVertices);
+            q.reset();
             long t0 = System.currentTimeMillis();
 
             if (target instanceof StreetLocation) {
@@ -109,19 +111,19 @@ public class BidirectionalRemainingWeightHeuristic implements
                         continue;
                     if (gvi >= nVertices)
                         continue;
-                    weights[gvi] = 0;
-                    q.insert(gv, 0);
+                    if (weights.improve(gvi, 0))
+                        q.insert(gv, 0);
                 }
             } else {
                 int i = ((GenericVertex) target).getIndex();
-                weights[i] = 0;
+                weights.improve(i, 0);
                 q.insert(target, 0);
             }
             while (!q.empty()) {
                 double uw = q.peek_min_key();
                 Vertex u = q.extract_min();
                 int ui = ((GenericVertex) u).getIndex();
-                if (uw > weights[ui])
+                if (uw > weights.getWeight(ui))
                     continue;
                 //LOG.debug("Extract {} weight {}",u ,uw);
                 GraphVertex gv = g.getGraphVertex(u);
@@ -139,8 +141,7 @@ public class BidirectionalRemainingWeightHeuristic implements
                         double vw = uw + (timeNotWeight ? 
                                 e.timeLowerBound(options) : e.weightLowerBound(options));
                         int vi = v.getIndex();
-                        if (weights[vi] > vw) {
-                            weights[vi] = vw;
+                        if (weights.improve(vi, vw)) {
                             // selectively rekeying did not seem to offer any speed advantage
                             q.insert(v, vw);
                             // System.out.println("Insert " + v + " weight " + vw);
@@ -148,7 +149,7 @@ public class BidirectionalRemainingWeightHeuristic implements
                     }
                 }
             }
-            LOG.info("End SSSP ({} msec)", System.currentTimeMillis() - t0);
+            LOG.debug("End SSSP ({} msec)", System.currentTimeMillis() - t0);
         }
     }
 
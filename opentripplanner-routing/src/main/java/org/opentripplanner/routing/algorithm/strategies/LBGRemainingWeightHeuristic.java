@@ -22,6 +22,7 @@ import org.opentripplanner.routing.core.LowerBoundGraph;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.core.VertexWeights;
 import org.opentripplanner.routing.location.StreetLocation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,7 +50,8 @@ public class LBGRemainingWeightHeuristic implements RemainingWeightHeuristic {
 
     Vertex target;
 
-    double[] weights;
+    /* reused for every target this heuristic is asked about */
+    VertexWeights weights = new VertexWeights(0);
 
     public LBGRemainingWeightHeuristic(Graph g, TraverseOptions opt) {
         GraphAndDirection key = new GraphAndDirection(g, opt.isArriveBy());
@@ -82,8 +84,8 @@ public class LBGRemainingWeightHeuristic implements RemainingWeightHeuristic {
     @Override
     public double computeReverseWeight(State s, Vertex target) {
         int index = ((GenericVertex) s.getVertex()).getIndex();
-        if (index < weights.length) {
-            double h = weights[index];
+        if (index < weights.size()) {
+            double h = weights.getWeight(index);
             // System.out.printf("h=%f at %s\n", h, s.getVertex());
             return h == Double.POSITIVE_INFINITY ? 0 : h;
         } else
@@ -94,9 +96,9 @@ public class LBGRemainingWeightHeuristic implements RemainingWeightHeuristic {
         if (target != this.target) {
             this.target = target;
             if (target instanceof StreetLocation)
-                this.weights = lbg.sssp((StreetLocation) target);
+                lbg.sssp((StreetLocation) target, weights);
             else 
-                this.weights = lbg.sssp(target);
+                lbg.sssp(target, weights);
         }
     }
 
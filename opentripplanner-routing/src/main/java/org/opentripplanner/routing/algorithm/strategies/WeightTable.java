@@ -18,10 +18,14 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -47,17 +51,29 @@ import org.slf4j.LoggerFactory;
 
 /*
  * WeightTable stores a table of lower bounds on shortest path weight between
- * all pairs of transit stops in a graph
+ * all pairs of transit stops in a graph.
+ * 
+ * The table is a single row-major array of unsigned 16-bit steps of 
+ * {@link #getResolution()} weight units each. Weights are always rounded down
+ * (and clamped to the largest step) so that every entry remains a lower bound.
  */
 public class WeightTable implements Serializable {
-	private static final long serialVersionUID = 20110506L; // YYYYMMDD
+	private static final long serialVersionUID = 20110801L; // YYYYMMDD
 	private static final Logger LOG = LoggerFactory
 			.getLogger(WeightTable.class);
-	private float[][] table;
+	/* stored step value for unreachable pairs */
+	static final int INFINITE = 0xFFFF;
+	static final int MAX_STEPS = INFINITE - 1;
+	/* side of the square tiles used by the blocked Floyd-Warshall (64x64 shorts = 8kB) */
+	static final int BLOCK_SIZE = 64;
+	private short[] table;
+	private int nStops;
+	private double resolution = 1.0;
 	private Graph g;
 	Map<GenericVertex, Integer> stopIndices;
 	private double maxWalkSpeed;
         private double maxWalkDistance;
+	private transient int threads = Runtime.getRuntime().availableProcessors();
 	private transient int count;
 
 	public WeightTable(Graph g) {
@@ -69,7 +85,10 @@ public class WeightTable implements Serializable {
 	public double getWeight(Vertex from, Vertex to) {
 		int fi = stopIndices.get(from);
 		int ti = stopIndices.get(to);
-		return table[fi][ti];
+		int steps = table[fi * nStops + ti] & 0xFFFF;
+		if (steps == INFINITE)
+			return Double.POSITIVE_INFINITY;
+		return steps * resolution;
 	}
 
 	public boolean includes(Vertex v) {
@@ -79,7 +98,27 @@ public class WeightTable implements Serializable {
 	public synchronized void incrementCount() {
 		count += 1;
 		if (count % 1000 == 0)
-			LOG.debug("TransitStop " + count + "/" + table.length);
+			LOG.debug("TransitStop " + count + "/" + nStops);
+	}
+
+	/* Convert a weight to steps, rounding down so that the result stays a lower bound */
+	private int toSteps(double weight) {
+		if (weight == Double.POSITIVE_INFINITY)
+			return INFINITE;
+		double steps = Math.floor(weight / resolution);
+		if (steps >= MAX_STEPS)
+			return MAX_STEPS;
+		if (steps < 0)
+			return 0;
+		return (int) steps;
+	}
+
+	/* Lower the entry for (oi, di) to weight if that improves it */
+	private void relax(int oi, int di, double weight) {
+		int index = oi * nStops + di;
+		int steps = toSteps(weight);
+		if (steps < (table[index] & 0xFFFF))
+			table[index] = (short) steps;
 	}
 
 	// assignindices(Graph g)
@@ -119,7 +158,8 @@ public class WeightTable implements Serializable {
 	}
 
 	/**
-	 * Build the weight table, parallelized according to the number of processors 
+	 * Build the weight table, parallelized according to the number of threads
+	 * (by default the number of processors)
 	 */
 	public void buildTable() {
 		ArrayList<TransitStop> stopVertices;
@@ -129,20 +169,22 @@ public class WeightTable implements Serializable {
 		for (GraphVertex gv : g.getVertices())
 			if (gv.vertex instanceof TransitStop)
 				stopVertices.add((TransitStop) gv.vertex);
-		int nStops = stopVertices.size();
+		nStops = stopVertices.size();
+		if ((long) nStops * nStops > Integer.MAX_VALUE)
+			throw new IllegalStateException("too many transit stops for a weight table: "
+					+ nStops);
 
 		stopIndices = new IdentityHashMap<GenericVertex, Integer>(nStops);
 		for (int i = 0; i < nStops; i++)
 			stopIndices.put(stopVertices.get(i), i);
 		LOG.debug("Number of stops: " + nStops);
 
-		table = new float[nStops][nStops];
-		for (float[] row : table)
-			Arrays.fill(row, Float.POSITIVE_INFINITY);
+		table = new short[nStops * nStops];
+		Arrays.fill(table, (short) INFINITE);
 
 		LOG.debug("Performing search at each transit stop.");
 
-		int nThreads = Runtime.getRuntime().availableProcessors();
+		int nThreads = threads;
 		LOG.debug("number of threads: " + nThreads);
 		ArrayBlockingQueue<Runnable> taskQueue = new ArrayBlockingQueue<Runnable>(
 				nStops);
@@ -168,11 +210,15 @@ public class WeightTable implements Serializable {
 		try {
 			//invoke all of tasks.
 			threadPool.invokeAll(tasks);
-			threadPool.shutdown();
 		} catch (InterruptedException e) {
+			threadPool.shutdownNow();
 			throw new RuntimeException(e);
 		}
-		floyd();
+		try {
+			floyd(threadPool);
+		} finally {
+			threadPool.shutdownNow();
+		}
 	}
 
 	/** 
@@ -228,7 +274,7 @@ public class WeightTable implements Serializable {
 					break;
 				if (uVertex instanceof TransitStop) {
 					int di = stopIndices.get(uVertex); // dest index
-					table[oi][di] = (float) w;
+					relax(oi, di, w);
 					// LOG.debug("    Dest " + u + " w=" + w);
 				}
 				GraphVertex gu = g.getGraphVertex(uVertex.getLabel());
@@ -287,10 +333,7 @@ public class WeightTable implements Serializable {
 				Vertex uVertex = u.getVertex();
 				if (uVertex instanceof TransitStop) {
 					int di = stopIndices.get(uVertex); // dest index
-					if (table[oi][di] > w) {
-						table[oi][di] = (float) w;
-						// LOG.debug("    Dest " + u + "w=" + w);
-					}
+					relax(oi, di, w);
 					continue;
 				}
 				GraphVertex gu = g.getGraphVertex(uVertex.getLabel());
@@ -308,30 +351,119 @@ public class WeightTable implements Serializable {
 		}
 	}
 
-	/* Find all pairs shortest paths */
-	private void floyd() {
+	/* 
+	 * Find all pairs shortest paths with a blocked Floyd-Warshall: for each
+	 * block of intermediate stops, first the diagonal tile is closed, then the
+	 * tiles in its block row and column (which only depend on the diagonal tile),
+	 * then all remaining tiles (which only depend on that row and column). The
+	 * last two phases are split over the thread pool. Rounded-down sums of
+	 * rounded-down entries are still lower bounds.
+	 */
+	private void floyd(ExecutorService threadPool) {
 		LOG.debug("Floyd");
-		int n = table.length;
-		for (int k = 0; k < n; k++) {
-			for (int i = 0; i < n; i++) {
-				double ik = table[i][k];
-				if (ik == Float.POSITIVE_INFINITY)
+		int nBlocks = (nStops + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		for (int kb = 0; kb < nBlocks; kb++) {
+			relaxTile(kb, kb, kb);
+
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int b = 0; b < nBlocks; b++) {
+				if (b != kb) {
+					tasks.add(new TileRelaxer(kb, b, b + 1, kb));
+					tasks.add(new TileRelaxer(b, kb, kb + 1, kb));
+				}
+			}
+			invokeAll(threadPool, tasks);
+
+			tasks.clear();
+			for (int ib = 0; ib < nBlocks; ib++) {
+				if (ib != kb) {
+					/* the block column kb is already done, so skip over it */
+					tasks.add(new TileRelaxer(ib, 0, kb, kb));
+					tasks.add(new TileRelaxer(ib, kb + 1, nBlocks, kb));
+				}
+			}
+			invokeAll(threadPool, tasks);
+			if (kb % 10 == 0)
+				LOG.debug("k=" + kb * BLOCK_SIZE + "/" + nStops);
+		}
+	}
+
+	/* Relax the tile (ib, jb) through the intermediate stops of block kb */
+	private void relaxTile(int ib, int jb, int kb) {
+		final int n = nStops;
+		int i0 = ib * BLOCK_SIZE, i1 = Math.min(i0 + BLOCK_SIZE, n);
+		int j0 = jb * BLOCK_SIZE, j1 = Math.min(j0 + BLOCK_SIZE, n);
+		int k0 = kb * BLOCK_SIZE, k1 = Math.min(k0 + BLOCK_SIZE, n);
+		for (int k = k0; k < k1; k++) {
+			int kRow = k * n;
+			for (int i = i0; i < i1; i++) {
+				int iRow = i * n;
+				int ik = table[iRow + k] & 0xFFFF;
+				if (ik == INFINITE)
 					continue;
-				for (int j = 0; j < n; j++) {
-					double kj = table[k][j];
-					if (kj == Float.POSITIVE_INFINITY)
+				for (int j = j0; j < j1; j++) {
+					int kj = table[kRow + j] & 0xFFFF;
+					if (kj == INFINITE)
 						continue;
-					double ikj = ik + kj;
-					double ij = table[i][j];
-					if (ikj < ij)
-						table[i][j] = (float) ikj;
+					int ikj = ik + kj;
+					if (ikj > MAX_STEPS)
+						ikj = MAX_STEPS;
+					if (ikj < (table[iRow + j] & 0xFFFF))
+						table[iRow + j] = (short) ikj;
 				}
 			}
-			if (k % 50 == 0)
-				LOG.debug("k=" + k + "/" + n);
 		}
 	}
 
+	/* Relaxes the tiles jbStart until jbEnd in block row ib through block kb */
+	private class TileRelaxer implements Callable<Void> {
+		private int ib, jbStart, jbEnd, kb;
+
+		TileRelaxer(int ib, int jbStart, int jbEnd, int kb) {
+			this.ib = ib;
+			this.jbStart = jbStart;
+			this.jbEnd = jbEnd;
+			this.kb = kb;
+		}
+
+		public Void call() {
+			for (int jb = jbStart; jb < jbEnd; jb++)
+				relaxTile(ib, jb, kb);
+			return null;
+		}
+	}
+
+	private static void invokeAll(ExecutorService threadPool, List<Callable<Void>> tasks) {
+		try {
+			for (Future<Void> future : threadPool.invokeAll(tasks))
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while building weight table");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("error building weight table", e.getCause());
+		}
+	}
+
+	/**
+	 * The stored weights are multiples of this many weight units, rounded down.
+	 * Coarser resolutions extend the largest weight that can be stored (65534 steps)
+	 * at the cost of looser bounds. Must be set before building the table.
+	 */
+	public void setResolution(double resolution) {
+		this.resolution = resolution;
+	}
+
+	public double getResolution() {
+		return resolution;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 	public void setMaxWalkSpeed(double maxWalkSpeed) {
 		this.maxWalkSpeed = maxWalkSpeed;
 	}
@@ -0,0 +1,209 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.routing.contraction;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.Vertex;
+
+/**
+ * An immutable overlay of edges on the vertices of a {@link VertexNumbering}, with the outgoing
+ * and incoming edges of all vertices kept in two arrays indexed by an offset array (compressed
+ * sparse rows), instead of a map of per-vertex lists. This is how the up and down graphs of a
+ * {@link ContractionHierarchy} are stored once it is built.
+ */
+public class CompactOverlayGraph implements Serializable {
+
+    private static final long serialVersionUID = 20110801L;
+
+    private final VertexNumbering numbering;
+
+    /* the vertices that are part of this graph, whether or not they have edges */
+    private final BitSet members;
+
+    /* null when there are no edges in that direction */
+    private final int[] outgoingStart;
+
+    private final Edge[] outgoing;
+
+    private final int[] incomingStart;
+
+    private final Edge[] incoming;
+
+    /**
+     * Copy the vertices and edges of a graph, whose vertices must all be numbered.
+     */
+    public CompactOverlayGraph(VertexNumbering numbering, Graph graph) {
+        this.numbering = numbering;
+        int n = numbering.size();
+        members = new BitSet(n);
+        int nOutgoing = 0, nIncoming = 0;
+        for (GraphVertex gv : graph.getVertices()) {
+            int number = numbering.getNumber(gv.vertex);
+            if (number < 0) {
+                throw new IllegalArgumentException("vertex " + gv.vertex + " is not numbered");
+            }
+            members.set(number);
+            nOutgoing += gv.getDegreeOut();
+            nIncoming += gv.getDegreeIn();
+        }
+
+        List<Collection<Edge>> lists = new ArrayList<Collection<Edge>>(
+                Collections.<Collection<Edge>> nCopies(n, null));
+        if (nOutgoing > 0) {
+            for (GraphVertex gv : graph.getVertices()) {
+                lists.set(numbering.getNumber(gv.vertex), gv.getOutgoing());
+            }
+            outgoingStart = new int[n + 1];
+            outgoing = new Edge[nOutgoing];
+            pack(lists, outgoingStart, outgoing);
+        } else {
+            outgoingStart = null;
+            outgoing = null;
+        }
+        if (nIncoming > 0) {
+            for (GraphVertex gv : graph.getVertices()) {
+                lists.set(numbering.getNumber(gv.vertex), gv.getIncoming());
+            }
+            incomingStart = new int[n + 1];
+            incoming = new Edge[nIncoming];
+            pack(lists, incomingStart, incoming);
+        } else {
+            incomingStart = null;
+            incoming = null;
+        }
+    }
+
+    private static void pack(List<Collection<Edge>> lists, int[] start, Edge[] edges) {
+        int next = 0;
+        for (int i = 0; i < lists.size(); i++) {
+            start[i] = next;
+            Collection<Edge> list = lists.get(i);
+            if (list != null) {
+                for (Edge e : list) {
+                    edges[next++] = e;
+                }
+            }
+        }
+        start[lists.size()] = next;
+    }
+
+    public VertexNumbering getNumbering() {
+        return numbering;
+    }
+
+    /** @return whether the vertex is part of this graph */
+    public boolean containsVertex(Vertex v) {
+        int number = numbering.getNumber(v);
+        return number >= 0 && members.get(number);
+    }
+
+    /** @return the vertex with this label, or null if it is not part of this graph */
+    public Vertex getVertex(String label) {
+        int number = numbering.getNumber(label);
+        return number >= 0 && members.get(number) ? numbering.getVertex(number) : null;
+    }
+
+    /** @return the outgoing edges of a vertex, empty if it is not part of this graph */
+    public List<Edge> getOutgoing(Vertex v) {
+        return getOutgoing(numbering.getNumber(v));
+    }
+
+    /** @return the incoming edges of a vertex, empty if it is not part of this graph */
+    public List<Edge> getIncoming(Vertex v) {
+        return getIncoming(numbering.getNumber(v));
+    }
+
+    public List<Edge> getOutgoing(int number) {
+        if (number < 0 || outgoing == null) {
+            return Collections.emptyList();
+        }
+        return new EdgeRange(outgoing, outgoingStart[number], outgoingStart[number + 1]);
+    }
+
+    public List<Edge> getIncoming(int number) {
+        if (number < 0 || incoming == null) {
+            return Collections.emptyList();
+        }
+        return new EdgeRange(incoming, incomingStart[number], incomingStart[number + 1]);
+    }
+
+    public int getDegreeOut(Vertex v) {
+        return getOutgoing(v).size();
+    }
+
+    public int getDegreeIn(Vertex v) {
+        return getIncoming(v).size();
+    }
+
+    /** @return the vertices that are part of this graph */
+    public List<Vertex> getVertices() {
+        List<Vertex> vertices = new ArrayList<Vertex>(members.cardinality());
+        for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+            vertices.add(numbering.getVertex(i));
+        }
+        return vertices;
+    }
+
+    public int countVertices() {
+        return members.cardinality();
+    }
+
+    /**
+     * A single edge can appear both as an outgoing and an incoming edge; only one of them is
+     * counted.
+     */
+    public int countEdges() {
+        return Math.max(outgoing == null ? 0 : outgoing.length, incoming == null ? 0
+                : incoming.length);
+    }
+
+    /** A read-only view of a slice of an edge array. */
+    private static class EdgeRange extends AbstractList<Edge> {
+        private final Edge[] edges;
+
+        private final int start;
+
+        private final int size;
+
+        EdgeRange(Edge[] edges, int start, int end) {
+            this.edges = edges;
+            this.start = start;
+            this.size = end - start;
+        }
+
+        @Override
+        public Edge get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+            }
+            return edges[start + index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -16,11 +16,15 @@ import static org.opentripplanner.common.IterableLibrary.filter;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -28,6 +32,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.opentripplanner.routing.algorithm.CancellationToken;
 import org.opentripplanner.routing.algorithm.Dijkstra;
 import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
 import org.opentripplanner.routing.core.DirectEdge;
@@ -73,22 +78,44 @@ public class ContractionHierarchy implements Serializable {
 
     private static final Logger _log = LoggerFactory.getLogger(ContractionHierarchy.class);
 
-    private static final long serialVersionUID = 6651191142274381518L;
+    private static final long serialVersionUID = 20111019L;
 
     public Graph graph;
 
-    public Graph up;
+    /** The upward edges of the contracted vertices, kept in arrays once the hierarchy is built. */
+    public CompactOverlayGraph up;
 
-    public Graph down;
+    /** The downward edges of the contracted vertices. */
+    public CompactOverlayGraph down;
+
+    /* the up and down graphs while contracting; they are frozen into up and down at the end */
+    private transient Graph upGraph, downGraph;
 
     private double contractionFactor;
 
-    private transient TraverseOptions options, backOptions;
+    /* kept so that the weights of the hierarchy can be computed again after deserialization */
+    private TraverseOptions options;
+
+    private transient TraverseOptions backOptions;
+
+    /* the numbers of the contracted vertices, in the order they were contracted */
+    private int[] contractionOrder;
+
+    private transient int nContracted;
+
+    private transient VertexNumbering numbering;
+
+    private transient volatile ContractionSearchGraph searchGraph;
 
     private transient TraverseMode mode;
 
     private transient ThreadPoolExecutor threadPool;
 
+    private transient boolean parallel;
+
+    /* number of vertices handed to each task when contracting independent sets */
+    private static final int PARALLEL_BATCH_SIZE = 64;
+
 
     /**
      * Returns the set of shortcuts around a vertex, as well as the size of the space searched.
@@ -101,11 +128,28 @@ public class ContractionHierarchy implements Serializable {
      * @return - the necessary shortcuts and the search space of the witness search.
      */
     public WitnessSearchResult getShortcuts(Vertex u, boolean simulate) {
+        List<WitnessSearchResult> results = searchWitnesses(u, simulate, null, false);
+        if (!simulate) {
+            /* while we're here, remove some non-optimal edges */
+            for (WitnessSearchResult wsresult : results) {
+                removeEdges(getNonOptimalEdges(wsresult));
+            }
+        }
+        return combine(results);
+    }
+
+    /**
+     * Run the witness searches around a vertex, one per vertex with an edge to it.
+     * 
+     * @param taboos - other vertices the witness paths must avoid, or null
+     * @param inline - run the searches in the calling thread rather than on the thread pool
+     */
+    private List<WitnessSearchResult> searchWitnesses(Vertex u, boolean simulate,
+            Set<Vertex> taboos, boolean inline) {
 
         State su = new State(u, backOptions); // search backward
 
         /* Compute the cost from each vertex with an incoming edge to the target */
-        int searchSpace = 0;
         ArrayList<VertexIngress> vs = new ArrayList<VertexIngress>();
         for (Edge e : graph.getIncoming(u)) {
             if (!isContractable(e)) {
@@ -142,8 +186,6 @@ public class ContractionHierarchy implements Serializable {
         }
 
         /* figure out which shortcuts are needed */
-        List<Shortcut> shortcuts = new ArrayList<Shortcut>();
-
         ArrayList<Callable<WitnessSearchResult>> tasks = new ArrayList<Callable<WitnessSearchResult>>(
                 vs.size());
         
@@ -156,56 +198,80 @@ public class ContractionHierarchy implements Serializable {
             //efficiency (+ 1)
             double weightLimit = v.weight + maxWWeight + 1;
             WitnessSearch task = new WitnessSearch(u, hopLimit, nodeLimit, 
-                    weightLimit, wSet, ws, v);
+                    weightLimit, wSet, ws, v, taboos);
             tasks.add(task);
         }
+        List<WitnessSearchResult> results = new ArrayList<WitnessSearchResult>(tasks.size());
+        if (inline) {
+            for (Callable<WitnessSearchResult> task : tasks) {
+                results.add(((WitnessSearch) task).call());
+            }
+            return results;
+        }
         if (threadPool == null) {
             createThreadPool();
         }
         try {
             for (Future<WitnessSearchResult> future : threadPool.invokeAll(tasks)) {
-                WitnessSearchResult wsresult = future.get();
-                BasicShortestPathTree spt = wsresult.spt;
-                if (!simulate && spt != null) {
-                    /* while we're here, remove some non-optimal edges */
-                    ArrayList<DirectEdge> toRemove = new ArrayList<DirectEdge>();
-                    // starting from each v
-                    State sv0 = new State(wsresult.vertex, options);
-                    for (DirectEdge e : filter(graph.getOutgoing(wsresult.vertex),DirectEdge.class)) {
-                        State sSpt = spt.getState(e.getToVertex());
-                        if (sSpt == null) {
-                            continue;
-                        }
-                        State sv1 = e.traverse(sv0);
-                        if (sv1 == null) {
-                            toRemove.add(e);
-                            continue;
-                        }
-                        if (sSpt.getWeight() < sv1.getWeight()) {
-                            // the path found by Dijkstra from u to e.tov is better
-                            // than the path through e. Therefore e can be deleted.
-                            toRemove.add(e);
-                        }
-                    }
-
-                    GraphVertex ugv = graph.getGraphVertex(wsresult.vertex);
-
-                    for (DirectEdge e : toRemove) {
-                        ugv.removeOutgoing(e);
-                        graph.getGraphVertex(e.getToVertex()).removeIncoming(e);
-                    }
-                }
-                searchSpace += wsresult.searchSpace;
-                shortcuts.addAll(wsresult.shortcuts);
+                results.add(future.get());
             }
         } catch (InterruptedException e1) {
             throw new RuntimeException(e1);
         } catch (ExecutionException e1) {
             throw new RuntimeException(e1);
         }
+        return results;
+    }
+
+    /** Sum up the witness searches around a vertex. */
+    private WitnessSearchResult combine(List<WitnessSearchResult> results) {
+        List<Shortcut> shortcuts = new ArrayList<Shortcut>();
+        int searchSpace = 0;
+        for (WitnessSearchResult wsresult : results) {
+            searchSpace += wsresult.searchSpace;
+            shortcuts.addAll(wsresult.shortcuts);
+        }
         return new WitnessSearchResult(shortcuts, null, null, searchSpace);
     }
 
+    /**
+     * @return the edges out of the start vertex of a witness search that are beaten by a path
+     *         found by that search, and can therefore be deleted
+     */
+    private List<DirectEdge> getNonOptimalEdges(WitnessSearchResult wsresult) {
+        ArrayList<DirectEdge> toRemove = new ArrayList<DirectEdge>();
+        BasicShortestPathTree spt = wsresult.spt;
+        if (spt == null) {
+            return toRemove;
+        }
+        // starting from each v
+        State sv0 = new State(wsresult.vertex, options);
+        for (DirectEdge e : filter(graph.getOutgoing(wsresult.vertex),DirectEdge.class)) {
+            State sSpt = spt.getState(e.getToVertex());
+            if (sSpt == null) {
+                continue;
+            }
+            State sv1 = e.traverse(sv0);
+            if (sv1 == null) {
+                toRemove.add(e);
+                continue;
+            }
+            if (sSpt.getWeight() < sv1.getWeight()) {
+                // the path found by Dijkstra from u to e.tov is better
+                // than the path through e. Therefore e can be deleted.
+                toRemove.add(e);
+            }
+        }
+        return toRemove;
+    }
+
+    private void removeEdges(Collection<DirectEdge> toRemove) {
+        for (DirectEdge e : toRemove) {
+            graph.getGraphVertex(e.getFromVertex()).removeOutgoing(e);
+            graph.getGraphVertex(e.getToVertex()).removeIncoming(e);
+        }
+    }
+
     private class WitnessSearch implements Callable<WitnessSearchResult> {
 
     	private Vertex u;
@@ -215,10 +281,11 @@ public class ContractionHierarchy implements Serializable {
         private List<VertexIngress> ws;
         private VertexIngress v;
         private int nodeLimit;
+        private Set<Vertex> taboos;
 
         public WitnessSearch(Vertex u, int hopLimit, int nodeLimit,
                 double weightLimit, HashSet<Vertex> wSet, 
-                List<VertexIngress> ws, VertexIngress v) {
+                List<VertexIngress> ws, VertexIngress v, Set<Vertex> taboos) {
             this.u = u;
             this.hopLimit = hopLimit;
             this.nodeLimit = nodeLimit;
@@ -226,19 +293,21 @@ public class ContractionHierarchy implements Serializable {
             this.wSet = wSet;
             this.ws = ws;
             this.v = v;
+            this.taboos = taboos;
         }
 
         public WitnessSearchResult call() {
             return searchWitnesses(u, hopLimit, nodeLimit, weightLimit, wSet,
-                    ws, v);
+                    ws, v, taboos);
         }
     }
 
     private WitnessSearchResult searchWitnesses(Vertex u, int hopLimit, 
     		int nodeLimit, double weightLimit, HashSet<Vertex> wSet, 
-    		List<VertexIngress> ws, VertexIngress v) {
+    		List<VertexIngress> ws, VertexIngress v, Set<Vertex> taboos) {
 
     	Dijkstra dijkstra = new Dijkstra(graph, v.vertex, options, u, hopLimit);
+        dijkstra.setTaboos(taboos);
         dijkstra.setTargets(wSet); // set is now cloned inside dijkstra, since it is used destructively (AMB)
         BasicShortestPathTree spt = dijkstra.getShortestPathTree(weightLimit, nodeLimit);
 
@@ -351,8 +420,36 @@ public class ContractionHierarchy implements Serializable {
      *            A fraction from 0 to 1 of (the contractable portion of) the graph to contract
      */
     public ContractionHierarchy(Graph orig, TraverseOptions options, double contractionFactor) {
+        this(orig, options, contractionFactor, false);
+    }
+
+    /**
+     * Create a contraction hierarchy from a graph.
+     * 
+     * @param orig
+     * @param options
+     * @param contractionFactor
+     *            A fraction from 0 to 1 of (the contractable portion of) the graph to contract
+     * @param parallel
+     *            Contract independent sets of vertices in parallel rounds instead of one vertex at
+     *            a time (see {@link #contractIndependentSets()})
+     */
+    public ContractionHierarchy(Graph orig, TraverseOptions options, double contractionFactor,
+            boolean parallel) {
+        this(orig, options, contractionFactor, parallel, new VertexNumbering(orig));
+    }
+
+    /**
+     * Create a contraction hierarchy from a graph, numbering its vertices with a numbering that
+     * can be shared with other hierarchies built from the same graph.
+     * 
+     * @param numbering
+     *            A numbering of the vertices of orig
+     */
+    public ContractionHierarchy(Graph orig, TraverseOptions options, double contractionFactor,
+            boolean parallel, VertexNumbering numbering) {
         graph = new Graph(orig);
-        // clone graph
+        // clone graph: contraction removes vertices and adds shortcuts as it goes
         for (GraphVertex gv : orig.getVertices()) {
             graph.addGraphVertex(new GraphVertex(gv));
         }
@@ -362,10 +459,18 @@ public class ContractionHierarchy implements Serializable {
         backOptions = this.options.clone();
         backOptions.setArriveBy(true);
         this.contractionFactor = contractionFactor;
+        this.parallel = parallel;
+        this.numbering = numbering;
 
         this.mode = this.options.getModes().getNonTransitMode();
 
+        contractionOrder = new int[numbering.size()];
         init();
+        contractionOrder = Arrays.copyOf(contractionOrder, nContracted);
+        up = new CompactOverlayGraph(numbering, upGraph);
+        down = new CompactOverlayGraph(numbering, downGraph);
+        upGraph = null;
+        downGraph = null;
         useCoreVerticesFrom(orig);
     }
 
@@ -380,10 +485,15 @@ public class ContractionHierarchy implements Serializable {
 
     void init() {
 
+        if (parallel) {
+            contractIndependentSets();
+            return;
+        }
+
         createThreadPool();
 
-        up = new Graph(graph);
-        down = new Graph(graph);
+        upGraph = new Graph(graph);
+        downGraph = new Graph(graph);
 
         long start = System.currentTimeMillis();
 
@@ -462,46 +572,8 @@ public class ContractionHierarchy implements Serializable {
                 lastNotified = now;
             }
 
-            // move edges from main graph to up and down graphs
-            // vertices that are still in the graph are, by definition, of higher importance than
-            // the one currently being plucked from the graph. Edges that go out are upward edges.
-            // Edges that are coming in are downward edges.
-
-            // incoming, therefore downward
-
-            GraphVertex downVertex = down.getGraphVertex(down.addVertex(vertex));
-
-            HashSet<Vertex> neighbors = new HashSet<Vertex>();
-
-            for (Edge ee : graph.getIncoming(vertex)) {
-                nEdges--;
-                GraphVertex originalFromVertex = graph.getGraphVertex(ee.getFromVertex());
-                down.addVertex(originalFromVertex.vertex);
-
-                originalFromVertex.removeOutgoing(ee);
-
-                downVertex.addIncoming(ee);
-                neighbors.add(originalFromVertex.vertex);
-            }
-
-            // outgoing, therefore upward
-            GraphVertex upVertex = up.getGraphVertex(up.addVertex(vertex));
-
-            for (DirectEdge ee : filter(graph.getOutgoing(vertex),DirectEdge.class)) {
-                nEdges--;
-                GraphVertex originalToVertex = graph.getGraphVertex(ee.getToVertex());
-                up.addVertex(originalToVertex.vertex);
-
-                originalToVertex.removeIncoming(ee);
-
-                upVertex.addOutgoing(ee);
-                neighbors.add(originalToVertex.vertex);
-            }
-
-            /*
-             * remove vertex from original graph.
-             */
-            graph.removeVertex(vertex);
+            nEdges -= graph.getDegreeIn(vertex) + graph.getDegreeOut(vertex);
+            Set<Vertex> neighbors = moveToHierarchy(vertex);
 
             /* update neighbors' priority and deleted neighbors */
 
@@ -557,6 +629,292 @@ public class ContractionHierarchy implements Serializable {
         threadPool = null;
     }
 
+    /**
+     * Move the edges of a vertex from the main graph to the up and down graphs, and remove it from
+     * the main graph.
+     * 
+     * @return the neighbors of the vertex
+     */
+    private Set<Vertex> moveToHierarchy(Vertex vertex) {
+        // move edges from main graph to up and down graphs
+        // vertices that are still in the graph are, by definition, of higher importance than
+        // the one currently being plucked from the graph. Edges that go out are upward edges.
+        // Edges that are coming in are downward edges.
+
+        // incoming, therefore downward
+
+        GraphVertex downVertex = downGraph.getGraphVertex(downGraph.addVertex(vertex));
+
+        HashSet<Vertex> neighbors = new HashSet<Vertex>();
+
+        for (Edge ee : graph.getIncoming(vertex)) {
+            GraphVertex originalFromVertex = graph.getGraphVertex(ee.getFromVertex());
+            downGraph.addVertex(originalFromVertex.vertex);
+
+            originalFromVertex.removeOutgoing(ee);
+
+            downVertex.addIncoming(ee);
+            neighbors.add(originalFromVertex.vertex);
+        }
+
+        // outgoing, therefore upward
+        GraphVertex upVertex = upGraph.getGraphVertex(upGraph.addVertex(vertex));
+
+        for (DirectEdge ee : filter(graph.getOutgoing(vertex),DirectEdge.class)) {
+            GraphVertex originalToVertex = graph.getGraphVertex(ee.getToVertex());
+            upGraph.addVertex(originalToVertex.vertex);
+
+            originalToVertex.removeIncoming(ee);
+
+            upVertex.addOutgoing(ee);
+            neighbors.add(originalToVertex.vertex);
+        }
+
+        /*
+         * remove vertex from original graph.
+         */
+        graph.removeVertex(vertex);
+        contractionOrder[nContracted++] = numbering.getNumber(vertex);
+        return neighbors;
+    }
+
+    /**
+     * Contract the graph in rounds rather than one vertex at a time. Each round picks the queued
+     * vertices whose priority is lower than that of all their queued neighbors (ties are broken by
+     * graph order), which form an independent set. The witness searches of the whole set run in
+     * parallel against the unchanged graph; the set is then contracted and the priorities of its
+     * neighbors are recomputed, again in parallel.
+     * <p>
+     * Witness paths must avoid every vertex of the set, not only the one being contracted, so that
+     * no shortcut is skipped because of a path through a vertex contracted in the same round. This
+     * and the batched rather than lazy priority updates give a slightly different order, and a few
+     * more shortcuts, than the sequential contraction. The same number of vertices is contracted
+     * for a given contraction factor, so the core is the same size.
+     */
+    private void contractIndependentSets() {
+
+        createThreadPool();
+
+        upGraph = new Graph(graph);
+        downGraph = new Graph(graph);
+
+        long start = System.currentTimeMillis();
+
+        _log.debug("Preparing contraction hierarchy with independent sets");
+
+        HashMap<Vertex, Integer> deletedNeighbors = new HashMap<Vertex, Integer>();
+        final HashMap<Vertex, Integer> order = new HashMap<Vertex, Integer>();
+        List<Vertex> queued = new ArrayList<Vertex>();
+        for (GraphVertex gv : graph.getVertices()) {
+            Vertex v = gv.vertex;
+            if (!isContractable(v)) {
+                continue;
+            }
+            if (gv.getDegreeIn() > 7 || gv.getDegreeOut() > 7) {
+                continue;
+            }
+            order.put(v, queued.size());
+            queued.add(v);
+        }
+        final HashMap<Vertex, Double> priorities = new HashMap<Vertex, Double>();
+        updatePriorities(queued, deletedNeighbors, priorities);
+
+        int totalVertices = queued.size();
+        // as many as the sequential contraction, which stops after ceil(n * factor) + 1 vertices
+        long toContract = Math.min(totalVertices, (long) Math.ceil(totalVertices
+                * contractionFactor) + 1);
+        int contracted = 0;
+        int rounds = 0;
+        int nShortcuts = 0;
+        long lastNotified = System.currentTimeMillis();
+
+        while (contracted < toContract) {
+            List<Vertex> independent = new ArrayList<Vertex>();
+            for (Vertex v : queued) {
+                if (priorities.containsKey(v) && isLocalMinimum(v, priorities, order)) {
+                    independent.add(v);
+                }
+            }
+            if (independent.size() > toContract - contracted) {
+                Collections.sort(independent, new Comparator<Vertex>() {
+                    public int compare(Vertex a, Vertex b) {
+                        int c = Double.compare(priorities.get(a), priorities.get(b));
+                        return c != 0 ? c : order.get(a) - order.get(b);
+                    }
+                });
+                independent = independent.subList(0, (int) (toContract - contracted));
+                Collections.sort(independent, new Comparator<Vertex>() {
+                    public int compare(Vertex a, Vertex b) {
+                        return order.get(a) - order.get(b);
+                    }
+                });
+            }
+
+            final Set<Vertex> taboos = new HashSet<Vertex>(independent);
+            List<Contraction> contractions = computeInParallel(independent,
+                    new VertexComputation<Contraction>() {
+                        public Contraction compute(Vertex u) {
+                            List<WitnessSearchResult> results = searchWitnesses(u, false, taboos,
+                                    true);
+                            List<DirectEdge> toRemove = new ArrayList<DirectEdge>();
+                            for (WitnessSearchResult wsresult : results) {
+                                toRemove.addAll(getNonOptimalEdges(wsresult));
+                                // the trees are no longer needed, and there may be many of them
+                                wsresult.spt = null;
+                            }
+                            return new Contraction(combine(results).shortcuts, toRemove);
+                        }
+                    });
+
+            /* contract the set, in graph order */
+            HashMap<Vertex, Integer> newlyDeleted = new HashMap<Vertex, Integer>();
+            for (int i = 0; i < independent.size(); i++) {
+                Vertex vertex = independent.get(i);
+                Contraction contraction = contractions.get(i);
+                removeEdges(contraction.toRemove);
+                for (Vertex n : moveToHierarchy(vertex)) {
+                    Integer deleted = newlyDeleted.get(n);
+                    newlyDeleted.put(n, deleted == null ? 1 : deleted + 1);
+                }
+                for (Shortcut shortcut : contraction.shortcuts) {
+                    graph.addEdge(shortcut.getFromVertex(), shortcut.getToVertex(), shortcut);
+                }
+                nShortcuts += contraction.shortcuts.size();
+                priorities.remove(vertex);
+            }
+            contracted += independent.size();
+            rounds++;
+
+            /* update neighbors' priority and deleted neighbors */
+            List<Vertex> toUpdate = new ArrayList<Vertex>();
+            for (Vertex n : queued) {
+                Integer deleted = newlyDeleted.get(n);
+                if (deleted == null) {
+                    continue;
+                }
+                Integer previous = deletedNeighbors.get(n);
+                deletedNeighbors.put(n, previous == null ? deleted : previous + deleted);
+                if (priorities.containsKey(n)) {
+                    toUpdate.add(n);
+                }
+            }
+            updatePriorities(toUpdate, deletedNeighbors, priorities);
+
+            long now = System.currentTimeMillis();
+            if (now - lastNotified > 5000) {
+                _log.debug("contracted: " + contracted + " / " + totalVertices + " in " + rounds
+                        + " rounds, total time " + (now - start) / 1000.0 + "sec");
+                lastNotified = now;
+            }
+        }
+        _log.info("contracted " + contracted + " vertices in " + rounds + " rounds, adding "
+                + nShortcuts + " shortcuts, in " + (System.currentTimeMillis() - start) / 1000.0
+                + "sec");
+
+        threadPool.shutdownNow();
+        threadPool = null;
+    }
+
+    /** The shortcuts for a vertex of an independent set, and the edges found to be useless. */
+    private static class Contraction {
+        List<Shortcut> shortcuts;
+
+        List<DirectEdge> toRemove;
+
+        Contraction(List<Shortcut> shortcuts, List<DirectEdge> toRemove) {
+            this.shortcuts = shortcuts;
+            this.toRemove = toRemove;
+        }
+    }
+
+    private boolean isLocalMinimum(Vertex v, HashMap<Vertex, Double> priorities,
+            HashMap<Vertex, Integer> order) {
+        double priority = priorities.get(v);
+        int rank = order.get(v);
+        for (Edge e : graph.getIncoming(v)) {
+            if (!precedes(priority, rank, e.getFromVertex(), priorities, order)) {
+                return false;
+            }
+        }
+        for (DirectEdge e : filter(graph.getOutgoing(v),DirectEdge.class)) {
+            if (!precedes(priority, rank, e.getToVertex(), priorities, order)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean precedes(double priority, int rank, Vertex n,
+            HashMap<Vertex, Double> priorities, HashMap<Vertex, Integer> order) {
+        Double other = priorities.get(n);
+        if (other == null) {
+            // not queued, or already contracted
+            return true;
+        }
+        return priority < other || (priority == other && rank < order.get(n));
+    }
+
+    /** Recompute the priority of the given vertices from simulated contractions. */
+    private void updatePriorities(final List<Vertex> vertices,
+            final HashMap<Vertex, Integer> deletedNeighbors, HashMap<Vertex, Double> priorities) {
+        List<Double> updated = computeInParallel(vertices, new VertexComputation<Double>() {
+            public Double compute(Vertex v) {
+                WitnessSearchResult wsresult = combine(searchWitnesses(v, true, null, true));
+                Integer deleted = deletedNeighbors.get(v);
+                return (double) getImportance(v, wsresult, deleted == null ? 0 : deleted);
+            }
+        });
+        for (int i = 0; i < vertices.size(); i++) {
+            priorities.put(vertices.get(i), updated.get(i));
+        }
+    }
+
+    private interface VertexComputation<T> {
+        public T compute(Vertex v);
+    }
+
+    /**
+     * Apply a computation that only reads the graph to each vertex, in batches on the thread pool.
+     * 
+     * @return the results, in the order of the vertices
+     */
+    private <T> List<T> computeInParallel(List<Vertex> vertices,
+            final VertexComputation<T> computation) {
+        List<Callable<List<T>>> tasks = new ArrayList<Callable<List<T>>>();
+        for (int i = 0; i < vertices.size(); i += PARALLEL_BATCH_SIZE) {
+            final List<Vertex> batch = vertices.subList(i,
+                    Math.min(i + PARALLEL_BATCH_SIZE, vertices.size()));
+            tasks.add(new Callable<List<T>>() {
+                public List<T> call() {
+                    List<T> results = new ArrayList<T>(batch.size());
+                    for (Vertex v : batch) {
+                        results.add(computation.compute(v));
+                    }
+                    return results;
+                }
+            });
+        }
+        List<T> results = new ArrayList<T>(vertices.size());
+        /* the pool has a bounded queue, so do not submit everything at once */
+        int maxTasks = threadPool.getMaximumPoolSize() * 4;
+        try {
+            for (int i = 0; i < tasks.size(); i += maxTasks) {
+                for (Future<List<T>> future : threadPool.invokeAll(tasks.subList(i,
+                        Math.min(i + maxTasks, tasks.size())))) {
+                    results.addAll(future.get());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while contracting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("error contracting", e.getCause());
+        }
+        return results;
+    }
+
     private void createThreadPool() {
         int nThreads = Runtime.getRuntime().availableProcessors();
         _log.debug("number of threads: " + nThreads);
@@ -637,14 +995,96 @@ public class ContractionHierarchy implements Serializable {
         return total;
     }
 
+    /**
+     * @return the array-based search graph of this hierarchy, or null if it has a core or does
+     *         not know the options it was built for
+     */
+    public ContractionSearchGraph getSearchGraph() {
+        if (searchGraph == null && options != null && graph.getVertices().isEmpty()) {
+            synchronized (this) {
+                if (searchGraph == null) {
+                    searchGraph = new ContractionSearchGraph(up, down, contractionOrder, options);
+                }
+            }
+        }
+        return searchGraph;
+    }
+
+    /* whether the options weigh streets the same as the options the hierarchy was built for */
+    private boolean hasBuildWeights(TraverseOptions opt) {
+        return options.speed == opt.speed
+                && options.getModes().getWalk() == opt.getModes().getWalk()
+                && options.getModes().getBicycle() == opt.getModes().getBicycle()
+                && options.getModes().getCar() == opt.getModes().getCar()
+                && options.optimizeFor == opt.optimizeFor
+                && options.wheelchairAccessible == opt.wheelchairAccessible
+                && options.maxSlope == opt.maxSlope
+                && options.walkReluctance == opt.walkReluctance
+                && options.stairsReluctance == opt.stairsReluctance
+                && options.getTriangleSafetyFactor() == opt.getTriangleSafetyFactor()
+                && options.getTriangleSlopeFactor() == opt.getTriangleSlopeFactor()
+                && options.getTriangleTimeFactor() == opt.getTriangleTimeFactor();
+    }
+
+    /**
+     * Compute the weights of the shortest paths between many sources and targets with
+     * bucket-based many-to-many searches, using the weights the hierarchy was built with.
+     * 
+     * @param maxWeight
+     *            paths heavier than this are left out of the table
+     * @param threads
+     *            the number of threads searching at the same time
+     * @throws UnsupportedOperationException
+     *             if the hierarchy has a core
+     */
+    public DistanceTable getDistanceTable(List<Vertex> sources, List<Vertex> targets,
+            double maxWeight, int threads) {
+        return getDistanceTable(sources, targets, maxWeight, threads, null);
+    }
+
+    /**
+     * The same, stopping when a token is cancelled.
+     * 
+     * @return the table, or null if the token was cancelled
+     */
+    public DistanceTable getDistanceTable(List<Vertex> sources, List<Vertex> targets,
+            double maxWeight, int threads, CancellationToken token) {
+        ContractionSearchGraph search = getSearchGraph();
+        if (search == null) {
+            throw new UnsupportedOperationException(
+                    "distance tables need a fully contracted hierarchy");
+        }
+        return search.getDistanceTable(sources, targets, maxWeight, threads, token);
+    }
+
     /**
      * Bidirectional Dijkstra's algorithm with some twists: For forward searches, The search from
      * the target stops when it hits the uncontracted core of the graph and the search from the
      * source continues across the (time-dependent) core.
      * 
+     * When there is no core, both endpoints are in the hierarchy and the options weigh streets
+     * the way the options the hierarchy was built for do, the search runs on the
+     * {@link ContractionSearchGraph} instead, without creating states until the path is unpacked.
      */
     public GraphPath getShortestPath(Vertex origin, Vertex target, long time,
             TraverseOptions opt) {
+        return getShortestPath(origin, target, time, opt, true);
+    }
+
+    /**
+     * The same, choosing whether the search may run on the {@link ContractionSearchGraph}.
+     * <p>
+     * The search graph weighs its edges once with the options the hierarchy was built for, so it
+     * is only used when the options agree with those on everything that changes the weight of a
+     * street. Otherwise the search traverses the edges of the hierarchy with the options given;
+     * shortcuts still keep the weights they were contracted with, since the hierarchy is only
+     * exact for the options it was built for.
+     * 
+     * @param flat
+     *            false to always search with states
+     */
+    public GraphPath getShortestPath(Vertex origin, Vertex target, long time,
+            TraverseOptions opt, boolean flat) {
 
     	TraverseOptions upOptions = opt.clone();
     	TraverseOptions downOptions = opt.clone();
@@ -672,6 +1112,13 @@ public class ContractionHierarchy implements Serializable {
         if (VERBOSE)
         	_log.debug("origin {} target {}", origin, target);
 
+        ContractionSearchGraph search = getSearchGraph();
+        if (flat && search != null && search.containsVertex(origin)
+                && search.containsVertex(target) && hasBuildWeights(opt)) {
+            return search.getShortestPath(origin, target, time, opt.isArriveBy() ? downOptions
+                    : upOptions);
+        }
+
         Map<Vertex, ArrayList<Edge>> extraEdges = getExtraEdges(origin, target);
         
         BasicShortestPathTree upspt = new BasicShortestPathTree();
@@ -758,20 +1205,17 @@ public class ContractionHierarchy implements Serializable {
                 if (gu != null) {
                     outgoing = gu.getOutgoing();
                 }
-                gu = up.getGraphVertex(u);
+                Collection<Edge> upOutgoing = up.getOutgoing(u);
                 if (VERBOSE)
-                	_log.debug("    up overlay graph vertex {}", gu);
-                if (gu != null) {
-                    if (outgoing == null) {
-                        outgoing = gu.getOutgoing();
-                    } else {
-                        Collection<Edge> upOutgoing = gu.getOutgoing();
-                        ArrayList<Edge> newOutgoing = new ArrayList<Edge>(outgoing.size()
-                                + upOutgoing.size());
-                        newOutgoing.addAll(outgoing);
-                        newOutgoing.addAll(upOutgoing);
-                        outgoing = newOutgoing;
-                    }
+                	_log.debug("    up overlay graph edges {}", upOutgoing);
+                if (outgoing == null) {
+                    outgoing = upOutgoing;
+                } else if (!upOutgoing.isEmpty()) {
+                    ArrayList<Edge> newOutgoing = new ArrayList<Edge>(outgoing.size()
+                            + upOutgoing.size());
+                    newOutgoing.addAll(outgoing);
+                    newOutgoing.addAll(upOutgoing);
+                    outgoing = newOutgoing;
                 }
                 
                 if (extraEdges.containsKey(u)) {
@@ -857,13 +1301,9 @@ public class ContractionHierarchy implements Serializable {
                     // down path can only explore until core vertices on forward paths
                     continue;
                 }
-                GraphVertex downgu = down.getGraphVertex(down_u);
-                Collection<Edge> incoming = null; 
-                if (downgu != null) { 
-                    incoming = downgu.getIncoming();
-                }
+                Collection<Edge> incoming = down.getIncoming(down_u);
                 if (maingu != null) {
-                    if (incoming == null) {
+                    if (incoming.isEmpty()) {
                         incoming = maingu.getIncoming();
                     } else {
                         Collection<Edge> mainIncoming = maingu.getIncoming();
@@ -16,6 +16,11 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.opentripplanner.routing.core.Graph;
@@ -35,6 +40,10 @@ public class ContractionHierarchySet implements Serializable {
 
     private double contractionFactor = 1.0;
 
+    private boolean parallelContraction = false;
+
+    private transient int threads = 2;
+
     public ContractionHierarchySet() {
         modeList = new ArrayList<TraverseOptions>();
     }
@@ -75,15 +84,44 @@ public class ContractionHierarchySet implements Serializable {
         return bestOptions != null ? hierarchiesByMode.get(bestOptions) : null;
     }
     
+    /**
+     * Build a hierarchy for each mode, up to {@link #setThreads threads} of them at a time. The
+     * hierarchies share a single numbering of the base graph's vertices, but each one contracts
+     * its own copy of the base graph's adjacency lists, so every hierarchy being built holds a copy
+     * of them until it finishes.
+     */
     public void build() {
         if (modeList == null) {
             return;
         }
         _log.debug("Building contraction hierarchies for " + modeList.size() + " modes");
-        for (TraverseOptions mo : modeList) {
-            _log.debug("Building contraction hierarchy for " + mo);
-            ContractionHierarchy ch = new ContractionHierarchy(getGraph(), mo, contractionFactor);
-            hierarchiesByMode.put(mo, ch);
+        final VertexNumbering numbering = new VertexNumbering(getGraph());
+        int nThreads = Math.max(1, Math.min(threads, modeList.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<ContractionHierarchy>> hierarchies = new ArrayList<Future<ContractionHierarchy>>();
+            for (final TraverseOptions mo : modeList) {
+                hierarchies.add(executor.submit(new Callable<ContractionHierarchy>() {
+                    @Override
+                    public ContractionHierarchy call() {
+                        _log.debug("Building contraction hierarchy for " + mo);
+                        return new ContractionHierarchy(getGraph(), mo, contractionFactor,
+                                parallelContraction, numbering);
+                    }
+                }));
+            }
+            for (int i = 0; i < modeList.size(); i++) {
+                hierarchiesByMode.put(modeList.get(i), hierarchies.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while building contraction hierarchies");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("error building contraction hierarchies", e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
         /* TODO: cross-hierarchy Shortcut memory optimization */
     }
@@ -92,6 +130,22 @@ public class ContractionHierarchySet implements Serializable {
         contractionFactor = factor;
     }
 
+    /**
+     * Contract independent sets of vertices in parallel rounds rather than one vertex at a time.
+     */
+    public void setParallelContraction(boolean parallelContraction) {
+        this.parallelContraction = parallelContraction;
+    }
+
+    /**
+     * The number of hierarchies built at the same time; defaults to two. Each one holds its own
+     * copy of the base graph's adjacency lists while it is built, so the peak memory of a build
+     * grows with this number. Each hierarchy also runs its witness searches on its own pool.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     public boolean hasService(Class<CalendarServiceData> serviceType) {
         return getGraph().hasService(serviceType);
     }
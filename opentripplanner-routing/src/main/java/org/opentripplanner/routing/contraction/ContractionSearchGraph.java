@@ -0,0 +1,657 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.routing.contraction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opentripplanner.routing.algorithm.CancellationToken;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.OutEdge;
+import org.opentripplanner.routing.pqueue.IntBinHeap;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The up and down graphs of a fully contracted {@link ContractionHierarchy}, flattened into arrays
+ * for fast queries. Vertices are indexed by their rank in the hierarchy and the edges of each
+ * vertex are kept in consecutive slots together with their weights and walk distances, which are
+ * computed once with the options the hierarchy was built for, the same way the weights of
+ * shortcuts are.
+ * <p>
+ * A query is a plain bidirectional Dijkstra search on doubles in a workspace that each thread
+ * reuses across queries; states are only created when the path found is unpacked into a
+ * {@link GraphPath}. This is only valid when the hierarchy has no core, since the core is searched
+ * with time-dependent traversals.
+ * <p>
+ * Distance tables between many sources and targets are computed with buckets: an upward search
+ * in the down graph from each target leaves its distance in a bucket at every vertex it settles,
+ * then an upward search from each source scans the buckets of the vertices it settles.
+ */
+public class ContractionSearchGraph {
+
+    private static final Logger _log = LoggerFactory.getLogger(ContractionSearchGraph.class);
+
+    /* number of sources or targets searched by each task of a distance table */
+    private static final int TABLE_BATCH_SIZE = 32;
+
+    private final VertexNumbering numbering;
+
+    /* the rank of each numbered vertex, -1 for vertices not in the hierarchy */
+    private final int[] ranks;
+
+    private final Vertex[] vertices;
+
+    /* upward edges, by rank of their from vertex */
+    private final int[] upStart;
+
+    private final int[] upHead;
+
+    private final double[] upWeight;
+
+    private final double[] upWalk;
+
+    private final Edge[] upEdges;
+
+    /* downward edges, by rank of their to vertex */
+    private final int[] downStart;
+
+    private final int[] downTail;
+
+    private final double[] downWeight;
+
+    private final double[] downWalk;
+
+    private final Edge[] downEdges;
+
+    private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace(vertices.length);
+        }
+    };
+
+    /**
+     * @param order
+     *            the numbers of the vertices in the order they were contracted; vertices of the
+     *            up and down graphs that are missing from it are ranked after the others
+     * @param options
+     *            the options the hierarchy was built for
+     */
+    public ContractionSearchGraph(CompactOverlayGraph up, CompactOverlayGraph down, int[] order,
+            TraverseOptions options) {
+        numbering = up.getNumbering();
+        ranks = new int[numbering.size()];
+        Arrays.fill(ranks, -1);
+        int n = 0;
+        if (order != null) {
+            for (int number : order) {
+                ranks[number] = n++;
+            }
+        }
+        for (int number = 0; number < ranks.length; number++) {
+            Vertex v = numbering.getVertex(number);
+            if (ranks[number] < 0 && (up.containsVertex(v) || down.containsVertex(v))) {
+                ranks[number] = n++;
+            }
+        }
+        vertices = new Vertex[n];
+        for (int number = 0; number < ranks.length; number++) {
+            if (ranks[number] >= 0) {
+                vertices[ranks[number]] = numbering.getVertex(number);
+            }
+        }
+
+        TraverseOptions backOptions = options.clone();
+        backOptions.setArriveBy(true);
+
+        int nUp = 0, nDown = 0;
+        for (Vertex v : vertices) {
+            nUp += up.getDegreeOut(v);
+            nDown += down.getDegreeIn(v);
+        }
+        upStart = new int[n + 1];
+        int[] upHead = new int[nUp];
+        double[] upWeight = new double[nUp];
+        double[] upWalk = new double[nUp];
+        Edge[] upEdges = new Edge[nUp];
+        downStart = new int[n + 1];
+        int[] downTail = new int[nDown];
+        double[] downWeight = new double[nDown];
+        double[] downWalk = new double[nDown];
+        Edge[] downEdges = new Edge[nDown];
+        nUp = 0;
+        nDown = 0;
+        for (int rank = 0; rank < n; rank++) {
+            Vertex v = vertices[rank];
+            upStart[rank] = nUp;
+            State s0 = new State(0, v, options);
+            for (Edge e : up.getOutgoing(v)) {
+                if (e instanceof OutEdge) {
+                    continue;
+                }
+                State s1 = e.traverse(s0);
+                int head = s1 == null ? -1 : getRank(s1.getVertex());
+                if (head < 0) {
+                    continue;
+                }
+                upHead[nUp] = head;
+                upWeight[nUp] = s1.getWeight() - s0.getWeight();
+                upWalk[nUp] = s1.getWalkDistance() - s0.getWalkDistance();
+                upEdges[nUp++] = e;
+            }
+            downStart[rank] = nDown;
+            s0 = new State(0, v, backOptions);
+            for (Edge e : down.getIncoming(v)) {
+                if (e instanceof OutEdge) {
+                    continue;
+                }
+                State s1 = e.traverse(s0);
+                int tail = s1 == null ? -1 : getRank(s1.getVertex());
+                if (tail < 0) {
+                    continue;
+                }
+                downTail[nDown] = tail;
+                downWeight[nDown] = s1.getWeight() - s0.getWeight();
+                downWalk[nDown] = s1.getWalkDistance() - s0.getWalkDistance();
+                downEdges[nDown++] = e;
+            }
+        }
+        upStart[n] = nUp;
+        downStart[n] = nDown;
+        this.upHead = Arrays.copyOf(upHead, nUp);
+        this.upWeight = Arrays.copyOf(upWeight, nUp);
+        this.upWalk = Arrays.copyOf(upWalk, nUp);
+        this.upEdges = Arrays.copyOf(upEdges, nUp);
+        this.downTail = Arrays.copyOf(downTail, nDown);
+        this.downWeight = Arrays.copyOf(downWeight, nDown);
+        this.downWalk = Arrays.copyOf(downWalk, nDown);
+        this.downEdges = Arrays.copyOf(downEdges, nDown);
+    }
+
+    /** @return the rank of a vertex, or -1 if it is not in the hierarchy */
+    public int getRank(Vertex v) {
+        int number = numbering.getNumber(v);
+        return number < 0 ? -1 : ranks[number];
+    }
+
+    public boolean containsVertex(Vertex v) {
+        return getRank(v) >= 0;
+    }
+
+    /**
+     * Find the shortest path between two vertices of the hierarchy.
+     * 
+     * @param options
+     *            the options of the states of the path; the search itself uses the weights
+     *            computed for the hierarchy, but respects maxWeight, worstTime and the maximum
+     *            walk distance of these options
+     * @return the path, or null if there is none within the limits
+     */
+    public GraphPath getShortestPath(Vertex origin, Vertex target, long time,
+            TraverseOptions options) {
+        int source = getRank(origin);
+        int sink = getRank(target);
+        if (source < 0 || sink < 0) {
+            return null;
+        }
+        double maxWeight = options.maxWeight;
+        double maxWalkDistance = options.getMaxWalkDistance();
+
+        Workspace w = workspaces.get();
+        w.clear();
+        w.reachUp(source, 0, 0, -1);
+        w.reachDown(sink, 0, 0, -1);
+
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        IntBinHeap upQueue = w.upQueue;
+        IntBinHeap downQueue = w.downQueue;
+        while (!upQueue.empty() || !downQueue.empty()) {
+            boolean forward = downQueue.empty()
+                    || (!upQueue.empty() && upQueue.peek_min_key() <= downQueue.peek_min_key());
+            IntBinHeap queue = forward ? upQueue : downQueue;
+            double d = queue.peek_min_key();
+            int u = queue.extract_min();
+            if (d >= best) {
+                // nothing left in this direction can improve on the best meeting
+                queue.reset();
+                continue;
+            }
+            if (forward) {
+                if (d > w.upDist[u]) {
+                    continue;
+                }
+                if (w.downStamp[u] == w.generation && w.upWalk[u] + w.downWalk[u] <= maxWalkDistance
+                        && d + w.downDist[u] < best) {
+                    best = d + w.downDist[u];
+                    meeting = u;
+                }
+                for (int i = upStart[u]; i < upStart[u + 1]; i++) {
+                    double weight = d + upWeight[i];
+                    double walk = w.upWalk[u] + upWalk[i];
+                    if (weight <= maxWeight && walk <= maxWalkDistance) {
+                        w.reachUp(upHead[i], weight, walk, i);
+                    }
+                }
+            } else {
+                if (d > w.downDist[u]) {
+                    continue;
+                }
+                if (w.upStamp[u] == w.generation && w.upWalk[u] + w.downWalk[u] <= maxWalkDistance
+                        && d + w.upDist[u] < best) {
+                    best = d + w.upDist[u];
+                    meeting = u;
+                }
+                for (int i = downStart[u]; i < downStart[u + 1]; i++) {
+                    double weight = d + downWeight[i];
+                    double walk = w.downWalk[u] + downWalk[i];
+                    if (weight <= maxWeight && walk <= maxWalkDistance) {
+                        w.reachDown(downTail[i], weight, walk, i);
+                    }
+                }
+            }
+        }
+        if (meeting < 0) {
+            return null;
+        }
+
+        /* collect the edges of the path in order, from the origin to the target */
+        LinkedList<Edge> edges = new LinkedList<Edge>();
+        for (int v = meeting; w.upParent[v] >= 0;) {
+            int i = w.upParent[v];
+            edges.addFirst(upEdges[i]);
+            v = getRank(upEdges[i].getFromVertex());
+        }
+        for (int v = meeting; w.downParent[v] >= 0;) {
+            int i = w.downParent[v];
+            edges.addLast(downEdges[i]);
+            v = getDownHead(i);
+        }
+        return unpack(edges, origin, target, time, options);
+    }
+
+    /**
+     * Compute the shortest path weights between each source and each target.
+     * 
+     * @param maxWeight
+     *            paths heavier than this are not searched for
+     * @param threads
+     *            the number of threads searching from sources (and targets) at the same time;
+     *            with one, the table is computed on the calling thread
+     * @param token
+     *            stops the searches if it is cancelled; may be null
+     * @return the table, or null if the token was cancelled
+     */
+    public DistanceTable getDistanceTable(List<Vertex> sources, List<Vertex> targets,
+            final double maxWeight, int threads, final CancellationToken token) {
+        long start = System.currentTimeMillis();
+        final int nTargets = targets.size();
+        final int[] targetRanks = getRanks(targets);
+        final int[] sourceRanks = getRanks(sources);
+
+        /* fill the buckets from upward searches from the targets in the down graph */
+        List<Callable<BucketEntries>> targetTasks = new ArrayList<Callable<BucketEntries>>();
+        for (int i = 0; i < nTargets; i += TABLE_BATCH_SIZE) {
+            final int first = i;
+            final int last = Math.min(i + TABLE_BATCH_SIZE, nTargets);
+            targetTasks.add(new Callable<BucketEntries>() {
+                @Override
+                public BucketEntries call() {
+                    Workspace w = workspaces.get();
+                    BucketEntries entries = new BucketEntries();
+                    for (int target = first; target < last; target++) {
+                        if (token != null && token.isCancelled()) {
+                            break;
+                        }
+                        if (targetRanks[target] < 0) {
+                            continue;
+                        }
+                        searchDown(w, targetRanks[target], maxWeight);
+                        for (int i = 0; i < w.nSettled; i++) {
+                            int v = w.settled[i];
+                            entries.add(v, target, w.downDist[v], w.downWalk[v]);
+                        }
+                    }
+                    return entries;
+                }
+            });
+        }
+        final Buckets buckets = new Buckets(vertices.length, run(targetTasks, threads));
+
+        /* scan the buckets from upward searches from the sources */
+        final double[][] weights = new double[sources.size()][];
+        final double[][] walkDistances = new double[sources.size()][];
+        List<Callable<Object>> sourceTasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < sources.size(); i += TABLE_BATCH_SIZE) {
+            final int first = i;
+            final int last = Math.min(i + TABLE_BATCH_SIZE, sources.size());
+            sourceTasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    Workspace w = workspaces.get();
+                    for (int source = first; source < last; source++) {
+                        double[] row = new double[nTargets];
+                        double[] walkRow = new double[nTargets];
+                        Arrays.fill(row, Double.POSITIVE_INFINITY);
+                        Arrays.fill(walkRow, Double.POSITIVE_INFINITY);
+                        weights[source] = row;
+                        walkDistances[source] = walkRow;
+                        if (sourceRanks[source] < 0 || (token != null && token.isCancelled())) {
+                            continue;
+                        }
+                        searchUp(w, sourceRanks[source], maxWeight);
+                        for (int i = 0; i < w.nSettled; i++) {
+                            int v = w.settled[i];
+                            double d = w.upDist[v];
+                            for (int j = buckets.start[v]; j < buckets.start[v + 1]; j++) {
+                                int target = buckets.target[j];
+                                double weight = d + buckets.weight[j];
+                                /* both halves are within maxWeight, but not always their sum */
+                                if (weight <= maxWeight && weight < row[target]) {
+                                    row[target] = weight;
+                                    walkRow[target] = w.upWalk[v] + buckets.walk[j];
+                                }
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        run(sourceTasks, threads);
+        if (token != null && token.isCancelled()) {
+            return null;
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        long cells = (long) sources.size() * nTargets;
+        _log.debug("computed " + sources.size() + "x" + nTargets + " distance table in " + elapsed
+                + "ms (" + (elapsed == 0 ? cells : cells * 1000 / elapsed) + " cells/sec)");
+        return new DistanceTable(weights, walkDistances);
+    }
+
+    private int[] getRanks(List<Vertex> list) {
+        int[] ranks = new int[list.size()];
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = getRank(list.get(i));
+        }
+        return ranks;
+    }
+
+    /** Settle all vertices reachable in the up graph; they are left in the workspace. */
+    private void searchUp(Workspace w, int source, double maxWeight) {
+        w.clear();
+        w.reachUp(source, 0, 0, -1);
+        IntBinHeap queue = w.upQueue;
+        while (!queue.empty()) {
+            double d = queue.peek_min_key();
+            int u = queue.extract_min();
+            if (d > w.upDist[u]) {
+                continue;
+            }
+            w.settle(u);
+            for (int i = upStart[u]; i < upStart[u + 1]; i++) {
+                double weight = d + upWeight[i];
+                if (weight <= maxWeight) {
+                    w.reachUp(upHead[i], weight, w.upWalk[u] + upWalk[i], i);
+                }
+            }
+        }
+    }
+
+    /** Settle all vertices from which the target can be reached in the down graph. */
+    private void searchDown(Workspace w, int target, double maxWeight) {
+        w.clear();
+        w.reachDown(target, 0, 0, -1);
+        IntBinHeap queue = w.downQueue;
+        while (!queue.empty()) {
+            double d = queue.peek_min_key();
+            int u = queue.extract_min();
+            if (d > w.downDist[u]) {
+                continue;
+            }
+            w.settle(u);
+            for (int i = downStart[u]; i < downStart[u + 1]; i++) {
+                double weight = d + downWeight[i];
+                if (weight <= maxWeight) {
+                    w.reachDown(downTail[i], weight, w.downWalk[u] + downWalk[i], i);
+                }
+            }
+        }
+    }
+
+    private static <T> List<T> run(List<Callable<T>> tasks, int threads) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        if (threads <= 1 || tasks.size() <= 1) {
+            try {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("error computing a distance table", e);
+            }
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                Math.min(threads, tasks.size())));
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while computing a distance table");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("error computing a distance table", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /* the rank of the vertex a downward edge leads to */
+    private int getDownHead(int edge) {
+        int index = Arrays.binarySearch(downStart, edge);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // skip vertices without downward edges, which start at the same index
+        while (downStart[index + 1] == edge) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Traverse the edges of a path found in the hierarchy, unpacking shortcuts, in the direction
+     * of the options.
+     */
+    private GraphPath unpack(LinkedList<Edge> edges, Vertex origin, Vertex target, long time,
+            TraverseOptions options) {
+        State s;
+        if (options.isArriveBy()) {
+            s = new State(time, target, options);
+            for (Iterator<Edge> it = edges.descendingIterator(); it.hasNext() && s != null;) {
+                s = traverse(it.next(), s);
+            }
+        } else {
+            s = new State(time, origin, options);
+            for (Iterator<Edge> it = edges.iterator(); it.hasNext() && s != null;) {
+                s = traverse(it.next(), s);
+            }
+        }
+        // traversals might exceed limits and fail during unpacking, even if they didn't during search
+        if (s == null) {
+            return null;
+        }
+        if (options.isArriveBy() ? s.getTime() < options.worstTime : s.getTime() > options.worstTime) {
+            return null;
+        }
+        return new GraphPath(s, false);
+    }
+
+    private static State traverse(Edge e, State s) {
+        if (e instanceof Shortcut) {
+            return ((Shortcut) e).unpackTraverse(s);
+        }
+        return e.traverse(s);
+    }
+
+    /**
+     * The distances, walk distances and parent edges of both directions of a search. Entries are
+     * valid for the current search only if their stamp is the current generation, so clearing is
+     * constant time.
+     */
+    private static class Workspace {
+        int generation;
+
+        final int[] upStamp, downStamp;
+
+        final double[] upDist, downDist;
+
+        final double[] upWalk, downWalk;
+
+        final int[] upParent, downParent;
+
+        final IntBinHeap upQueue = new IntBinHeap(), downQueue = new IntBinHeap();
+
+        /* the vertices settled by the last one-to-all search */
+        final int[] settled;
+
+        int nSettled;
+
+        Workspace(int n) {
+            settled = new int[n];
+            upStamp = new int[n];
+            downStamp = new int[n];
+            upDist = new double[n];
+            downDist = new double[n];
+            upWalk = new double[n];
+            downWalk = new double[n];
+            upParent = new int[n];
+            downParent = new int[n];
+        }
+
+        void clear() {
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(upStamp, 0);
+                Arrays.fill(downStamp, 0);
+                generation = 1;
+            }
+            upQueue.reset();
+            downQueue.reset();
+            nSettled = 0;
+        }
+
+        void settle(int v) {
+            settled[nSettled++] = v;
+        }
+
+        void reachUp(int v, double weight, double walk, int parent) {
+            if (upStamp[v] != generation || weight < upDist[v]) {
+                upStamp[v] = generation;
+                upDist[v] = weight;
+                upWalk[v] = walk;
+                upParent[v] = parent;
+                upQueue.insert(v, weight);
+            }
+        }
+
+        void reachDown(int v, double weight, double walk, int parent) {
+            if (downStamp[v] != generation || weight < downDist[v]) {
+                downStamp[v] = generation;
+                downDist[v] = weight;
+                downWalk[v] = walk;
+                downParent[v] = parent;
+                downQueue.insert(v, weight);
+            }
+        }
+    }
+
+    /** The distances from the targets of a distance table to the vertices their searches settled. */
+    private static class BucketEntries {
+        int size;
+
+        int[] vertex = new int[256], target = new int[256];
+
+        double[] weight = new double[256], walk = new double[256];
+
+        void add(int v, int t, double w, double wd) {
+            if (size == vertex.length) {
+                vertex = Arrays.copyOf(vertex, size * 2);
+                target = Arrays.copyOf(target, size * 2);
+                weight = Arrays.copyOf(weight, size * 2);
+                walk = Arrays.copyOf(walk, size * 2);
+            }
+            vertex[size] = v;
+            target[size] = t;
+            weight[size] = w;
+            walk[size] = wd;
+            size++;
+        }
+    }
+
+    /** Bucket entries grouped by vertex rank. */
+    private static class Buckets {
+        final int[] start;
+
+        final int[] target;
+
+        final double[] weight, walk;
+
+        Buckets(int n, List<BucketEntries> entries) {
+            start = new int[n + 1];
+            int total = 0;
+            for (BucketEntries e : entries) {
+                for (int i = 0; i < e.size; i++) {
+                    start[e.vertex[i] + 1]++;
+                }
+                total += e.size;
+            }
+            for (int v = 0; v < n; v++) {
+                start[v + 1] += start[v];
+            }
+            target = new int[total];
+            weight = new double[total];
+            walk = new double[total];
+            int[] next = Arrays.copyOf(start, n);
+            for (BucketEntries e : entries) {
+                for (int i = 0; i < e.size; i++) {
+                    int j = next[e.vertex[i]]++;
+                    target[j] = e.target[i];
+                    weight[j] = e.weight[i];
+                    walk[j] = e.walk[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.routing.contraction;
+
+/**
+ * The weights and walk distances of the shortest paths between each of a list of sources and
+ * each of a list of targets, as computed by {@link ContractionHierarchy#getDistanceTable}. Pairs
+ * without a path (or with none within the weight limit) have infinite weight and walk distance.
+ */
+public class DistanceTable {
+
+    private final double[][] weights;
+
+    private final double[][] walkDistances;
+
+    public DistanceTable(double[][] weights, double[][] walkDistances) {
+        this.weights = weights;
+        this.walkDistances = walkDistances;
+    }
+
+    public int getSourceCount() {
+        return weights.length;
+    }
+
+    public int getTargetCount() {
+        return weights.length == 0 ? 0 : weights[0].length;
+    }
+
+    /** @return the weight of the shortest path from a source to a target */
+    public double getWeight(int source, int target) {
+        return weights[source][target];
+    }
+
+    /** @return the distance walked (or biked) along the shortest path from a source to a target */
+    public double getWalkDistance(int source, int target) {
+        return walkDistances[source][target];
+    }
+
+    public boolean hasPath(int source, int target) {
+        return weights[source][target] != Double.POSITIVE_INFINITY;
+    }
+}
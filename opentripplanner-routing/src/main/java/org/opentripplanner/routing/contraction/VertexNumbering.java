@@ -0,0 +1,68 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.routing.contraction;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.Vertex;
+
+/**
+ * A dense numbering of the vertices of a graph, so that per-vertex data can be kept in arrays.
+ * The numbering is fixed when it is created and can be shared by all the structures built from the
+ * same graph, such as the hierarchies of a {@link ContractionHierarchySet}. Like the graph itself,
+ * it identifies vertices by label. Vertices added to the graph later (for instance temporary
+ * vertices created for a request) have no number.
+ */
+public class VertexNumbering implements Serializable {
+
+    private static final long serialVersionUID = 20110801L;
+
+    private final Vertex[] vertices;
+
+    private final HashMap<String, Integer> numbers;
+
+    public VertexNumbering(Graph graph) {
+        vertices = new Vertex[graph.getVertices().size()];
+        numbers = new HashMap<String, Integer>(vertices.length * 2);
+        int i = 0;
+        for (GraphVertex gv : graph.getVertices()) {
+            vertices[i] = gv.vertex;
+            numbers.put(gv.vertex.getLabel(), i);
+            i++;
+        }
+    }
+
+    /** @return the number of the vertex, or -1 if it was not in the graph */
+    public int getNumber(Vertex v) {
+        return getNumber(v.getLabel());
+    }
+
+    /** @return the number of the vertex with this label, or -1 if it was not in the graph */
+    public int getNumber(String label) {
+        Integer number = numbers.get(label);
+        return number == null ? -1 : number;
+    }
+
+    public Vertex getVertex(int number) {
+        return vertices[number];
+    }
+
+    public int size() {
+        return vertices.length;
+    }
+}
@@ -18,6 +18,7 @@ import java.util.Date;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
@@ -40,7 +41,8 @@ public class Graph implements Serializable {
 
     private long transitServiceEnds = 0;
 
-    private Map<Class<?>, Object> _services = new HashMap<Class<?>, Object>();
+    /* graph builders that run concurrently may register services at the same time */
+    private Map<Class<?>, Object> _services = new ConcurrentHashMap<Class<?>, Object>();
 
     HashMap<String, GraphVertex> vertices;
 
@@ -154,6 +156,10 @@ public class Graph implements Serializable {
         return (T) _services.get(serviceType);
     }
 
+    public Collection<Class<?>> getServiceTypes() {
+        return _services.keySet();
+    }
+
     public void removeVertex(Vertex vertex) {
         vertices.remove(vertex.getLabel());
     }
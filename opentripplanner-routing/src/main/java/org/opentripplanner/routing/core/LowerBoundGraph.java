@@ -16,16 +16,26 @@ package org.opentripplanner.routing.core;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.opentripplanner.routing.location.StreetLocation;
 import org.opentripplanner.routing.pqueue.BinHeap;
+import org.opentripplanner.routing.pqueue.IntBinHeap;
 import org.opentripplanner.routing.spt.BasicShortestPathTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A directed, non-time-dependent graph
- * intended for calculating embeddings and other heuristic-related stuff
+ * intended for calculating embeddings and other heuristic-related stuff.
+ * 
+ * Edges are stored in compressed sparse rows: the edges leaving vertex index i are
+ * edgeStart[i] until edgeStart[i + 1] in edgeTarget and edgeWeight. Weights are floats
+ * rounded down, so they remain lower bounds; searches add them up in double precision.
  * @author andrewbyrd
  */
 public class LowerBoundGraph {
@@ -36,179 +46,235 @@ public class LowerBoundGraph {
     public static final int INCOMING = -1;
 	
 	Graph originalGraph;
-	int   [][] vertex;
-	double[][] weight;
+	int[] edgeStart;
+	int[] edgeTarget;
+	float[] edgeWeight;
 	int nVertices = 0;
     Vertex[] vertexByIndex;
-	private int heaviest; // the last vertex that was pulled from the queue at the last search
+    /* searches only borrow the queue for the duration of the call */
+    private final ThreadLocal<IntBinHeap> queues = new ThreadLocal<IntBinHeap>() {
+        @Override
+        protected IntBinHeap initialValue() {
+            return new IntBinHeap();
+        }
+    };
 
 	public LowerBoundGraph(Graph original, int kind) {
 		originalGraph = original;
 		nVertices = GenericVertex.maxIndex;
-		LOG.info("Table size is: {}", nVertices);
-		vertex = new int   [nVertices][];
-		weight = new double[nVertices][];
+		LOG.debug("Table size is: {}", nVertices);
 		vertexByIndex = new Vertex[nVertices];
 		TraverseOptions opt = new TraverseOptions();
 		if (kind == INCOMING)
 			opt.setArriveBy(true);
-		LOG.info("Loading origial graph into compact representation...");
-		ArrayList<State> svs = new ArrayList<State>();
+		LOG.debug("Loading original graph into compact representation...");
+		EdgeList edges = new EdgeList();
 		for (GraphVertex gv : original.getVertices()) {
 			GenericVertex u = (GenericVertex) (gv.vertex); 
 			State su = new State(u, opt);
-			svs.clear();
-			Iterable<Edge> edges;
+			Iterable<Edge> outgoing;
 			if (kind == INCOMING)
-				edges = original.getIncoming(u);
+				outgoing = original.getIncoming(u);
 			else 
-				edges = original.getOutgoing(u);
-			// avoid empty edgelist entries by traversing all edges first
-			for (Edge e : edges) {
+				outgoing = original.getOutgoing(u);
+			for (Edge e : outgoing) {
 				State sv = e.optimisticTraverse(su);
 				if (sv != null) {
-					svs.add(sv);
-					//System.out.println(sv.getWeight() + " " + e);
+					int vi = ((GenericVertex) (sv.getVertex())).index;
+					edges.add(u.index, vi, sv.getWeight());
+					// turn discrete normed (quasi-metric) space 
+					// into a discrete metric space 
+					// while maintaining lower bound property
+					if (kind == UNDIRECTED)
+						edges.add(vi, u.index, sv.getWeight());
 				}
 			}
-			int ui = u.index;
-			int ne = svs.size(); 
-			vertex[ui] = new int[ne];
-			weight[ui] = new double[ne];
-			int ei = 0;
-			for (State sv : svs) {
-				vertex[ui][ei] = ((GenericVertex)(sv.getVertex())).index;
-				weight[ui][ei] = sv.getWeight();
-				ei++;
-			}
-			vertexByIndex[ui] = u;
+			vertexByIndex[u.index] = u;
 		}
-		if (kind == UNDIRECTED)
-			this.symmetricize();
+		compress(edges);
+		LOG.debug("Lower bound graph has {} edges", edgeTarget.length);
 	}
-	
-	
-	// turn discrete normed (quasi-metric) space 
-	// into a discrete metric space 
-	// while maintaining lower bound property
-	private void symmetricize() {
-		LOG.info("Making distance metric commutative");
+
+	/*
+	 * Sort the edges into rows by their tail vertex, keeping only the lightest of parallel
+	 * edges (which also makes both directions of an undirected edge equally heavy)
+	 */
+	private void compress(EdgeList edges) {
+		int[] start = new int[nVertices + 1];
+		for (int i = 0; i < edges.size; i++)
+			start[edges.tail[i] + 1]++;
+		for (int ui = 0; ui < nVertices; ui++)
+			start[ui + 1] += start[ui];
+		int[] head = new int[edges.size];
+		double[] weight = new double[edges.size];
+		int[] next = Arrays.copyOf(start, nVertices);
+		for (int i = 0; i < edges.size; i++) {
+			int j = next[edges.tail[i]]++;
+			head[j] = edges.head[i];
+			weight[j] = edges.weight[i];
+		}
+
+		edgeStart = new int[nVertices + 1];
+		edgeTarget = new int[edges.size];
+		edgeWeight = new float[edges.size];
+		// position of the edge to each head in the current row, stale if before the row start
+		int[] slot = new int[nVertices];
+		Arrays.fill(slot, -1);
+		int ne = 0;
 		for (int ui = 0; ui < nVertices; ui++) {
-			//System.out.println("A " + ui);
-			int[]    u_vs = vertex[ui];
-			double[] u_ws = weight[ui];
-			if (u_vs == null) continue;
-			int      u_ne = u_vs.length;
-			//System.out.println(Arrays.toString(u_vs));
-			//System.out.println(Arrays.toString(u_ws));
-			for (int u_ei = 0; u_ei < u_ne; u_ei++) {
-				int    vi = u_vs[u_ei]; 
-				double vw = u_ws[u_ei];
-				//System.out.println("B pre" + vi);
-				int[]    v_vs = vertex[vi];
-				double[] v_ws = weight[vi];
-				//System.out.println(Arrays.toString(v_vs));
-				//System.out.println(Arrays.toString(v_ws));
-				int      v_ne = v_vs.length;
-				boolean found = false;
-				for (int v_ei = 0; v_ei < v_ne; ++v_ei) {
-					if (v_vs[v_ei] == ui) {
-	  					if (v_ws[v_ei] > vw)
-							v_ws[v_ei] = vw;
-	  					else 
-	  						u_ws[u_ei] = v_ws[v_ei];
-	  					found = true;
-	  					break;
-					}
-				}
-				if (! found) {
-					vertex[vi] = Arrays.copyOf(v_vs, v_ne + 1);
-					weight[vi] = Arrays.copyOf(v_ws, v_ne + 1);
-					vertex[vi][v_ne] = ui;
-					weight[vi][v_ne] = vw;
+			edgeStart[ui] = ne;
+			for (int j = start[ui]; j < start[ui + 1]; j++) {
+				int vi = head[j];
+				float w = roundDown(weight[j]);
+				if (slot[vi] >= edgeStart[ui]) {
+					if (edgeWeight[slot[vi]] > w)
+						edgeWeight[slot[vi]] = w;
+				} else {
+					slot[vi] = ne;
+					edgeTarget[ne] = vi;
+					edgeWeight[ne] = w;
+					ne++;
 				}
-				//System.out.println("B post" + vi);
-				//System.out.println(Arrays.toString(vertex[vi]));
-				//System.out.println(Arrays.toString(weight[vi]));
-			}			
+			}
+		}
+		edgeStart[nVertices] = ne;
+		edgeTarget = Arrays.copyOf(edgeTarget, ne);
+		edgeWeight = Arrays.copyOf(edgeWeight, ne);
+	}
+
+	private static float roundDown(double w) {
+		float f = (float) w;
+		if (f > w)
+			f = Math.nextAfter(f, Double.NEGATIVE_INFINITY);
+		return f;
+	}
+
+	/** Edges in the order they were found, before they are sorted into rows */
+	private static class EdgeList {
+		int size;
+
+		int[] tail = new int[1024], head = new int[1024];
+
+		double[] weight = new double[1024];
+
+		void add(int t, int h, double w) {
+			if (size == tail.length) {
+				tail = Arrays.copyOf(tail, size * 2);
+				head = Arrays.copyOf(head, size * 2);
+				weight = Arrays.copyOf(weight, size * 2);
+			}
+			tail[size] = t;
+			head[size] = h;
+			weight[size] = w;
+			size++;
 		}
 	}
 
-	
 	// single-source shortest path (weight to all reachable destinations)
 	// single-origin version
-	public double[] sssp(Vertex origin) {
-		return sssp(Arrays.asList(origin));
+	public VertexWeights sssp(Vertex origin) {
+		return sssp(origin, new VertexWeights(nVertices));
+	}
+
+	public VertexWeights sssp(Vertex origin, VertexWeights result) {
+		return sssp(Arrays.asList(origin), result);
 	}
 	
 	// single-source shortest path (weight to all reachable destinations)
 	// allows several origins
-	public double[] sssp(Iterable<Vertex> origins) {
-		double[] result = new double[nVertices];
-		Arrays.fill(result, Double.POSITIVE_INFINITY);
-		BinHeap<Integer> q = new BinHeap<Integer>();
+	public VertexWeights sssp(Iterable<Vertex> origins) {
+		return sssp(origins, new VertexWeights(nVertices));
+	}
+
+	/**
+	 * Weights from the nearest of the origins to all reachable vertices, reusing the given
+	 * result buffer (which is cleared first).
+	 */
+	public VertexWeights sssp(Iterable<Vertex> origins, VertexWeights result) {
+		result.clear(nVertices);
+		IntBinHeap q = queues.get();
+		q.reset();
 		for (Vertex origin : origins) {
 			int originIndex = ((GenericVertex)origin).index;
-			result[originIndex] = 0;
-			q.insert(originIndex, 0);
+			if (result.improve(originIndex, 0))
+				q.insert(originIndex, 0);
 		}
-		long t0 = System.currentTimeMillis();
-		while ( ! q.empty()) {
-			double   uw = q.peek_min_key();
-			int      ui = q.extract_min();
-			int[]    vs = vertex[ui];
-			double[] ws = weight[ui];
-			int      ne = vs.length;
-			if (ne > 0) // track last extracted node with outgoing edges
-				heaviest = ui;
-			for (int ei = 0; ei < ne; ei++) {
-				int    vi = vs[ei]; 
-				double vw = ws[ei] + uw;
-				if (result[vi] > vw) {
-					result[vi] = vw;
-					q.insert(vi, vw);
-				}
-			}
-		}
-		LOG.info("End SSSP ({} msec)", System.currentTimeMillis() - t0);
+		search(q, result);
 		return result;
 	}
 	
 	// single-source shortest path (weight to all reachable destinations)
-	public double[] sssp(StreetLocation origin) {
-		double[] result = new double[nVertices];
-		Arrays.fill(result, Double.POSITIVE_INFINITY);
-		BinHeap<Integer> q = new BinHeap<Integer>();
+	public VertexWeights sssp(StreetLocation origin) {
+		return sssp(origin, new VertexWeights(nVertices));
+	}
+
+	public VertexWeights sssp(StreetLocation origin, VertexWeights result) {
+		result.clear(nVertices);
+		IntBinHeap q = queues.get();
+		q.reset();
 		for (DirectEdge de : origin.getExtra()) {
 			GenericVertex toVertex = (GenericVertex)(de.getToVertex());  
 			int toIndex = toVertex.getIndex();
 			if (toVertex == origin) continue;
 			if (toIndex >= nVertices) continue;
-			result[toIndex] = 0;
-			q.insert(toIndex, 0);
+			if (result.improve(toIndex, 0))
+				q.insert(toIndex, 0);
 		}
-		LOG.info("Performing SSSP");
+		search(q, result);
+		return result;
+	}
+
+	private void search(IntBinHeap q, VertexWeights result) {
+		long t0 = System.nanoTime();
 		while ( ! q.empty()) {
-			double   uw = q.peek_min_key();
-			int      ui = q.extract_min();
-			int[]    vs = vertex[ui];
-			double[] ws = weight[ui];
-			if (vs == null) continue;
-			int      ne = vs.length;
-			//closed[ui]  = true;
-			for (int ei = 0; ei < ne; ei++) {
-				int    vi = vs[ei]; 
-				double vw = ws[ei] + uw;
-				//if (closed[vi])
-				//	continue;
-				if (result[vi] > vw) {
-					result[vi] = vw;
+			double uw = q.peek_min_key();
+			int    ui = q.extract_min();
+			if (uw > result.getWeight(ui)) // stale queue entry
+				continue;
+			int end = edgeStart[ui + 1];
+			if (end > edgeStart[ui]) // track last extracted node with outgoing edges
+				result.farthest = ui;
+			for (int ei = edgeStart[ui]; ei < end; ei++) {
+				int    vi = edgeTarget[ei]; 
+				double vw = edgeWeight[ei] + uw;
+				if (result.improve(vi, vw))
 					q.insert(vi, vw);
-				}
 			}
 		}
-		LOG.info("End SSSP");
-		return result;
+		if (LOG.isTraceEnabled())
+			LOG.trace("End SSSP ({} usec)", (System.nanoTime() - t0) / 1000);
+	}
+
+	/**
+	 * One single-source search from each of the origins, split over the given number of threads.
+	 * @return the weights from each origin, in the order of the origins
+	 */
+	public List<VertexWeights> sssp(List<? extends Vertex> origins, int threads) {
+		List<Callable<VertexWeights>> tasks = new ArrayList<Callable<VertexWeights>>(origins.size());
+		for (final Vertex origin : origins) {
+			tasks.add(new Callable<VertexWeights>() {
+				public VertexWeights call() {
+					return sssp(origin);
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(threads, tasks.size())));
+		try {
+			List<VertexWeights> results = new ArrayList<VertexWeights>(tasks.size());
+			for (Future<VertexWeights> future : executor.invokeAll(tasks))
+				results.add(future.get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while computing lower bounds");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("error computing lower bounds", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
 	}
 	
 	public static void main(String args[]) {
@@ -298,15 +364,16 @@ public class LowerBoundGraph {
 	 * If the list of origins is empty, return a random vertex that is 'on the edge' of the graph.
 	 */
 	public Vertex farthestFrom(List<Vertex> origins) {
+		VertexWeights result = new VertexWeights(nVertices);
 		if (origins.size() == 0) {
-			sssp(vertexByIndex[(int)(Math.random() * nVertices)]);
-			LOG.debug("random farthest vertex is {}", vertexByIndex[heaviest]);
-			sssp(vertexByIndex[heaviest]);
+			sssp(vertexByIndex[(int)(Math.random() * nVertices)], result);
+			LOG.debug("random farthest vertex is {}", vertexByIndex[result.farthest]);
+			sssp(vertexByIndex[result.farthest], result);
 		} else {
-			sssp(origins);
+			sssp(origins, result);
 		}
-		LOG.debug("farthest vertex from {} is {}", origins, vertexByIndex[heaviest]);
-		return vertexByIndex[heaviest];
+		LOG.debug("farthest vertex from {} is {}", origins, vertexByIndex[result.farthest]);
+		return vertexByIndex[result.farthest];
 	}
 	
 
@@ -26,6 +26,8 @@ import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.onebusaway.gtfs.services.calendar.CalendarService;
 import org.opentripplanner.gtfs.GtfsContext;
+import org.opentripplanner.routing.algorithm.CancellationToken;
+import org.opentripplanner.routing.algorithm.SearchStats;
 import org.opentripplanner.routing.algorithm.strategies.DefaultExtraEdgesStrategy;
 import org.opentripplanner.routing.algorithm.strategies.DefaultRemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.ExtraEdgesStrategy;
@@ -174,6 +176,18 @@ public class TraverseOptions implements Cloneable, Serializable {
      */
     public long searchAbortTime = 0;
     
+    /**
+     * If true, a search that times out returns whatever complete paths to the target it has
+     * found so far (which may not be optimal) instead of failing outright.
+     */
+    public boolean partialPathsOnTimeout = false;
+
+    /**
+     * If set, searches using these options (and their clones) stop as soon as this token is
+     * cancelled. Shared rather than copied by {@link #clone()}.
+     */
+    public transient CancellationToken cancellationToken = null;
+
     private TraverseOptions walkingOptions;
     
     public GenericAStarFactory aStarSearchFactory = null;
@@ -182,6 +196,13 @@ public class TraverseOptions implements Cloneable, Serializable {
 
     public ExtraEdgesStrategy extraEdgesStrategy = new DefaultExtraEdgesStrategy();
 
+    /**
+     * If set, searches using these options (and their clones) record their counters here. This
+     * is per-request state, so it is not serialized and is shared rather than copied by
+     * {@link #clone()}.
+     */
+    public transient SearchStats searchStats = null;
+
     /**
      * Extensions to the trip planner will require additional traversal options beyond the default
      * set. We provide an extension point for adding arbitrary parameters with an extension-specific
@@ -0,0 +1,76 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.core;
+
+import java.util.Arrays;
+
+/**
+ * Weights indexed by {@link GenericVertex} index, as produced by one-to-all searches. Entries are
+ * only valid if their stamp is the current generation, so the buffer can be reused for another
+ * search without clearing it. Not thread-safe: each thread (or heuristic instance) should own
+ * its buffer.
+ */
+public class VertexWeights {
+
+    private double[] weight;
+
+    private int[] stamp;
+
+    private int generation = 1;
+
+    /* the last vertex with outgoing edges to leave the queue, i.e. the farthest one */
+    int farthest = -1;
+
+    public VertexWeights(int nVertices) {
+        weight = new double[nVertices];
+        stamp = new int[nVertices];
+    }
+
+    /** Forget all weights and make room for at least nVertices vertices. */
+    public void clear(int nVertices) {
+        if (nVertices > stamp.length) {
+            weight = new double[nVertices];
+            stamp = new int[nVertices];
+            generation = 1;
+        } else if (++generation == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            generation = 1;
+        }
+        farthest = -1;
+    }
+
+    /** The number of vertex indices this buffer covers. */
+    public int size() {
+        return stamp.length;
+    }
+
+    /** @return the weight of vertex index i, or infinity if it was not reached */
+    public double getWeight(int i) {
+        if (stamp[i] != generation)
+            return Double.POSITIVE_INFINITY;
+        return weight[i];
+    }
+
+    /**
+     * Lower the weight of vertex index i.
+     * @return whether the weight was improved
+     */
+    public boolean improve(int i, double w) {
+        if (stamp[i] == generation && weight[i] <= w)
+            return false;
+        stamp[i] = generation;
+        weight[i] = w;
+        return true;
+    }
+}
@@ -17,6 +17,7 @@ import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Stop;
 import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
+import org.opentripplanner.common.geometry.PackedGeometryStore;
 import org.opentripplanner.gtfs.GtfsLibrary;
 import org.opentripplanner.routing.core.AbstractEdge;
 import org.opentripplanner.routing.core.EdgeNarrative;
@@ -30,9 +31,10 @@ import org.opentripplanner.routing.impl.DistanceLibrary;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.PrecisionModel;
 
-public class Hop extends AbstractEdge implements OnBoardForwardEdge, OnBoardReverseEdge, HopEdge {
+public class Hop extends AbstractEdge implements OnBoardForwardEdge, OnBoardReverseEdge, HopEdge, PackableGeometryEdge {
 
     private static final long serialVersionUID = -7761092317912812048L;
 
@@ -91,6 +93,13 @@ public class Hop extends AbstractEdge implements OnBoardForwardEdge, OnBoardReve
 
     private Geometry geometry = null;
 
+    /* where the geometry is once packed */
+    private PackedGeometryStore geometryStore;
+
+    private int geometryOffset;
+
+    private int geometrySize;
+
     public String getDirection() {
         return start.getTrip().getTripHeadsign();
     }
@@ -115,6 +124,8 @@ public class Hop extends AbstractEdge implements OnBoardForwardEdge, OnBoardReve
     }
 
     public Geometry getGeometry() {
+        if (geometryStore != null)
+            return geometryStore.getLineString(geometryOffset, geometrySize);
         if (geometry == null) {
 
             GeometryFactory factory = new GeometryFactory(new PrecisionModel(
@@ -132,6 +143,21 @@ public class Hop extends AbstractEdge implements OnBoardForwardEdge, OnBoardReve
 
     public void setGeometry(Geometry line) {
         geometry = line;
+        geometryStore = null;
+    }
+
+    @Override
+    public boolean packGeometry(PackedGeometryStore store) {
+        if (!(geometry instanceof LineString))
+            return false;
+        int offset = store.add((LineString) geometry);
+        if (offset < 0)
+            return false;
+        geometryStore = store;
+        geometryOffset = offset;
+        geometrySize = geometry.getNumPoints();
+        geometry = null;
+        return true;
     }
 
     @Override
@@ -0,0 +1,32 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.routing.edgetype;
+
+import org.opentripplanner.common.geometry.PackedGeometryStore;
+
+/**
+ * An edge whose geometry can be moved into a {@link PackedGeometryStore} shared by the graph, and
+ * decoded again whenever it is asked for.
+ */
+public interface PackableGeometryEdge {
+
+    /**
+     * Move the geometry of this edge into the given store.
+     * 
+     * @return true if the geometry was packed, false if the edge keeps it as is (no geometry, or
+     *         one the store cannot represent)
+     */
+    public boolean packGeometry(PackedGeometryStore store);
+}
@@ -14,6 +14,7 @@
 package org.opentripplanner.routing.edgetype;
 
 import org.onebusaway.gtfs.model.Stop;
+import org.opentripplanner.common.geometry.PackedGeometryStore;
 import org.opentripplanner.gtfs.GtfsLibrary;
 import org.opentripplanner.routing.core.EdgeNarrative;
 import org.opentripplanner.routing.core.State;
@@ -26,13 +27,14 @@ import org.opentripplanner.routing.impl.DistanceLibrary;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.PrecisionModel;
 
 /**
  * A transit vehicle's journey between departure at one stop and arrival at the next.
  * This version represents a set of such journeys specified by a TripPattern.
  */
-public class PatternHop extends PatternEdge implements OnBoardForwardEdge, OnBoardReverseEdge, HopEdge {
+public class PatternHop extends PatternEdge implements OnBoardForwardEdge, OnBoardReverseEdge, HopEdge, PackableGeometryEdge {
 
     private static final long serialVersionUID = 1L;
 
@@ -42,6 +44,13 @@ public class PatternHop extends PatternEdge implements OnBoardForwardEdge, OnBoa
 
     private Geometry geometry = null;
 
+    /* where the geometry is once packed */
+    private PackedGeometryStore geometryStore;
+
+    private int geometryOffset;
+
+    private int geometrySize;
+
     public PatternHop(Vertex startJourney, Vertex endJourney, Stop start, Stop end, int stopIndex,
             TripPattern tripPattern) {
         super(startJourney, endJourney, tripPattern);
@@ -94,9 +103,26 @@ public class PatternHop extends PatternEdge implements OnBoardForwardEdge, OnBoa
 
     public void setGeometry(Geometry geometry) {
         this.geometry = geometry;
+        geometryStore = null;
+    }
+
+    @Override
+    public boolean packGeometry(PackedGeometryStore store) {
+        if (!(geometry instanceof LineString))
+            return false;
+        int offset = store.add((LineString) geometry);
+        if (offset < 0)
+            return false;
+        geometryStore = store;
+        geometryOffset = offset;
+        geometrySize = geometry.getNumPoints();
+        geometry = null;
+        return true;
     }
 
     public Geometry getGeometry() {
+        if (geometryStore != null)
+            return geometryStore.getLineString(geometryOffset, geometrySize);
         if (geometry == null) {
             GeometryFactory factory = new GeometryFactory(new PrecisionModel(
                     PrecisionModel.FLOATING), 4326);
@@ -17,7 +17,9 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.util.Set;
 
+import org.opentripplanner.common.geometry.CompactElevationProfile;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+import org.opentripplanner.common.geometry.PackedGeometryStore;
 import org.opentripplanner.routing.core.AbstractEdge;
 import org.opentripplanner.routing.core.EdgeNarrative;
 import org.opentripplanner.routing.core.NoThruTrafficState;
@@ -40,7 +42,7 @@ import com.vividsolutions.jts.geom.LineString;
  * @author novalis
  * 
  */
-public class PlainStreetEdge extends AbstractEdge implements StreetEdge {
+public class PlainStreetEdge extends AbstractEdge implements StreetEdge, PackableGeometryEdge {
 
     private static final long serialVersionUID = 1L;
 
@@ -50,6 +52,13 @@ public class PlainStreetEdge extends AbstractEdge implements StreetEdge {
 
     private LineString geometry;
 
+    /* where the geometry is once packed */
+    private PackedGeometryStore geometryStore;
+
+    private int geometryOffset;
+
+    private int geometrySize;
+
     private String name;
 
     private double slopeSpeedEffectiveLength;
@@ -147,9 +156,9 @@ public class PlainStreetEdge extends AbstractEdge implements StreetEdge {
                     2);
         }
 
-        elevationProfile = elev;
+        elevationProfile = CompactElevationProfile.create(elev);
 
-        //compute the various costs of the elevation changes
+        //compute the various costs of the elevation changes, from the exact profile
         double lengthMultiplier = ElevationUtils.getLengthMultiplierFromElevation(elev);
         length *= lengthMultiplier;
         bicycleSafetyEffectiveLength *= lengthMultiplier;
@@ -168,9 +177,25 @@ public class PlainStreetEdge extends AbstractEdge implements StreetEdge {
 
     @Override
     public LineString getGeometry() {
+        if (geometryStore != null)
+            return geometryStore.getLineString(geometryOffset, geometrySize);
         return geometry;
     }
 
+    @Override
+    public boolean packGeometry(PackedGeometryStore store) {
+        if (geometry == null)
+            return false;
+        int offset = store.add(geometry);
+        if (offset < 0)
+            return false;
+        geometryStore = store;
+        geometryOffset = offset;
+        geometrySize = geometry.getNumPoints();
+        geometry = null;
+        return true;
+    }
+
     @Override
     public TraverseMode getMode() {
         return TraverseMode.WALK;
@@ -17,6 +17,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
+import org.opentripplanner.common.geometry.CompactElevationProfile;
 import org.opentripplanner.common.geometry.DirectionUtils;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
 import org.opentripplanner.routing.core.GenericVertex;
@@ -153,9 +154,9 @@ public class StreetVertex extends GenericVertex {
                     2);
         }
 
-        elevationProfile = elev;
+        elevationProfile = CompactElevationProfile.create(elev);
 
-        //compute the various costs of the elevation changes
+        //compute the various costs of the elevation changes, from the exact profile
         double lengthMultiplier = ElevationUtils.getLengthMultiplierFromElevation(elev);
         length *= lengthMultiplier;
         bicycleSafetyEffectiveLength *= lengthMultiplier;
@@ -21,6 +21,13 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Frequency;
@@ -192,22 +199,43 @@ class InterlineSwitchoverKey {
     }
 }
 
+/**
+ * The stop times of a trip, cleaned up and interpolated, and the stop pattern they make.
+ */
+class PreparedTrip {
+    Trip trip;
+    List<StopTime> stopTimes;
+    ScheduledStopPattern stopPattern;
+}
+
 /**
  * Generates a set of edges from GTFS.
+ * 
+ * The work that does not touch the graph is done in parallel: the stop times of each trip are
+ * interpolated, and the hop geometries of the first trip of each pattern are cut from the shapes.
+ * Vertices and edges are then created by a single thread in trip order, so the graph is the same
+ * for any number of threads.
  */
 public class GTFSPatternHopFactory {
 
     private static final Logger _log = LoggerFactory.getLogger(GTFSPatternHopFactory.class);
 
+    static final int TRIP_BATCH_SIZE = 1000;
+
+    /* stands in for a shape without distances, since the concurrent map cannot hold nulls */
+    private static final double[] NO_DISTANCES = new double[0];
+
     private static GeometryFactory _factory = new GeometryFactory();
 
     private GtfsRelationalDao _dao;
 
-    private Map<ShapeSegmentKey, LineString> _geometriesByShapeSegmentKey = new HashMap<ShapeSegmentKey, LineString>();
+    private int threads = 1;
 
-    private Map<AgencyAndId, LineString> _geometriesByShapeId = new HashMap<AgencyAndId, LineString>();
+    private ConcurrentMap<ShapeSegmentKey, LineString> _geometriesByShapeSegmentKey = new ConcurrentHashMap<ShapeSegmentKey, LineString>();
 
-    private Map<AgencyAndId, double[]> _distancesByShapeId = new HashMap<AgencyAndId, double[]>();
+    private ConcurrentMap<AgencyAndId, LineString> _geometriesByShapeId = new ConcurrentHashMap<AgencyAndId, LineString>();
+
+    private ConcurrentMap<AgencyAndId, double[]> _distancesByShapeId = new ConcurrentHashMap<AgencyAndId, double[]>();
 
     private ArrayList<PatternDwell> potentiallyUselessDwells = new ArrayList<PatternDwell> ();
 
@@ -238,6 +266,15 @@ public class GTFSPatternHopFactory {
         return GtfsLibrary.convertIdToString(id);
     }
 
+    /**
+     * The number of threads used to prepare trips and shape geometries; defaults to one. More than
+     * one thread requires a DAO that can be read concurrently once its trip and shape relations
+     * have been built, such as the in-memory GtfsRelationalDaoImpl.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     /**
      * Generate the edges. Assumes that there are already vertices in the graph for the stops.
      */
@@ -278,14 +315,18 @@ public class GTFSPatternHopFactory {
             freqs.add(freq);
         }
 
-        for (Trip trip : trips) {
+        List<PreparedTrip> preparedTrips = prepareTrips(trips);
+        Map<Trip, List<Geometry>> hopGeometries = getPatternHopGeometries(preparedTrips,
+                tripFrequencies);
+
+        for (PreparedTrip preparedTrip : preparedTrips) {
 
             if (index % 10000 == 0)
                 _log.debug("trips=" + index + "/" + trips.size());
             index++;
 
-            List<StopTime> originalStopTimes = getNonduplicateStopTimesForTrip(trip);
-            interpolateStopTimes(originalStopTimes);
+            Trip trip = preparedTrip.trip;
+            List<StopTime> originalStopTimes = preparedTrip.stopTimes;
             if (originalStopTimes.size() < 2) {
                 _log
                         .warn("Trip "
@@ -297,7 +338,7 @@ public class GTFSPatternHopFactory {
             List<List<StopTime>> allStopTimes = new ArrayList<List<StopTime>>();
             List<Frequency>      frequencies  = tripFrequencies.get(trip);
 
-            ScheduledStopPattern stopPattern = stopPatternfromTrip(trip, _dao);
+            ScheduledStopPattern stopPattern = preparedTrip.stopPattern;
             BasicTripPattern tripPattern = patterns.get(stopPattern);
             String blockId = trip.getBlockId();
 
@@ -334,7 +375,7 @@ public class GTFSPatternHopFactory {
                 boolean simple = false;
 
                 if (tripPattern == null) {
-                    tripPattern = makeTripPattern(graph, trip, stopTimes);
+                    tripPattern = makeTripPattern(graph, trip, stopTimes, hopGeometries.get(trip));
 
                     patterns.put(stopPattern, tripPattern);
                     if (blockId != null && !blockId.equals("")) {
@@ -459,6 +500,146 @@ public class GTFSPatternHopFactory {
         graph.putService(FareService.class, fareServiceFactory.makeFareService());
       }
 
+    /**
+     * Clean up and interpolate the stop times of every trip, in parallel batches.
+     */
+    private List<PreparedTrip> prepareTrips(Collection<Trip> trips) {
+        List<Trip> tripList = new ArrayList<Trip>(trips);
+        if (tripList.isEmpty())
+            return new ArrayList<PreparedTrip>();
+        // build the DAO's lazy trip relation before it is read from several threads
+        _dao.getStopTimesForTrip(tripList.get(0));
+
+        List<Callable<List<PreparedTrip>>> batches = new ArrayList<Callable<List<PreparedTrip>>>();
+        for (int i = 0; i < tripList.size(); i += TRIP_BATCH_SIZE) {
+            final List<Trip> batch = tripList.subList(i,
+                    Math.min(i + TRIP_BATCH_SIZE, tripList.size()));
+            batches.add(new Callable<List<PreparedTrip>>() {
+                @Override
+                public List<PreparedTrip> call() {
+                    List<PreparedTrip> prepared = new ArrayList<PreparedTrip>(batch.size());
+                    for (Trip trip : batch) {
+                        PreparedTrip preparedTrip = new PreparedTrip();
+                        preparedTrip.trip = trip;
+                        preparedTrip.stopTimes = getNonduplicateStopTimesForTrip(trip);
+                        interpolateStopTimes(preparedTrip.stopTimes);
+                        preparedTrip.stopPattern = stopPatternfromTrip(trip, _dao);
+                        prepared.add(preparedTrip);
+                    }
+                    return prepared;
+                }
+            });
+        }
+
+        List<PreparedTrip> prepared = new ArrayList<PreparedTrip>(tripList.size());
+        for (List<PreparedTrip> batch : invokeInOrder(batches))
+            prepared.addAll(batch);
+        return prepared;
+    }
+
+    /**
+     * Cut the hop geometries for the trips that will create a new trip pattern (the first trip of
+     * each stop pattern that has any departures), in parallel batches.
+     */
+    private Map<Trip, List<Geometry>> getPatternHopGeometries(List<PreparedTrip> preparedTrips,
+            Map<Trip, List<Frequency>> tripFrequencies) {
+        HashSet<ScheduledStopPattern> seen = new HashSet<ScheduledStopPattern>();
+        List<PreparedTrip> exemplars = new ArrayList<PreparedTrip>();
+        for (PreparedTrip preparedTrip : preparedTrips) {
+            if (preparedTrip.stopTimes.size() < 2)
+                continue;
+            List<Frequency> frequencies = tripFrequencies.get(preparedTrip.trip);
+            if (frequencies != null && !hasDepartures(frequencies))
+                continue;
+            if (seen.add(preparedTrip.stopPattern))
+                exemplars.add(preparedTrip);
+        }
+        // build the DAO's lazy shape relation before it is read from several threads
+        _dao.getAllShapeIds();
+
+        List<Callable<List<List<Geometry>>>> batches = new ArrayList<Callable<List<List<Geometry>>>>();
+        for (int i = 0; i < exemplars.size(); i += TRIP_BATCH_SIZE) {
+            final List<PreparedTrip> batch = exemplars.subList(i,
+                    Math.min(i + TRIP_BATCH_SIZE, exemplars.size()));
+            batches.add(new Callable<List<List<Geometry>>>() {
+                @Override
+                public List<List<Geometry>> call() {
+                    List<List<Geometry>> geometries = new ArrayList<List<Geometry>>(batch.size());
+                    for (PreparedTrip preparedTrip : batch)
+                        geometries.add(getHopGeometries(preparedTrip.trip, preparedTrip.stopTimes));
+                    return geometries;
+                }
+            });
+        }
+
+        Map<Trip, List<Geometry>> hopGeometries = new HashMap<Trip, List<Geometry>>();
+        int i = 0;
+        for (List<List<Geometry>> batch : invokeInOrder(batches)) {
+            for (List<Geometry> geometries : batch)
+                hopGeometries.put(exemplars.get(i++).trip, geometries);
+        }
+        return hopGeometries;
+    }
+
+    private static boolean hasDepartures(List<Frequency> frequencies) {
+        for (Frequency freq : frequencies) {
+            if (freq.getStartTime() < freq.getEndTime())
+                return true;
+        }
+        return false;
+    }
+
+    private List<Geometry> getHopGeometries(Trip trip, List<StopTime> stopTimes) {
+        List<Geometry> geometries = new ArrayList<Geometry>(stopTimes.size() - 1);
+        for (int i = 0; i < stopTimes.size() - 1; i++) {
+            StopTime st0 = stopTimes.get(i);
+            StopTime st1 = stopTimes.get(i + 1);
+            geometries.add(getHopGeometry(trip.getShapeId(), st0, st1, getCoordinate(st0.getStop()),
+                    getCoordinate(st1.getStop())));
+        }
+        return geometries;
+    }
+
+    /** The coordinate of the journey vertices created for a stop. */
+    private static Coordinate getCoordinate(Stop stop) {
+        return new Coordinate(stop.getLon(), stop.getLat());
+    }
+
+    /**
+     * Run the tasks on a pool of {@link #threads} threads, or on this thread when there is only one.
+     * 
+     * @return the results in task order
+     */
+    private <T> List<T> invokeInOrder(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (threads <= 1 || tasks.size() <= 1) {
+                for (Callable<T> task : tasks)
+                    results.add(task.call());
+                return results;
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+            try {
+                for (Future<T> result : executor.invokeAll(tasks))
+                    results.add(result.get());
+            } finally {
+                executor.shutdownNow();
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while building trip patterns");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("error building trip patterns", e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("error building trip patterns", e);
+        }
+    }
+
     private void putInterlineDwell(InterlineSwitchoverKey key, PatternInterlineDwell dwell) {
         interlineDwells.put(key, dwell);
     }
@@ -620,7 +801,8 @@ public class GTFSPatternHopFactory {
         }
     }
 
-    private BasicTripPattern makeTripPattern(Graph graph, Trip trip, List<StopTime> stopTimes) {
+    private BasicTripPattern makeTripPattern(Graph graph, Trip trip, List<StopTime> stopTimes,
+            List<Geometry> hopGeometries) {
         BasicTripPattern tripPattern = new BasicTripPattern(trip, stopTimes);
 
         TraverseMode mode = GtfsLibrary.getTraverseMode(trip.getRoute());
@@ -659,8 +841,11 @@ public class GTFSPatternHopFactory {
 
             PatternHop hop = new PatternHop(startJourneyDepart, endJourneyArrive, s0, s1, i,
                     tripPattern);
-            hop.setGeometry(getHopGeometry(trip.getShapeId(), st0, st1, startJourneyDepart,
-                    endJourneyArrive));
+            if (hopGeometries != null)
+                hop.setGeometry(hopGeometries.get(i));
+            else
+                hop.setGeometry(getHopGeometry(trip.getShapeId(), st0, st1,
+                        startJourneyDepart.getCoordinate(), endJourneyArrive.getCoordinate()));
 
             int arrivalTime = st1.getArrivalTime();
 
@@ -763,8 +948,8 @@ public class GTFSPatternHopFactory {
             Dwell dwell = new Dwell(startJourneyArrive, startJourneyDepart, st0);
             graph.addEdge(dwell);
             Hop hop = new Hop(startJourneyDepart, endJourneyArrive, st0, st1, trip);
-            hop.setGeometry(getHopGeometry(trip.getShapeId(), st0, st1, startJourneyDepart,
-                    endJourneyArrive));
+            hop.setGeometry(getHopGeometry(trip.getShapeId(), st0, st1,
+                    startJourneyDepart.getCoordinate(), endJourneyArrive.getCoordinate()));
             hops.add(hop);
 
             if (st0.getPickupType() != 1) {
@@ -782,7 +967,7 @@ public class GTFSPatternHopFactory {
     }
 
     private Geometry getHopGeometry(AgencyAndId shapeId, StopTime st0, StopTime st1,
-            Vertex startJourney, Vertex endJourney) {
+            Coordinate startJourney, Coordinate endJourney) {
 
         if (shapeId == null || shapeId.getId() == null || shapeId.getId().equals(""))
             return null;
@@ -817,8 +1002,8 @@ public class GTFSPatternHopFactory {
         LineString line = getLineStringForShapeId(shapeId);
         LocationIndexedLine lol = new LocationIndexedLine(line);
 
-        LinearLocation startCoord = lol.indexOf(startJourney.getCoordinate());
-        LinearLocation endCoord = lol.indexOf(endJourney.getCoordinate());
+        LinearLocation startCoord = lol.indexOf(startJourney);
+        LinearLocation endCoord = lol.indexOf(endJourney);
 
         double distanceFrom = startCoord.getSegmentLength(line);
         double distanceTo = endCoord.getSegmentLength(line);
@@ -842,7 +1027,9 @@ public class GTFSPatternHopFactory {
                     .getCoordinates(), 2);
             geometry = _factory.createLineString(sequence);
 
-            _geometriesByShapeSegmentKey.put(key, (LineString) geometry);
+            Geometry existing = _geometriesByShapeSegmentKey.putIfAbsent(key, (LineString) geometry);
+            if (existing != null)
+                geometry = existing;
         }
 
         return geometry;
@@ -881,15 +1068,17 @@ public class GTFSPatternHopFactory {
 
         CoordinateSequence sequence = new PackedCoordinateSequence.Float(coordinates, 2);
         geometry = _factory.createLineString(sequence);
-        _geometriesByShapeId.put(shapeId, geometry);
-        _distancesByShapeId.put(shapeId, distances);
+        // the distances go first, so that whoever finds the geometry also finds them
+        _distancesByShapeId.putIfAbsent(shapeId, distances == null ? NO_DISTANCES : distances);
+        LineString existing = _geometriesByShapeId.putIfAbsent(shapeId, geometry);
 
-        return geometry;
+        return existing != null ? existing : geometry;
     }
 
     private double[] getDistanceForShapeId(AgencyAndId shapeId) {
         getLineStringForShapeId(shapeId);
-        return _distancesByShapeId.get(shapeId);
+        double[] distances = _distancesByShapeId.get(shapeId);
+        return distances == NO_DISTANCES ? null : distances;
     }
 
     private LinearLocation getSegmentFraction(double[] distances, double distance) {
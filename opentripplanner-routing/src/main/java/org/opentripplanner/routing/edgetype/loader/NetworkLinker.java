@@ -14,6 +14,7 @@
 package org.opentripplanner.routing.edgetype.loader;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.Graph;
@@ -38,6 +39,11 @@ public class NetworkLinker {
         this.networkLinkerLibrary = new NetworkLinkerLibrary(graph);
     }
 
+    /** The number of threads linking stops; see {@link NetworkLinkerLibrary#setThreads}. */
+    public void setThreads(int threads) {
+        networkLinkerLibrary.setThreads(threads);
+    }
+
     /**
      * Link the transit network to the street network. Connect each transit vertex to the nearest
      * Street edge with a StreetTransitLink.
@@ -49,6 +55,7 @@ public class NetworkLinker {
         _log.debug("creating linkages...");
         int i = 0;
         ArrayList<GraphVertex> vertices = new ArrayList<GraphVertex>(graph.getVertices());
+        List<TransitStop> stops = new ArrayList<TransitStop>();
 
         for (GraphVertex gv : vertices) {
             Vertex v = gv.vertex;
@@ -75,13 +82,21 @@ public class NetworkLinker {
                     }
                 }
 
-                boolean wheelchairAccessible = ts.hasWheelchairEntrance();
-                if (!networkLinkerLibrary.connectVertexToStreets(v, wheelchairAccessible)) {
-                    _log.warn("Stop " + ts + " not near any streets; it will not be usable");
-                }
+                stops.add(ts);
             }
         }
 
+        boolean[] accessible = new boolean[stops.size()];
+        for (int j = 0; j < accessible.length; j++)
+            accessible[j] = stops.get(j).hasWheelchairEntrance();
+        long start = System.currentTimeMillis();
+        List<Vertex> unlinked = networkLinkerLibrary.connectVerticesToStreets(stops, accessible);
+        _log.debug("linked " + stops.size() + " stops in " + (System.currentTimeMillis() - start)
+                + " ms");
+        for (Vertex stop : unlinked) {
+            _log.warn("Stop " + stop + " not near any streets; it will not be usable");
+        }
+
         networkLinkerLibrary.addAllReplacementEdgesToGraph();
         networkLinkerLibrary.markLocalStops();
         FindMaxWalkDistances.find(graph);
@@ -15,15 +15,22 @@ package org.opentripplanner.routing.edgetype.loader;
 
 import static org.opentripplanner.common.IterableLibrary.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.opentripplanner.common.model.P2;
 import org.opentripplanner.routing.core.DirectEdge;
@@ -50,16 +57,32 @@ import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 
+/**
+ * Links transit stops to the street network. A stop at an intersection is linked to the vertices
+ * there; otherwise the bundle of parallel (turn)edges nearest to it is replaced by a pair of
+ * PlainStreetEdges, which are split at each stop along them.
+ *
+ * Several stops are linked at once by {@link #connectVerticesToStreets}: the streets near each
+ * stop are found on several threads, and so are the splits, each bundle being split by one thread
+ * at its stops in stop order. The calling thread replaces the bundles, creates the split vertices
+ * and adds the links, all in stop order, so the graph (and the index of each new vertex) does not
+ * depend on the number of threads.
+ */
 public class NetworkLinkerLibrary {
 
     private static Logger _log = LoggerFactory.getLogger(NetworkLinkerLibrary.class);
 
-    /* for each original bundle of (turn)edges making up a street, a list of edge pairs that will replace it */
-    HashMap<HashSet<Edge>, LinkedList<P2<PlainStreetEdge>>> replacements = 
-        new HashMap<HashSet<Edge>, LinkedList<P2<PlainStreetEdge>>>();
-    
-    /* a map to track which vertices were associated with each transit stop, to avoid repeat splitting */
-    private HashMap<Vertex, Collection<Vertex>> splitVertices = new HashMap<Vertex, Collection<Vertex>> (); 
+    static final int BATCH_SIZE = 100;
+
+    /*
+     * the bundle each original street edge belongs to, once it has been replaced. A stop near
+     * edges from several bundles is split on the first of them, so that the same street is never
+     * replaced twice.
+     */
+    private HashMap<Edge, EdgeBundle> bundlesByEdge = new HashMap<Edge, EdgeBundle>();
+
+    /* the replaced bundles, in the order their replacement edges are added to the graph */
+    private List<EdgeBundle> bundles = new ArrayList<EdgeBundle>();
 
     private GeometryFactory geometryFactory = new GeometryFactory();
 
@@ -70,6 +93,8 @@ public class NetworkLinkerLibrary {
 
     private StreetVertexIndexServiceImpl index;
 
+    private int threads = 1;
+
     public NetworkLinkerLibrary(Graph graph) {
         this.graph = graph;
         _log.debug("constructing index...");
@@ -77,6 +102,14 @@ public class NetworkLinkerLibrary {
         this.index.setup();
     }
 
+    /**
+     * The number of threads finding the streets near the stops and splitting them; defaults to
+     * one.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     /**
      * 
      * @param v
@@ -84,66 +117,96 @@ public class NetworkLinkerLibrary {
      * @return true if the links were successfully added, otherwise false
      */
     public boolean connectVertexToStreets(Vertex v, boolean wheelchairAccessible) {
-        Collection<Vertex> nearbyStreetVertices = getNearbyStreetVertices(v);
-        if (nearbyStreetVertices == null) {
-            // why is this being called here? (AMB)
-//            getLocation(v);
-            return false;
-        } else {
-            for (Vertex sv : nearbyStreetVertices) {
-                graph.addEdge(new StreetTransitLink(sv, v, wheelchairAccessible));
-                graph.addEdge(new StreetTransitLink(v, sv, wheelchairAccessible));
+        return connectVerticesToStreets(Arrays.asList(v), new boolean[] { wheelchairAccessible })
+                .isEmpty();
+    }
+
+    /**
+     * Link each vertex to the streets near it, as if connectVertexToStreets were called on each one
+     * in order, except that a stop whose nearest edges overlap a bundle already replaced is split
+     * on that bundle.
+     * 
+     * @param wheelchairAccessible whether the links of the vertex at the same index are
+     * @return the vertices that are not near any street, and were not linked
+     */
+    public List<Vertex> connectVerticesToStreets(List<? extends Vertex> vertices,
+            boolean[] wheelchairAccessible) {
+        List<StopLink> links = new ArrayList<StopLink>(vertices.size());
+        for (int i = 0; i < vertices.size(); i++)
+            links.add(new StopLink(vertices.get(i), wheelchairAccessible[i]));
+
+        /* find the intersection or the bundle of edges near each stop */
+        List<Callable<Object>> searches = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < links.size(); i += BATCH_SIZE) {
+            final List<StopLink> batch = links.subList(i, Math.min(i + BATCH_SIZE, links.size()));
+            searches.add(new Callable<Object>() {
+                public Object call() {
+                    for (StopLink link : batch)
+                        findNearbyStreets(link);
+                    return null;
+                }
+            });
+        }
+        invokeInOrder(searches);
+
+        /* replace each bundle the first time a stop uses it */
+        Map<EdgeBundle, List<StopLink>> linksByBundle = new LinkedHashMap<EdgeBundle, List<StopLink>>();
+        for (StopLink link : links) {
+            if (link.edges == null)
+                continue;
+            EdgeBundle bundle = getBundle(link.edges);
+            if (bundle == null)
+                continue;
+            link.bundle = bundle;
+            List<StopLink> bundleLinks = linksByBundle.get(bundle);
+            if (bundleLinks == null) {
+                bundleLinks = new ArrayList<StopLink>();
+                linksByBundle.put(bundle, bundleLinks);
             }
-            return true;
+            bundleLinks.add(link);
+        }
+
+        /* find where each stop splits its bundle, from the geometry alone */
+        invokeInOrder(getSplitTasks(linksByBundle, false));
+
+        /* create the vertices of the splits */
+        for (StopLink link : links) {
+            if (link.split == null || !link.split.isInside())
+                continue;
+            String label = "link for " + link.vertex.getStopId();
+            Coordinate midCoord = link.split.forward.getFirst().getEndPoint().getCoordinate();
+            String name = link.bundle.replacement.getFirst().getFirst().getName();
+            link.split.vertices = Arrays.<Vertex> asList(new GenericVertex("split 1 at " + label,
+                    midCoord, name), new GenericVertex("split 2 at " + label, midCoord, name));
         }
-    }
 
-//    /**
-//     * Add edges from street locations to the target vertex.
-//     * 
-//     * @param v
-//     * @param wheelchairAccessible
-//     * @return true if the links were successfully added, otherwise false
-//     */
-//    public boolean determineIncomingEdgesForVertex(Vertex v, boolean wheelchairAccessible) {
-//        Vertex location = getLocation(v);
-//        if (location == null) {
-//            getLocation(v);
-//            return false;
-//        } else {
-//            graph.addEdge(new StreetTransitLink(location, v, wheelchairAccessible));
-//            return true;
-//        }
-//    }
-//
-//    /**
-//     * Add edges from the target vertex to street locations.
-//     * 
-//     * @param v
-//     * @param wheelchairAccessible
-//     * @return true if the links were successfully added, otherwise false
-//     */
-//    public boolean determineOutgoingEdgesForVertex(Vertex v, boolean wheelchairAccessible) {
-//        Vertex location = getLocation(v);
-//        if (location == null) {
-//            getLocation(v);
-//            return false;
-//        } else {
-//            graph.addEdge(new StreetTransitLink(v, location, wheelchairAccessible));
-//            return true;
-//        }
-//    }
+        /* split the replacement edges there */
+        invokeInOrder(getSplitTasks(linksByBundle, true));
+
+        List<Vertex> unlinked = new ArrayList<Vertex>();
+        for (StopLink link : links) {
+            if (link.streetVertices == null) {
+                unlinked.add(link.vertex);
+                continue;
+            }
+            for (Vertex sv : link.streetVertices) {
+                graph.addEdge(new StreetTransitLink(sv, link.vertex, link.wheelchairAccessible));
+                graph.addEdge(new StreetTransitLink(link.vertex, sv, link.wheelchairAccessible));
+            }
+        }
+        return unlinked;
+    }
 
     public void addAllReplacementEdgesToGraph() {
 
-        for (Entry<HashSet<Edge>, LinkedList<P2<PlainStreetEdge>>> entry : replacements.entrySet()) {
+        for (EdgeBundle bundle : bundles) {
             /* insert newly created edges into the graph */
-            for (P2<PlainStreetEdge> edge : entry.getValue()) {
+            for (P2<PlainStreetEdge> edge : bundle.replacement) {
                 graph.addEdge(edge.getFirst() );
                 graph.addEdge(edge.getSecond());
             }
             /* remove original (replaced) edges from the graph */
-            for (Edge edge : entry.getKey()) {
+            for (Edge edge : bundle.edges) {
                 // uncomment to remove replaced edges
                 // graph.removeEdge((DirectEdge)edge);
             }
@@ -155,88 +218,140 @@ public class NetworkLinkerLibrary {
      ****/
 
     /**
-     * For the given vertex, find or create some vertices nearby in the street network.
-     * Once the vertices are found they are remembered, and subsequent calls to this 
-     * method with the same Vertex argument will return the same collection of vertices. 
-     * This method is potentially called multiple times with the same Vertex as an argument, 
-     * via the "determineIncomingEdgesForVertex" and "determineOutgoingEdgesForVertex" methods.
+     * For the given stop, find the vertices at the intersection it is at, or the bundle of edges
+     * nearby to split. This only reads the index, so it may run on several threads.
      */
-    private Collection<Vertex> getNearbyStreetVertices(Vertex v) {
-        Collection<Vertex> existing = splitVertices.get(v);
-        if (existing != null)
-            return existing;
-
-        String vertexLabel = "link for " + v.getStopId();
-        Coordinate coordinate = v.getCoordinate();
+    private void findNearbyStreets(StopLink link) {
+        Coordinate coordinate = link.vertex.getCoordinate();
         /* is the stop right at an intersection? */
         List<Vertex> atIntersection = index.getIntersectionAt(coordinate);
         if (atIntersection != null) {
             // if so, the stop can be linked directly to all vertices at the intersection
-            return atIntersection;
+            link.streetVertices = atIntersection;
+            return;
         }
         /* is there a bundle of edges nearby to use or split? */
         Collection<StreetEdge> edges = index.getClosestEdges(coordinate, options);
-        if (edges == null || edges.size() < 2) {
-            // no edges were found nearby, or a bidirectional bundle of edges was not identified
-            return null;
-        }
-        return getSplitterVertices(vertexLabel, edges, coordinate);
+        // no edges were found nearby, or a bidirectional bundle of edges was not identified
+        if (edges != null && edges.size() >= 2)
+            link.edges = edges;
     }
 
-    /** 
-     * Given a bundle of parallel, coincident (turn)edges, find a vertex splitting the set of edges as close as
-     * possible to the given coordinate. If necessary, create new edges reflecting the split and update the 
-     * replacement edge lists accordingly. 
-     * Split edges are not added to the graph immediately, so that they can be re-split later if another stop
-     * is located near the same bundle of original edges.
+    /**
+     * Find the bundle some of the given edges have already been replaced in, or replace them. The
+     * replacement edges are not added to the graph immediately, so that they can be re-split later
+     * if another stop is located near the same bundle of original edges.
+     * 
+     * @return the bundle, or null if the edges cannot be replaced
      */
-    private Collection<Vertex> getSplitterVertices(String label, Collection<StreetEdge> edges, Coordinate coordinate) {
-
-        // It is assumed that we are splitting at least two edges.
-        if (edges.size() < 2) {
+    private EdgeBundle getBundle(Collection<StreetEdge> edges) {
+        EdgeBundle bundle = null;
+        for (StreetEdge edge : edges) {
+            EdgeBundle existing = bundlesByEdge.get(edge);
+            if (existing != null && (bundle == null || existing.index < bundle.index))
+                bundle = existing;
+        }
+        if (bundle != null)
+            return bundle;
+        // first time this edge bundle is being split
+        // make a single pair of PlainStreetEdges equivalent to this bundle
+        P2<PlainStreetEdge> newEdges = replace(edges);
+        if (newEdges == null)
             return null;
+        bundle = new EdgeBundle(bundles.size(), edges, newEdges);
+        bundles.add(bundle);
+        for (StreetEdge edge : edges)
+            bundlesByEdge.put(edge, bundle);
+        return bundle;
+    }
+
+    /**
+     * Tasks finding where the stops split their bundles, or splitting them there. Each bundle is
+     * handled by one task, at its stops in stop order.
+     */
+    private List<Callable<Object>> getSplitTasks(Map<EdgeBundle, List<StopLink>> linksByBundle,
+            final boolean apply) {
+        List<Entry<EdgeBundle, List<StopLink>>> entries = new ArrayList<Entry<EdgeBundle, List<StopLink>>>(
+                linksByBundle.entrySet());
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < entries.size(); i += BATCH_SIZE) {
+            final List<Entry<EdgeBundle, List<StopLink>>> batch = entries.subList(i,
+                    Math.min(i + BATCH_SIZE, entries.size()));
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for (Entry<EdgeBundle, List<StopLink>> entry : batch) {
+                        if (apply)
+                            applySplits(entry.getKey(), entry.getValue());
+                        else
+                            findSplits(entry.getKey(), entry.getValue());
+                    }
+                    return null;
+                }
+            });
         }
+        return tasks;
+    }
 
-        // Has this set of original edges already been replaced by split edges?
-        HashSet<Edge> edgeSet = new HashSet<Edge>(edges);
-        LinkedList<P2<PlainStreetEdge>> replacement = replacements.get(edgeSet);
-        if (replacement == null) {
-            // first time this edge bundle is being split
-            replacement = new LinkedList<P2<PlainStreetEdge>>();
-            // make a single pair of PlainStreetEdges equivalent to this bundle
-            P2<PlainStreetEdge> newEdges = replace(edges);
-            if (newEdges == null) {
-                return null;
+    /**
+     * Find where each stop splits the replacement of a bundle, as close as possible to the stop,
+     * working on the geometry of the replacement edges alone.
+     */
+    private void findSplits(EdgeBundle bundle, List<StopLink> links) {
+        /* the forward and back geometry of each replacement pair, split as the stops will split them */
+        LinkedList<LineString[]> pieces = new LinkedList<LineString[]>();
+        for (P2<PlainStreetEdge> pair : bundle.replacement)
+            pieces.add(new LineString[] { pair.getFirst().getGeometry(),
+                    pair.getSecond().getGeometry() });
+
+        for (StopLink link : links) {
+            Coordinate coordinate = link.vertex.getCoordinate();
+
+            // If the original replacement edge pair has already been split,
+            // decide out which sub-segment the current coordinate lies on.
+            double bestDist = Double.MAX_VALUE;
+            int position = -1;
+            int i = 0;
+            Point p = geometryFactory.createPoint(coordinate);
+            for (LineString[] piece : pieces) {
+                double dist = piece[0].distance(p);
+                if (dist < bestDist) {
+                    bestDist = dist;
+                    position = i;
+                }
+                i++;
             }
-            replacement.add(newEdges);
-            replacements.put(edgeSet, replacement);
-        }
 
-        // If the original replacement edge pair has already been split,
-        // decide out which sub-segment the current coordinate lies on.
-        double bestDist = Double.MAX_VALUE;
-        P2<PlainStreetEdge> bestPair = null;
-        Point p = geometryFactory.createPoint(coordinate);
-        for (P2<PlainStreetEdge> pair : replacement) {
-            PlainStreetEdge e1 = pair.getFirst();
-            double dist = e1.getGeometry().distance(p);
-            if (dist < bestDist) {
-                bestDist = dist;
-                bestPair = pair;
+            LineString[] piece = pieces.get(position);
+            SplitPoint split = new SplitPoint();
+            split.position = position;
+            split.forward = StreetLocation.splitGeometryAtPoint(piece[0], coordinate);
+            split.backward = StreetLocation.splitGeometryAtPoint(piece[1], coordinate);
+            // determine how far along the pair the split would occur
+            split.ratio = split.forward.getFirst().getLength() / piece[0].getLength();
+            link.split = split;
+
+            if (split.isInside()) {
+                pieces.set(position, new LineString[] { split.forward.getFirst(),
+                        split.backward.getSecond() });
+                pieces.add(position + 1, new LineString[] { split.forward.getSecond(),
+                        split.backward.getFirst() });
             }
         }
-        
-        // split the (sub)segment edge pair as needed, returning vertices at the split point
-        return split(replacement, label, bestPair, coordinate);
+    }
+
+    /** Split the replacement of a bundle at each of its stops, in the order they were found. */
+    private void applySplits(EdgeBundle bundle, List<StopLink> links) {
+        for (StopLink link : links)
+            link.streetVertices = split(bundle.replacement, link.split);
     }
 
     /**
-     * Split a matched (bidirectional) pair of edges at the given coordinate, unless the coordinate is
-     * very close to one of the existing endpoints. Returns the vertices located at the split point.
+     * Split a matched (bidirectional) pair of edges where a stop is, unless it is very close to one
+     * of the existing endpoints. Returns the vertices located at the split point.
      */
-    private Collection<Vertex> split(LinkedList<P2<PlainStreetEdge>> replacement, String label,
-            P2<PlainStreetEdge> bestPair, Coordinate coordinate) {
+    private Collection<Vertex> split(LinkedList<P2<PlainStreetEdge>> replacement, SplitPoint split) {
 
+        P2<PlainStreetEdge> bestPair = replacement.get(split.position);
         PlainStreetEdge e1 = bestPair.getFirst();
         PlainStreetEdge e2 = bestPair.getSecond();
 
@@ -247,20 +362,8 @@ public class NetworkLinkerLibrary {
         Vertex e2v1 = e2.getFromVertex();
         Vertex e2v2 = e2.getToVertex();
 
-        LineString forwardGeometry = e1.getGeometry();
-        LineString backGeometry = e2.getGeometry();
-
-        P2<LineString> forwardGeometryPair = StreetLocation.splitGeometryAtPoint(forwardGeometry,
-                coordinate);
-        P2<LineString> backGeometryPair = StreetLocation.splitGeometryAtPoint(backGeometry,
-                coordinate);
-
-        LineString toMidpoint = forwardGeometryPair.getFirst();
-        Coordinate midCoord = toMidpoint.getEndPoint().getCoordinate();
-
-        // determine how far along the original pair the split would occur
-        double totalGeomLength = forwardGeometry.getLength();
-        double lengthRatioIn = toMidpoint.getLength() / totalGeomLength;
+        double totalGeomLength = e1.getGeometry().getLength();
+        double lengthRatioIn = split.ratio;
 
         // If coordinate is coincident with an endpoint of the edge pair, splitting is unnecessary. 
         // note: the pair potentially being split was generated by the 'replace' method,
@@ -276,19 +379,19 @@ public class NetworkLinkerLibrary {
 
         // Split each edge independently. If a only one splitter vertex is used, routing may take 
         // shortcuts thought the splitter vertex to avoid turn penalties.
-        Vertex e1midpoint = new GenericVertex("split 1 at " + label, midCoord, name);
-        Vertex e2midpoint = new GenericVertex("split 2 at " + label, midCoord, name);
+        Vertex e1midpoint = split.vertices.get(0);
+        Vertex e2midpoint = split.vertices.get(1);
 
         // We are replacing two edges with four edges
-        PlainStreetEdge forward1 = new PlainStreetEdge(e1v1, e1midpoint, toMidpoint, name, lengthIn,
-                e1.getPermission(), false);
+        PlainStreetEdge forward1 = new PlainStreetEdge(e1v1, e1midpoint, split.forward.getFirst(),
+                name, lengthIn, e1.getPermission(), false);
         PlainStreetEdge forward2 = new PlainStreetEdge(e1midpoint, e1v2,
-                forwardGeometryPair.getSecond(), name, lengthOut, e1.getPermission(), true);
+                split.forward.getSecond(), name, lengthOut, e1.getPermission(), true);
 
-        PlainStreetEdge backward1 = new PlainStreetEdge(e2v1, e2midpoint, backGeometryPair.getFirst(),
-                name, lengthOut, e2.getPermission(), false);
-        PlainStreetEdge backward2 = new PlainStreetEdge(e2midpoint, e2v2, backGeometryPair.getSecond(),
-                name, lengthIn, e2.getPermission(), true);
+        PlainStreetEdge backward1 = new PlainStreetEdge(e2v1, e2midpoint,
+                split.backward.getFirst(), name, lengthOut, e2.getPermission(), false);
+        PlainStreetEdge backward2 = new PlainStreetEdge(e2midpoint, e2v2,
+                split.backward.getSecond(), name, lengthIn, e2.getPermission(), true);
 
         double forwardBseLengthIn = e1.getBicycleSafetyEffectiveLength() * lengthRatioIn;
         double forwardBseLengthOut = e1.getBicycleSafetyEffectiveLength() * (1 - lengthRatioIn);
@@ -305,17 +408,10 @@ public class NetworkLinkerLibrary {
         forward2.setElevationProfile(e1.getElevationProfile(lengthOut, totalGeomLength));
         backward2.setElevationProfile(e2.getElevationProfile(lengthIn, totalGeomLength));
 
-        ListIterator<P2<PlainStreetEdge>> it = replacement.listIterator();
-        while (it.hasNext()) {
-            P2<PlainStreetEdge> pair = it.next();
-            if (pair == bestPair) {
-                it.set(new P2<PlainStreetEdge>(forward1, backward2));
-                it.add(new P2<PlainStreetEdge>(forward2, backward1));
-                break;
-            }
-        }
+        replacement.set(split.position, new P2<PlainStreetEdge>(forward1, backward2));
+        replacement.add(split.position + 1, new P2<PlainStreetEdge>(forward2, backward1));
         // return the two new splitter vertices
-        return Arrays.asList(e1midpoint, e2midpoint);
+        return Arrays.<Vertex> asList(e1midpoint, e2midpoint);
     }
 
     /**
@@ -444,9 +540,102 @@ public class NetworkLinkerLibrary {
         return new P2<Entry<StreetVertex, Set<Edge>>>(startingVertex, endingVertex);
     }
 
+    /**
+     * Run the tasks on a pool of {@link #threads} threads, or on this thread when there is only one.
+     */
+    private void invokeInOrder(List<Callable<Object>> tasks) {
+        try {
+            if (threads <= 1 || tasks.size() <= 1) {
+                for (Callable<Object> task : tasks)
+                    task.call();
+                return;
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+            try {
+                for (Future<Object> result : executor.invokeAll(tasks))
+                    result.get();
+            } finally {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while linking stops");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("error linking stops", e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("error linking stops", e);
+        }
+    }
+
     public void markLocalStops() {
         LocalStopFinder localStopFinder = new LocalStopFinder(index, graph);
         localStopFinder.markLocalStops();
     }
 
+    /* a stop being linked, and what was found for it */
+    private static class StopLink {
+
+        final Vertex vertex;
+
+        final boolean wheelchairAccessible;
+
+        /* the edges to split, if the stop is not at an intersection */
+        Collection<StreetEdge> edges;
+
+        /* the bundle replacing them */
+        EdgeBundle bundle;
+
+        /* where the stop splits the bundle */
+        SplitPoint split;
+
+        /* the street vertices to link the stop to, or null if there are none */
+        Collection<Vertex> streetVertices;
+
+        StopLink(Vertex vertex, boolean wheelchairAccessible) {
+            this.vertex = vertex;
+            this.wheelchairAccessible = wheelchairAccessible;
+        }
+    }
+
+    /* where a stop splits the replacement edges of its bundle */
+    private static class SplitPoint {
+
+        /* the position of the pair split, in the replacement of the bundle at the time */
+        int position;
+
+        /* the forward and back geometry of that pair, split at the stop */
+        P2<LineString> forward;
+
+        P2<LineString> backward;
+
+        /* how far along the pair the split is */
+        double ratio;
+
+        /* the two vertices created for the split, if it is not at an end of the pair */
+        List<Vertex> vertices;
+
+        boolean isInside() {
+            return !(ratio < 0.00001 || ratio > 0.99999);
+        }
+    }
+
+    /* a bundle of parallel, coincident (turn)edges and the split edge pairs replacing it */
+    private static class EdgeBundle {
+
+        final int index;
+
+        final Collection<StreetEdge> edges;
+
+        final LinkedList<P2<PlainStreetEdge>> replacement = new LinkedList<P2<PlainStreetEdge>>();
+
+        EdgeBundle(int index, Collection<StreetEdge> edges, P2<PlainStreetEdge> pair) {
+            this.index = index;
+            this.edges = edges;
+            replacement.add(pair);
+        }
+    }
 }
@@ -25,6 +25,7 @@ import java.util.regex.Pattern;
 
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.opentripplanner.common.model.NamedPlace;
+import org.opentripplanner.routing.algorithm.SearchStats;
 import org.opentripplanner.routing.core.DirectEdge;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.Graph;
@@ -46,6 +47,7 @@ import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.routing.services.PathService;
 import org.opentripplanner.routing.services.RemainingWeightHeuristicFactory;
 import org.opentripplanner.routing.services.RoutingService;
+import org.opentripplanner.routing.services.SearchMetricsService;
 import org.opentripplanner.routing.services.StreetVertexIndexService;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.slf4j.Logger;
@@ -76,10 +78,14 @@ public class ContractionPathServiceImpl implements PathService {
     private StreetVertexIndexService _indexService;
     
     private RemainingWeightHeuristicFactory _remainingWeightHeuristicFactory;
+
+    private SearchMetricsService _searchMetricsService;
     
     private double _firstPathTimeout = 0; // seconds
     
     private double _multiPathTimeout = 0; // seconds
+
+    private boolean _partialPathsOnTimeout = false;
     
     /**
      * Give up on searching for itineraries after this many seconds have elapsed.
@@ -109,6 +115,14 @@ public class ContractionPathServiceImpl implements PathService {
         _multiPathTimeout = seconds;
     }
 
+    /**
+     * If true, an itinerary search that times out returns the best complete paths it has found so
+     * far instead of giving up. Requests can also ask for this through their TraverseOptions.
+     */
+    public void setPartialPathsOnTimeout(boolean partialPathsOnTimeout) {
+        _partialPathsOnTimeout = partialPathsOnTimeout;
+    }
+
     @Autowired
     public void setRemainingWeightHeuristicFactory(RemainingWeightHeuristicFactory hf) {
         _remainingWeightHeuristicFactory = hf;
@@ -133,6 +147,11 @@ public class ContractionPathServiceImpl implements PathService {
         _indexService = indexService;
     }
 
+    @Autowired(required = false)
+    public void setSearchMetricsService(SearchMetricsService searchMetricsService) {
+        _searchMetricsService = searchMetricsService;
+    }
+
     @Override
     public List<GraphPath> plan(NamedPlace fromPlace, NamedPlace toPlace, Date targetTime,
             TraverseOptions options, int nItineraries) {
@@ -167,8 +186,28 @@ public class ContractionPathServiceImpl implements PathService {
         return plan(state, target, nItineraries);
     }
 
+    /**
+     * Every call is counted separately in the {@link SearchMetricsService}; counters are also
+     * added to the caller's {@link TraverseOptions#searchStats}, if any.
+     */
     @Override
     public List<GraphPath> plan(State origin, Vertex target, int nItineraries) {
+        TraverseOptions options = origin.getOptions();
+        SearchStats requestStats = options.searchStats;
+        SearchStats stats = new SearchStats();
+        options.searchStats = stats;
+        try {
+            return planWithStats(origin, target, nItineraries);
+        } finally {
+            options.searchStats = requestStats;
+            if (requestStats != null)
+                requestStats.add(stats);
+            if (_searchMetricsService != null)
+                _searchMetricsService.addSearch(stats);
+        }
+    }
+
+    private List<GraphPath> planWithStats(State origin, Vertex target, int nItineraries) {
 
         Date targetTime = new Date(origin.getTime() * 1000);
         TraverseOptions options = origin.getOptions();
@@ -184,10 +223,15 @@ public class ContractionPathServiceImpl implements PathService {
             throw new TransitTimesException();
         }
         // decide which A* heuristic to use
+        long heuristicBeginTime = System.nanoTime();
         options.remainingWeightHeuristic = 
         	_remainingWeightHeuristicFactory.getInstanceForSearch(options, target);
+        options.searchStats.addHeuristicSetupTime(System.nanoTime() - heuristicBeginTime);
         LOG.debug("Applied A* heuristic: {}", options.remainingWeightHeuristic);
 
+        if (_partialPathsOnTimeout)
+            options.partialPathsOnTimeout = true;
+
         // If transit is not to be used, disable walk limit and only search for one itinerary.
         if (!options.getModes().getTransit()) {
             nItineraries = 1;
@@ -226,6 +270,10 @@ public class ContractionPathServiceImpl implements PathService {
                 LOG.debug("Ran out of options to try.");
                 break;
             }
+            if (options.cancellationToken != null && options.cancellationToken.isCancelled()) {
+                LOG.debug("Search cancelled after {} paths.", paths.size());
+                break;
+            }
             options.setMaxWalkDistance(maxWalk);
             StateEditor editor = new StateEditor(origin, null);
             editor.setTraverseOptions(options);
@@ -31,6 +31,8 @@ import java.util.regex.Pattern;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.opentripplanner.common.model.NamedPlace;
 import org.opentripplanner.routing.algorithm.GraphLibrary;
+import org.opentripplanner.routing.algorithm.SearchStats;
+import org.opentripplanner.routing.algorithm.SearchStats.Termination;
 import org.opentripplanner.routing.algorithm.strategies.BidirectionalRemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.ExtraEdgesStrategy;
 import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
@@ -56,6 +58,7 @@ import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.routing.services.PathService;
 import org.opentripplanner.routing.services.RemainingWeightHeuristicFactory;
 import org.opentripplanner.routing.services.RoutingService;
+import org.opentripplanner.routing.services.SearchMetricsService;
 import org.opentripplanner.routing.services.StreetVertexIndexService;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.slf4j.Logger;
@@ -107,6 +110,8 @@ public class MultiObjectivePathServiceImpl implements PathService {
     
     private double _maxPaths = 4;
 
+    private SearchMetricsService _searchMetricsService;
+
     /**
      * Give up on searching for itineraries after this many seconds have elapsed.
      */
@@ -140,6 +145,11 @@ public class MultiObjectivePathServiceImpl implements PathService {
         _indexService = indexService;
     }
 
+    @Autowired(required = false)
+    public void setSearchMetricsService(SearchMetricsService searchMetricsService) {
+        _searchMetricsService = searchMetricsService;
+    }
+
     @Override
     public List<GraphPath> plan(NamedPlace fromPlace, NamedPlace toPlace, Date targetTime,
             TraverseOptions options, int nItineraries) {
@@ -174,8 +184,28 @@ public class MultiObjectivePathServiceImpl implements PathService {
         return plan(state, target, nItineraries);
     }
 
+    /**
+     * Every call is counted separately in the {@link SearchMetricsService}; counters are also
+     * added to the caller's {@link TraverseOptions#searchStats}, if any.
+     */
     @Override
     public List<GraphPath> plan(State origin, Vertex target, int nItineraries) {
+        TraverseOptions options = origin.getOptions();
+        SearchStats requestStats = options.searchStats;
+        SearchStats stats = new SearchStats();
+        options.searchStats = stats;
+        try {
+            return planWithStats(origin, target, stats);
+        } finally {
+            options.searchStats = requestStats;
+            if (requestStats != null)
+                requestStats.add(stats);
+            if (_searchMetricsService != null)
+                _searchMetricsService.addSearch(stats);
+        }
+    }
+
+    private List<GraphPath> planWithStats(State origin, Vertex target, SearchStats stats) {
 
         Date targetTime = new Date(origin.getTime() * 1000);
         TraverseOptions options = origin.getOptions();
@@ -222,12 +252,22 @@ public class MultiObjectivePathServiceImpl implements PathService {
         HashMap<Vertex, List<State>> states = new HashMap<Vertex, List<State>>();
         pq.reset();
         pq.insert(origin, 0);
+        long heuristicBeginNanos = System.nanoTime();
         heuristic.computeInitialWeight(origin, target);
+        stats.addHeuristicSetupTime(System.nanoTime() - heuristicBeginNanos);
+        long searchBeginNanos = System.nanoTime();
+        Termination termination = Termination.QUEUE_EXHAUSTED;
         long startTime = System.currentTimeMillis();
         long endTime = startTime + (int)(_timeouts[0] * 1000);
         QUEUE: while ( ! pq.empty()) {
             if (System.currentTimeMillis() > endTime) {
                 LOG.debug("timeout at {} msec", System.currentTimeMillis() - startTime);
+                termination = Termination.TIMEOUT;
+                break QUEUE;
+            }
+            if (options.cancellationToken != null && options.cancellationToken.isCancelled()) {
+                LOG.debug("cancelled at {} msec", System.currentTimeMillis() - startTime);
+                termination = Termination.CANCELLED;
                 break QUEUE;
             }
             Double su_hweight = pq.peek_min_key();
@@ -237,11 +277,14 @@ public class MultiObjectivePathServiceImpl implements PathService {
 //                        continue;
 
             for (State bs : boundingStates) {
-                if (eDominates(bs, su))
+                if (eDominates(bs, su)) {
+                    stats.statePruned();
                     continue QUEUE;
+                }
 //                    if (su_hweight > bs.getWeight() * 1.5)
 //                        break QUEUE;
             }
+            stats.visitVertex(su);
             Vertex u = su.getVertex();
             // check for dominated states 
             // (is this important? seems to make insignificant diff. are there the "hidden states"?)
@@ -252,10 +295,10 @@ public class MultiObjectivePathServiceImpl implements PathService {
                 boundingStates.add(su);
                 returnStates.add(su);
                 // options should contain max itineraries
-                if ( ! options.getModes().getTransit())
-                    break QUEUE;
-                if (returnStates.size() >= _maxPaths)
+                if ( ! options.getModes().getTransit() || returnStates.size() >= _maxPaths) {
+                    termination = Termination.TARGET_REACHED;
                     break QUEUE;
+                }
                 if (returnStates.size() < _timeouts.length) {
                     endTime = startTime + (int)(_timeouts[returnStates.size()] * 1000);
                     LOG.debug("{} path, set timeout to {}", 
@@ -275,6 +318,7 @@ public class MultiObjectivePathServiceImpl implements PathService {
                 State new_sv = e.traverse(su);
                 if (new_sv == null)
                     continue;
+                stats.visitEdge(e, new_sv);
                 double h = heuristic.computeForwardWeight(new_sv, target);
                 for (State bs : boundingStates) {
                     if (eDominates(bs, new_sv))
@@ -287,8 +331,10 @@ public class MultiObjectivePathServiceImpl implements PathService {
                     states.put(v, old_states);
                 } else {
                     for (State old_sv : old_states) {
-                        if (eDominates(old_sv, new_sv))
+                        if (eDominates(old_sv, new_sv)) {
+                            stats.stateDominated();
                             continue EDGE;
+                        }
                     }
                     Iterator<State> iter = old_states.iterator();
                     while (iter.hasNext()) {
@@ -300,8 +346,11 @@ public class MultiObjectivePathServiceImpl implements PathService {
                 }
                 old_states.add(new_sv);
                 pq.insert(new_sv, new_sv.getWeight() + h);    
+                stats.visitEnqueue(new_sv);
+                stats.queueSize(pq.size());
             }
         }
+        stats.searchFinished(termination, System.nanoTime() - searchBeginNanos);
         
         // Make the states into paths and return them
         List<GraphPath> paths = new LinkedList<GraphPath>();
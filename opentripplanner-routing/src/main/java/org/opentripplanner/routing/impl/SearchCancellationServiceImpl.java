@@ -0,0 +1,73 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.routing.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PreDestroy;
+
+import org.opentripplanner.routing.algorithm.CancellationToken;
+import org.opentripplanner.routing.services.SearchCancellationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cancels all outstanding searches when the application context is closed, so that shutting down
+ * or redeploying does not wait for long-running searches to finish.
+ */
+@Component
+public class SearchCancellationServiceImpl implements SearchCancellationService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchCancellationServiceImpl.class);
+
+    private final Set<CancellationToken> active = Collections
+            .newSetFromMap(new ConcurrentHashMap<CancellationToken, Boolean>());
+
+    private volatile boolean shutdown = false;
+
+    @Override
+    public void register(CancellationToken token) {
+        active.add(token);
+        if (shutdown)
+            token.cancel();
+    }
+
+    @Override
+    public void unregister(CancellationToken token) {
+        active.remove(token);
+    }
+
+    @Override
+    public void cancelAll() {
+        for (CancellationToken token : active)
+            token.cancel();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shutdown = true;
+        if (!active.isEmpty())
+            LOG.info("cancelling {} running searches", active.size());
+        cancelAll();
+    }
+}
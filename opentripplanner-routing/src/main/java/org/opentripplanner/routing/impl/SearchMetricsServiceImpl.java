@@ -0,0 +1,225 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.opentripplanner.routing.algorithm.SearchStats;
+import org.opentripplanner.routing.services.SearchMetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps running totals of the {@link SearchStats} of every request and publishes them over JMX as
+ * <code>org.opentripplanner:type=SearchMetrics</code>. When several routers are loaded, each has
+ * its own instance, distinguished by an <code>instance</code> key.
+ */
+@Component
+public class SearchMetricsServiceImpl implements SearchMetricsService,
+        SearchMetricsServiceImplMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchMetricsServiceImpl.class);
+
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private ObjectName objectName;
+
+    private long requests;
+
+    private long searches;
+
+    private long timeouts;
+
+    private long statesCreated;
+
+    private long statesEnqueued;
+
+    private long statesDominated;
+
+    private long statesPruned;
+
+    private long verticesVisited;
+
+    private int maxQueuePeakSize;
+
+    private long totalQueuePeakSize;
+
+    private long searchNanos;
+
+    private long maxSearchNanos;
+
+    private long heuristicSetupNanos;
+
+    private Map<String, Long> edgesTraversedByType = new HashMap<String, Long>();
+
+    private Map<String, Long> terminations = new HashMap<String, Long>();
+
+    @PostConstruct
+    public void register() {
+        int instance = instances.incrementAndGet();
+        try {
+            String name = "org.opentripplanner:type=SearchMetrics";
+            if (instance > 1)
+                name += ",instance=" + instance;
+            objectName = new ObjectName(name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, objectName);
+        } catch (Exception e) {
+            LOG.warn("unable to register search metrics with JMX", e);
+            objectName = null;
+        }
+    }
+
+    @PreDestroy
+    public void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            LOG.warn("unable to unregister search metrics from JMX", e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public synchronized void addSearch(SearchStats stats) {
+        requests++;
+        searches += stats.getSearches();
+        timeouts += stats.getTimeouts();
+        statesCreated += stats.getStatesCreated();
+        statesEnqueued += stats.getStatesEnqueued();
+        statesDominated += stats.getStatesDominated();
+        statesPruned += stats.getStatesPruned();
+        verticesVisited += stats.getVerticesVisited();
+        maxQueuePeakSize = Math.max(maxQueuePeakSize, stats.getQueuePeakSize());
+        totalQueuePeakSize += stats.getQueuePeakSize();
+        searchNanos += stats.getSearchNanos();
+        maxSearchNanos = Math.max(maxSearchNanos, stats.getSearchNanos());
+        heuristicSetupNanos += stats.getHeuristicSetupNanos();
+        for (Map.Entry<String, Long> entry : stats.getEdgesTraversedByType().entrySet())
+            increment(edgesTraversedByType, entry.getKey(), entry.getValue());
+        if (stats.getTermination() != null)
+            increment(terminations, stats.getTermination().toString(), 1);
+    }
+
+    private static void increment(Map<String, Long> counts, String key, long value) {
+        Long previous = counts.get(key);
+        counts.put(key, previous == null ? value : previous + value);
+    }
+
+    @Override
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    @Override
+    public synchronized long getSearches() {
+        return searches;
+    }
+
+    @Override
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    @Override
+    public synchronized long getStatesCreated() {
+        return statesCreated;
+    }
+
+    @Override
+    public synchronized long getStatesEnqueued() {
+        return statesEnqueued;
+    }
+
+    @Override
+    public synchronized long getStatesDominated() {
+        return statesDominated;
+    }
+
+    @Override
+    public synchronized long getStatesPruned() {
+        return statesPruned;
+    }
+
+    @Override
+    public synchronized long getVerticesVisited() {
+        return verticesVisited;
+    }
+
+    @Override
+    public synchronized int getMaxQueuePeakSize() {
+        return maxQueuePeakSize;
+    }
+
+    @Override
+    public synchronized double getMeanQueuePeakSize() {
+        return requests == 0 ? 0 : (double) totalQueuePeakSize / requests;
+    }
+
+    @Override
+    public synchronized double getMeanSearchMillis() {
+        return requests == 0 ? 0 : searchNanos / 1000000.0 / requests;
+    }
+
+    @Override
+    public synchronized double getMaxSearchMillis() {
+        return maxSearchNanos / 1000000.0;
+    }
+
+    @Override
+    public synchronized double getMeanHeuristicSetupMillis() {
+        return requests == 0 ? 0 : heuristicSetupNanos / 1000000.0 / requests;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getEdgesTraversedByType() {
+        return new TreeMap<String, Long>(edgesTraversedByType);
+    }
+
+    @Override
+    public synchronized Map<String, Long> getTerminations() {
+        return new TreeMap<String, Long>(terminations);
+    }
+
+    @Override
+    public synchronized void reset() {
+        requests = 0;
+        searches = 0;
+        timeouts = 0;
+        statesCreated = 0;
+        statesEnqueued = 0;
+        statesDominated = 0;
+        statesPruned = 0;
+        verticesVisited = 0;
+        maxQueuePeakSize = 0;
+        totalQueuePeakSize = 0;
+        searchNanos = 0;
+        maxSearchNanos = 0;
+        heuristicSetupNanos = 0;
+        edgesTraversedByType.clear();
+        terminations.clear();
+    }
+}
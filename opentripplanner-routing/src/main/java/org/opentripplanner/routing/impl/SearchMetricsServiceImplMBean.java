@@ -0,0 +1,55 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.impl;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link SearchMetricsServiceImpl}. All counts are totals since startup or the last
+ * {@link #reset()}.
+ */
+public interface SearchMetricsServiceImplMBean {
+
+    public long getRequests();
+
+    public long getSearches();
+
+    public long getTimeouts();
+
+    public long getStatesCreated();
+
+    public long getStatesEnqueued();
+
+    public long getStatesDominated();
+
+    public long getStatesPruned();
+
+    public long getVerticesVisited();
+
+    public int getMaxQueuePeakSize();
+
+    public double getMeanQueuePeakSize();
+
+    public double getMeanSearchMillis();
+
+    public double getMaxSearchMillis();
+
+    public double getMeanHeuristicSetupMillis();
+
+    public Map<String, Long> getEdgesTraversedByType();
+
+    public Map<String, Long> getTerminations();
+
+    public void reset();
+}
@@ -123,10 +123,11 @@ public class StreetVertexIndexServiceImpl implements StreetVertexIndexService, G
             Vertex v = gv.vertex;
             // We only care about StreetEdges
             for (StreetEdge e : filter(gv.getOutgoing(), StreetEdge.class)) {
-                if (e.getGeometry() == null) {
+                Geometry g = e.getGeometry();
+                if (g == null) {
                     continue;
                 }
-                Envelope env = e.getGeometry().getEnvelopeInternal();
+                Envelope env = g.getEnvelopeInternal();
                 edgeTree.insert(env, e);
             }
             if (v instanceof TransitStop) {
@@ -155,6 +156,7 @@ public class StreetVertexIndexServiceImpl implements StreetVertexIndexService, G
             }
         }
         transitStopTree.build();
+        intersectionTree.build();
     }
 
     /**
@@ -307,6 +309,7 @@ public class StreetVertexIndexServiceImpl implements StreetVertexIndexService, G
 
             bestDistance = Double.MAX_VALUE;
             StreetEdge bestEdge = null;
+            Geometry bestGeometry = null;
             List<StreetEdge> nearby = edgeTree.query(envelope);
             if (extraEdges != null && nearby != null) {
                 nearby = new JoinedList<StreetEdge>(nearby, extraStreets);
@@ -315,13 +318,14 @@ public class StreetVertexIndexServiceImpl implements StreetVertexIndexService, G
                 for (StreetEdge e : nearby) {
                     if (e == null || e instanceof OutEdge)
                         continue;
+                    if (options != null) {
+                        if (!(e.canTraverse(options) || e.canTraverse(walkingOptions))) {
+                            continue;
+                        }
+                    }
+                    // packed geometries are decoded on each call, so only once the edge is usable
                     Geometry g = e.getGeometry();
                     if (g != null) {
-                        if (options != null) {
-                            if (!(e.canTraverse(options) || e.canTraverse(walkingOptions))) {
-                                continue;
-                            }
-                        }
                         double distance = g.distance(p);
                         if (distance > envelope.getWidth() / 2) {
                             // Even if an edge is outside the query envelope, bounding boxes can
@@ -332,13 +336,14 @@ public class StreetVertexIndexServiceImpl implements StreetVertexIndexService, G
                         if (distance < bestDistance) {
                             bestDistance = distance;
                             bestEdge = e;
+                            bestGeometry = g;
                         }
                     }
                 }
 
                 // find coincidence edges
                 if (bestDistance <= MAX_DISTANCE_FROM_STREET) {
-                    LocationIndexedLine lil = new LocationIndexedLine(bestEdge.getGeometry());
+                    LocationIndexedLine lil = new LocationIndexedLine(bestGeometry);
                     LinearLocation location = lil.project(coordinate);
                     Coordinate nearestPointOnEdge = lil.extractPoint(location);
                     double xd = nearestPointOnEdge.x - coordinate.x;
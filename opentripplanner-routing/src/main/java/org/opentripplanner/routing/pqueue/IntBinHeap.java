@@ -0,0 +1,93 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.pqueue;
+
+import java.util.Arrays;
+
+/**
+ * A binary heap of int elements (typically vertex indices), like {@link BinHeap} but without
+ * boxing. There is no rekeying: an element whose key improves is simply inserted again, and the
+ * caller skips stale entries when they are extracted.
+ */
+public class IntBinHeap {
+
+    private int[] elem;
+
+    private double[] prio;
+
+    private int size;
+
+    public IntBinHeap() {
+        this(1000);
+    }
+
+    public IntBinHeap(int capacity) {
+        if (capacity < 10)
+            capacity = 10;
+        elem = new int[capacity + 1]; // 1-based indexing
+        prio = new double[capacity + 1];
+        prio[0] = Double.NEGATIVE_INFINITY; // set sentinel
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean empty() {
+        return size == 0;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public double peek_min_key() {
+        return prio[1];
+    }
+
+    public void insert(int e, double p) {
+        if (++size == elem.length) {
+            elem = Arrays.copyOf(elem, elem.length * 2);
+            prio = Arrays.copyOf(prio, prio.length * 2);
+        }
+        int i;
+        for (i = size; prio[i / 2] > p; i /= 2) {
+            elem[i] = elem[i / 2];
+            prio[i] = prio[i / 2];
+        }
+        elem[i] = e;
+        prio[i] = p;
+    }
+
+    public int extract_min() {
+        int minElem = elem[1];
+        int lastElem = elem[size];
+        double lastPrio = prio[size];
+        size--;
+        int i, child;
+        for (i = 1; i * 2 <= size; i = child) {
+            child = i * 2;
+            if (child != size && prio[child + 1] < prio[child])
+                child++;
+            if (lastPrio > prio[child]) {
+                elem[i] = elem[child];
+                prio[i] = prio[child];
+            } else
+                break;
+        }
+        elem[i] = lastElem;
+        prio[i] = lastPrio;
+        return minElem;
+    }
+}
@@ -0,0 +1,35 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.reach;
+
+import org.opentripplanner.routing.algorithm.GenericAStar;
+import org.opentripplanner.routing.algorithm.strategies.GenericAStarFactory;
+import org.opentripplanner.routing.core.TraverseOptions;
+
+/**
+ * Creates A* searches that prune by reach. Set an instance as
+ * {@link TraverseOptions#aStarSearchFactory} to use it for a request on a graph whose street edges
+ * carry reaches.
+ * 
+ * @see ReachSkipTraverseResultStrategy
+ */
+public class ReachAStarFactory implements GenericAStarFactory {
+
+    @Override
+    public GenericAStar createAStarInstance() {
+        GenericAStar aStar = new GenericAStar();
+        aStar.setSkipTraverseResultStrategy(new ReachSkipTraverseResultStrategy());
+        return aStar;
+    }
+}
@@ -0,0 +1,62 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.reach;
+
+import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
+import org.opentripplanner.routing.algorithm.strategies.SkipTraverseResultStrategy;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+
+/**
+ * Drops states reached over an {@link EdgeWithReach} that cannot be on a shortest path to the
+ * target. That is the case when the edge's reach is smaller than both the distance walked to the
+ * end of the edge and a lower bound on the distance from its start to the target. This only
+ * removes states, so it combines with whatever admissible {@link RemainingWeightHeuristic} the
+ * search uses.
+ * 
+ * Reaches are computed over walking distances, so nothing is pruned unless walking is the only
+ * street mode. The lower bound is the straight-line distance to the target or, while transit can
+ * still be boarded, to the nearest transit stop.
+ */
+public class ReachSkipTraverseResultStrategy implements SkipTraverseResultStrategy {
+
+    @Override
+    public boolean shouldSkipTraversalResult(Vertex origin, Vertex target, State parent,
+            State current, ShortestPathTree spt, TraverseOptions traverseOptions) {
+        if (target == null)
+            return false;
+        Edge backEdge = current.getBackEdge();
+        if (!(backEdge instanceof EdgeWithReach))
+            return false;
+        TraverseModeSet modes = traverseOptions.getModes();
+        if (!modes.getWalk() || modes.getBicycle() || modes.getCar())
+            return false;
+
+        double reach = ((EdgeWithReach) backEdge).getReach();
+        if (current.getWalkSinceLastTransit() <= reach)
+            return false;
+        // the edge leads away from the parent in both forward and arrive-by searches
+        Vertex start = parent.getVertex();
+        double remaining = start.fastDistance(target);
+        if (modes.getTransit() && !current.isAlightedLocal()
+                && current.getNumBoardings() < traverseOptions.maxTransfers + 1) {
+            remaining = Math.min(remaining, start.getDistanceToNearestTransitStop());
+        }
+        return remaining > reach;
+    }
+}
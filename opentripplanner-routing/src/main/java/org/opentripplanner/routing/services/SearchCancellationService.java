@@ -0,0 +1,36 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.routing.services;
+
+import org.opentripplanner.routing.algorithm.CancellationToken;
+
+/**
+ * Keeps track of the {@link CancellationToken}s of requests that are being planned, so that they
+ * can be stopped together, for example when the server shuts down.
+ */
+public interface SearchCancellationService {
+
+    /** Start tracking a request. Tokens registered during shutdown are cancelled right away. */
+    public void register(CancellationToken token);
+
+    /** Stop tracking a request, once it has finished. */
+    public void unregister(CancellationToken token);
+
+    /** Cancel every registered request. */
+    public void cancelAll();
+
+    /** @return the number of requests being planned */
+    public int getActiveCount();
+}
@@ -0,0 +1,26 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.services;
+
+import org.opentripplanner.routing.algorithm.SearchStats;
+
+/**
+ * Aggregates the per-request {@link SearchStats} of a path service into long-running totals, for
+ * monitoring.
+ */
+public interface SearchMetricsService {
+
+    /** Add the counters of one completed request. */
+    public void addSearch(SearchStats stats);
+}
@@ -0,0 +1,106 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.common.geometry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.routing.core.GenericVertex;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.util.ElevationUtils;
+import org.opentripplanner.routing.util.SlopeCosts;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class TestCompactElevationProfile extends TestCase {
+
+    /* a 1km street sampled every 10m, climbing and descending a hill */
+    private PackedCoordinateSequence makeProfile() {
+        double[] coords = new double[2 * 101];
+        for (int i = 0; i <= 100; i++) {
+            coords[2 * i] = i * 10.0;
+            coords[2 * i + 1] = 120 + 15 * Math.sin(i / 20.0) + (i % 7) * 0.013;
+        }
+        return new PackedCoordinateSequence.Double(coords, 2);
+    }
+
+    public void testRoundTrip() {
+        PackedCoordinateSequence profile = makeProfile();
+        CompactElevationProfile compact = CompactElevationProfile.create(profile);
+        assertEquals(profile.size(), compact.size());
+        for (int i = 0; i < profile.size(); i++) {
+            assertEquals(profile.getOrdinate(i, 0), compact.getOrdinate(i, 0), 0.005);
+            assertEquals(profile.getOrdinate(i, 1), compact.getOrdinate(i, 1), 0.005);
+            assertEquals(compact.getOrdinate(i, 1), compact.toCoordinateArray()[i].y);
+        }
+        assertSame(compact, CompactElevationProfile.create(compact));
+
+        PackedCoordinateSequence negative = new PackedCoordinateSequence.Double(new double[] {
+                0, -12.5, 300000, 8000.25, 5, -3 }, 2);
+        Coordinate[] decoded = CompactElevationProfile.create(negative).toCoordinateArray();
+        assertEquals(-12.5, decoded[0].y);
+        assertEquals(300000.0, decoded[1].x);
+        assertEquals(8000.25, decoded[1].y);
+        assertEquals(5.0, decoded[2].x);
+        assertEquals(-3.0, decoded[2].y);
+    }
+
+    public void testImmutable() {
+        try {
+            CompactElevationProfile.create(makeProfile()).setOrdinate(0, 1, 0);
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    public void testSize() throws IOException {
+        PackedCoordinateSequence profile = makeProfile();
+        CompactElevationProfile compact = CompactElevationProfile.create(profile);
+        assertTrue(compact.getEncodedSize() <= 4 * (profile.size() - 1));
+        assertTrue(serializedSize(compact) * 3 < serializedSize(profile));
+    }
+
+    private int serializedSize(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.size();
+    }
+
+    public void testSlopeCostsUseExactProfile() {
+        Coordinate c1 = new Coordinate(-122.575033, 45.456773);
+        Coordinate c2 = new Coordinate(-122.576668, 45.451426);
+        PlainStreetEdge street = new PlainStreetEdge(new GenericVertex("v1", c1, null),
+                new GenericVertex("v2", c2, null), new GeometryFactory()
+                        .createLineString(new Coordinate[] { c1, c2 }), "Test Lane", 1000,
+                StreetTraversalPermission.ALL, false);
+
+        PackedCoordinateSequence profile = makeProfile();
+        street.setElevationProfile(profile);
+        assertTrue(street.getElevationProfile() instanceof CompactElevationProfile);
+
+        SlopeCosts costs = ElevationUtils.getSlopeCosts(profile, "test");
+        assertEquals(costs.slopeWorkCost, street.getWorkCost());
+        assertEquals(costs.slopeSpeedEffectiveLength, street.getSlopeSpeedEffectiveLength());
+        assertEquals(1000 * ElevationUtils.getLengthMultiplierFromElevation(profile),
+                street.getLength());
+    }
+}
@@ -0,0 +1,130 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.common.geometry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.routing.core.GenericVertex;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+public class TestPackedGeometryStore extends TestCase {
+
+    private Coordinate[] makeLine(int points, double step) {
+        Coordinate[] coordinates = new Coordinate[points];
+        for (int i = 0; i < points; i++) {
+            coordinates[i] = new Coordinate(-122.68 + i * step, 45.52 - i * step / 3);
+        }
+        return coordinates;
+    }
+
+    private void assertSameLine(Coordinate[] expected, Coordinate[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].x, actual[i].x, 0.6e-7);
+            assertEquals(expected[i].y, actual[i].y, 0.6e-7);
+        }
+    }
+
+    public void testRoundTrip() {
+        PackedGeometryStore store = new PackedGeometryStore();
+        Coordinate[] shortSteps = makeLine(50, 0.0001);
+        Coordinate[] longSteps = makeLine(5, 1.5);
+        Coordinate[] antimeridian = new Coordinate[] { new Coordinate(-179.9, 0),
+                new Coordinate(179.9, 0.0000001) };
+        int a = store.add(shortSteps);
+        int b = store.add(longSteps);
+        int c = store.add(antimeridian);
+        /* nearby points take one int each */
+        assertEquals(2 + 49, b - a);
+        assertSameLine(shortSteps, store.getCoordinates(a, shortSteps.length));
+        assertSameLine(longSteps, store.getCoordinates(b, longSteps.length));
+        assertSameLine(antimeridian, store.getCoordinates(c, antimeridian.length));
+    }
+
+    public void testRefusedLines() {
+        PackedGeometryStore store = new PackedGeometryStore();
+        assertEquals(-1, store.add(new Coordinate[0]));
+        assertEquals(-1, store.add(new Coordinate[] { new Coordinate(500000, 4000000) }));
+        assertEquals(-1, store.add(new Coordinate[] { new Coordinate(Double.NaN, 0) }));
+        assertEquals(0, store.size());
+    }
+
+    public void testPagesAndTrim() throws Exception {
+        PackedGeometryStore store = new PackedGeometryStore();
+        Coordinate[] line = makeLine(1000, 0.00001);
+        int[] offsets = new int[100];
+        for (int i = 0; i < 50; i++) {
+            offsets[i] = store.add(line);
+        }
+        store.trimToSize();
+        for (int i = 50; i < 100; i++) {
+            offsets[i] = store.add(line);
+        }
+        store.trimToSize();
+        assertTrue(store.size() > 1 << 16);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(store);
+        out.close();
+        PackedGeometryStore copy = (PackedGeometryStore) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        for (int i = 0; i < 100; i++) {
+            assertSameLine(line, copy.getCoordinates(offsets[i], line.length));
+        }
+    }
+
+    public void testCache() {
+        PackedGeometryStore store = new PackedGeometryStore();
+        int a = store.add(makeLine(3, 0.001));
+        int b = store.add(makeLine(4, 0.001));
+        assertNotSame(store.getLineString(a, 3), store.getLineString(a, 3));
+        store.setCacheSize(1);
+        LineString line = store.getLineString(a, 3);
+        assertSame(line, store.getLineString(a, 3));
+        store.getLineString(b, 4);
+        assertNotSame(line, store.getLineString(a, 3));
+    }
+
+    public void testPackedStreetEdge() {
+        Coordinate[] coordinates = makeLine(10, 0.0002);
+        LineString geometry = new GeometryFactory().createLineString(coordinates);
+        PlainStreetEdge street = new PlainStreetEdge(new GenericVertex("v1", coordinates[0], null),
+                new GenericVertex("v2", coordinates[9], null), geometry, "Test Lane", 100,
+                StreetTraversalPermission.ALL, false);
+        PackedGeometryStore store = new PackedGeometryStore();
+        assertTrue(street.packGeometry(store));
+        assertSameLine(coordinates, street.getGeometry().getCoordinates());
+        assertEquals(geometry.getLength(), street.getGeometry().getLength(), 1e-6);
+
+        /* an edge sharing the same line does not store it again */
+        int size = store.size();
+        PlainStreetEdge back = new PlainStreetEdge(street.getFromVertex(), street.getToVertex(),
+                geometry, "Test Lane", 100, StreetTraversalPermission.ALL, true);
+        assertTrue(back.packGeometry(store));
+        assertEquals(size, store.size());
+        assertSameLine(coordinates, back.getGeometry().getCoordinates());
+    }
+}
@@ -15,7 +15,9 @@ package org.opentripplanner.routing;
 
 import static org.opentripplanner.common.IterableLibrary.cast;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.List;
@@ -28,6 +30,7 @@ import org.opentripplanner.routing.algorithm.AStar;
 import org.opentripplanner.routing.core.DirectEdge;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.TransitStop;
 import org.opentripplanner.routing.core.TraverseMode;
@@ -332,4 +335,49 @@ public class TestHalfEdges extends TestCase {
         assertTrue(Math.abs(station2point.getCoordinate().x - -74.002) < 0.00000001);
         
     }
+
+    public void testNetworkLinkerThreads() {
+        /* enough stops along the top street for the searches to be split into several tasks */
+        addStopsAlongTop(250);
+        new NetworkLinker(graph).createLinkage();
+        List<String> expected = describe(graph);
+
+        setUp();
+        addStopsAlongTop(250);
+        NetworkLinker nl = new NetworkLinker(graph);
+        nl.setThreads(4);
+        nl.createLinkage();
+        assertEquals(expected, describe(graph));
+        for (GraphVertex gv : graph.getVertices()) {
+            if (gv.vertex instanceof TransitStop)
+                assertEquals(2, gv.getDegreeOut());
+        }
+    }
+
+    private void addStopsAlongTop(int n) {
+        for (int i = 0; i < n; ++i) {
+            double x = -74.0099 + 0.0098 * i / n;
+            graph.addVertex(new TransitStop("stop " + i, x, 40.0099999, "stop " + i,
+                    new AgencyAndId("A", "stop " + i), null));
+        }
+    }
+
+    /** @return the vertices and their outgoing edges, by label, in a fixed order */
+    private List<String> describe(Graph graph) {
+        List<String> description = new ArrayList<String>();
+        for (GraphVertex gv : graph.getVertices()) {
+            Vertex v = gv.vertex;
+            description.add(v.getLabel() + " at " + v.getX() + "," + v.getY());
+            for (Edge e : gv.getOutgoing()) {
+                String edge = v.getLabel() + " " + e.getClass().getSimpleName();
+                if (e instanceof DirectEdge) {
+                    DirectEdge de = (DirectEdge) e;
+                    edge += " to " + de.getToVertex().getLabel() + " " + de.getDistance();
+                }
+                description.add(edge);
+            }
+        }
+        Collections.sort(description);
+        return description;
+    }
 }
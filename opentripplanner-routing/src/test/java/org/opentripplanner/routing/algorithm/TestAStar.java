@@ -75,6 +75,63 @@ public class TestAStar extends TestCase {
 
     }
 
+    public void testSearchStats() throws Exception {
+
+        GtfsContext context = GtfsLibrary.readGtfs(new File(ConstantsForTests.CALTRAIN_GTFS));
+
+        TraverseOptions options = new TraverseOptions();
+        options.setGtfsContext(context);
+        SearchStats stats = new SearchStats();
+        options.searchStats = stats;
+
+        Graph gg = new Graph();
+        GTFSPatternHopFactory factory = new GTFSPatternHopFactory(context);
+        factory.run(gg);
+
+        long startTime = TestUtils.dateInSeconds(2009, 8, 7, 12, 0, 0);
+        AStar.getShortestPathTree(gg, "Caltrain_Millbrae Caltrain",
+                "Caltrain_Mountain View Caltrain", startTime, options);
+
+        assertEquals(1, stats.getSearches());
+        assertEquals(SearchStats.Termination.TARGET_REACHED, stats.getTermination());
+        assertTrue(stats.getStatesEnqueued() > 0);
+        assertTrue(stats.getStatesCreated() >= stats.getStatesEnqueued());
+        assertTrue(stats.getQueuePeakSize() > 0);
+        assertTrue(stats.getEdgesTraversedByType().containsKey("PatternHop"));
+
+        /* a second search adds to the same counters */
+        long created = stats.getStatesCreated();
+        AStar.getShortestPathTree(gg, "Caltrain_Millbrae Caltrain",
+                "Caltrain_Mountain View Caltrain", startTime, options);
+        assertEquals(2, stats.getSearches());
+        assertEquals(2 * created, stats.getStatesCreated());
+    }
+
+    public void testCancellation() throws Exception {
+
+        GtfsContext context = GtfsLibrary.readGtfs(new File(ConstantsForTests.CALTRAIN_GTFS));
+
+        TraverseOptions options = new TraverseOptions();
+        options.setGtfsContext(context);
+        options.searchStats = new SearchStats();
+        options.cancellationToken = new CancellationToken();
+
+        Graph gg = new Graph();
+        GTFSPatternHopFactory factory = new GTFSPatternHopFactory(context);
+        factory.run(gg);
+
+        long startTime = TestUtils.dateInSeconds(2009, 8, 7, 12, 0, 0);
+        ShortestPathTree spt = AStar.getShortestPathTree(gg, "Caltrain_Millbrae Caltrain",
+                "Caltrain_Mountain View Caltrain", startTime, options);
+        assertNotNull(spt);
+
+        options.cancellationToken.cancel();
+        spt = AStar.getShortestPathTree(gg, "Caltrain_Millbrae Caltrain",
+                "Caltrain_Mountain View Caltrain", startTime, options);
+        assertNull(spt);
+        assertEquals(SearchStats.Termination.CANCELLED, options.searchStats.getTermination());
+    }
+
     public void testBannedRoutes() {
 
         Graph graph;
@@ -0,0 +1,127 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.gtfs.GtfsContext;
+import org.opentripplanner.gtfs.GtfsLibrary;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.TransitStop;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.edgetype.TransferEdge;
+import org.opentripplanner.routing.edgetype.factory.GTFSPatternHopFactory;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.util.TestUtils;
+
+public class TestWeightTable extends TestCase {
+
+    /* more stops than fit in a couple of Floyd-Warshall tiles */
+    private static final int N_STOPS = 150;
+
+    private static final int TRANSFER_TIME = 100;
+
+    private Graph graph;
+
+    private TransitStop[] stops;
+
+    public void setUp() {
+        graph = new Graph();
+        stops = new TransitStop[N_STOPS];
+        for (int i = 0; i < N_STOPS; ++i) {
+            stops[i] = new TransitStop("stop " + i, 0.001 * i, 0, "stop " + i, null, null);
+            graph.addVertex(stops[i]);
+        }
+        for (int i = 0; i < N_STOPS - 1; ++i) {
+            graph.addEdge(new TransferEdge(stops[i], stops[i + 1], 100, TRANSFER_TIME));
+            graph.addEdge(new TransferEdge(stops[i + 1], stops[i], 100, TRANSFER_TIME));
+        }
+    }
+
+    /** The number of transfers the per-stop searches explore before giving up */
+    private int searchRadius() {
+        return (int) (60 * 60 * new TraverseOptions().walkReluctance / TRANSFER_TIME);
+    }
+
+    public void testFloyd() {
+        assertTrue(searchRadius() < N_STOPS - 1);
+
+        WeightTable wt = new WeightTable(graph);
+        wt.setThreads(3);
+        wt.buildTable();
+        for (int i = 0; i < N_STOPS; ++i) {
+            for (int j = 0; j < N_STOPS; ++j) {
+                assertEquals((double) Math.abs(i - j) * TRANSFER_TIME,
+                        wt.getWeight(stops[i], stops[j]));
+            }
+        }
+    }
+
+    public void testResolution() {
+        WeightTable wt = new WeightTable(graph);
+        wt.setResolution(30);
+        wt.buildTable();
+        for (int i = 0; i < N_STOPS; ++i) {
+            for (int j = 0; j < N_STOPS; ++j) {
+                double weight = Math.abs(i - j) * TRANSFER_TIME;
+                double bound = wt.getWeight(stops[i], stops[j]);
+                assertTrue(bound <= weight);
+                /* each transfer is rounded down to 90, never lower */
+                assertTrue(bound >= weight * 0.9);
+            }
+        }
+    }
+
+    /* the bounds hold for trips with transfers, which the per-stop searches do not see */
+    public void testLowerBoundOnTransit() throws Exception {
+        GtfsContext context = GtfsLibrary.readGtfs(new File(ConstantsForTests.FAKE_GTFS));
+        Graph transit = new Graph();
+        new GTFSPatternHopFactory(context).run(transit);
+        WeightTable wt = new WeightTable(transit);
+        wt.buildTable();
+
+        TraverseOptions options = new TraverseOptions();
+        options.setGtfsContext(context);
+        List<TransitStop> transitStops = new ArrayList<TransitStop>();
+        for (GraphVertex gv : transit.getVertices()) {
+            if (gv.vertex instanceof TransitStop)
+                transitStops.add((TransitStop) gv.vertex);
+        }
+        long startTime = TestUtils.dateInSeconds(2009, 8, 7, 0, 0, 0);
+        int paths = 0;
+        for (TransitStop from : transitStops) {
+            for (TransitStop to : transitStops) {
+                if (from == to)
+                    continue;
+                ShortestPathTree spt = AStar.getShortestPathTree(transit, from.getLabel(),
+                        to.getLabel(), startTime, options);
+                GraphPath path = spt.getPath(to, true);
+                if (path == null)
+                    continue;
+                paths++;
+                assertTrue(from + " to " + to, wt.getWeight(from, to) <= path.states.getLast()
+                        .getWeight());
+            }
+        }
+        assertTrue(paths > 0);
+    }
+}
@@ -0,0 +1,109 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.routing.edgetype.EndpointVertex;
+import org.opentripplanner.routing.edgetype.TransferEdge;
+
+public class TestLowerBoundGraph extends TestCase {
+
+    private static final int N = 60;
+
+    private Graph graph;
+
+    private Vertex[] vertices;
+
+    /* brute force weights: weight[i][j] is the lightest path from vertex i to vertex j */
+    private double[][] weight;
+
+    public void setUp() {
+        graph = new Graph();
+        vertices = new Vertex[N];
+        weight = new double[N][N];
+        for (int i = 0; i < N; ++i) {
+            vertices[i] = new EndpointVertex("v" + i, i * 0.001, 0);
+            graph.addVertex(vertices[i]);
+            Arrays.fill(weight[i], Double.POSITIVE_INFINITY);
+            weight[i][i] = 0;
+        }
+        Random random = new Random(42);
+        for (int e = 0; e < 4 * N; ++e) {
+            int i = random.nextInt(N), j = random.nextInt(N);
+            int time = 1 + random.nextInt(100);
+            graph.addEdge(new TransferEdge(vertices[i], vertices[j], 100, time));
+            weight[i][j] = Math.min(weight[i][j], time);
+        }
+        for (int k = 0; k < N; ++k)
+            for (int i = 0; i < N; ++i)
+                for (int j = 0; j < N; ++j)
+                    weight[i][j] = Math.min(weight[i][j], weight[i][k] + weight[k][j]);
+    }
+
+    private int index(int i) {
+        return ((GenericVertex) vertices[i]).getIndex();
+    }
+
+    public void testOutgoing() {
+        LowerBoundGraph lbg = new LowerBoundGraph(graph, LowerBoundGraph.OUTGOING);
+        for (int i = 0; i < N; ++i) {
+            VertexWeights result = lbg.sssp(vertices[i]);
+            for (int j = 0; j < N; ++j)
+                assertEquals(weight[i][j], result.getWeight(index(j)));
+        }
+    }
+
+    public void testIncoming() {
+        LowerBoundGraph lbg = new LowerBoundGraph(graph, LowerBoundGraph.INCOMING);
+        for (int j = 0; j < N; ++j) {
+            VertexWeights result = lbg.sssp(vertices[j]);
+            for (int i = 0; i < N; ++i)
+                assertEquals(weight[i][j], result.getWeight(index(i)));
+        }
+    }
+
+    public void testUndirected() {
+        LowerBoundGraph lbg = new LowerBoundGraph(graph, LowerBoundGraph.UNDIRECTED);
+        for (int i = 0; i < N; ++i) {
+            VertexWeights result = lbg.sssp(vertices[i]);
+            for (int j = 0; j < N; ++j) {
+                double w = result.getWeight(index(j));
+                assertEquals(w, lbg.sssp(vertices[j]).getWeight(index(i)));
+                assertTrue(w <= Math.min(weight[i][j], weight[j][i]));
+            }
+        }
+    }
+
+    public void testReuseAndBatch() {
+        LowerBoundGraph lbg = new LowerBoundGraph(graph, LowerBoundGraph.OUTGOING);
+        List<Vertex> origins = new ArrayList<Vertex>(Arrays.asList(vertices));
+        List<VertexWeights> batch = lbg.sssp(origins, 3);
+        assertEquals(N, batch.size());
+
+        VertexWeights reused = new VertexWeights(0);
+        for (int i = 0; i < N; ++i) {
+            lbg.sssp(vertices[i], reused);
+            for (int j = 0; j < N; ++j) {
+                assertEquals(weight[i][j], batch.get(i).getWeight(index(j)));
+                assertEquals(weight[i][j], reused.getWeight(index(j)));
+            }
+        }
+    }
+}
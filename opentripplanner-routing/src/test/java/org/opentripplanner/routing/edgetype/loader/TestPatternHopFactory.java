@@ -15,8 +15,11 @@ package org.opentripplanner.routing.edgetype.loader;
 
 import static org.opentripplanner.common.IterableLibrary.*;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TreeMap;
 
 import junit.framework.TestCase;
 
@@ -550,4 +553,28 @@ public class TestPatternHopFactory extends TestCase {
         assertNotNull(path);
         assertEquals(TestUtils.dateInSeconds(2009, 8, 1, 16, 0, 34), path.getEndTime());
     }
+
+    public void testParallelBuildMatchesSerialBuild() throws Exception {
+        assertEquals(describeGraph(1), describeGraph(4));
+    }
+
+    private TreeMap<String, List<String>> describeGraph(int threads) throws Exception {
+        GtfsContext context = GtfsLibrary.readGtfs(new File(ConstantsForTests.FAKE_GTFS));
+        Graph graph = new Graph();
+        GTFSPatternHopFactory factory = new GTFSPatternHopFactory(context);
+        factory.setThreads(threads);
+        factory.run(graph);
+
+        TreeMap<String, List<String>> edges = new TreeMap<String, List<String>>();
+        for (GraphVertex gv : graph.getVertices()) {
+            List<String> outgoing = new ArrayList<String>();
+            for (Edge e : gv.getOutgoing()) {
+                Geometry geometry = ((DirectEdge) e).getGeometry();
+                outgoing.add(e.getClass().getSimpleName() + " " + ((DirectEdge) e).getToVertex()
+                        + " " + (geometry == null ? null : geometry.toText()));
+            }
+            edges.put(gv.vertex.getLabel(), outgoing);
+        }
+        return edges;
+    }
 }
@@ -36,6 +36,16 @@ public class TestPQueues extends TestCase {
         assertEquals(result, expected);
         System.out.println(q.getClass() + " time " + (t1-t0)/1000.0 + " sec");
     }
+
+    public void doIntQueue(IntBinHeap q, List<Integer> input, List<Integer> expected) {
+        List<Integer> result = new ArrayList<Integer>(N);
+        long t0 = System.currentTimeMillis();
+        for (int i : input) q.insert(i, i * 0.5);
+        while (!q.empty()) result.add(q.extract_min());
+        long t1 = System.currentTimeMillis();
+        assertEquals(result, expected);
+        System.out.println(q.getClass() + " time " + (t1-t0)/1000.0 + " sec");
+    }
     
     public void testCompareHeaps() throws InterruptedException {
         List<Integer> input, expected;
@@ -58,6 +68,7 @@ public class TestPQueues extends TestCase {
             doQueue(new BinHeap<Integer>(N), input, expected);            
             System.out.println("BinHeap initial capacity set to 10 (force grow)");
             doQueue(new BinHeap<Integer>(10), input, expected);            
+            doIntQueue(new IntBinHeap(10), input, expected);
         }
     }    
 